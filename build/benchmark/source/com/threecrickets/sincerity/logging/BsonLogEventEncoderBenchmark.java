@@ -0,0 +1,387 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.ThreadContext.ContextStack;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.spi.MutableThreadContextStack;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.CollectibleCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.MongoClient;
+
+/**
+ * Compares the cost of encoding log events with {@link BsonLogEventEncoder}
+ * to that of the previous implementation of {@link MongoDbManager}, which
+ * converted each event into a tree of {@link Document} instances on the
+ * logging thread, which the MongoDB driver then encoded in the writer thread.
+ * <p>
+ * Three paths are measured for each kind of event:
+ * <ul>
+ * <li><b>document</b>: converting the event to a document, which is what the
+ * logging thread used to pay.</li>
+ * <li><b>document+codec</b>: the above, plus generating an ID and encoding
+ * the document with the driver's default codec, as "insertMany" did, which is
+ * the total cost of the previous implementation.</li>
+ * <li><b>encoder</b>: {@link BsonLogEventEncoder#encode(LogEvent)}, which is
+ * the total cost now, because "insertMany" copies raw documents as is.</li>
+ * </ul>
+ * Each path runs in a single thread for a number of warmup iterations, which
+ * are discarded, and then for the same number of measured iterations. The
+ * mean and standard deviation of the measured iterations are reported, as well
+ * as the number of bytes allocated per event, where the JVM supports
+ * measuring it.
+ * <p>
+ * Before measuring, the two encodings of every kind of event are checked to
+ * be the same document.
+ * <p>
+ * Run it via the "benchmark" target of "build/build.xml", or directly:
+ * 
+ * <pre>
+ * java -cp [classes]:[log4j-api]:[log4j-core]:[mongodb-driver] com.threecrickets.sincerity.logging.BsonLogEventEncoderBenchmark [iterations] [milliseconds per iteration]
+ * </pre>
+ * 
+ * @author Tal Liron
+ */
+public class BsonLogEventEncoderBenchmark
+{
+	//
+	// Constants
+	//
+
+	public static final int DEFAULT_ITERATIONS = 5;
+
+	public static final long DEFAULT_ITERATION_DURATION = 1000;
+
+	//
+	// Main
+	//
+
+	/**
+	 * Runs the benchmark.
+	 * 
+	 * @param arguments
+	 *        The optional number of iterations and the optional duration of
+	 *        each iteration in milliseconds
+	 */
+	public static void main( String[] arguments )
+	{
+		int iterations = arguments.length > 0 ? Integer.parseInt( arguments[0] ) : DEFAULT_ITERATIONS;
+		long iterationDuration = arguments.length > 1 ? Long.parseLong( arguments[1] ) : DEFAULT_ITERATION_DURATION;
+
+		System.out.println( "JVM: " + System.getProperty( "java.vm.name" ) + " " + System.getProperty( "java.version" ) );
+		System.out.println( "Iterations: " + iterations + " warmup + " + iterations + " measured, " + iterationDuration + "ms each" );
+		System.out.println();
+
+		Map<String, LogEvent[]> kinds = new LinkedHashMap<String, LogEvent[]>();
+		kinds.put( "plain", createEvents( false, false ) );
+		kinds.put( "context", createEvents( true, false ) );
+		kinds.put( "location", createEvents( true, true ) );
+
+		for( Map.Entry<String, LogEvent[]> kind : kinds.entrySet() )
+			verify( kind.getKey(), kind.getValue() );
+
+		System.out.println( String.format( "%-10s %-16s %14s %10s %14s", "Event", "Path", "ns/event", "+/-", "bytes/event" ) );
+		for( Map.Entry<String, LogEvent[]> kind : kinds.entrySet() )
+		{
+			final LogEvent[] events = kind.getValue();
+
+			measure( kind.getKey(), "document", iterations, iterationDuration, new Path()
+			{
+				public int run( int index )
+				{
+					return toDocument( events[index % events.length] ).size();
+				}
+			} );
+
+			measure( kind.getKey(), "document+codec", iterations, iterationDuration, new Path()
+			{
+				public int run( int index )
+				{
+					return encodeDocument( toDocument( events[index % events.length] ) ).length;
+				}
+			} );
+
+			final BsonLogEventEncoder encoder = new BsonLogEventEncoder();
+			measure( kind.getKey(), "encoder", iterations, iterationDuration, new Path()
+			{
+				public int run( int index )
+				{
+					return encoder.encode( events[index % events.length] ).length;
+				}
+			} );
+		}
+
+		// Make sure the results are used
+		if( consumed == 42 )
+			System.out.println();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final CollectibleCodec<Document> codec = (CollectibleCodec<Document>) MongoClient.getDefaultCodecRegistry().get( Document.class );
+
+	private static final EncoderContext encoderContext = EncoderContext.builder().isEncodingCollectibleDocument( true ).build();
+
+	private static volatile long consumed;
+
+	/**
+	 * A measured path.
+	 */
+	private interface Path
+	{
+		public int run( int index );
+	}
+
+	/**
+	 * Creates events from a few loggers and threads.
+	 * 
+	 * @param context
+	 *        True to include a marker and thread context
+	 * @param location
+	 *        True to include the source location
+	 * @return The events
+	 */
+	private static LogEvent[] createEvents( boolean context, boolean location )
+	{
+		Marker marker = MarkerManager.getMarker( "AUDIT" );
+		LogEvent[] events = new LogEvent[64];
+		for( int i = 0; i < events.length; i++ )
+		{
+			Log4jLogEvent.Builder builder = Log4jLogEvent.newBuilder();
+			builder.setLoggerName( "com.example.application.module" + ( i % 16 ) + ".Service" );
+			builder.setLevel( i % 8 == 0 ? Level.WARN : Level.INFO );
+			builder.setMessage( new SimpleMessage( "Processed request " + i + " for user example" + ( i % 5 ) + " in " + ( i * 7 % 300 ) + "ms with status 200" ) );
+			builder.setThreadName( "worker-" + ( i % 4 ) );
+			builder.setTimeMillis( System.currentTimeMillis() + i );
+
+			Map<String, String> contextMap = new HashMap<String, String>();
+			ContextStack contextStack = new MutableThreadContextStack( new ArrayList<String>() );
+			if( context )
+			{
+				builder.setMarker( marker );
+				contextMap.put( "requestId", Integer.toHexString( 0x10000 + i ) );
+				contextMap.put( "user", "example" + ( i % 5 ) );
+				contextMap.put( "host", "node" + ( i % 3 ) + ".example.com" );
+				contextStack.push( "request" );
+				contextStack.push( "handler" + ( i % 2 ) );
+			}
+			builder.setContextMap( contextMap );
+			builder.setContextStack( contextStack );
+
+			if( location )
+				builder.setSource( new StackTraceElement( "com.example.application.module" + ( i % 16 ) + ".Service", "handle", "Service.java", 100 + i ) );
+
+			events[i] = builder.build();
+		}
+		return events;
+	}
+
+	/**
+	 * Converts an event to a document, exactly as {@link MongoDbManager} used
+	 * to.
+	 * 
+	 * @param event
+	 *        The event
+	 * @return The document
+	 */
+	private static Document toDocument( LogEvent event )
+	{
+		Document o = new Document();
+
+		o.put( "timestamp", new Date( event.getTimeMillis() ) );
+		o.put( "logger", event.getLoggerName() );
+
+		Level level = event.getLevel();
+		if( level != null )
+			o.put( "level", level.name() );
+
+		Marker marker = event.getMarker();
+		if( marker != null )
+			o.put( "marker", marker.getName() );
+
+		Message message = event.getMessage();
+		if( message != null )
+			o.put( "message", message.getFormattedMessage() );
+
+		StackTraceElement eventSource = event.getSource();
+		if( eventSource != null )
+		{
+			Document source = new Document();
+			source.put( "class", eventSource.getClassName() );
+			source.put( "method", eventSource.getMethodName() );
+			source.put( "file", eventSource.getFileName() );
+			source.put( "line", eventSource.getLineNumber() );
+			o.put( "source", source );
+		}
+
+		Document thread = new Document();
+
+		thread.put( "name", event.getThreadName() );
+
+		Map<String, String> eventContextMap = event.getContextMap();
+		if( eventContextMap != null )
+		{
+			Document contextMap = new Document();
+			for( Map.Entry<String, String> entry : eventContextMap.entrySet() )
+				contextMap.put( entry.getKey(), entry.getValue() );
+			thread.put( "contextMap", contextMap );
+		}
+
+		ContextStack eventContextStack = event.getContextStack();
+		if( eventContextStack != null )
+		{
+			BasicDBList contextStack = new BasicDBList();
+			for( String entry : eventContextStack )
+				contextStack.add( entry );
+			thread.put( "contextStack", contextStack );
+		}
+
+		o.put( "thread", thread );
+
+		return o;
+	}
+
+	/**
+	 * Encodes a document the way "insertMany" does.
+	 * 
+	 * @param document
+	 *        The document
+	 * @return The BSON document
+	 */
+	private static byte[] encodeDocument( Document document )
+	{
+		codec.generateIdIfAbsentFromDocument( document );
+		BasicOutputBuffer buffer = new BasicOutputBuffer();
+		BsonBinaryWriter writer = new BsonBinaryWriter( buffer );
+		try
+		{
+			codec.encode( writer, document, encoderContext );
+		}
+		finally
+		{
+			writer.close();
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Makes sure both paths produce the same documents. The encoder leaves out
+	 * empty thread context, and the ID is generated by the server.
+	 * 
+	 * @param kind
+	 *        The kind of events
+	 * @param events
+	 *        The events
+	 */
+	private static void verify( String kind, LogEvent[] events )
+	{
+		BsonLogEventEncoder encoder = new BsonLogEventEncoder();
+		for( LogEvent event : events )
+		{
+			Document document = toDocument( event );
+			Document thread = (Document) document.get( "thread" );
+			if( ( (Document) thread.get( "contextMap" ) ).isEmpty() )
+				thread.remove( "contextMap" );
+			if( ( (List<?>) thread.get( "contextStack" ) ).isEmpty() )
+				thread.remove( "contextStack" );
+
+			String expected = new RawBsonDocument( encodeDocument( document ) ).toJson().replaceFirst( "\"_id\" : \\{ \"\\$oid\" : \"[0-9a-f]+\" \\}, ", "" );
+			String actual = new RawBsonDocument( encoder.encode( event ) ).toJson();
+			if( !expected.equals( actual ) )
+				throw new IllegalStateException( "Encodings differ for \"" + kind + "\" events:\n" + expected + "\n" + actual );
+		}
+	}
+
+	/**
+	 * Measures a path.
+	 * 
+	 * @param kind
+	 *        The kind of events
+	 * @param name
+	 *        The name of the path
+	 * @param iterations
+	 *        The number of warmup and measured iterations
+	 * @param iterationDuration
+	 *        The duration of each iteration in milliseconds
+	 * @param path
+	 *        The path
+	 */
+	private static void measure( String kind, String name, int iterations, long iterationDuration, Path path )
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+		long threadId = Thread.currentThread().getId();
+
+		ArrayList<Double> results = new ArrayList<Double>( iterations );
+		long totalOperations = 0;
+		long totalAllocated = 0;
+		long sink = 0;
+		for( int iteration = 0; iteration < iterations * 2; iteration++ )
+		{
+			long allocatedBefore = allocations != null ? allocations.getThreadAllocatedBytes( threadId ) : 0;
+			long start = System.nanoTime();
+			long deadline = start + iterationDuration * 1000000L;
+			long now;
+			int operations = 0;
+			do
+			{
+				for( int i = 0; i < 1024; i++ )
+					sink += path.run( operations++ );
+				now = System.nanoTime();
+			}
+			while( now < deadline );
+			long allocatedAfter = allocations != null ? allocations.getThreadAllocatedBytes( threadId ) : 0;
+
+			if( iteration >= iterations )
+			{
+				results.add( (double) ( now - start ) / operations );
+				totalOperations += operations;
+				totalAllocated += allocatedAfter - allocatedBefore;
+			}
+		}
+		consumed += sink;
+
+		double mean = 0;
+		for( double result : results )
+			mean += result;
+		mean /= results.size();
+		double variance = 0;
+		for( double result : results )
+			variance += ( result - mean ) * ( result - mean );
+		double deviation = Math.sqrt( variance / results.size() );
+
+		String allocated = allocations != null ? String.format( "%14d", totalAllocated / totalOperations ) : String.format( "%14s", "n/a" );
+		System.out.println( String.format( "%-10s %-16s %14.1f %10.1f", kind, name, mean, deviation ) + " " + allocated );
+	}
+}
@@ -7,6 +7,7 @@ import javax.management.remote.JMXServiceURL;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.rmi.registry.LocateRegistry;
 import java.util.HashMap;
 
@@ -16,6 +17,10 @@ import java.util.HashMap;
  * "example.rmi.agent.port".
  * <p/>
  * <p>
+ * If "org.am.metrics.port" is set, it will also start a {@link MetricsServer}
+ * on that port.
+ * <p/>
+ * <p>
  * Idea taken from:
  * https://blogs.oracle.com/jmxetc/entry/connecting_through_firewall_using_jmx
  */
@@ -29,6 +34,14 @@ public class FirewallFriendlyAgent
 
 	public static final String PORT_SYS_PROPERTY = "org.am.rmi.port";
 
+	public static final String METRICS_PORT_SYS_PROPERTY = "org.am.metrics.port";
+
+	public static final String METRICS_ADDRESS_SYS_PROPERTY = "org.am.metrics.address";
+
+	public static final String METRICS_CACHE_SYS_PROPERTY = "org.am.metrics.cache";
+
+	public static final String DEFAULT_METRICS_CACHE = "1000";
+
 	public static final String PREFIX = "Firewall Friendly Agent: ";
 
 	//
@@ -82,6 +95,18 @@ public class FirewallFriendlyAgent
 		// Start the RMI connector server.
 		System.out.println( PREFIX + "Start the RMI connector server on port " + port );
 		server.start();
+
+		// Optionally serve selected attributes over HTTP for scraping (see
+		// MetricsServer)
+		String metricsPort = System.getProperty( METRICS_PORT_SYS_PROPERTY );
+		if( metricsPort != null )
+		{
+			String metricsAddress = System.getProperty( METRICS_ADDRESS_SYS_PROPERTY );
+			long cacheDuration = Long.parseLong( System.getProperty( METRICS_CACHE_SYS_PROPERTY, DEFAULT_METRICS_CACHE ) );
+			InetSocketAddress address = metricsAddress != null ? new InetSocketAddress( metricsAddress, Integer.parseInt( metricsPort ) ) : new InetSocketAddress( Integer.parseInt( metricsPort ) );
+			System.out.println( PREFIX + "Start the metrics server on port " + metricsPort + ". Url for access: http://" + hostname + ":" + metricsPort + "/metrics" );
+			new MetricsServer( mbs, cacheDuration ).start( address );
+		}
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
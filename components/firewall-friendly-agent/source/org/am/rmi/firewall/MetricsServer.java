@@ -0,0 +1,423 @@
+package org.am.rmi.firewall;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>
+ * A lightweight HTTP server for scraping selected MBean attributes: garbage
+ * collection, memory pools, threads, Log4j async queues and Sincerity.
+ * <p>
+ * "/metrics" returns one sample per line, in the Prometheus text format, and
+ * "/metrics.json" (or "/metrics?format=json") returns the same samples as
+ * JSON. A sample is named after the MBean domain and the attribute (with the
+ * item name appended for composite attributes), and is labeled with the MBean
+ * key properties, for example:
+ * 
+ * <pre>
+ * java_lang_CollectionCount{name="G1 Young Generation",type="GarbageCollector"} 12
+ * </pre>
+ * <p>
+ * The samples are collected at most once per cache duration, however
+ * frequently the server is scraped.
+ */
+public class MetricsServer implements HttpHandler
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * @param mbs
+	 *        The MBean server
+	 * @param cacheDuration
+	 *        How long to reuse collected samples, in milliseconds
+	 */
+	public MetricsServer( MBeanServer mbs, long cacheDuration )
+	{
+		this.mbs = mbs;
+		this.cacheDuration = cacheDuration;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Starts serving.
+	 * 
+	 * @param address
+	 *        The address to bind to
+	 * @throws IOException
+	 *         In case the address could not be bound
+	 */
+	public void start( InetSocketAddress address ) throws IOException
+	{
+		executor = Executors.newSingleThreadExecutor( new ThreadFactory()
+		{
+			public Thread newThread( Runnable runnable )
+			{
+				Thread thread = new Thread( runnable, "Metrics server" );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+		server = HttpServer.create( address, 0 );
+		server.createContext( "/metrics", this );
+		server.setExecutor( executor );
+		server.start();
+	}
+
+	/**
+	 * Stops serving.
+	 */
+	public void stop()
+	{
+		if( server != null )
+		{
+			server.stop( 0 );
+			executor.shutdown();
+			server = null;
+		}
+	}
+
+	//
+	// HttpHandler
+	//
+
+	public void handle( HttpExchange exchange ) throws IOException
+	{
+		try
+		{
+			String method = exchange.getRequestMethod();
+			if( !"GET".equals( method ) && !"HEAD".equals( method ) )
+			{
+				exchange.sendResponseHeaders( 405, -1 );
+				return;
+			}
+
+			String path = exchange.getRequestURI().getPath();
+			String query = exchange.getRequestURI().getQuery();
+			boolean json;
+			if( "/metrics".equals( path ) )
+				json = ( query != null ) && query.contains( "format=json" );
+			else if( "/metrics.json".equals( path ) )
+				json = true;
+			else
+			{
+				exchange.sendResponseHeaders( 404, -1 );
+				return;
+			}
+
+			Snapshot snapshot = getSnapshot();
+			byte[] body = json ? snapshot.json : snapshot.text;
+			exchange.getResponseHeaders().set( "Content-Type", json ? JSON_CONTENT_TYPE : TEXT_CONTENT_TYPE );
+			if( "HEAD".equals( method ) )
+			{
+				exchange.sendResponseHeaders( 200, -1 );
+				return;
+			}
+			exchange.sendResponseHeaders( 200, body.length );
+			OutputStream out = exchange.getResponseBody();
+			out.write( body );
+			out.close();
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final String TEXT_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	/**
+	 * The MBeans and attributes to collect (null for all attributes).
+	 */
+	private static final Selection[] SELECTIONS = new Selection[]
+	{
+		new Selection( "java.lang:type=GarbageCollector,*", "CollectionCount", "CollectionTime" ),
+		new Selection( "java.lang:type=MemoryPool,*", "Usage", "CollectionUsage" ),
+		new Selection( "java.lang:type=Memory", "HeapMemoryUsage", "NonHeapMemoryUsage", "ObjectPendingFinalizationCount" ),
+		new Selection( "java.lang:type=Threading", "ThreadCount", "DaemonThreadCount", "PeakThreadCount", "TotalStartedThreadCount" ),
+		new Selection( "org.apache.logging.log4j2:*", "BufferSize", "RemainingCapacity", "QueueCapacity", "QueueRemainingCapacity" ),
+		new Selection( "com.threecrickets.sincerity:*" )
+	};
+
+	private final MBeanServer mbs;
+
+	private final long cacheDuration;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	private Snapshot snapshot;
+
+	/**
+	 * Collected samples, already formatted.
+	 */
+	private static class Snapshot
+	{
+		public Snapshot( long timestamp, byte[] text, byte[] json )
+		{
+			this.timestamp = timestamp;
+			this.text = text;
+			this.json = json;
+		}
+
+		public final long timestamp;
+
+		public final byte[] text;
+
+		public final byte[] json;
+	}
+
+	private static class Selection
+	{
+		public Selection( String pattern, String... attributes )
+		{
+			try
+			{
+				this.pattern = new ObjectName( pattern );
+			}
+			catch( MalformedObjectNameException x )
+			{
+				throw new RuntimeException( x );
+			}
+			this.attributes = attributes.length > 0 ? attributes : null;
+		}
+
+		public final ObjectName pattern;
+
+		public final String[] attributes;
+	}
+
+	private static class Sample
+	{
+		public Sample( String name, Map<String, String> labels, Number value )
+		{
+			this.name = name;
+			this.labels = labels;
+			this.value = value;
+		}
+
+		public final String name;
+
+		public final Map<String, String> labels;
+
+		public final Number value;
+	}
+
+	/**
+	 * The cached snapshot, or a new one if it has expired. Concurrent scrapes
+	 * wait for a single collection.
+	 */
+	private synchronized Snapshot getSnapshot()
+	{
+		long now = System.currentTimeMillis();
+		if( ( snapshot == null ) || ( now - snapshot.timestamp >= cacheDuration ) )
+		{
+			List<Sample> samples = collect();
+			snapshot = new Snapshot( now, toText( samples ).getBytes( UTF8 ), toJson( now, samples ).getBytes( UTF8 ) );
+		}
+		return snapshot;
+	}
+
+	private List<Sample> collect()
+	{
+		ArrayList<Sample> samples = new ArrayList<Sample>();
+		for( Selection selection : SELECTIONS )
+		{
+			for( ObjectName name : new TreeSet<ObjectName>( mbs.queryNames( selection.pattern, null ) ) )
+			{
+				try
+				{
+					String[] attributes = selection.attributes;
+					if( attributes == null )
+					{
+						MBeanAttributeInfo[] infos = mbs.getMBeanInfo( name ).getAttributes();
+						ArrayList<String> readable = new ArrayList<String>( infos.length );
+						for( MBeanAttributeInfo info : infos )
+							if( info.isReadable() )
+								readable.add( info.getName() );
+						attributes = readable.toArray( new String[readable.size()] );
+					}
+
+					// Attributes that can't be read are left out of the list
+					AttributeList values = mbs.getAttributes( name, attributes );
+					TreeMap<String, String> labels = new TreeMap<String, String>( name.getKeyPropertyList() );
+					for( Object value : values )
+					{
+						Attribute attribute = (Attribute) value;
+						addSamples( samples, name.getDomain() + "_" + attribute.getName(), labels, attribute.getValue() );
+					}
+				}
+				catch( Exception x )
+				{
+					// The MBean was unregistered while we were collecting
+				}
+			}
+		}
+		return samples;
+	}
+
+	private static void addSamples( List<Sample> samples, String name, Map<String, String> labels, Object value )
+	{
+		if( value instanceof Number )
+			samples.add( new Sample( sanitize( name ), labels, (Number) value ) );
+		else if( value instanceof Boolean )
+			samples.add( new Sample( sanitize( name ), labels, ( (Boolean) value ) ? 1 : 0 ) );
+		else if( value instanceof CompositeData )
+		{
+			CompositeData composite = (CompositeData) value;
+			for( String key : composite.getCompositeType().keySet() )
+				addSamples( samples, name + "_" + key, labels, composite.get( key ) );
+		}
+		else if( value instanceof TabularData )
+		{
+			// Maps are tables of "key" and "value" rows
+			for( Object row : ( (TabularData) value ).values() )
+			{
+				CompositeData composite = (CompositeData) row;
+				if( composite.containsKey( "key" ) && composite.containsKey( "value" ) )
+				{
+					TreeMap<String, String> rowLabels = new TreeMap<String, String>( labels );
+					rowLabels.put( "key", String.valueOf( composite.get( "key" ) ) );
+					addSamples( samples, name, rowLabels, composite.get( "value" ) );
+				}
+			}
+		}
+	}
+
+	private static String sanitize( String name )
+	{
+		StringBuilder r = new StringBuilder( name.length() );
+		for( int i = 0, length = name.length(); i < length; i++ )
+		{
+			char c = name.charAt( i );
+			r.append( ( ( c >= 'a' ) && ( c <= 'z' ) ) || ( ( c >= 'A' ) && ( c <= 'Z' ) ) || ( ( c >= '0' ) && ( c <= '9' ) && ( i > 0 ) ) || ( c == '_' ) ? c : '_' );
+		}
+		return r.toString();
+	}
+
+	private static String toText( List<Sample> samples )
+	{
+		// All samples of a metric must be grouped together (the sort is
+		// stable, so they keep their order)
+		samples = new ArrayList<Sample>( samples );
+		Collections.sort( samples, new Comparator<Sample>()
+		{
+			public int compare( Sample sample1, Sample sample2 )
+			{
+				return sample1.name.compareTo( sample2.name );
+			}
+		} );
+
+		StringBuilder r = new StringBuilder();
+		for( Sample sample : samples )
+		{
+			r.append( sample.name );
+			if( !sample.labels.isEmpty() )
+			{
+				r.append( '{' );
+				boolean first = true;
+				for( Map.Entry<String, String> label : sample.labels.entrySet() )
+				{
+					if( !first )
+						r.append( ',' );
+					first = false;
+					r.append( sanitize( label.getKey() ) );
+					r.append( "=\"" );
+					r.append( label.getValue().replace( "\\", "\\\\" ).replace( "\"", "\\\"" ).replace( "\n", "\\n" ) );
+					r.append( '"' );
+				}
+				r.append( '}' );
+			}
+			r.append( ' ' );
+			r.append( sample.value );
+			r.append( '\n' );
+		}
+		return r.toString();
+	}
+
+	private static String toJson( long timestamp, List<Sample> samples )
+	{
+		StringBuilder r = new StringBuilder();
+		r.append( "{\"timestamp\":" );
+		r.append( timestamp );
+		r.append( ",\"metrics\":[" );
+		boolean first = true;
+		for( Sample sample : samples )
+		{
+			if( !first )
+				r.append( ',' );
+			first = false;
+			r.append( "{\"name\":" );
+			appendJsonString( r, sample.name );
+			r.append( ",\"labels\":{" );
+			boolean firstLabel = true;
+			for( Map.Entry<String, String> label : sample.labels.entrySet() )
+			{
+				if( !firstLabel )
+					r.append( ',' );
+				firstLabel = false;
+				appendJsonString( r, label.getKey() );
+				r.append( ':' );
+				appendJsonString( r, label.getValue() );
+			}
+			r.append( "},\"value\":" );
+			double d = sample.value.doubleValue();
+			r.append( Double.isNaN( d ) || Double.isInfinite( d ) ? "null" : sample.value.toString() );
+			r.append( '}' );
+		}
+		r.append( "]}" );
+		return r.toString();
+	}
+
+	private static void appendJsonString( StringBuilder r, String string )
+	{
+		r.append( '"' );
+		for( int i = 0, length = string.length(); i < length; i++ )
+		{
+			char c = string.charAt( i );
+			if( ( c == '"' ) || ( c == '\\' ) )
+				r.append( '\\' ).append( c );
+			else if( c < 0x20 )
+				r.append( String.format( "\\u%04x", (int) c ) );
+			else
+				r.append( c );
+		}
+		r.append( '"' );
+	}
+}
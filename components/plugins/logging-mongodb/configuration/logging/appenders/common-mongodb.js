@@ -1,10 +1,15 @@
 
+// Events are spilled here while MongoDB is unavailable (processes sharing
+// this configuration use numbered subdirectories)
+var spillDirectory = sincerity.container.getCacheFile('logging', 'mongodb', 'common')
+
 configuration.mongoDbAppender({
 	name: 'raw:mongodb:common',
-	uri: 'mongodb://localhost:27017/',
+	uri: 'mongodb://localhost:27017/?serverSelectionTimeoutMS=5000',
 	db: 'logs',
 	collection: 'common',
-	writeConcern: 'acknowledged'
+	writeConcern: 'acknowledged',
+	spillDirectory: spillDirectory
 })
 
 var origin = java.net.InetAddress.localHost.hostAddress
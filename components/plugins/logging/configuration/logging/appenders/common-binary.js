@@ -0,0 +1,20 @@
+
+//
+// The segmented log appender writes a compact binary log, which can be read
+// and filtered by time, level and logger much faster than text logs:
+//
+//   sincerity logging:read --from=-1h --level=warn --logger=org.eclipse.jetty
+//
+// Only one process can write to the directory at a time, so if you enable this
+// for a service, you might want to use a different directory for it.
+//
+
+/*
+var appender = configuration.segmentedLogAppender({
+	name: 'binary:common',
+	directory: sincerity.container.getLogsFile('common')
+})
+
+// This is a low-priority root appender
+configuration.rootAppenders.push(appender)
+*/
@@ -4,6 +4,9 @@
 //
 //   sincerity delegate:start log4j-server
 //
+// (The Log4j server only accepts the default serialized layout, so don't set a
+// layout here.)
+//
 // And also with the Ganymede plugin for Eclipse:
 //
 //   http://ganymede.sourceforge.net/
@@ -2,11 +2,20 @@
 document.require(
 	'/sincerity/files/',
 	'/sincerity/objects/',
-	'/sincerity/jvm/')
+	'/sincerity/jvm/',
+	'/sincerity/templates/')
 
 importClass(
 	java.lang.System,
 	java.lang.ClassNotFoundException,
+	java.net.InetSocketAddress,
+	java.lang.management.ManagementFactory,
+	javax.management.JMX,
+	javax.management.ObjectName,
+	javax.management.remote.JMXConnectorFactory,
+	javax.management.remote.JMXServiceURL,
+	com.threecrickets.sincerity.logging.LogCollector,
+	com.threecrickets.sincerity.logging.SegmentedLogReader,
 	com.threecrickets.sincerity.exception.CommandException,
 	com.threecrickets.sincerity.exception.BadArgumentsCommandException)
 
@@ -15,7 +24,7 @@ function getInterfaceVersion() {
 }
 
 function getCommands() {
-	return ['logging', 'log', 'server']
+	return ['logging', 'log', 'server', 'read', 'index', 'search', 'stats']
 }
 
 function run(command) {
@@ -29,6 +38,18 @@ function run(command) {
 		case 'server':
 			server(command)
 			break
+		case 'read':
+			read(command)
+			break
+		case 'index':
+			index(command)
+			break
+		case 'search':
+			search(command)
+			break
+		case 'stats':
+			stats(command)
+			break
 	}
 }
 
@@ -99,11 +120,480 @@ function log(command) {
 
 function server(command) {
 	command.parse = true
-	var port = command.properties.get('port') || 4560
+	var port = command.properties.get('port') || LogCollector.DEFAULT_PORT
+	var queue = command.properties.get('queue') || 0
+	var report = command.properties.get('report') // seconds
+	report = Sincerity.Objects.exists(report) ? Number(report) : 60
 
 	logging(command)
 
-	println('Starting Log4j server on port ' + port)
+	var collector = new LogCollector(new InetSocketAddress(Number(port)), Number(queue))
+	collector.start()
+
+	println('Collecting logs on port ' + port)
+
+	if (report > 0) {
+		while (collector.running) {
+			collector.join(report * 1000)
+			var clients = collector.clients.toArray()
+			println('Log collector: ' + clients.length + ' clients, ' + collector.received + ' events, ' + collector.dropped + ' dropped, ' + collector.queueDepth + ' queued')
+			for (var c in clients) {
+				println('  ' + clients[c])
+			}
+		}
+	}
+	else {
+		collector.join()
+	}
+}
+
+function read(command) {
+	command.parse = true
+	var name = command.arguments.length > 0 ? command.arguments[0] : 'common'
+	var from = parseTime(command, 'from')
+	var to = parseTime(command, 'to')
+	var level = command.properties.get('level')
+	var logger = command.properties.get('logger')
+
+	if (Sincerity.Objects.exists(level)) {
+		var log4jLevel = org.apache.logging.log4j.Level.toLevel(String(level).toUpperCase(), null)
+		if (!Sincerity.Objects.exists(log4jLevel)) {
+			throw new BadArgumentsCommandException(command, 'log name', '--level=fatal|error|warn|info|debug|trace')
+		}
+		level = log4jLevel.intLevel()
+	}
+	else {
+		level = java.lang.Integer.MAX_VALUE
+	}
+
+	var directory = command.sincerity.container.getLogsFile(name)
+	if (!directory.directory) {
+		throw new CommandException(command, 'Not a segmented log: ' + directory)
+	}
+
+	var reader = new SegmentedLogReader(directory,
+		Sincerity.Objects.exists(from) ? from : java.lang.Long.MIN_VALUE,
+		Sincerity.Objects.exists(to) ? to : java.lang.Long.MAX_VALUE,
+		level,
+		Sincerity.Objects.exists(logger) ? String(logger) : null)
+
+	for (var i = reader.iterator(); i.hasNext(); ) {
+		println(String(i.next()))
+	}
+
+	if (command.sincerity.verbosity >= 2) {
+		println('Blocks read: ' + reader.blocksRead + ', skipped: ' + reader.blocksSkipped)
+	}
+}
+
+function index(command) {
+	requireLucene(command)
+
+	var logsDir = command.sincerity.container.getLogsFile()
+	var indexDir = command.sincerity.container.getCacheFile('logging', 'index')
+	indexDir.mkdirs()
+
+	var directory = new Sincerity.Lucene.Directory(indexDir)
+	try {
+		var offsets = readOffsets(directory)
+		var writer = directory.createWriter({openMode: 'createOrAppend'})
+		try {
+			var files = logsDir.listFiles() || []
+			for (var f in files) {
+				var file = files[f]
+				var name = String(file.name)
+				if (!file.file || !Sincerity.Objects.endsWith(name, '.log')) {
+					continue
+				}
+
+				var offset = 0
+				var previous = offsets[name]
+				if (Sincerity.Objects.exists(previous)) {
+					if ((file.length() >= previous.offset) && (readHead(file, previous.head.length) == previous.head)) {
+						offset = previous.offset
+					}
+					else {
+						// The file was rolled over, possibly more than once, so
+						// first finish the rolled file and then index the ones
+						// rolled after it
+						var rolledFiles = listRolled(logsDir, name)
+						var rolled = null
+						for (var r in rolledFiles) {
+							if (readHead(rolledFiles[r], previous.head.length) == previous.head) {
+								rolled = rolledFiles[r]
+								break
+							}
+						}
+						if (Sincerity.Objects.exists(rolled)) {
+							for (var r in rolledFiles) {
+								var rolledFile = rolledFiles[r]
+								if ((rolledFile === rolled) || (rolledFile.lastModified() > rolled.lastModified())) {
+									var i = indexFile(writer, rolledFile, name, rolledFile === rolled ? previous.offset : 0, true)
+									if (command.sincerity.verbosity >= 2) {
+										println('Indexed ' + i.count + ' entries from ' + rolledFile)
+									}
+								}
+							}
+						}
+						else if (rolledFiles.length > 0) {
+							// We can't tell which rolled files we've already indexed
+							println('Could not find where indexing of ' + name + ' stopped, so these rolled-over files were not indexed: ' + rolledFiles.join(', '))
+						}
+						else {
+							println('Could not find where indexing of ' + name + ' stopped, so some entries were not indexed')
+						}
+					}
+				}
+
+				var r = indexFile(writer, file, name, offset, false)
+				offsets[name] = {offset: r.offset, head: readHead(file, Math.min(r.offset, headLength))}
+				if (command.sincerity.verbosity >= 2) {
+					println('Indexed ' + r.count + ' entries from ' + file)
+				}
+			}
+
+			// The offsets are committed together with the documents, so that
+			// an interrupted run will not index entries twice
+			var userData = new java.util.HashMap()
+			for (var n in offsets) {
+				userData.put(n, offsets[n].offset + ':' + offsets[n].head)
+			}
+			writer.commit(userData)
+		}
+		finally {
+			writer.close()
+		}
+	}
+	finally {
+		directory.close()
+	}
+}
+
+function search(command) {
+	command.parse = true
+	if (command.arguments.length < 1) {
+		throw new BadArgumentsCommandException(command, 'query', '--from=...', '--to=...', '--count=...')
+	}
+
+	requireLucene(command)
+
+	var query = Sincerity.JVM.fromArray(command.arguments).join(' ')
+	var from = parseTime(command, 'from')
+	var to = parseTime(command, 'to')
+	var count = command.properties.get('count') || 100
+
+	if (Sincerity.Objects.exists(from) || Sincerity.Objects.exists(to)) {
+		// The time field is formatted so that its lexical order is chronological
+		var format = new java.text.SimpleDateFormat(timeFormat)
+		from = Sincerity.Objects.exists(from) ? '"' + format.format(new java.util.Date(from)) + '"' : '*'
+		to = Sincerity.Objects.exists(to) ? '"' + format.format(new java.util.Date(to)) + '"' : '*'
+		query = '+(' + query + ') +time:[' + from + ' TO ' + to + ']'
+	}
+
+	var indexDir = command.sincerity.container.getCacheFile('logging', 'index')
+	if (!indexDir.directory) {
+		throw new CommandException(command, 'Logs have not been indexed; run logging:index first')
+	}
+
+	var start = System.currentTimeMillis()
+	var entries = []
+	var directory = new Sincerity.Lucene.Directory(indexDir)
+	try {
+		try {
+			// The most recent matches, newest first
+			var results = directory.search({query: query, defaultField: 'message', sort: 'time', reverse: true, count: Number(count)})
+		}
+		catch (x if Sincerity.JVM.isException(x, org.apache.lucene.queryParser.ParseException)) {
+			throw new BadArgumentsCommandException(command, 'query', '--from=...', '--to=...', '--count=...')
+		}
+		try {
+			while (results.hasNext()) {
+				entries.push(results.next())
+			}
+		}
+		finally {
+			results.close()
+		}
+	}
+	finally {
+		directory.close()
+	}
+
+	for (var e = entries.length - 1; e >= 0; e--) {
+		var entry = entries[e]
+		if (Sincerity.Objects.exists(entry.time)) {
+			var level = String(entry.level)
+			while (level.length < 5) {
+				level += ' '
+			}
+			println(entry.time + ': ' + level + ' [' + entry.logger + '] ' + entry.message)
+		}
+		else {
+			println(entry.message)
+		}
+	}
+
+	if (command.sincerity.verbosity >= 2) {
+		println('Found ' + entries.length + ' entries in ' + (System.currentTimeMillis() - start) + 'ms')
+	}
+}
+
+/**
+ * Reports the health of logging configured by Sincerity, either in this JVM or
+ * in a remote one via JMX (for example, a service using the service.remote-jmx
+ * plugin).
+ */
+function stats(command) {
+	command.parse = true
+	var jmx = command.properties.get('jmx')
+
+	var connector = null
+	var connection
+	if (Sincerity.Objects.exists(jmx)) {
+		jmx = String(jmx)
+		if (!Sincerity.Objects.startsWith(jmx, 'service:')) {
+			// host:port of an RMI registry
+			jmx = 'service:jmx:rmi:///jndi/rmi://' + jmx + '/jmxrmi'
+		}
+		try {
+			connector = JMXConnectorFactory.connect(new JMXServiceURL(jmx))
+		}
+		catch (x if Sincerity.JVM.isException(x, java.io.IOException)) {
+			throw new CommandException(command, 'Could not connect to ' + jmx)
+		}
+		connection = connector.MBeanServerConnection
+	}
+	else {
+		connection = ManagementFactory.platformMBeanServer
+	}
+
+	try {
+		var name = new ObjectName('com.threecrickets.sincerity', 'type', 'Logging')
+		if (!connection.isRegistered(name)) {
+			throw new CommandException(command, 'Logging has not been configured by Sincerity')
+		}
+		var metrics = JMX.newMXBeanProxy(connection, name, Sincerity.JVM.getClass('com.threecrickets.sincerity.management.LoggingMXBean'))
+
+		var size = metrics.asyncQueueSize
+		if (size == -1) {
+			println('Async queue: none')
+		}
+		else {
+			var depth = metrics.asyncQueueDepth
+			println('Async queue: {0} of {1} ({2}%)'.cast(depth, size, (depth * 100 / size).toFixed(1)))
+		}
+		println('Async queue full: {0} times, {1} events discarded'.cast(metrics.asyncQueueFull, metrics.discardedEvents))
+
+		var appended = metrics.appendedEvents
+		var failures = metrics.appenderFailures
+		var averages = metrics.appenderAverageDurations
+		var maximums = metrics.appenderMaximumDurations
+		for (var i = appended.keySet().iterator(); i.hasNext(); ) {
+			var appender = i.next()
+			println('Appender "{0}": {1} events, {2} failures, {3} us average, {4} ms maximum'.cast(appender, appended.get(appender), failures.get(appender), averages.get(appender), maximums.get(appender)))
+		}
+	}
+	finally {
+		if (null !== connector) {
+			connector.close()
+		}
+	}
+}
+
+function parseTime(command, name) {
+	var value = command.properties.get(name)
+	if (!Sincerity.Objects.exists(value)) {
+		return null
+	}
+	value = String(value)
+
+	// Relative to now
+	var relative = /^-(\d+)([smhd])$/.exec(value)
+	if (relative) {
+		var units = {s: 1000, m: 60 * 1000, h: 60 * 60 * 1000, d: 24 * 60 * 60 * 1000}
+		return java.lang.System.currentTimeMillis() - Number(relative[1]) * units[relative[2]]
+	}
+
+	// System time
+	if (/^\d+$/.test(value)) {
+		return Number(value)
+	}
+
+	var formats = ["yyyy-MM-dd'T'HH:mm:ss", 'yyyy-MM-dd HH:mm:ss', 'yyyy-MM-dd HH:mm', 'yyyy-MM-dd']
+	for (var f in formats) {
+		var position = new java.text.ParsePosition(0)
+		var date = new java.text.SimpleDateFormat(formats[f]).parse(value, position)
+		if (Sincerity.Objects.exists(date) && (position.index == value.length)) {
+			return date.time
+		}
+	}
+
+	throw new BadArgumentsCommandException(command, 'log name', '--' + name + '=-<number>s|m|h|d, <system time> or yyyy-MM-dd[ HH:mm[:ss]]')
+}
+
+function requireLucene(command) {
+	// Lucene is optional, so we load the library only when we need it
+	if (typeof org.apache.lucene.util.Version != 'function') {
+		throw new CommandException(command, 'Could not find Lucene in classpath')
+	}
+	document.require(
+		'/sincerity/iterators/',
+		'/sincerity/lucene/')
+}
+
+/**
+ * The offsets and heads of indexed files, from the last commit.
+ */
+function readOffsets(directory) {
+	var offsets = {}
+	if (org.apache.lucene.index.IndexReader.indexExists(directory.directory)) {
+		var userData = org.apache.lucene.index.IndexReader.getCommitUserData(directory.directory)
+		for (var i = userData.entrySet().iterator(); i.hasNext(); ) {
+			var entry = i.next()
+			var value = String(entry.value)
+			var colon = value.indexOf(':')
+			offsets[String(entry.key)] = {offset: Number(value.substring(0, colon)), head: value.substring(colon + 1)}
+		}
+	}
+	return offsets
+}
+
+/**
+ * The first bytes of a file, which identify it across roll-overs. We use
+ * ISO-8859-1 so that every byte is a character.
+ */
+function readHead(file, length) {
+	var raf = new java.io.RandomAccessFile(file, 'r')
+	try {
+		var bytes = Sincerity.JVM.newArray(Math.min(length, raf.length()), 'byte')
+		raf.readFully(bytes)
+		return String(new java.lang.String(bytes, 'ISO-8859-1'))
+	}
+	finally {
+		raf.close()
+	}
+}
+
+/**
+ * The rolled-over files of a log file (with the "name.%i" pattern), from
+ * oldest to newest. We go by modification time, because whether higher
+ * indexes are newer depends on the rollover strategy.
+ */
+function listRolled(logsDir, name) {
+	var rolled = []
+	var files = logsDir.listFiles() || []
+	for (var f in files) {
+		var file = files[f]
+		var fileName = String(file.name)
+		if (file.file && Sincerity.Objects.startsWith(fileName, name + '.') && /^\d+$/.test(fileName.substring(name.length + 1))) {
+			rolled.push(file)
+		}
+	}
+	rolled.sort(function(a, b) {
+		return a.lastModified() - b.lastModified()
+	})
+	return rolled
+}
+
+/**
+ * Indexes the complete lines of a file from an offset. Lines that do not
+ * start with a timestamp (such as stack traces) are added to the previous
+ * entry's message. Unless the file is complete (rolled over), the last entry
+ * is left for next time, because more of its lines might still be written.
+ */
+function indexFile(writer, file, name, offset, complete) {
+	var count = 0
+	var entry = null
+	var entryOffset = offset
+
+	function flush() {
+		if (Sincerity.Objects.exists(entry)) {
+			writer.addDocument(Sincerity.Lucene.createDocument(entry))
+			count++
+			entry = null
+		}
+	}
+
+	var raf = new java.io.RandomAccessFile(file, 'r')
+	try {
+		raf.seek(offset)
+		var buffer = Sincerity.JVM.newArray(chunkSize, 'byte')
+		var length = 0
+		while (true) {
+			if (length == buffer.length) {
+				// A very long line
+				var bigger = Sincerity.JVM.newArray(buffer.length * 2, 'byte')
+				System.arraycopy(buffer, 0, bigger, 0, length)
+				buffer = bigger
+			}
+			var read = raf.read(buffer, length, buffer.length - length)
+			if (read == -1) {
+				break
+			}
+			var unscanned = length
+			length += read
+
+			// Only complete lines (what's left from the previous chunk has no
+			// line end)
+			var start = 0
+			for (var end = unscanned; end < length; end++) {
+				if (buffer[end] != 10) {
+					continue
+				}
+				var lineEnd = ((end > start) && (buffer[end - 1] == 13)) ? end - 1 : end
+				var line = String(new java.lang.String(buffer, start, lineEnd - start, 'UTF-8'))
+				var lineOffset = offset + start
+				start = end + 1
+
+				var match = linePattern.exec(line)
+				if (match) {
+					flush()
+					entryOffset = lineOffset
+					entry = {
+						file: {value: name, index: 'notAnalyzed'},
+						time: {value: match[1], index: 'notAnalyzed'},
+						level: match[2],
+						logger: match[3],
+						message: match[4]
+					}
+				}
+				else if (Sincerity.Objects.exists(entry)) {
+					entry.message += '\n' + line
+				}
+				else {
+					// The rest of an entry we've already indexed, or a foreign line
+					entryOffset = lineOffset
+					entry = {
+						file: {value: name, index: 'notAnalyzed'},
+						message: line
+					}
+				}
+			}
+
+			offset += start
+			length -= start
+			System.arraycopy(buffer, start, buffer, 0, length)
+		}
+
+		if (complete) {
+			flush()
+		}
+		else if (Sincerity.Objects.exists(entry)) {
+			offset = entryOffset
+		}
+	}
+	finally {
+		raf.close()
+	}
+
+	return {offset: offset, count: count}
+}
+
+// Matches the '%d: %-5p [%c] %m%n' pattern of our file appenders
+var linePattern = /^(\d{4}-\d{2}-\d{2} \d{2}:\d{2}:\d{2},\d{3}): (\w+)\s* \[([^\]]*)\] (.*)$/
+
+var timeFormat = 'yyyy-MM-dd HH:mm:ss,SSS'
+
+var chunkSize = 1024 * 1024
 
-	new org.apache.logging.log4j.core.net.SocketServer(port).run()
-}
\ No newline at end of file
+var headLength = 128
@@ -153,6 +153,12 @@ Sincerity.Log4j = Sincerity.Log4j || function() {
 					if (Sincerity.Objects.isString(appender)) {
 						appender = Public.configuration.getAppender(appender)
 					}
+					else if (Sincerity.Objects.exists(appender)) {
+						// The appender factories return the original appender,
+						// but the configuration might have wrapped it (for
+						// example, to instrument it), so we prefer its instance
+						appender = Public.configuration.getAppender(appender.name) || appender
+					}
 					if (Sincerity.Objects.exists(appender)) {
 						logger.addAppender(
 							appender, // appender
@@ -350,6 +356,43 @@ Sincerity.Log4j = Sincerity.Log4j || function() {
 			return appender
 		}
 		
+		/**
+		 * Writes events in a compact binary, block-compressed, segmented format,
+		 * which can be read with the "logging:read" command.
+		 *
+		 * @param config
+		 * @param {String} config.name
+		 * @param {String|java.io.File} config.directory
+		 * @param {String} [config.blockSize] Uncompressed block size in bytes
+		 * @param {String} [config.segmentSize] Size of segment files in bytes
+		 * @param {String} [config.maxSegments] Maximum number of segments to keep
+		 * @param {String} [config.flushInterval] Maximum time in milliseconds before events are written
+		 * @param {Boolean} [config.ignoreExceptions=true]
+		 * @param [config.filter] TODO
+		 * @returns {<a href="">com.threecrickets.sincerity.logging.SegmentedLogAppender</a>}
+		 */
+		Public.segmentedLogAppender = function(config) {
+			config = Sincerity.Objects.clone(config)
+			if (Sincerity.Objects.exists(config.ignoreExceptions)) {
+				config.ignoreExceptions = config.ignoreExceptions ? 'true' : 'false'
+			}
+
+			var appender = com.threecrickets.sincerity.logging.SegmentedLogAppender.createAppender(
+				config.name || null, // name
+				config.ignoreExceptions || null, // ignoreExceptions='true'
+				config.filter || null, // filter
+				Sincerity.Objects.exists(config.directory) ? String(config.directory) : null, // directory
+				Sincerity.Objects.exists(config.blockSize) ? String(config.blockSize) : null, // blockSize
+				Sincerity.Objects.exists(config.segmentSize) ? String(config.segmentSize) : null, // segmentSize
+				Sincerity.Objects.exists(config.maxSegments) ? String(config.maxSegments) : null, // maxSegments
+				Sincerity.Objects.exists(config.flushInterval) ? String(config.flushInterval) : null // flushInterval
+			)
+			
+			Public.configuration.addAppender(appender)
+	
+			return appender
+		}
+
 		/**
 		 * <b>Warning:</n> Because the MongoDB driver itself emits log messages, you
 		 * might cause recursion here that would lead to hangs and timeouts. The easiest
@@ -358,7 +401,13 @@ Sincerity.Log4j = Sincerity.Log4j || function() {
 		 *
 		 * @param config
 		 * @param {String} config.name
-		 * @param {String} [config.bufferSize]
+		 * @param {String} [config.bufferSize] Maximum number of events inserted together
+		 * @param {String} [config.maxLatency] Maximum time in milliseconds an event waits for its batch to fill up
+		 * @param {String} [config.queueSize] Maximum number of events waiting to be inserted
+		 * @param {String} [config.overflow='block'] 'block' or 'drop' when the queue is full
+		 * @param {String} [config.spillDirectory] Where to spill events while MongoDB is unavailable
+		 * @param {String} [config.spillSegmentSize] Size of spill segment files in bytes
+		 * @param {String} [config.spillMaxSize] Maximum total size of spill segment files in bytes
 		 * @param {Boolean} [config.ignoreExceptions=true]
 		 * @param [config.filter] TODO
 		 * @param [config.uri]
@@ -378,6 +427,12 @@ Sincerity.Log4j = Sincerity.Log4j || function() {
 				config.ignoreExceptions || null, // ignoreExceptions='true'
 				config.filter || null, // filter
 				Sincerity.Objects.exists(config.bufferSize) ? String(config.bufferSize) : null, // bufferSize
+				Sincerity.Objects.exists(config.maxLatency) ? String(config.maxLatency) : null, // maxLatency
+				Sincerity.Objects.exists(config.queueSize) ? String(config.queueSize) : null, // queueSize
+				config.overflow || null, // overflow='block'
+				Sincerity.Objects.exists(config.spillDirectory) ? String(config.spillDirectory) : null, // spillDirectory
+				Sincerity.Objects.exists(config.spillSegmentSize) ? String(config.spillSegmentSize) : null, // spillSegmentSize
+				Sincerity.Objects.exists(config.spillMaxSize) ? String(config.spillMaxSize) : null, // spillMaxSize
 				config.uri || null, // uri
 				config.db || null, // db
 				config.collection || null, // collection
@@ -0,0 +1,372 @@
+
+document.require(
+	'/sincerity/objects/',
+	'/sincerity/jvm/',
+	'/sincerity/templates/')
+
+importClass(
+	java.lang.System,
+	java.io.File,
+	java.io.BufferedReader,
+	java.io.FileReader,
+	java.io.InputStreamReader,
+	java.lang.management.ManagementFactory,
+	javax.management.ObjectName,
+	javax.management.InstanceNotFoundException,
+	javax.management.MBeanException,
+	com.threecrickets.sincerity.exception.CommandException,
+	com.threecrickets.sincerity.exception.BadArgumentsCommandException)
+
+var verbs = 'verb ("start", "dump", "stop", "check", or "summary")'
+
+function getInterfaceVersion() {
+	return 1
+}
+
+function getCommands() {
+	return ['profile']
+}
+
+function run(command) {
+	switch (String(command.name)) {
+		case 'profile':
+			profile(command)
+			break
+	}
+}
+
+/**
+ * Controls a Java Flight Recorder recording, either in this JVM (useful when
+ * chained before a long-running command, such as "profile start : start myapp")
+ * or in another JVM, by pid or by service.
+ */
+function profile(command) {
+	command.parse = true
+	if (command.arguments.length < 1) {
+		throw new BadArgumentsCommandException(command, verbs, '--preset=cpu|allocation|locks|io', '--name=...', '--duration=...', '--pid=...', '--service=...', '--top=...')
+	}
+
+	var verb = String(command.arguments[0])
+	var name = String(command.properties.get('name') || 'sincerity')
+	var top = Number(command.properties.get('top') || 10)
+	var file
+
+	if (verb == 'summary') {
+		if (command.arguments.length < 2) {
+			throw new BadArgumentsCommandException(command, 'summary', 'recording file', '--top=...')
+		}
+		file = new File(command.arguments[1])
+		if (!file.exists()) {
+			throw new CommandException(command, 'Recording does not exist: ' + file)
+		}
+		summarize(command, file, top)
+		return
+	}
+
+	var target = getTarget(command)
+
+	switch (verb) {
+		case 'start':
+			var preset = String(command.properties.get('preset') || 'cpu')
+			var args = ['name=' + name, 'settings=profile']
+			var presetFile = command.sincerity.container.getConfigurationFile('profile', preset + '.jfc')
+			if (presetFile.exists()) {
+				args.push('settings=' + presetFile)
+			}
+			else if (preset != 'cpu') {
+				throw new CommandException(command, 'Unknown preset: ' + preset)
+			}
+			var duration = command.properties.get('duration')
+			if (Sincerity.Objects.exists(duration)) {
+				// The recording will be written when the duration elapses
+				file = getRecordingFile(command, name)
+				args.push('duration=' + duration)
+				args.push('filename=' + file)
+			}
+			jfr(command, target, 'start', args)
+			if (Sincerity.Objects.exists(file)) {
+				command.sincerity.out.println('Recording {0} ({1}) will be written to: {2}'.cast(name, preset, file))
+			}
+			else {
+				command.sincerity.out.println('Recording {0} ({1}) started'.cast(name, preset))
+			}
+			break
+
+		case 'dump':
+		case 'stop':
+			file = getRecordingFile(command, name)
+			jfr(command, target, verb, ['name=' + name, 'filename=' + file])
+			if (file.exists()) {
+				command.sincerity.out.println('Recording {0} written to: {1}'.cast(name, file))
+				summarize(command, file, top)
+			}
+			break
+
+		case 'check':
+			jfr(command, target, 'check', ['name=' + name, 'verbose=' + command.switches.contains('verbose')])
+			break
+
+		default:
+			throw new BadArgumentsCommandException(command, verbs, '--preset=cpu|allocation|locks|io', '--name=...', '--duration=...', '--pid=...', '--service=...', '--top=...')
+	}
+}
+
+/**
+ * The pid of the JVM to profile, or null for this JVM.
+ */
+function getTarget(command) {
+	var pid = command.properties.get('pid')
+	if (Sincerity.Objects.exists(pid)) {
+		return String(pid)
+	}
+
+	var uri = command.properties.get('service')
+	if (Sincerity.Objects.exists(uri)) {
+		// Written by the service plugin for the JVM it launches
+		var name = String(uri).replace('/', '_')
+		var instance = command.properties.get('instance')
+		if (Sincerity.Objects.exists(instance)) {
+			name += '-' + instance
+		}
+		var pidFile = command.sincerity.container.getCacheFile('service', name + '.java.pid')
+		if (!pidFile.exists()) {
+			throw new CommandException(command, 'Service is not running: ' + name)
+		}
+		var reader = new BufferedReader(new FileReader(pidFile))
+		try {
+			pid = reader.readLine()
+		}
+		finally {
+			reader.close()
+		}
+		if (!Sincerity.Objects.exists(pid)) {
+			throw new CommandException(command, 'Service is not running: ' + name)
+		}
+		return String(pid).trim()
+	}
+
+	return null
+}
+
+function getRecordingFile(command, name) {
+	var logsDir = command.sincerity.container.getLogsFile()
+	logsDir.mkdirs()
+	var timestamp = new java.text.SimpleDateFormat('yyyyMMdd-HHmmss').format(new java.util.Date())
+	return new File(logsDir, 'profile-{0}-{1}.jfr'.cast(name, timestamp)).canonicalFile
+}
+
+/**
+ * Runs a JFR diagnostic command: in this JVM via the DiagnosticCommand MBean,
+ * or in another JVM via jcmd.
+ */
+function jfr(command, target, verb, args) {
+	var output
+
+	if (null === target) {
+		var operation = 'jfr' + verb.charAt(0).toUpperCase() + verb.substring(1)
+		var params = Sincerity.JVM.newArray(1, 'java.lang.Object')
+		params[0] = Sincerity.JVM.toArray(args, 'java.lang.String')
+		var signature = Sincerity.JVM.toArray(['[Ljava.lang.String;'], 'java.lang.String')
+		try {
+			output = ManagementFactory.platformMBeanServer.invoke(new ObjectName('com.sun.management:type=DiagnosticCommand'), operation, params, signature)
+		}
+		catch (x if Sincerity.JVM.isException(x, InstanceNotFoundException)) {
+			throw new CommandException(command, 'This JVM does not support diagnostic commands')
+		}
+		catch (x if Sincerity.JVM.isException(x, MBeanException)) {
+			throw new CommandException(command, String(x.javaException.cause ? x.javaException.cause.message : x.javaException.message))
+		}
+	}
+	else {
+		var jcmd = getJcmd()
+		if (null === jcmd) {
+			throw new CommandException(command, 'Cannot find jcmd: profiling another JVM requires a JDK')
+		}
+		var process = new java.lang.ProcessBuilder(Sincerity.JVM.toArray([jcmd, target, 'JFR.' + verb].concat(args), 'java.lang.String')).redirectErrorStream(true).start()
+		var lines = []
+		var reader = new BufferedReader(new InputStreamReader(process.inputStream))
+		try {
+			var line
+			while (null !== (line = reader.readLine())) {
+				// The first line is just the pid
+				if (String(line) != target + ':') {
+					lines.push(String(line))
+				}
+			}
+		}
+		finally {
+			reader.close()
+		}
+		output = lines.join('\n')
+		if (process.waitFor() != 0) {
+			throw new CommandException(command, output)
+		}
+	}
+
+	output = Sincerity.Objects.exists(output) ? String(output).trim() : ''
+	if ((output.length > 0) && (command.sincerity.verbosity >= 1)) {
+		command.sincerity.out.println(output)
+	}
+}
+
+function getJcmd() {
+	var javaHome = new File(System.getProperty('java.home'))
+	var dirs = [new File(javaHome, 'bin'), new File(javaHome.parentFile, 'bin')]
+	for (var d in dirs) {
+		var names = ['jcmd', 'jcmd.exe']
+		for (var n in names) {
+			var file = new File(dirs[d], names[n])
+			if (file.exists()) {
+				return String(file)
+			}
+		}
+	}
+	return null
+}
+
+/**
+ * Prints the heaviest stack frames for each kind of event in a recording.
+ * Except for CPU samples, we attribute events to the first frame outside the
+ * JDK, which is usually the code that caused them. Lock contention is only
+ * time spent blocked on entering a monitor or parked on a lock; other waiting
+ * (Object.wait, conditions, latches, queues) is summarized separately.
+ */
+function summarize(command, file, top) {
+	var RecordingFile = Packages.jdk.jfr.consumer.RecordingFile
+	if (typeof RecordingFile != 'function') {
+		command.sincerity.out.println('Cannot summarize {0}: this JVM cannot read recordings (summaries require a JVM with JFR support, such as JDK 11 or later)'.cast(file))
+		return
+	}
+
+	var families = {
+		cpu: {title: 'CPU', unit: 'samples', total: 0, frames: {}},
+		allocation: {title: 'Allocation', unit: 'bytes', total: 0, frames: {}},
+		tlab: {title: 'Allocation (TLAB)', unit: 'bytes', total: 0, frames: {}},
+		locks: {title: 'Lock contention', unit: 'ms', total: 0, frames: {}},
+		waiting: {title: 'Waiting', unit: 'ms', total: 0, frames: {}},
+		io: {title: 'I/O', unit: 'ms', total: 0, frames: {}}
+	}
+
+	var recording = new RecordingFile(file.toPath())
+	try {
+		while (recording.hasMoreEvents()) {
+			var event = recording.readEvent()
+			var family, weight
+			switch (String(event.eventType.name)) {
+				case 'jdk.ExecutionSample':
+					family = families.cpu
+					weight = 1
+					break
+				case 'jdk.ObjectAllocationSample':
+					family = families.allocation
+					weight = event.getLong('weight')
+					break
+				case 'jdk.ObjectAllocationInNewTLAB':
+					family = families.tlab
+					weight = event.getLong('tlabSize')
+					break
+				case 'jdk.ObjectAllocationOutsideTLAB':
+					family = families.tlab
+					weight = event.getLong('allocationSize')
+					break
+				case 'jdk.JavaMonitorEnter':
+					family = families.locks
+					weight = event.duration.toNanos() / 1000000
+					break
+				case 'jdk.ThreadPark':
+					family = isLock(event.getValue('parkedClass')) ? families.locks : families.waiting
+					weight = event.duration.toNanos() / 1000000
+					break
+				case 'jdk.JavaMonitorWait':
+					family = families.waiting
+					weight = event.duration.toNanos() / 1000000
+					break
+				case 'jdk.SocketRead':
+				case 'jdk.SocketWrite':
+				case 'jdk.FileRead':
+				case 'jdk.FileWrite':
+					family = families.io
+					weight = event.duration.toNanos() / 1000000
+					break
+				default:
+					continue
+			}
+
+			var frame = getFrame(event.stackTrace, family !== families.cpu)
+			if (null === frame) {
+				continue
+			}
+			family.total += Number(weight)
+			family.frames[frame] = (family.frames[frame] || 0) + Number(weight)
+		}
+	}
+	finally {
+		recording.close()
+	}
+
+	// Allocation samples supersede the TLAB events (JVM 16 and later)
+	if (families.allocation.total > 0) {
+		delete families.tlab
+	}
+
+	for (var f in families) {
+		var family = families[f]
+		if (family.total == 0) {
+			continue
+		}
+		var frames = []
+		for (var frame in family.frames) {
+			frames.push({frame: frame, weight: family.frames[frame]})
+		}
+		frames.sort(function(a, b) {
+			return b.weight - a.weight
+		})
+		command.sincerity.out.println('{0} ({1} {2}):'.cast(family.title, Math.round(family.total), family.unit))
+		for (var i = 0; (i < top) && (i < frames.length); i++) {
+			var percent = (frames[i].weight * 100 / family.total).toFixed(1)
+			command.sincerity.out.println('  {0}%  {1}'.cast(('     ' + percent).slice(-5), frames[i].frame))
+		}
+	}
+}
+
+function getFrame(stackTrace, skipJdk) {
+	if (!Sincerity.Objects.exists(stackTrace)) {
+		return null
+	}
+	var frames = stackTrace.frames
+	if (frames.empty) {
+		return null
+	}
+	var frame = frames.get(0)
+	if (skipJdk) {
+		for (var i = frames.iterator(); i.hasNext(); ) {
+			var candidate = i.next()
+			if (!isJdk(String(candidate.method.type.name))) {
+				frame = candidate
+				break
+			}
+		}
+	}
+	return '{0}.{1}:{2}'.cast(frame.method.type.name, frame.method.name, frame.lineNumber)
+}
+
+/**
+ * Whether a thread parked on an instance of this class is waiting for a lock.
+ * We can't check whether an application class extends
+ * AbstractQueuedSynchronizer (it's not in our classpath), so we recognize the
+ * JDK's locks, and application synchronizers whose names say they're locks.
+ */
+function isLock(parkedClass) {
+	if (!Sincerity.Objects.exists(parkedClass)) {
+		return false
+	}
+	var className = String(parkedClass.name)
+	if (/^java\.util\.concurrent\.locks\.(ReentrantLock|ReentrantReadWriteLock|StampedLock)\b/.test(className) || (className == 'java.util.concurrent.ThreadPoolExecutor$Worker')) {
+		return true
+	}
+	return !isJdk(className) && /Lock\b/.test(className)
+}
+
+function isJdk(className) {
+	return /^(java|javax|jdk|sun|com\.sun)\./.test(className)
+}
@@ -8,6 +8,7 @@ document.require(
 importClass(
 	com.threecrickets.sincerity.exception.CommandException,
 	com.threecrickets.sincerity.exception.BadArgumentsCommandException,
+	com.threecrickets.sincerity.util.ServiceController,
 	java.io.File,
 	java.io.BufferedReader,
 	java.io.FileReader,
@@ -42,67 +43,109 @@ function service(command) {
 	var verbose = command.switches.contains('verbose')
 
 	var name = uri.replace('/', '_')
-	var displayName = name
 
 	var cacheDir = command.sincerity.container.getCacheFile('service')
 	cacheDir.mkdirs()
 	
-	var pidFile = new File(cacheDir, name + '.pid')
-	var statusFile = new File(cacheDir, name + '.status')
-	var pid, status
+	// Instances: either as requested or those that already exist
+	var count = command.properties.get('instances')
+	var requested = null
+	if (Sincerity.Objects.exists(count)) {
+		count = Number(count)
+		if (isNaN(count) || (count < 1) || ((verb == 'console') && (count > 1))) {
+			throw new BadArgumentsCommandException(command, 'uri', 'verb ("start", "stop", "restart", "console", or "status")', '--instances=[number] (only 1 for "console")')
+		}
+		requested = []
+		for (var n = 1; n <= count; n++) {
+			requested.push(createInstance(name, count > 1 ? n : null, count, cacheDir))
+		}
+	}
+	var existing = findInstances(name, cacheDir)
+	var instance, pid, status
 	
 	if (verb == 'status') {
-		pid = getPid(pidFile, statusFile)
-		status = getStatus(statusFile)
-		if (null === status) {
-			command.sincerity.out.println('{0} is not running'.cast(displayName))
-		}
-		else {
-			if (null === pid) {
-				command.sincerity.out.println('{0}: {1}'.cast(displayName, status))
+		var running = 0
+		for (var e in existing) {
+			instance = existing[e]
+			pid = getPid(instance.controller)
+			status = getStatus(instance.statusFile)
+			if (null === status) {
+				command.sincerity.out.println('{0} is not running'.cast(instance.displayName))
 			}
 			else {
-				command.sincerity.out.println('{0}: {1} (pid: {2})'.cast(displayName, status, pid))
+				if (null === pid) {
+					command.sincerity.out.println('{0}: {1}'.cast(instance.displayName, status))
+				}
+				else {
+					command.sincerity.out.println('{0}: {1} (pid: {2})'.cast(instance.displayName, status, pid))
+				}
+			}
+			if (isRunning(status) && (null !== pid)) {
+				running++
 			}
 		}
+		if (existing.length > 1) {
+			command.sincerity.out.println('{0}: {1} of {2} instances running'.cast(name, running, existing.length))
+		}
 		return
 	}
 	
 	if ((verb == 'stop' ) || (verb == 'restart')) {
-		pid = getPid(pidFile, statusFile)
-		status = getStatus(statusFile)
-		if (isStopped(status) || (null === pid)) {
-			if (null === status) {
-				command.sincerity.out.println('{0} is not running'.cast(displayName))
-			}
-			else {
-				command.sincerity.out.println('{0} is not running {1})'.cast(displayName, status))
+		var controllers = new java.util.ArrayList()
+		for (var e in existing) {
+			instance = existing[e]
+			pid = getPid(instance.controller)
+			status = getStatus(instance.statusFile)
+			if (isStopped(status) || (null === pid)) {
+				if (null === status) {
+					command.sincerity.out.println('{0} is not running'.cast(instance.displayName))
+				}
+				else {
+					command.sincerity.out.println('{0} is not running {1})'.cast(instance.displayName, status))
+				}
+				continue
 			}
-			return
+			command.sincerity.out.println('Stopping {0} (pid: {1})...'.cast(instance.displayName, pid))
+			controllers.add(instance.controller)
 		}
 		
-		command.sincerity.out.println('Stopping {0} (pid: {1})...'.cast(displayName, pid))
-		Sincerity.JVM.kill(pid)
-		pid = getPid(pidFile, statusFile)
-		if (null !== pid) {
-			command.sincerity.out.println('Waiting for {0} to stop...'.cast(displayName))
-			while (null !== pid) {
-				java.lang.Thread.sleep(1000)
-				pid = getPid(pidFile, statusFile)
+		if (!controllers.empty) {
+			// All instances are stopped together, and we return as soon as
+			// their processes exit
+			var timeout = command.properties.get('timeout')
+			timeout = Sincerity.Objects.exists(timeout) ? Number(timeout) * 1000 : ServiceController.DEFAULT_TIMEOUT
+			var force = command.switches.contains('force')
+			if (!ServiceController.stop(controllers, timeout, force)) {
+				throw new CommandException(command, '{0} did not stop within {1} seconds{2}'.cast(name, timeout / 1000, force ? '' : ' (use --force to kill it)'))
 			}
+			command.sincerity.out.println(name + ' has stopped')
 		}
-		command.sincerity.out.println(displayName + ' has stopped')
 		if (verb == 'stop') {
 			return
 		}
 	}
 	
 	if ((verb == 'start') || (verb == 'restart') || (verb == 'console')) {
-		pid = getPid(pidFile, statusFile)
-		status = getStatus(statusFile)
-		if (isRunning(status)) {
-			command.sincerity.out.println('{0} is already running ({1})'.cast(displayName, status))
-			return
+		// Without --instances we start the instances that already exist (but
+		// the console always runs a single instance)
+		if ((null === requested) && (verb == 'console') && (existing.length > 1)) {
+			requested = [createInstance(name, null, 1, cacheDir)]
+		}
+		var instances = requested || existing
+		if (instances.length != existing.length) {
+			// Changing the record while instances are running would orphan
+			// those that are not in the new one
+			var running = []
+			for (var e in existing) {
+				instance = existing[e]
+				if (isRunning(getStatus(instance.statusFile)) && (null !== getPid(instance.controller))) {
+					running.push(instance.displayName)
+				}
+			}
+			if (running.length > 0) {
+				throw new CommandException(command, '{0} is running with {1} instances ({2}): stop it before changing the number of instances'.cast(name, existing.length, running.join(', ')))
+			}
+			saveInstanceCount(name, instances.length, cacheDir)
 		}
 
 		var binary = 'wrapper-{name}-{architecture}-{bits}'.cast(os)
@@ -130,65 +173,16 @@ function service(command) {
 				}
 			}
 		}
-	
-		// Entries in this configuration will override those in service.conf
-		// See: http://wrapper.tanukisoftware.com/doc/english/properties.html
-		var configuration = {
-			wrapper: {
-				name: name,
-				displayname: displayName,
-				pidfile: pidFile,
-				'pidfile.strict': true,
-				logfile: command.sincerity.container.getLogsFile('service-{0}.log'.cast(name)),
-				working: {
-					dir: command.sincerity.container.root
-				},
-				ntservice: {
-					name: name,
-					displayname: displayName
-				},
-				console: {
-					title: displayName
-				},
-				sysLog: {
-					ident: name
-				},
-				java: {
-					statusfile: statusFile,
-					mainclass: 'org.tanukisoftware.wrapper.WrapperSimpleApp',
-					library: {
-						'path.1': command.sincerity.container.getLibrariesFile('native')
-					}
-				},
-				app: verbose ? {
-					'parameter.1': 'com.threecrickets.sincerity.Sincerity',
-					'parameter.2': 'help:verbosity',
-					'parameter.3': '2',
-					'parameter.4': ':',
-					'parameter.5': 'delegate:start',
-					'parameter.6': uri
-				} :
-				{
-					'parameter.1': 'com.threecrickets.sincerity.Sincerity',
-					'parameter.2': 'delegate:start',
-					'parameter.3': uri
-				}
-			}
-		}
 		
-		// JVM switches
+		// JVM switches (cast separately for each instance)
+		var jvmLines = []
 		var jvmDir = command.sincerity.container.getConfigurationFile('service', 'jvm')
-		var index = 1
-		configuration.wrapper.java['additional.' + index++] = '-Dfile.encoding=' + java.nio.charset.Charset.defaultCharset() // pass our current charset
-		configuration.wrapper.java['additional.' + index++] = '-Dsincerity.home=' + command.sincerity.home
-		configuration.wrapper.java['additional.' + index++] = '-Dsincerity.container=' + command.sincerity.container.root
 		if (jvmDir.directory) {
 			var files = jvmDir.listFiles()
 			for (var f in files) {
 				var file = files[f]
 				if (file.name.endsWith('.conf')) {
 					var reader = new BufferedReader(new FileReader(file))
-					var filling = Sincerity.Templates.createSystemFilling(true, true)
 					try {
 						var line
 						(function() { // Nashorn bug workaround: https://www.mail-archive.com/nashorn-dev@openjdk.java.net/msg03419.html
@@ -196,8 +190,7 @@ function service(command) {
 							if ((line.length() == 0) || line.startsWith('#')) {
 								continue
 							}
-							line = line.cast(filling)
-							configuration.wrapper.java['additional.' + index++] = line
+							jvmLines.push(String(line))
 						}
 						})() // Nashorn bug workaround
 					}
@@ -208,44 +201,188 @@ function service(command) {
 			}
 		}
 		
-		// Classpath
-		index = 1
-		for (var i = command.sincerity.container.dependencies.getClasspaths(true).iterator(); i.hasNext(); ) {
-			configuration.wrapper.java['classpath.' + index++] = i.next()
-		}
+		var portBase = command.properties.get('port-base')
+		portBase = Sincerity.Objects.exists(portBase) ? Number(portBase) : null
 
-		// Daemonize?
-		if ((verb == 'start') || (verb == 'restart')) {
-			configuration.wrapper.daemonize = 'TRUE'
-		}
-
-		// Assemble arguments
-		var runArguments = ['delegate:execute', binary, command.sincerity.container.getConfigurationFile('service', 'service.conf')]
-		configuration = Sincerity.Objects.flatten(configuration)
-		for (var c in configuration) {
-			runArguments.push(c + '=' + configuration[c])
-		}
 		command.sincerity.container.getLogsFile().mkdirs()
 
-		if (verbose) {
-			command.sincerity.out.println('Arguments:')
-			for (c in runArguments) {
-				command.sincerity.out.println(' {0}={1}'.cast(c, runArguments[c]))
+		for (var n in instances) {
+			instance = instances[n]
+			status = getStatus(instance.statusFile)
+			if (isRunning(status) && (null !== getPid(instance.controller))) {
+				command.sincerity.out.println('{0} is already running ({1})'.cast(instance.displayName, status))
+				continue
+			}
+		
+			// Entries in this configuration will override those in service.conf
+			// See: http://wrapper.tanukisoftware.com/doc/english/properties.html
+			var configuration = {
+				wrapper: {
+					name: instance.name,
+					displayname: instance.displayName,
+					pidfile: instance.pidFile,
+					'pidfile.strict': true,
+					logfile: command.sincerity.container.getLogsFile('service-{0}.log'.cast(instance.name)),
+					working: {
+						dir: command.sincerity.container.root
+					},
+					ntservice: {
+						name: instance.name,
+						displayname: instance.displayName
+					},
+					console: {
+						title: instance.displayName
+					},
+					sysLog: {
+						ident: instance.name
+					},
+					java: {
+						pidfile: instance.javaPidFile,
+						statusfile: instance.statusFile,
+						mainclass: 'org.tanukisoftware.wrapper.WrapperSimpleApp',
+						library: {
+							'path.1': command.sincerity.container.getLibrariesFile('native')
+						}
+					},
+					app: verbose ? {
+						'parameter.1': 'com.threecrickets.sincerity.Sincerity',
+						'parameter.2': 'help:verbosity',
+						'parameter.3': '2',
+						'parameter.4': ':',
+						'parameter.5': 'delegate:start',
+						'parameter.6': uri
+					} :
+					{
+						'parameter.1': 'com.threecrickets.sincerity.Sincerity',
+						'parameter.2': 'delegate:start',
+						'parameter.3': uri
+					}
+				}
+			}
+			
+			// JVM switches
+			var index = 1
+			configuration.wrapper.java['additional.' + index++] = '-Dfile.encoding=' + java.nio.charset.Charset.defaultCharset() // pass our current charset
+			configuration.wrapper.java['additional.' + index++] = '-Dsincerity.home=' + command.sincerity.home
+			configuration.wrapper.java['additional.' + index++] = '-Dsincerity.container=' + command.sincerity.container.root
+			configuration.wrapper.java['additional.' + index++] = '-Dsincerity.service.instance=' + instance.index
+			configuration.wrapper.java['additional.' + index++] = '-Dsincerity.service.instances=' + instance.count
+			var filling = Sincerity.Templates.createSystemFilling(true, true)
+			filling.instance = String(instance.index)
+			filling.instances = String(instance.count)
+			if (null !== portBase) {
+				filling.port = String(portBase + instance.index - 1)
+			}
+			for (var l in jvmLines) {
+				configuration.wrapper.java['additional.' + index++] = jvmLines[l].cast(filling)
+			}
+			
+			// Classpath
+			index = 1
+			for (var i = command.sincerity.container.dependencies.getClasspaths(true).iterator(); i.hasNext(); ) {
+				configuration.wrapper.java['classpath.' + index++] = i.next()
+			}
+	
+			// Daemonize?
+			if ((verb == 'start') || (verb == 'restart')) {
+				configuration.wrapper.daemonize = 'TRUE'
+			}
+	
+			// Assemble arguments
+			var runArguments = ['delegate:execute', binary, command.sincerity.container.getConfigurationFile('service', 'service.conf')]
+			configuration = Sincerity.Objects.flatten(configuration)
+			for (var c in configuration) {
+				runArguments.push(c + '=' + configuration[c])
+			}
+	
+			if (verbose) {
+				command.sincerity.out.println('Arguments:')
+				for (c in runArguments) {
+					command.sincerity.out.println(' {0}={1}'.cast(c, runArguments[c]))
+				}
+			}
+	
+			// Launch native wrapper binary
+			if (verb == 'console') {
+				command.sincerity.out.println('Running {0}...'.cast(instance.displayName))
+			}
+			command.sincerity.run(Sincerity.JVM.toArray(runArguments, 'java.lang.String'))
+			if ((verb == 'start') || (verb == 'restart')) {
+				command.sincerity.out.println('Started {0}'.cast(instance.displayName))
 			}
 		}
+		return
+	}
+
+	throw new BadArgumentsCommandException(command, 'uri', 'verb ("start", "stop", "restart", "console", or "status")')
+}
+
+/**
+ * A service instance, with its own pid, status and log files.
+ */
+function createInstance(name, index, count, cacheDir) {
+	var instanceName = (null !== index) ? name + '-' + index : name
+	var pidFile = new File(cacheDir, instanceName + '.pid')
+	var javaPidFile = new File(cacheDir, instanceName + '.java.pid') // used by the profile plugin
+	var statusFile = new File(cacheDir, instanceName + '.status')
+	return {
+		name: instanceName,
+		displayName: instanceName,
+		index: (null !== index) ? index : 1,
+		count: count,
+		pidFile: pidFile,
+		javaPidFile: javaPidFile,
+		statusFile: statusFile,
+		controller: new ServiceController(pidFile, statusFile)
+	}
+}
 
-		// Launch native wrapper binary
-		if (verb == 'console') {
-			command.sincerity.out.println('Running {0}...'.cast(displayName))
+/**
+ * The instances the service was last started with, as recorded by
+ * saveInstanceCount, or else just the default one. (We cannot tell them apart
+ * by the names of their pid and status files, because "name-2" could just as
+ * well be another service.)
+ */
+function findInstances(name, cacheDir) {
+	var count = 1
+	var file = new File(cacheDir, name + '.instances')
+	if (file.exists()) {
+		count = Number(String(Sincerity.Files.loadText(file)).trim())
+		if (isNaN(count) || (count < 1)) {
+			count = 1
 		}
-		command.sincerity.run(Sincerity.JVM.toArray(runArguments, 'java.lang.String'))
-		if ((verb == 'start') || (verb == 'restart')) {
-			command.sincerity.out.println('Started {0}'.cast(displayName))
+	}
+
+	var instances = []
+	if (count > 1) {
+		for (var n = 1; n <= count; n++) {
+			instances.push(createInstance(name, n, count, cacheDir))
 		}
-		return
 	}
+	else {
+		instances.push(createInstance(name, null, 1, cacheDir))
+	}
+	return instances
+}
 
-	throw new BadArgumentsCommandException(command, 'uri', 'verb ("start", "stop", "restart", "console", or "status")')
+/**
+ * Records the number of instances the service was started with (there is
+ * no record for a single instance).
+ */
+function saveInstanceCount(name, count, cacheDir) {
+	var file = new File(cacheDir, name + '.instances')
+	if (count > 1) {
+		var writer = Sincerity.Files.openForTextWriting(file)
+		try {
+			writer.println(count)
+		}
+		finally {
+			writer.close()
+		}
+	}
+	else {
+		file['delete']()
+	}
 }
 
 function getOs() {
@@ -310,17 +447,9 @@ function getOs() {
 	}
 }
 
-function getPid(pidFile, statusFile) {
-	var pid = pidFile.exists() ? String(Sincerity.Files.loadText(pidFile)).trim() : null
-	if ((null !== pid) && Sincerity.Objects.exists(statusFile)) {
-		var state = Sincerity.JVM.getProcessState(pid)
-		if (state === false) {
-			pidFile['delete']()
-			statusFile['delete']()
-			pid = null
-		}
-	}
-	return pid
+function getPid(controller) {
+	var pid = controller.pid
+	return pid == -1 ? null : pid
 }
 
 function getStatus(statusFile) {
@@ -198,6 +198,9 @@ Sincerity.Lucene = Sincerity.Lucene || function() {
 	 * @param {String} config.query The Lucene query
 	 * @param {Sincerity.Lucene.Directory} config.directory The directory
 	 * @param {Number} [config.count=100] The maximum number of top documents to return
+	 * @param {String} [config.sort] If present sorts the documents by this field (which should not be analyzed)
+	 *        instead of by relevance
+	 * @param {Boolean} [config.reverse=false] Whether to reverse the sort order
 	 * @param {String} [config.defaultField] The default query field
 	 * @param {String} [config.previewField] If present generates a short HTML preview of this field with
 	 *        search terms highlighted in the fragments in which they appear
@@ -235,13 +238,18 @@ Sincerity.Lucene = Sincerity.Lucene || function() {
 				this.highlighter.textFragmenter.fragmentSize = config.fragmentLength || 100
 			}
 			
+			if (config.sort) {
+				this.sort = new org.apache.lucene.search.Sort(new org.apache.lucene.search.SortField(config.sort, org.apache.lucene.search.SortField.STRING, Boolean(config.reverse)))
+			}
+
 			this.count = config.count || 100
 			this.searcher = config.directory.createSearcher()
 	    }
 	    
 	    Public.hasNext = function() {
 	    	if (!Sincerity.Objects.exists(this.hits)) {
-				this.hits = this.searcher.search(this.query, null, this.count).scoreDocs
+				var top = Sincerity.Objects.exists(this.sort) ? this.searcher.search(this.query, null, this.count, this.sort) : this.searcher.search(this.query, null, this.count)
+				this.hits = top.scoreDocs
 		    	this.length = Sincerity.Objects.exists(this.hits) ? this.hits.length : 0
 				this.index = 0
 	    	}
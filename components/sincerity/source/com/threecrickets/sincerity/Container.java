@@ -16,6 +16,8 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.ivy.plugins.repository.TransferEvent;
 import org.apache.ivy.util.DefaultMessageLogger;
@@ -27,7 +29,10 @@ import com.threecrickets.sincerity.dependencies.Dependencies;
 import com.threecrickets.sincerity.dependencies.Module;
 import com.threecrickets.sincerity.dependencies.Repositories;
 import com.threecrickets.sincerity.exception.SincerityException;
+import com.threecrickets.sincerity.management.SincerityManagement;
+import com.threecrickets.sincerity.packaging.OriginDigests;
 import com.threecrickets.sincerity.packaging.PackagingContext;
+import com.threecrickets.sincerity.util.ProcessSupervisor;
 import com.threecrickets.sincerity.util.RootDirectory;
 import com.threecrickets.sincerity.util.ScripturianUtil;
 
@@ -42,6 +47,10 @@ import com.threecrickets.sincerity.util.ScripturianUtil;
  * <p>
  * Because the set of plugins in a container depends on its classpath, this is
  * also where you can access them, via {@link #getPlugins()}.
+ * <p>
+ * Instances may be shared by concurrent Sincerity sessions: lazily created
+ * components are safely published, and mutations of the configuration should
+ * be done while holding {@link #getLock()}.
  * 
  * @param <M>
  *        The resolved dependency class
@@ -65,8 +74,12 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 
 	public static final String ARTIFACTS_CONF = "artifacts.conf";
 
+	public static final String ORIGIN_DIGESTS_CONF = "origin-digests.conf";
+
 	public static final String SHORTCUTS_CONF = "shortcuts.conf";
 
+	public static final String PROCESSES_CONF = "processes.conf";
+
 	//
 	// Construction
 	//
@@ -93,6 +106,9 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 		getConfigurationFile( "sincerity" ).mkdirs();
 
 		shortcuts = new Shortcuts( getConfigurationFile( "sincerity", SHORTCUTS_CONF ) );
+		originDigests = new OriginDigests( getConfigurationFile( "sincerity", ORIGIN_DIGESTS_CONF ) );
+
+		SincerityManagement.CONTAINER.container( root );
 	}
 
 	/**
@@ -129,6 +145,17 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 		return shortcuts;
 	}
 
+	/**
+	 * The supervisor for system processes started for this container. Its
+	 * registry is stored in "/cache/sincerity/processes.conf".
+	 * 
+	 * @return The process supervisor
+	 */
+	public ProcessSupervisor getProcessSupervisor()
+	{
+		return ProcessSupervisor.getInstance( getCacheFile( "sincerity", PROCESSES_CONF ) );
+	}
+
 	/**
 	 * The cached plugins, based on the current bootstrap.
 	 * 
@@ -138,8 +165,18 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 	 */
 	public Plugins getPlugins() throws SincerityException
 	{
+		Plugins plugins = this.plugins;
 		if( plugins == null )
-			plugins = new Plugins( this );
+		{
+			// Make sure the bootstrap exists before we synchronize
+			getBootstrap();
+			synchronized( this )
+			{
+				plugins = this.plugins;
+				if( plugins == null )
+					this.plugins = plugins = new Plugins( this );
+			}
+		}
 		return plugins;
 	}
 
@@ -171,12 +208,29 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 		Bootstrap bootstrap = forceCreate ? null : Bootstrap.getBootstrap( getRoot() );
 		if( bootstrap == null )
 		{
-			bootstrap = createBootstrap();
-			Bootstrap.setBootstrap( getRoot(), bootstrap );
-
-			// These depend on the bootstrap
-			plugins = null;
-			languageManager = null;
+			ReentrantLock lock = getLock();
+			lock.lock();
+			try
+			{
+				// Another session might have created it while we were waiting
+				if( !forceCreate )
+					bootstrap = Bootstrap.getBootstrap( getRoot() );
+				if( bootstrap == null )
+				{
+					long start = System.nanoTime();
+					bootstrap = createBootstrap();
+					SincerityManagement.CONTAINER.bootstrap( start );
+					Bootstrap.setBootstrap( getRoot(), bootstrap );
+
+					// These depend on the bootstrap
+					plugins = null;
+					languageManager = null;
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
 		}
 		return bootstrap;
 	}
@@ -192,8 +246,18 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 	 */
 	public LanguageManager getLanguageManager() throws SincerityException
 	{
-		if( languageManager == null )
+		LanguageManager languageManager = this.languageManager;
+		if( languageManager != null )
+			return languageManager;
+
+		// Make sure the bootstrap exists before we synchronize
+		Bootstrap bootstrap = getBootstrap();
+		synchronized( this )
 		{
+			languageManager = this.languageManager;
+			if( languageManager != null )
+				return languageManager;
+
 			System.setProperty( LanguageManager.SCRIPTURIAN_CACHE_PATH_PROPERTY, getCacheFile().getPath() );
 
 			// The Python standard library is here (Jython expects a "Lib"
@@ -204,11 +268,14 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 			// will add a "packages" subdirectory to it)
 			System.setProperty( "python.cachedir", getCacheFile( "python" ).getPath() );
 
-			languageManager = new LanguageManager( getBootstrap() );
+			languageManager = new LanguageManager( bootstrap );
 
 			ScripturianUtil.initializeLanguageManager( languageManager );
+
+			// Publish only after it's fully initialized
+			this.languageManager = languageManager;
+			return languageManager;
 		}
-		return languageManager;
 	}
 
 	/**
@@ -220,8 +287,18 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 	 */
 	public ParserManager getParserManager() throws SincerityException
 	{
+		ParserManager parserManager = this.parserManager;
 		if( parserManager == null )
-			parserManager = new ParserManager( getBootstrap() );
+		{
+			// Make sure the bootstrap exists before we synchronize
+			Bootstrap bootstrap = getBootstrap();
+			synchronized( this )
+			{
+				parserManager = this.parserManager;
+				if( parserManager == null )
+					this.parserManager = parserManager = new ParserManager( bootstrap );
+			}
+		}
 		return parserManager;
 	}
 
@@ -234,7 +311,7 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 	 */
 	public PackagingContext createPackagingContext() throws SincerityException
 	{
-		return new PackagingContext( getRoot(), getBootstrap(), sincerity.getOut(), sincerity.getVerbosity() );
+		return new PackagingContext( getRoot(), getBootstrap(), sincerity.getOut(), sincerity.getVerbosity(), originDigests );
 	}
 
 	/**
@@ -414,15 +491,7 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 	 */
 	public int getInstallations()
 	{
-		String installationsName = getInstallationsName();
-		Integer installations = (Integer) Bootstrap.getAttributes().get( installationsName );
-		if( installations == null )
-		{
-			installations = 0;
-			Bootstrap.getAttributes().put( installationsName, installations );
-		}
-
-		return installations;
+		return getInstallationsCounter().get();
 	}
 
 	/**
@@ -436,7 +505,35 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 	 */
 	public void setInstallations( int installations )
 	{
-		Bootstrap.getAttributes().put( getInstallationsName(), installations );
+		getInstallationsCounter().set( installations );
+	}
+
+	/**
+	 * The lock for mutations of this container's configuration.
+	 * <p>
+	 * The lock is shared by all container instances with the same root
+	 * directory in this JVM (it is stored as a bootstrap attribute). Each
+	 * session has its own view of the configuration, so to avoid clobbering
+	 * other sessions' changes, the configuration should be reloaded while
+	 * holding the lock, before changing it (see
+	 * {@link Dependencies#reload()}). It is reentrant, so commands that hold
+	 * it can safely run other commands.
+	 * 
+	 * @return The lock
+	 */
+	public ReentrantLock getLock()
+	{
+		String lockName = Container.class.getCanonicalName() + ".lock:" + getRoot();
+		ReentrantLock lock = (ReentrantLock) Bootstrap.getAttributes().get( lockName );
+		if( lock == null )
+		{
+			lock = new ReentrantLock();
+			ReentrantLock existing = (ReentrantLock) Bootstrap.getAttributes().putIfAbsent( lockName, lock );
+			if( existing != null )
+				lock = existing;
+		}
+
+		return lock;
 	}
 
 	//
@@ -450,7 +547,7 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 	 */
 	public void addInstallation()
 	{
-		setInstallations( getInstallations() + 1 );
+		getInstallationsCounter().incrementAndGet();
 	}
 
 	/**
@@ -518,18 +615,36 @@ public abstract class Container<M extends Module, R extends Repositories> extend
 
 	private final Shortcuts shortcuts;
 
-	private Plugins plugins;
+	private final OriginDigests originDigests;
 
-	private LanguageManager languageManager;
+	private volatile Plugins plugins;
 
-	private ParserManager parserManager;
+	private volatile LanguageManager languageManager;
 
-	private boolean hasChanged;
+	private volatile ParserManager parserManager;
 
-	private boolean hasFinishedInstalling;
+	private volatile boolean hasChanged;
 
-	private String getInstallationsName()
+	private volatile boolean hasFinishedInstalling;
+
+	/**
+	 * The number of installations for this root directory, shared by all
+	 * container instances (it is stored as a bootstrap attribute).
+	 * 
+	 * @return The counter
+	 */
+	private AtomicInteger getInstallationsCounter()
 	{
-		return Container.class.getCanonicalName() + ".installations:" + getRoot();
+		String installationsName = Container.class.getCanonicalName() + ".installations:" + getRoot();
+		AtomicInteger installations = (AtomicInteger) Bootstrap.getAttributes().get( installationsName );
+		if( installations == null )
+		{
+			installations = new AtomicInteger();
+			AtomicInteger existing = (AtomicInteger) Bootstrap.getAttributes().putIfAbsent( installationsName, installations );
+			if( existing != null )
+				installations = existing;
+		}
+
+		return installations;
 	}
 }
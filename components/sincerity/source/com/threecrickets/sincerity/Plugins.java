@@ -22,6 +22,7 @@ import java.util.Set;
 import com.threecrickets.sincerity.dependencies.Dependencies;
 import com.threecrickets.sincerity.exception.ReenteringDocumentException;
 import com.threecrickets.sincerity.exception.SincerityException;
+import com.threecrickets.sincerity.management.SincerityManagement;
 
 /**
  * Can manage the collection of Sincerity plugins for a {@link Container}, and
@@ -78,6 +79,7 @@ public class Plugins extends AbstractMap<String, Plugin1>
 	{
 		super();
 
+		long start = System.nanoTime();
 		ClassLoader classLoader = container != null ? container.getBootstrap() : getClass().getClassLoader();
 
 		// Delegated plugins
@@ -97,11 +99,14 @@ public class Plugins extends AbstractMap<String, Plugin1>
 
 					try
 					{
+						long pluginStart = System.nanoTime();
 						Plugin1 plugin = new DelegatedPlugin( pluginFile, container, shell );
 						plugins.put( plugin.getName(), plugin );
+						SincerityManagement.PLUGINS.plugin( plugin.getName(), pluginStart );
 					}
 					catch( Exception x )
 					{
+						SincerityManagement.PLUGINS.failed();
 						if( sincerity.getVerbosity() >= 2 )
 							sincerity.dumpStackTrace( x );
 						else
@@ -124,9 +129,13 @@ public class Plugins extends AbstractMap<String, Plugin1>
 				Plugin1 plugin = null;
 				try
 				{
+					long pluginStart = System.nanoTime();
 					plugin = new DelegatedPlugin( pluginFile, sincerity, shell );
 					if( !plugins.containsKey( plugin.getName() ) )
+					{
 						plugins.put( plugin.getName(), plugin );
+						SincerityManagement.PLUGINS.plugin( plugin.getName(), pluginStart );
+					}
 				}
 				catch( ReenteringDocumentException x )
 				{
@@ -135,6 +144,7 @@ public class Plugins extends AbstractMap<String, Plugin1>
 				}
 				catch( Exception x )
 				{
+					SincerityManagement.PLUGINS.failed();
 					if( sincerity.getVerbosity() >= 2 )
 						sincerity.dumpStackTrace( x );
 					else
@@ -146,6 +156,8 @@ public class Plugins extends AbstractMap<String, Plugin1>
 		// JVM plugins
 		for( Plugin1 plugin : ServiceLoader.load( Plugin1.class, classLoader ) )
 			plugins.put( plugin.getName(), plugin );
+
+		SincerityManagement.PLUGINS.loaded( plugins.size(), start );
 	}
 
 	//
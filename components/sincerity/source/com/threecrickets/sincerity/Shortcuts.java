@@ -65,8 +65,7 @@ public class Shortcuts extends AbstractList<String>
 	 */
 	public Shortcuts( File file ) throws SincerityException
 	{
-		this.file = file;
-		load();
+		properties = load( file );
 	}
 
 	//
@@ -161,43 +160,46 @@ public class Shortcuts extends AbstractList<String>
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
-	private final File file;
-
-	private Properties properties;
+	/**
+	 * Never modified after construction, so it can be safely shared by
+	 * concurrent sessions.
+	 */
+	private final Properties properties;
 
 	/**
-	 * Loads and caches the database.
+	 * Loads the database.
 	 * 
+	 * @param file
+	 *        The database file
+	 * @return The properties
 	 * @throws SincerityException
 	 *         In case of an error
 	 */
-	private void load() throws SincerityException
+	private static Properties load( File file ) throws SincerityException
 	{
-		if( properties == null )
+		Properties properties = new Properties();
+		try
 		{
-			properties = new Properties();
+			FileInputStream stream = new FileInputStream( file );
 			try
 			{
-				FileInputStream stream = new FileInputStream( file );
 				try
 				{
-					try
-					{
-						properties.load( stream );
-					}
-					finally
-					{
-						stream.close();
-					}
+					properties.load( stream );
 				}
-				catch( IOException x )
+				finally
 				{
-					throw new SincerityException( "Could not read shortcuts configuration: " + file, x );
+					stream.close();
 				}
 			}
-			catch( FileNotFoundException x )
+			catch( IOException x )
 			{
+				throw new SincerityException( "Could not read shortcuts configuration: " + file, x );
 			}
 		}
+		catch( FileNotFoundException x )
+		{
+		}
+		return properties;
 	}
 }
@@ -14,18 +14,19 @@ package com.threecrickets.sincerity;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import com.threecrickets.bootstrap.Bootstrap;
 import com.threecrickets.sincerity.dependencies.Module;
@@ -36,12 +37,16 @@ import com.threecrickets.sincerity.exception.NoContainerException;
 import com.threecrickets.sincerity.exception.RebootException;
 import com.threecrickets.sincerity.exception.SincerityException;
 import com.threecrickets.sincerity.exception.UnknownCommandException;
+import com.threecrickets.sincerity.management.SincerityManagement;
+import com.threecrickets.sincerity.packaging.ArtifactManager;
+import com.threecrickets.sincerity.packaging.OriginDigests;
+import com.threecrickets.sincerity.packaging.PackagingContext;
 import com.threecrickets.sincerity.plugin.swing.Frame;
-import com.threecrickets.sincerity.util.IoUtil;
 import com.threecrickets.sincerity.util.NativeUtil;
-import com.threecrickets.sincerity.util.Pipe;
+import com.threecrickets.sincerity.util.OutputPump;
 import com.threecrickets.sincerity.util.StringUtil;
 import com.threecrickets.sincerity.util.TerminalUtil;
+import com.threecrickets.sincerity.util.TreeCopier;
 
 import jline.Terminal;
 import jline.TerminalFactory;
@@ -65,6 +70,13 @@ import jline.TerminalFactory;
  * Additionally, this class manages the general runtime environment and
  * interface for all of Sincerity. This includes both the command line interface
  * (CLI) and the graphical user interface (GUI).
+ * <p>
+ * By default, the output writers, verbosity and container root are global to
+ * the JVM (they are stored as bootstrap attributes). Hosts that run several
+ * command lines concurrently should instead create session instances (see
+ * {@link #Sincerity(String[], Sincerity, boolean)}), which keep these values
+ * to themselves. Either way, an instance is meant to be used by one thread at
+ * a time: see {@link #getCurrent()}.
  * 
  * @author Tal Liron
  */
@@ -94,12 +106,17 @@ public class Sincerity implements Runnable
 
 	public static final String ERR_ATTRIBUTE = "com.threecrickets.sincerity.err";
 
+	public static final String SESSION_ATTRIBUTE_PREFIX = "com.threecrickets.sincerity.session.";
+
 	//
 	// Static attributes
 	//
 
 	/**
 	 * The Sincerity instance running in the current thread.
+	 * <p>
+	 * Each instance registers itself here when constructed, so that concurrent
+	 * sessions in different threads do not see each other.
 	 * 
 	 * @return The Sincerity instance
 	 */
@@ -170,6 +187,32 @@ public class Sincerity implements Runnable
 	 *         In case of an error
 	 */
 	public Sincerity( String[] arguments, Sincerity sincerity ) throws SincerityException
+	{
+		this( arguments, sincerity, false );
+	}
+
+	/**
+	 * Cloning constructor, optionally creating a session.
+	 * <p>
+	 * A session keeps its own output writers, verbosity and container root,
+	 * initialized from the global values (or from the cloned instance if it is
+	 * itself a session), so that changing them does not affect other sessions
+	 * running concurrently in the same JVM. Instances cloned from a session
+	 * are sessions, too, as is the instance created in a new bootstrap when a
+	 * session reboots (see {@link #reboot(boolean)}), regardless of the
+	 * arguments.
+	 * 
+	 * @param arguments
+	 *        The command line
+	 * @param sincerity
+	 *        The instance to clone or null
+	 * @param session
+	 *        True to create a session
+	 * @throws SincerityException
+	 *         In case of an error
+	 * @see #isSession()
+	 */
+	public Sincerity( String[] arguments, Sincerity sincerity, boolean session ) throws SincerityException
 	{
 		if( sincerity != null )
 		{
@@ -179,9 +222,52 @@ public class Sincerity implements Runnable
 			plugins = sincerity.plugins;
 		}
 
+		// A session rebooting in this thread hands its state over to the
+		// first instance created in the new bootstrap (which has its own
+		// Sincerity class, so the session could not be cloned directly)
+		@SuppressWarnings("unchecked")
+		Map<String, Object> handover = (Map<String, Object>) Bootstrap.getAttributes().remove( getSessionAttribute() );
+
+		if( handover != null )
+		{
+			this.session = true;
+			verbosity = (Integer) handover.get( "verbosity" );
+			out = (PrintWriter) handover.get( "out" );
+			err = (PrintWriter) handover.get( "err" );
+			File handedContainerRoot = (File) handover.get( "containerRoot" );
+			if( ( handedContainerRoot != null ) && !handedContainerRoot.equals( containerRoot ) )
+			{
+				containerRoot = handedContainerRoot;
+				container = null;
+			}
+		}
+		else if( ( sincerity != null ) && sincerity.session )
+		{
+			this.session = true;
+			verbosity = sincerity.verbosity;
+			out = sincerity.out;
+			err = sincerity.err;
+		}
+		else
+		{
+			if( session )
+			{
+				// These are still the global values, because we have not yet
+				// become a session
+				verbosity = getVerbosity();
+				out = getOut();
+				err = getErr();
+				if( containerRoot == null )
+					containerRoot = (File) Bootstrap.getAttributes().get( CONTAINER_ROOT_ATTRIBUTE );
+			}
+			this.session = session;
+		}
+
 		commands = parseCommands( arguments );
 
 		threadLocal.set( this );
+
+		SincerityManagement.register();
 	}
 
 	//
@@ -297,12 +383,27 @@ public class Sincerity implements Runnable
 		return path;
 	}
 
+	/**
+	 * Whether this instance is a session, with its own output writers,
+	 * verbosity and container root.
+	 * 
+	 * @return True if a session
+	 * @see #Sincerity(String[], Sincerity, boolean)
+	 */
+	public boolean isSession()
+	{
+		return session;
+	}
+
 	/**
 	 * @return The verbosity level
 	 * @see #setVerbosity(int)
 	 */
 	public int getVerbosity()
 	{
+		if( session )
+			return verbosity;
+
 		Integer verbosity = (Integer) Bootstrap.getAttributes().get( VERBOSITY_ATTRIBUTE );
 		if( verbosity == null )
 		{
@@ -328,6 +429,12 @@ public class Sincerity implements Runnable
 	 */
 	public void setVerbosity( int verbosity )
 	{
+		if( session )
+		{
+			this.verbosity = verbosity;
+			return;
+		}
+
 		Bootstrap.getAttributes().put( VERBOSITY_ATTRIBUTE, verbosity );
 	}
 
@@ -337,6 +444,9 @@ public class Sincerity implements Runnable
 	 */
 	public PrintWriter getOut()
 	{
+		if( session )
+			return out;
+
 		PrintWriter out = (PrintWriter) Bootstrap.getAttributes().get( OUT_ATTRIBUTE );
 		if( out == null )
 		{
@@ -362,13 +472,19 @@ public class Sincerity implements Runnable
 	{
 		if( out == null )
 		{
-			Bootstrap.getAttributes().remove( OUT_ATTRIBUTE );
+			if( session )
+				this.out = TerminalUtil.createPrintWriter();
+			else
+				Bootstrap.getAttributes().remove( OUT_ATTRIBUTE );
 			return;
 		}
 
 		if( !( out instanceof PrintWriter ) )
 			out = new PrintWriter( out, true );
-		Bootstrap.getAttributes().put( OUT_ATTRIBUTE, out );
+		if( session )
+			this.out = (PrintWriter) out;
+		else
+			Bootstrap.getAttributes().put( OUT_ATTRIBUTE, out );
 	}
 
 	/**
@@ -377,6 +493,9 @@ public class Sincerity implements Runnable
 	 */
 	public PrintWriter getErr()
 	{
+		if( session )
+			return err;
+
 		PrintWriter err = (PrintWriter) Bootstrap.getAttributes().get( ERR_ATTRIBUTE );
 		if( err == null )
 		{
@@ -401,13 +520,19 @@ public class Sincerity implements Runnable
 	{
 		if( err == null )
 		{
-			Bootstrap.getAttributes().remove( ERR_ATTRIBUTE );
+			if( session )
+				this.err = TerminalUtil.createPrintWriter( System.err );
+			else
+				Bootstrap.getAttributes().remove( ERR_ATTRIBUTE );
 			return;
 		}
 
 		if( !( err instanceof PrintWriter ) )
 			err = new PrintWriter( err, true );
-		Bootstrap.getAttributes().put( ERR_ATTRIBUTE, err );
+		if( session )
+			this.err = (PrintWriter) err;
+		else
+			Bootstrap.getAttributes().put( ERR_ATTRIBUTE, err );
 	}
 
 	/**
@@ -455,7 +580,8 @@ public class Sincerity implements Runnable
 	{
 		if( containerRoot == null )
 		{
-			containerRoot = (File) Bootstrap.getAttributes().get( CONTAINER_ROOT_ATTRIBUTE );
+			if( !session )
+				containerRoot = (File) Bootstrap.getAttributes().get( CONTAINER_ROOT_ATTRIBUTE );
 			if( containerRoot == null )
 				setContainerRoot( findContainerRoot() );
 		}
@@ -480,14 +606,18 @@ public class Sincerity implements Runnable
 			File canonicalContainerRoot = containerRoot.getCanonicalFile();
 
 			// Make sure this is a new container root
-			if( this.containerRoot == null )
+			if( ( this.containerRoot == null ) && !session )
 				this.containerRoot = (File) Bootstrap.getAttributes().get( CONTAINER_ROOT_ATTRIBUTE );
 			if( this.containerRoot != null )
 				if( canonicalContainerRoot.equals( this.containerRoot ) )
 					return;
 
-			Bootstrap.getAttributes().put( CONTAINER_ROOT_ATTRIBUTE, canonicalContainerRoot );
-			System.setProperty( CONTAINER_PROPERTY, canonicalContainerRoot.toString() );
+			// Sessions keep their container root to themselves
+			if( !session )
+			{
+				Bootstrap.getAttributes().put( CONTAINER_ROOT_ATTRIBUTE, canonicalContainerRoot );
+				System.setProperty( CONTAINER_PROPERTY, canonicalContainerRoot.toString() );
+			}
 			this.containerRoot = canonicalContainerRoot;
 
 			// Depends on the container root
@@ -505,7 +635,7 @@ public class Sincerity implements Runnable
 	 * The current container.
 	 * <p>
 	 * Creates a new instance if not previously accessed.
-	 *
+	 * 
 	 * @param <RD>
 	 *        The resolved dependency class
 	 * @param <R>
@@ -594,11 +724,13 @@ public class Sincerity implements Runnable
 
 	/**
 	 * The available templates (names of directory in the "/templates/"
-	 * subdirectory of the Sincerity install).
+	 * subdirectory of the Sincerity install, or of packed template archives
+	 * there).
 	 * 
 	 * @return The templates
 	 * @throws SincerityException
 	 *         In case of an error
+	 * @see Template#pack()
 	 */
 	public List<Template> getTemplates() throws SincerityException
 	{
@@ -606,9 +738,19 @@ public class Sincerity implements Runnable
 		File templatesDir = new File( getHome(), "templates" );
 		if( templatesDir.isDirectory() )
 		{
+			HashSet<String> names = new HashSet<String>();
 			for( File templateDir : templatesDir.listFiles() )
 			{
-				if( templateDir.isDirectory() )
+				String name = templateDir.getName();
+				if( templateDir.isFile() && name.endsWith( Template.ARCHIVE_EXTENSION ) )
+				{
+					name = name.substring( 0, name.length() - Template.ARCHIVE_EXTENSION.length() );
+					templateDir = new File( templatesDir, name );
+				}
+				else if( !templateDir.isDirectory() )
+					continue;
+
+				if( names.add( name ) )
 					templates.add( new Template( templateDir ) );
 			}
 		}
@@ -636,6 +778,39 @@ public class Sincerity implements Runnable
 	 *         In case of an error
 	 */
 	public void createContainer( File containerRoot, File templateDir, boolean force ) throws SincerityException
+	{
+		createContainer( containerRoot, templateDir, force, false );
+	}
+
+	/**
+	 * Creates a new container based on a template and sets it as the current
+	 * container.
+	 * <p>
+	 * Unless force is true, will not copy any files if the directory already
+	 * exists.
+	 * <p>
+	 * If link is true, files in the template that are never modified in place
+	 * (downloaded libraries and reference documentation) are hardlinked rather
+	 * than copied, unless the template's managed artifacts database shows that
+	 * they were unpacked from packages, in which case they might be modified by
+	 * the user. The Ivy cache is always copied, because Ivy modifies it in
+	 * place.
+	 * <p>
+	 * Otherwise, if the template has been packed and not modified since, it is
+	 * unpacked from its archive rather than copied from its directory.
+	 * 
+	 * @param containerRoot
+	 *        The container root directory
+	 * @param templateDir
+	 *        The template root directory (can be another container)
+	 * @param force
+	 *        True to force overriding of existing files
+	 * @param link
+	 *        True to hardlink immutable files
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	public void createContainer( File containerRoot, File templateDir, boolean force, boolean link ) throws SincerityException
 	{
 		if( !force )
 		{
@@ -653,23 +828,68 @@ public class Sincerity implements Runnable
 			}
 		}
 
-		if( !templateDir.isDirectory() )
+		Template template = new Template( templateDir );
+		boolean unpack = !link && template.isPacked();
+		if( unpack && !template.isArchiveUpToDate() )
+		{
+			if( getVerbosity() >= 1 )
+				getOut().println( "Template has been modified since it was packed, so not using its archive: " + template.getArchive() );
+			unpack = false;
+		}
+		if( !unpack && !templateDir.isDirectory() )
 			throw new SincerityException( "Could not find container template: " + templateDir );
 
 		containerRoot.mkdirs();
 		new File( containerRoot, Container.SINCERITY_DIR ).mkdirs();
-		for( File file : templateDir.listFiles() )
+
+		if( unpack )
 		{
-			try
-			{
-				IoUtil.copyRecursive( file, containerRoot );
-			}
-			catch( IOException x )
+			// A single sequential read of the archive
+			if( getVerbosity() >= 2 )
+				getOut().println( "Unpacking template: " + template.getArchive() );
+			Map<String, byte[]> digests = template.unpack( containerRoot, TreeCopier.getDefaultThreads() );
+
+			// The template's managed artifacts database refers to the metadata
+			// of the template's files, so we update it for the new files, which
+			// we know are unchanged, sparing the next installation from
+			// reading them
+			File artifactsFile = new File( new File( new File( containerRoot, "configuration" ), "sincerity" ), Container.ARTIFACTS_CONF );
+			if( artifactsFile.exists() )
 			{
-				throw new SincerityException( "Could not copy file from template to container: " + file );
+				ArtifactManager artifactManager = new ArtifactManager( artifactsFile, new PackagingContext( containerRoot, null, getOut(), getVerbosity() ) );
+				for( String path : artifactManager.getUnpackedPaths() )
+				{
+					byte[] digest = digests.get( path.replace( File.separatorChar, '/' ) );
+					if( digest != null )
+						artifactManager.restat( path, digest );
+				}
+				artifactManager.save();
 			}
+
+			relocateOriginDigests( templateDir, containerRoot );
+			setContainerRoot( containerRoot );
+			return;
 		}
 
+		TreeCopier copier = new TreeCopier();
+		if( getVerbosity() >= 2 )
+			copier.setListener( new TreeCopier.Printer( getOut(), "Creating container: " ) );
+		if( link )
+		{
+			File artifactsFile = new File( new File( new File( templateDir, "configuration" ), "sincerity" ), Container.ARTIFACTS_CONF );
+			ArtifactManager artifactManager = new ArtifactManager( artifactsFile, new PackagingContext( templateDir, null, getOut(), getVerbosity() ) );
+			copier.setLinkFilter( new ImmutableFiles( artifactManager.getUnpackedPaths() ) );
+		}
+		try
+		{
+			copier.copy( templateDir, containerRoot );
+		}
+		catch( IOException x )
+		{
+			throw new SincerityException( "Could not copy files from template to container: " + templateDir, x );
+		}
+
+		relocateOriginDigests( templateDir, containerRoot );
 		setContainerRoot( containerRoot );
 	}
 
@@ -710,6 +930,10 @@ public class Sincerity implements Runnable
 	/**
 	 * Reboots Sincerity, resubmitting the current command queue to the new
 	 * instance.
+	 * <p>
+	 * A session keeps its output writers, verbosity and container root across
+	 * the reboot: they are handed over to the new instance via a bootstrap
+	 * attribute specific to the current thread.
 	 * 
 	 * @param forceNewBootstrap
 	 *        True to force the re-creation of the container's bootstrap
@@ -735,7 +959,26 @@ public class Sincerity implements Runnable
 
 			// Bootstrap into container
 			ArrayList<String> arguments = unparseCommands( false );
-			getContainer().getBootstrap( forceNewBootstrap ).bootstrap( arguments.toArray( new String[arguments.size()] ) );
+			Bootstrap bootstrap = getContainer().getBootstrap( forceNewBootstrap );
+			if( session )
+			{
+				// Only JVM classes can cross into the new bootstrap
+				HashMap<String, Object> handover = new HashMap<String, Object>();
+				handover.put( "verbosity", verbosity );
+				handover.put( "out", out );
+				handover.put( "err", err );
+				handover.put( "containerRoot", getContainerRoot() );
+				Bootstrap.getAttributes().put( getSessionAttribute(), handover );
+			}
+			try
+			{
+				bootstrap.bootstrap( arguments.toArray( new String[arguments.size()] ) );
+			}
+			finally
+			{
+				if( session )
+					Bootstrap.getAttributes().remove( getSessionAttribute() );
+			}
 		}
 		catch( SincerityException x )
 		{
@@ -746,6 +989,7 @@ public class Sincerity implements Runnable
 			throw new SincerityException( "Could not bootstrap", x );
 		}
 
+		SincerityManagement.SINCERITY.reboot();
 		throw new RebootException();
 	}
 
@@ -759,8 +1003,25 @@ public class Sincerity implements Runnable
 	 */
 	public void captureOutput( Process process )
 	{
-		new Thread( new Pipe( new InputStreamReader( process.getInputStream() ), getOut() ) ).start();
-		new Thread( new Pipe( new InputStreamReader( process.getErrorStream() ), getErr() ) ).start();
+		captureOutput( process, null );
+	}
+
+	/**
+	 * Captures the standard output and standard error of a process, optionally
+	 * prefixing every line with a tag. The output of all processes is piped by
+	 * a single shared thread.
+	 * 
+	 * @param process
+	 *        The process
+	 * @param tag
+	 *        The tag or null
+	 * @see #setOut(Writer)
+	 * @see #setErr(Writer)
+	 * @see OutputPump
+	 */
+	public void captureOutput( Process process, String tag )
+	{
+		OutputPump.getShared().add( process, getOut(), getErr(), tag );
 	}
 
 	/**
@@ -810,6 +1071,18 @@ public class Sincerity implements Runnable
 
 	private static final ThreadLocal<Sincerity> threadLocal = new ThreadLocal<Sincerity>();
 
+	/**
+	 * The bootstrap attribute used to hand a session over to a new bootstrap
+	 * in the current thread.
+	 * 
+	 * @return The attribute name
+	 * @see #reboot(boolean)
+	 */
+	private static String getSessionAttribute()
+	{
+		return SESSION_ATTRIBUTE_PREFIX + Thread.currentThread().getId();
+	}
+
 	/**
 	 * The command queue.
 	 */
@@ -825,6 +1098,16 @@ public class Sincerity implements Runnable
 
 	private Frame frame;
 
+	private final boolean session;
+
+	// The following are only used by sessions
+
+	private volatile int verbosity;
+
+	private volatile PrintWriter out;
+
+	private volatile PrintWriter err;
+
 	/**
 	 * Look for a container in this order:
 	 * <p>
@@ -885,6 +1168,32 @@ public class Sincerity implements Runnable
 		}
 	}
 
+	/**
+	 * The origin digests cache copied from a template refers to the template's
+	 * Jars, so we move its entries to the new container's copies of them,
+	 * sparing the next installation from digesting them again.
+	 * 
+	 * @param templateDir
+	 *        The template root directory
+	 * @param containerRoot
+	 *        The container root directory
+	 * @throws SincerityException
+	 *         In case of an error
+	 * @see OriginDigests#relocate(File, File)
+	 */
+	private void relocateOriginDigests( File templateDir, File containerRoot ) throws SincerityException
+	{
+		File originDigestsFile = new File( new File( new File( containerRoot, "configuration" ), "sincerity" ), Container.ORIGIN_DIGESTS_CONF );
+		if( !originDigestsFile.exists() )
+			return;
+
+		OriginDigests originDigests = new OriginDigests( originDigestsFile );
+		int count = originDigests.relocate( templateDir, containerRoot );
+		originDigests.save();
+		if( getVerbosity() >= 2 )
+			getOut().println( "Relocated origin digests for " + count + " jars" );
+	}
+
 	/**
 	 * Parses a command line.
 	 * <p>
@@ -1000,11 +1309,13 @@ public class Sincerity implements Runnable
 	private void run( boolean isManual ) throws SincerityException
 	{
 		Command command = null;
+		long start = 0;
 		try
 		{
 			while( !commands.isEmpty() )
 			{
 				command = commands.peek();
+				start = System.nanoTime();
 
 				// Check for special "until" tag
 				if( command == Command.UNTIL )
@@ -1079,6 +1390,7 @@ public class Sincerity implements Runnable
 				}
 
 				commands.remove( command );
+				SincerityManagement.SINCERITY.command( command, start, true );
 			}
 		}
 		catch( RebootException x )
@@ -1088,6 +1400,7 @@ public class Sincerity implements Runnable
 		catch( SincerityException x )
 		{
 			commands.remove( command );
+			SincerityManagement.SINCERITY.command( command, start, false );
 			if( isManual )
 				throw x;
 			else
@@ -1101,10 +1414,41 @@ public class Sincerity implements Runnable
 		catch( Throwable x )
 		{
 			commands.remove( command );
+			SincerityManagement.SINCERITY.command( command, start, false );
 			if( isManual )
 				throw new SincerityException( "Something very bad happened!", x );
 			else
 				dumpStackTrace( x );
 		}
 	}
+
+	/**
+	 * Accepts files in container directories that are never modified in
+	 * place, except for those unpacked from packages.
+	 */
+	private static class ImmutableFiles implements TreeCopier.LinkFilter
+	{
+		public ImmutableFiles( Set<String> unpackedPaths )
+		{
+			for( String path : unpackedPaths )
+				this.unpackedPaths.add( path.replace( File.separatorChar, '/' ) );
+		}
+
+		public boolean isLinkable( String path )
+		{
+			for( String dir : IMMUTABLE_DIRS )
+				if( path.startsWith( dir ) )
+					return !unpackedPaths.contains( path );
+			return false;
+		}
+
+		private static final String[] IMMUTABLE_DIRS = new String[]
+		{
+			// Not "cache/ivy/", because Ivy rewrites its resolution reports and
+			// properties files in place
+			"libraries/jars/", "reference/"
+		};
+
+		private final Set<String> unpackedPaths = new HashSet<String>();
+	}
 }
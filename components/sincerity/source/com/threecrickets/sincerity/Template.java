@@ -11,17 +11,65 @@
 
 package com.threecrickets.sincerity;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+
+import com.threecrickets.creel.util.HexUtil;
+import com.threecrickets.sincerity.exception.SincerityException;
+import com.threecrickets.sincerity.util.IoUtil;
 
 /**
  * Templates are simple file structures that are copied verbatim when a
  * {@link Container} is created.
+ * <p>
+ * A template can also be packed into a single compressed archive next to its
+ * root directory (see {@link #pack()}). Creating a container from a packed
+ * template requires a single sequential read of the archive instead of
+ * walking the template's directory tree. The archive includes a manifest of
+ * the digests of all its files, which allows the new container's managed
+ * artifacts database to be brought up to date without reading the extracted
+ * files again. The archive is ignored once any file or directory in the
+ * template is modified after it was packed, until it is packed again.
  * 
  * @author Tal Liron
  * @see Sincerity#getTemplates()
  */
 public class Template
 {
+	//
+	// Constants
+	//
+
+	public static final String ARCHIVE_EXTENSION = ".tar.gz";
+
+	public static final String MANIFEST = "template.conf";
+
 	//
 	// Construction
 	//
@@ -56,6 +104,200 @@ public class Template
 		return root.getName();
 	}
 
+	/**
+	 * The packed archive, which might not exist.
+	 * 
+	 * @return The archive file
+	 * @see #isPacked()
+	 */
+	public File getArchive()
+	{
+		return new File( root.getPath() + ARCHIVE_EXTENSION );
+	}
+
+	/**
+	 * True if the template has been packed.
+	 * 
+	 * @return True if packed
+	 * @see #pack()
+	 */
+	public boolean isPacked()
+	{
+		return getArchive().isFile();
+	}
+
+	/**
+	 * True if the template has been packed and has not been modified since.
+	 * If the root directory does not exist, the archive is all there is, and
+	 * is thus considered up to date.
+	 * <p>
+	 * Note that this requires walking the template's directory tree, though
+	 * without reading any of its files.
+	 * 
+	 * @return True if the archive is up to date
+	 * @throws SincerityException
+	 *         In case of an error
+	 * @see #pack()
+	 */
+	public boolean isArchiveUpToDate() throws SincerityException
+	{
+		File archive = getArchive();
+		if( !archive.isFile() )
+			return false;
+		if( !root.isDirectory() )
+			return true;
+
+		ModifiedSince modifiedSince = new ModifiedSince( archive.lastModified() );
+		try
+		{
+			Files.walkFileTree( root.toPath(), modifiedSince );
+		}
+		catch( IOException x )
+		{
+			throw new SincerityException( "Could not check template: " + root, x );
+		}
+		return !modifiedSince.modified;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Packs the template's root directory into a compressed archive,
+	 * including a manifest of digests.
+	 * 
+	 * @return The number of files packed
+	 * @throws SincerityException
+	 *         In case of an error
+	 * @see #getArchive()
+	 */
+	public int pack() throws SincerityException
+	{
+		if( !root.isDirectory() )
+			throw new SincerityException( "Template directory does not exist: " + root );
+
+		// Files modified while we are packing will make the archive stale
+		long started = System.currentTimeMillis();
+
+		File archive = getArchive();
+		try
+		{
+			File temporaryArchive = IoUtil.createTemporaryFile( archive );
+			try
+			{
+				int count;
+				TarArchiveOutputStream tar = new TarArchiveOutputStream( new GzipCompressorOutputStream( new BufferedOutputStream( new FileOutputStream( temporaryArchive ), BUFFER_SIZE ) ) );
+				try
+				{
+					tar.setLongFileMode( TarArchiveOutputStream.LONGFILE_POSIX );
+					tar.setBigNumberMode( TarArchiveOutputStream.BIGNUMBER_POSIX );
+
+					Packer packer = new Packer( root.toPath(), tar );
+					Files.walkFileTree( root.toPath(), packer );
+
+					// The manifest is the last entry
+					Properties manifest = new Properties();
+					for( Map.Entry<String, byte[]> digest : packer.digests.entrySet() )
+						manifest.put( digest.getKey(), HexUtil.toHex( digest.getValue() ) );
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					manifest.store( bytes, "Template " + getName() );
+					TarArchiveEntry entry = new TarArchiveEntry( MANIFEST_PATH );
+					entry.setSize( bytes.size() );
+					tar.putArchiveEntry( entry );
+					bytes.writeTo( tar );
+					tar.closeArchiveEntry();
+
+					tar.finish();
+					count = packer.digests.size();
+				}
+				finally
+				{
+					tar.close();
+				}
+
+				temporaryArchive.setLastModified( started );
+				try
+				{
+					Files.move( temporaryArchive.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+				}
+				catch( AtomicMoveNotSupportedException x )
+				{
+					Files.move( temporaryArchive.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING );
+				}
+				return count;
+			}
+			finally
+			{
+				Files.deleteIfExists( temporaryArchive.toPath() );
+			}
+		}
+		catch( IOException x )
+		{
+			throw new SincerityException( "Could not pack template: " + root, x );
+		}
+	}
+
+	/**
+	 * Extracts the packed archive.
+	 * 
+	 * @param destinationDir
+	 *        The destination directory
+	 * @param threads
+	 *        The maximum number of threads for writing files
+	 * @return The digests of all extracted files mapped by their path
+	 *         (relative to the destination directory, using "/" as the
+	 *         separator)
+	 * @throws SincerityException
+	 *         In case of an error
+	 * @see #pack()
+	 */
+	public Map<String, byte[]> unpack( File destinationDir, int threads ) throws SincerityException
+	{
+		File archive = getArchive();
+		try
+		{
+			IoUtil.unpack( archive, destinationDir, threads );
+		}
+		catch( IOException x )
+		{
+			throw new SincerityException( "Could not unpack template: " + archive, x );
+		}
+
+		HashMap<String, byte[]> digests = new HashMap<String, byte[]>();
+		File manifestFile = new File( destinationDir, MANIFEST_PATH );
+		if( manifestFile.isFile() )
+		{
+			Properties manifest = new Properties();
+			try
+			{
+				InputStream stream = new FileInputStream( manifestFile );
+				try
+				{
+					manifest.load( stream );
+				}
+				finally
+				{
+					stream.close();
+				}
+				for( Map.Entry<Object, Object> entry : manifest.entrySet() )
+					digests.put( entry.getKey().toString(), HexUtil.fromHex( entry.getValue().toString() ) );
+			}
+			catch( IOException x )
+			{
+				throw new SincerityException( "Could not read template manifest: " + manifestFile, x );
+			}
+			catch( IllegalArgumentException x )
+			{
+				throw new SincerityException( "Malformed template manifest: " + manifestFile, x );
+			}
+		}
+
+		// The manifest is only meaningful for the archive
+		manifestFile.delete();
+		return digests;
+	}
+
 	//
 	// Object
 	//
@@ -65,4 +307,157 @@ public class Template
 	{
 		return getName();
 	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final String MANIFEST_PATH = Container.SINCERITY_DIR + "/" + MANIFEST;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Looks for files and directories modified after a point in time. Because
+	 * adding, removing or renaming a file modifies its directory, this also
+	 * catches those changes.
+	 */
+	private static class ModifiedSince extends SimpleFileVisitor<Path>
+	{
+		public ModifiedSince( long time )
+		{
+			this.time = time;
+		}
+
+		@Override
+		public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attributes ) throws IOException
+		{
+			return check( attributes );
+		}
+
+		@Override
+		public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) throws IOException
+		{
+			return check( attributes );
+		}
+
+		public boolean modified;
+
+		private final long time;
+
+		private FileVisitResult check( BasicFileAttributes attributes )
+		{
+			if( attributes.lastModifiedTime().toMillis() > time )
+			{
+				modified = true;
+				return FileVisitResult.TERMINATE;
+			}
+			return FileVisitResult.CONTINUE;
+		}
+	}
+
+	/**
+	 * Writes files into the archive while calculating their digests.
+	 */
+	private static class Packer extends SimpleFileVisitor<Path>
+	{
+		public Packer( Path root, TarArchiveOutputStream tar ) throws IOException
+		{
+			this.root = root;
+			this.tar = tar;
+			try
+			{
+				messageDigest = MessageDigest.getInstance( "SHA-1" );
+			}
+			catch( NoSuchAlgorithmException x )
+			{
+				throw new IOException( "Unsupported digest algorithm: SHA-1", x );
+			}
+		}
+
+		@Override
+		public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attributes ) throws IOException
+		{
+			if( !dir.equals( root ) )
+			{
+				TarArchiveEntry entry = new TarArchiveEntry( getName( dir ) + "/" );
+				entry.setModTime( attributes.lastModifiedTime().toMillis() );
+				entry.setMode( getMode( dir, TarArchiveEntry.DEFAULT_DIR_MODE ) );
+				tar.putArchiveEntry( entry );
+				tar.closeArchiveEntry();
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) throws IOException
+		{
+			String name = getName( file );
+
+			if( attributes.isSymbolicLink() )
+			{
+				TarArchiveEntry entry = new TarArchiveEntry( name, TarConstants.LF_SYMLINK );
+				entry.setLinkName( Files.readSymbolicLink( file ).toString() );
+				tar.putArchiveEntry( entry );
+				tar.closeArchiveEntry();
+			}
+			else if( attributes.isRegularFile() && !name.equals( MANIFEST_PATH ) )
+			{
+				TarArchiveEntry entry = new TarArchiveEntry( name );
+				entry.setSize( attributes.size() );
+				entry.setModTime( attributes.lastModifiedTime().toMillis() );
+				entry.setMode( getMode( file, TarArchiveEntry.DEFAULT_FILE_MODE ) );
+				tar.putArchiveEntry( entry );
+
+				messageDigest.reset();
+				InputStream stream = new DigestInputStream( new FileInputStream( file.toFile() ), messageDigest );
+				try
+				{
+					int length;
+					while( ( length = stream.read( buffer ) ) != -1 )
+						tar.write( buffer, 0, length );
+				}
+				finally
+				{
+					stream.close();
+				}
+				tar.closeArchiveEntry();
+
+				digests.put( name, messageDigest.digest() );
+			}
+
+			return FileVisitResult.CONTINUE;
+		}
+
+		public final Map<String, byte[]> digests = new TreeMap<String, byte[]>();
+
+		private final Path root;
+
+		private final TarArchiveOutputStream tar;
+
+		private final MessageDigest messageDigest;
+
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+
+		private String getName( Path path )
+		{
+			return root.relativize( path ).toString().replace( File.separatorChar, '/' );
+		}
+
+		private static int getMode( Path path, int defaultMode ) throws IOException
+		{
+			PosixFileAttributes attributes;
+			try
+			{
+				attributes = Files.readAttributes( path, PosixFileAttributes.class );
+			}
+			catch( UnsupportedOperationException x )
+			{
+				return defaultMode;
+			}
+
+			int mode = defaultMode & ~0777;
+			for( PosixFilePermission permission : attributes.permissions() )
+				mode |= 1 << ( 8 - permission.ordinal() );
+			return mode;
+		}
+	}
 }
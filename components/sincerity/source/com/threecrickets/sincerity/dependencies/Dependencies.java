@@ -260,6 +260,18 @@ public abstract class Dependencies<M extends Module>
 	// Operations
 	//
 
+	/**
+	 * Reloads the specification from the configuration, discarding this
+	 * instance's view of it. Another Sincerity session using the same
+	 * container might have changed it since this instance was created, so
+	 * this should be called while holding {@link Container#getLock()} before
+	 * changing the specification.
+	 * 
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	public abstract void reload() throws SincerityException;
+
 	/**
 	 * Revokes all explicit and implicit dependencies.
 	 * <p>
@@ -18,6 +18,7 @@ import java.util.Set;
 import com.threecrickets.sincerity.dependencies.Dependencies;
 import com.threecrickets.sincerity.dependencies.Modules;
 import com.threecrickets.sincerity.exception.SincerityException;
+import com.threecrickets.sincerity.management.SincerityManagement;
 import com.threecrickets.sincerity.packaging.Artifact;
 
 /**
@@ -59,6 +60,11 @@ public class CreelDependencies extends Dependencies<CreelModule>
 		return classpaths;
 	}
 
+	@Override
+	public void reload() throws SincerityException
+	{
+	}
+
 	@Override
 	public void reset() throws SincerityException
 	{
@@ -102,6 +108,7 @@ public class CreelDependencies extends Dependencies<CreelModule>
 	@Override
 	public void install( boolean overwrite, boolean verify ) throws SincerityException
 	{
+		long start = System.nanoTime();
 		CreelContainer container = (CreelContainer) getContainer();
 		int installations = container.getInstallations();
 		if( installations == 0 )
@@ -114,6 +121,8 @@ public class CreelDependencies extends Dependencies<CreelModule>
 		container.updateBootstrap();
 
 		container.addInstallation();
+
+		SincerityManagement.DEPENDENCIES.install( start );
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -38,6 +38,7 @@ import org.apache.ivy.core.module.id.ArtifactId;
 import org.apache.ivy.core.module.id.ModuleId;
 import org.apache.ivy.core.module.id.ModuleRevisionId;
 import org.apache.ivy.core.report.ArtifactDownloadReport;
+import org.apache.ivy.core.report.DownloadStatus;
 import org.apache.ivy.core.report.ResolveReport;
 import org.apache.ivy.core.resolve.ResolveOptions;
 import org.apache.ivy.plugins.matcher.ExactPatternMatcher;
@@ -54,10 +55,12 @@ import com.threecrickets.sincerity.dependencies.Dependencies;
 import com.threecrickets.sincerity.dependencies.Module;
 import com.threecrickets.sincerity.dependencies.Modules;
 import com.threecrickets.sincerity.exception.SincerityException;
+import com.threecrickets.sincerity.management.SincerityManagement;
 import com.threecrickets.sincerity.packaging.Artifact;
 import com.threecrickets.sincerity.packaging.ArtifactManager;
 import com.threecrickets.sincerity.packaging.Package;
 import com.threecrickets.sincerity.packaging.Packages;
+import com.threecrickets.sincerity.packaging.Unpacker;
 import com.threecrickets.sincerity.util.XmlUtil;
 
 /**
@@ -149,18 +152,24 @@ public class IvyDependencies extends Dependencies<IvyModule>
 				}
 			}
 
+			ArrayList<Artifact> packagedArtifacts = new ArrayList<Artifact>();
 			for( Package pack : packages )
-			{
-				for( Artifact artifact : pack )
-				{
-					if( install )
-						artifactManager.add( artifact, true, artifact.unpack( artifactManager, overwrite, verify ) );
-					else
-						artifactManager.add( artifact, false, null );
+				packagedArtifacts.addAll( pack );
 
-					artifacts.add( artifact );
-				}
+			if( install )
+			{
+				// Unpack concurrently, but record in a deterministic order
+				List<byte[]> digests = new Unpacker( artifactManager, overwrite, verify ).unpack( packagedArtifacts );
+				for( int i = 0, size = packagedArtifacts.size(); i < size; i++ )
+					artifactManager.add( packagedArtifacts.get( i ), true, digests.get( i ) );
+			}
+			else
+			{
+				for( Artifact artifact : packagedArtifacts )
+					artifactManager.add( artifact, false, null );
 			}
+
+			artifacts.addAll( packagedArtifacts );
 		}
 		finally
 		{
@@ -200,6 +209,13 @@ public class IvyDependencies extends Dependencies<IvyModule>
 		return classpaths;
 	}
 
+	@Override
+	public void reload() throws SincerityException
+	{
+		load();
+		modules = null;
+	}
+
 	@Override
 	public void reset() throws SincerityException
 	{
@@ -360,6 +376,7 @@ public class IvyDependencies extends Dependencies<IvyModule>
 	@Override
 	public void install( boolean overwrite, boolean verify ) throws SincerityException
 	{
+		long start = System.nanoTime();
 		Container<?, ?> container = getContainer();
 		int installations = container.getInstallations();
 		if( installations == 0 )
@@ -406,6 +423,8 @@ public class IvyDependencies extends Dependencies<IvyModule>
 		container.updateBootstrap();
 
 		container.addInstallation();
+
+		SincerityManagement.DEPENDENCIES.install( start );
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -432,46 +451,7 @@ public class IvyDependencies extends Dependencies<IvyModule>
 		this.ivyFile = ivyFile;
 		ivy = container.getIvy();
 
-		// Module
-		if( ivyFile.exists() )
-		{
-			ivy.pushContext();
-			try
-			{
-				URL ivyUrl = ivyFile.toURI().toURL();
-				URLResource resource = new URLResource( ivyUrl );
-				ModuleDescriptorParser parser = ModuleDescriptorParserRegistry.getInstance().getParser( resource );
-				moduleDescriptor = (DefaultModuleDescriptor) parser.parseDescriptor( ivy.getSettings(), ivyUrl, true );
-			}
-			catch( MalformedURLException x )
-			{
-				throw new RuntimeException( x );
-			}
-			catch( ParseException x )
-			{
-				throw new SincerityException( "Could not parse dependencies configuration: " + ivyFile, x );
-			}
-			catch( IOException x )
-			{
-				throw new SincerityException( "Could not read dependencies configuration: " + ivyFile, x );
-			}
-			finally
-			{
-				ivy.popContext();
-			}
-		}
-		else
-		{
-			ivy.pushContext();
-			try
-			{
-				moduleDescriptor = DefaultModuleDescriptor.newDefaultInstance( ModuleRevisionId.newInstance( "threecrickets", "sincerity-container", "working" ) );
-			}
-			finally
-			{
-				ivy.popContext();
-			}
-		}
+		load();
 
 		// Default resolve options
 		defaultResolveOptions = new ResolveOptions();
@@ -510,10 +490,27 @@ public class IvyDependencies extends Dependencies<IvyModule>
 	 */
 	private ResolveReport resolve() throws SincerityException
 	{
+		long start = System.nanoTime();
 		ivy.pushContext();
 		try
 		{
 			ResolveReport report = ivy.resolve( moduleDescriptor, defaultResolveOptions );
+
+			int downloaded = 0;
+			int cached = 0;
+			int failed = 0;
+			for( ArtifactDownloadReport downloadReport : report.getAllArtifactsReports() )
+			{
+				DownloadStatus status = downloadReport.getDownloadStatus();
+				if( status == DownloadStatus.SUCCESSFUL )
+					downloaded++;
+				else if( status == DownloadStatus.NO )
+					cached++;
+				else if( status == DownloadStatus.FAILED )
+					failed++;
+			}
+			SincerityManagement.DEPENDENCIES.resolve( start, report.hasChanged(), downloaded, cached, failed );
+
 			if( report.hasError() )
 				throw new SincerityException( "Some dependencies could not be installed" );
 			return report;
@@ -569,6 +566,56 @@ public class IvyDependencies extends Dependencies<IvyModule>
 			freezeVersions( (IvyModule) child );
 	}
 
+	/**
+	 * Parses the Ivy module descriptor file (usually
+	 * "/configuration/sincerity/dependencies.conf").
+	 * 
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	private void load() throws SincerityException
+	{
+		if( ivyFile.exists() )
+		{
+			ivy.pushContext();
+			try
+			{
+				URL ivyUrl = ivyFile.toURI().toURL();
+				URLResource resource = new URLResource( ivyUrl );
+				ModuleDescriptorParser parser = ModuleDescriptorParserRegistry.getInstance().getParser( resource );
+				moduleDescriptor = (DefaultModuleDescriptor) parser.parseDescriptor( ivy.getSettings(), ivyUrl, true );
+			}
+			catch( MalformedURLException x )
+			{
+				throw new RuntimeException( x );
+			}
+			catch( ParseException x )
+			{
+				throw new SincerityException( "Could not parse dependencies configuration: " + ivyFile, x );
+			}
+			catch( IOException x )
+			{
+				throw new SincerityException( "Could not read dependencies configuration: " + ivyFile, x );
+			}
+			finally
+			{
+				ivy.popContext();
+			}
+		}
+		else
+		{
+			ivy.pushContext();
+			try
+			{
+				moduleDescriptor = DefaultModuleDescriptor.newDefaultInstance( ModuleRevisionId.newInstance( "threecrickets", "sincerity-container", "working" ) );
+			}
+			finally
+			{
+				ivy.popContext();
+			}
+		}
+	}
+
 	/**
 	 * Saves the Ivy module descriptor file (usually
 	 * "/configuration/sincerity/dependencies.conf").
@@ -70,7 +70,7 @@ public class IvyRepositories extends Repositories
 	public boolean addMaven( String section, String name, String url ) throws SincerityException
 	{
 		name = section + REPOSITORY_SECTION_SEPARATOR + name;
-		if( ivy.getSettings().getResolver( name ) != null )
+		if( ( ivy.getSettings().getResolver( name ) != null ) || isSaved( name ) )
 			return false;
 
 		IBiblioResolver resolver = new IBiblioResolver();
@@ -110,7 +110,7 @@ public class IvyRepositories extends Repositories
 	public boolean addPyPi( String section, String name, String url ) throws SincerityException
 	{
 		name = section + REPOSITORY_SECTION_SEPARATOR + name;
-		if( ivy.getSettings().getResolver( name ) != null )
+		if( ( ivy.getSettings().getResolver( name ) != null ) || isSaved( name ) )
 			return false;
 
 		PyPiResolver resolver = new PyPiResolver();
@@ -148,54 +148,28 @@ public class IvyRepositories extends Repositories
 	public boolean remove( String section, String name ) throws SincerityException
 	{
 		name = section + REPOSITORY_SECTION_SEPARATOR + name;
-		if( ivy.getSettings().getResolver( name ) == null )
-			return false;
-
-		boolean removed = removeResolver( section, name );
+		boolean removed = ( ivy.getSettings().getResolver( name ) != null ) && removeResolver( section, name );
 
-		if( removed )
+		// Another session might have added the repository to the
+		// configuration, so we always check it
+		if( ivyFile.exists() )
 		{
-			if( ivyFile.exists() )
+			try
 			{
-				try
-				{
-					DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-					DocumentBuilder documentBuilder = factory.newDocumentBuilder();
-					Document document = documentBuilder.parse( ivyFile );
-					Element root = document.getDocumentElement();
-					if( "ivysettings".equals( root.getTagName() ) )
-					{
-						NodeList resolversList = root.getElementsByTagName( "resolvers" );
-						if( resolversList.getLength() > 0 )
-						{
-							Element resolvers = (Element) resolversList.item( 0 );
-							if( resolvers != null )
-							{
-								resolversList = resolvers.getChildNodes();
-								for( int i = 0, length = resolversList.getLength(); i < length; i++ )
-								{
-									Node child = resolversList.item( i );
-									if( child.getNodeType() == Node.ELEMENT_NODE )
-									{
-										Element resolver = (Element) child;
-										if( name.equals( resolver.getAttribute( "name" ) ) )
-										{
-											resolvers.removeChild( resolver );
-											XmlUtil.removeTextNodes( root );
-											XmlUtil.saveHumanReadable( document, ivyFile );
-											break;
-										}
-									}
-								}
-							}
-						}
-					}
-				}
-				catch( Exception x )
+				Document document = parse();
+				Element resolver = findSavedResolver( document, name );
+				if( resolver != null )
 				{
-					throw new SincerityException( "Could not remove from repositories configuration", x );
+					resolver.getParentNode().removeChild( resolver );
+					XmlUtil.removeTextNodes( document.getDocumentElement() );
+					XmlUtil.saveHumanReadable( document, ivyFile );
+					removed = true;
 				}
 			}
+			catch( Exception x )
+			{
+				throw new SincerityException( "Could not remove from repositories configuration", x );
+			}
 		}
 
 		return removed;
@@ -259,6 +233,80 @@ public class IvyRepositories extends Repositories
 
 	private final Ivy ivy;
 
+	/**
+	 * Parses the Ivy settings file.
+	 * 
+	 * @return The document
+	 * @throws ParserConfigurationException
+	 *         In case of an XML parser error
+	 * @throws SAXException
+	 *         In case of an XML parsing error
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private Document parse() throws ParserConfigurationException, SAXException, IOException
+	{
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		DocumentBuilder documentBuilder = factory.newDocumentBuilder();
+		return documentBuilder.parse( ivyFile );
+	}
+
+	/**
+	 * Checks whether a resolver is in the Ivy settings file. The file is
+	 * consulted rather than our parsed settings, because another Sincerity
+	 * session might have changed it since we parsed it.
+	 * 
+	 * @param name
+	 *        The resolver name
+	 * @return True if the resolver is in the file
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	private boolean isSaved( String name ) throws SincerityException
+	{
+		if( !ivyFile.exists() )
+			return false;
+
+		try
+		{
+			return findSavedResolver( parse(), name ) != null;
+		}
+		catch( Exception x )
+		{
+			throw new SincerityException( "Could not read repositories configuration", x );
+		}
+	}
+
+	/**
+	 * Finds a resolver element in a parsed Ivy settings file.
+	 * 
+	 * @param document
+	 *        The document
+	 * @param name
+	 *        The resolver name
+	 * @return The resolver element or null if not found
+	 */
+	private static Element findSavedResolver( Document document, String name )
+	{
+		Element root = document.getDocumentElement();
+		if( !"ivysettings".equals( root.getTagName() ) )
+			return null;
+
+		NodeList resolversList = root.getElementsByTagName( "resolvers" );
+		if( resolversList.getLength() == 0 )
+			return null;
+
+		NodeList children = resolversList.item( 0 ).getChildNodes();
+		for( int i = 0, length = children.getLength(); i < length; i++ )
+		{
+			Node child = children.item( i );
+			if( ( child.getNodeType() == Node.ELEMENT_NODE ) && name.equals( ( (Element) child ).getAttribute( "name" ) ) )
+				return (Element) child;
+		}
+
+		return null;
+	}
+
 	/**
 	 * Adds a resolver.
 	 * 
@@ -322,12 +370,9 @@ public class IvyRepositories extends Repositories
 	{
 		public Appender( String type ) throws ParserConfigurationException, SAXException, IOException
 		{
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder documentBuilder = factory.newDocumentBuilder();
-
 			if( ivyFile.exists() )
 			{
-				document = documentBuilder.parse( ivyFile );
+				document = parse();
 				Element root = document.getDocumentElement();
 				Node resolvers = null;
 				if( "ivysettings".equals( root.getTagName() ) )
@@ -347,7 +392,7 @@ public class IvyRepositories extends Repositories
 
 			if( element == null )
 			{
-				document = documentBuilder.newDocument();
+				document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
 				Comment comment = document.createComment( XmlUtil.COMMENT );
 				document.appendChild( comment );
 				Element root = document.createElement( "ivysettings" );
@@ -666,7 +666,7 @@ public class PyPiResolver extends BasicResolver
 	{
 		// Unpack only if we haven't already unpacked into the cache
 		if( ( archiveFile != null ) && !sourceDir.isDirectory() )
-			IoUtil.unpack( archiveFile, sourceDir, sourceDir );
+			IoUtil.unpack( archiveFile, sourceDir, Runtime.getRuntime().availableProcessors() );
 
 		// Find setup.py
 		File setupFile = null;
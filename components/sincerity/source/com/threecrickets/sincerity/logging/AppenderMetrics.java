@@ -0,0 +1,98 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.threecrickets.sincerity.management.SincerityManagement;
+import com.threecrickets.sincerity.management.Timing;
+
+/**
+ * Metrics of a single appender, updated by {@link InstrumentedAppender}.
+ * Thread-safe, and shared by all class loaders (see
+ * {@link SincerityManagement}).
+ * 
+ * @author Tal Liron
+ * @see LoggingMetrics#getAppender(String)
+ */
+public class AppenderMetrics
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param name
+	 *        The appender name
+	 */
+	public AppenderMetrics( String name )
+	{
+		appended = new Timing( "Logging.appenders." + name + ".appended" );
+		failures = SincerityManagement.getCounter( "Logging.appenders." + name + ".failures" );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The appended events.
+	 * 
+	 * @return The timing
+	 */
+	public Timing getAppended()
+	{
+		return appended;
+	}
+
+	/**
+	 * The number of events that could not be appended.
+	 * 
+	 * @return The number of failures
+	 */
+	public long getFailures()
+	{
+		return failures.get();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Records an event appended now.
+	 * 
+	 * @param startNanos
+	 *        The value of {@link System#nanoTime()} when appending started
+	 */
+	public void appended( long startNanos )
+	{
+		appended.record( startNanos );
+	}
+
+	/**
+	 * Records an event that could not be appended.
+	 */
+	public void failed()
+	{
+		failures.incrementAndGet();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final Timing appended;
+
+	private final AtomicLong failures;
+}
@@ -0,0 +1,472 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.ThreadContext.ContextStack;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+
+/**
+ * Encodes Log4j events directly into BSON documents, as raw bytes.
+ * <p>
+ * This avoids building a tree of {@link org.bson.Document} instances (and
+ * {@link java.util.Date} instances) per event: the document is written into a
+ * reusable per-thread buffer, and then copied into a byte array of the exact
+ * size. (Whatever the event itself allocates, such as the formatted message,
+ * the source location and the context map, is still allocated.) Values that
+ * repeat from event to event (logger names, thread names and levels) are
+ * encoded once and cached. Empty sub-documents and arrays are not written at
+ * all.
+ * <p>
+ * A per-thread buffer that had to grow beyond
+ * {@link #MAXIMUM_RETAINED_BUFFER_SIZE} for an unusually large event is
+ * replaced with a new one, so that it does not hold on to the memory.
+ * <p>
+ * The document structure is otherwise the same as before:
+ * 
+ * <pre>
+ * {
+ *   timestamp: Date,
+ *   logger: String,
+ *   level: String,
+ *   marker: String,
+ *   message: String,
+ *   source: {class: String, method: String, file: String, line: int},
+ *   thread: {name: String, contextMap: {...}, contextStack: [String, ...]}
+ * }
+ * </pre>
+ * 
+ * Instances are thread-safe.
+ * 
+ * @author Tal Liron
+ * @see MongoDbManager
+ */
+public class BsonLogEventEncoder
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * The maximum number of distinct values cached per field.
+	 */
+	public static final int MAXIMUM_CACHED_VALUES = 1024;
+
+	/**
+	 * The initial size of the per-thread buffers.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 512;
+
+	/**
+	 * The maximum size to which a per-thread buffer may grow and still be
+	 * reused.
+	 */
+	public static final int MAXIMUM_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * Checks that bytes look like a single BSON document: the length prefix
+	 * must match and the document must be terminated.
+	 * 
+	 * @param bytes
+	 *        The bytes
+	 * @return True if valid
+	 */
+	public static boolean isDocument( byte[] bytes )
+	{
+		int length = bytes.length;
+		if( length < 5 )
+			return false;
+		int prefix = ( bytes[0] & 0xff ) | ( ( bytes[1] & 0xff ) << 8 ) | ( ( bytes[2] & 0xff ) << 16 ) | ( ( bytes[3] & 0xff ) << 24 );
+		return ( prefix == length ) && ( bytes[length - 1] == 0 );
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Encodes an event.
+	 * 
+	 * @param event
+	 *        The event
+	 * @return The BSON document
+	 */
+	public byte[] encode( LogEvent event )
+	{
+		Buffer buffer = buffers.get();
+		buffer.position = 0;
+
+		int document = buffer.startDocument();
+
+		buffer.writeName( DATE_TIME, TIMESTAMP );
+		buffer.writeInt64( event.getTimeMillis() );
+
+		String loggerName = event.getLoggerName();
+		if( loggerName != null )
+		{
+			buffer.writeName( STRING, LOGGER );
+			buffer.writeBytes( cached( loggers, loggerName ) );
+		}
+		else
+			buffer.writeName( NULL, LOGGER );
+
+		Level level = event.getLevel();
+		if( level != null )
+		{
+			buffer.writeName( STRING, LEVEL );
+			buffer.writeBytes( cached( levels, level.name() ) );
+		}
+
+		Marker marker = event.getMarker();
+		if( marker != null )
+			buffer.writeString( MARKER, marker.getName() );
+
+		Message message = event.getMessage();
+		if( message != null )
+			buffer.writeString( MESSAGE, message.getFormattedMessage() );
+
+		StackTraceElement eventSource = event.getSource();
+		if( eventSource != null )
+		{
+			buffer.writeName( DOCUMENT, SOURCE );
+			int source = buffer.startDocument();
+			buffer.writeString( CLASS, eventSource.getClassName() );
+			buffer.writeString( METHOD, eventSource.getMethodName() );
+			buffer.writeString( FILE, eventSource.getFileName() );
+			buffer.writeName( INT32, LINE );
+			buffer.writeInt32( eventSource.getLineNumber() );
+			buffer.endDocument( source );
+		}
+
+		buffer.writeName( DOCUMENT, THREAD );
+		int thread = buffer.startDocument();
+
+		String threadName = event.getThreadName();
+		if( threadName != null )
+		{
+			buffer.writeName( STRING, NAME );
+			buffer.writeBytes( cached( threads, threadName ) );
+		}
+		else
+			buffer.writeName( NULL, NAME );
+
+		Map<String, String> eventContextMap = event.getContextMap();
+		if( ( eventContextMap != null ) && !eventContextMap.isEmpty() )
+		{
+			buffer.writeName( DOCUMENT, CONTEXT_MAP );
+			int contextMap = buffer.startDocument();
+			for( Map.Entry<String, String> entry : eventContextMap.entrySet() )
+				buffer.writeString( entry.getKey(), entry.getValue() );
+			buffer.endDocument( contextMap );
+		}
+
+		ContextStack eventContextStack = event.getContextStack();
+		if( ( eventContextStack != null ) && ( eventContextStack.getDepth() > 0 ) )
+		{
+			buffer.writeName( ARRAY, CONTEXT_STACK );
+			int contextStack = buffer.startDocument();
+			int index = 0;
+			for( String entry : eventContextStack )
+				buffer.writeString( Integer.toString( index++ ), entry );
+			buffer.endDocument( contextStack );
+		}
+
+		buffer.endDocument( thread );
+		buffer.endDocument( document );
+
+		byte[] bytes = Arrays.copyOf( buffer.bytes, buffer.position );
+		if( buffer.bytes.length > MAXIMUM_RETAINED_BUFFER_SIZE )
+			buffers.remove();
+		return bytes;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final byte DOCUMENT = 0x03;
+
+	private static final byte ARRAY = 0x04;
+
+	private static final byte STRING = 0x02;
+
+	private static final byte DATE_TIME = 0x09;
+
+	private static final byte NULL = 0x0a;
+
+	private static final byte INT32 = 0x10;
+
+	private static final byte[] TIMESTAMP = cString( "timestamp" );
+
+	private static final byte[] LOGGER = cString( "logger" );
+
+	private static final byte[] LEVEL = cString( "level" );
+
+	private static final byte[] MARKER = cString( "marker" );
+
+	private static final byte[] MESSAGE = cString( "message" );
+
+	private static final byte[] SOURCE = cString( "source" );
+
+	private static final byte[] CLASS = cString( "class" );
+
+	private static final byte[] METHOD = cString( "method" );
+
+	private static final byte[] FILE = cString( "file" );
+
+	private static final byte[] LINE = cString( "line" );
+
+	private static final byte[] THREAD = cString( "thread" );
+
+	private static final byte[] NAME = cString( "name" );
+
+	private static final byte[] CONTEXT_MAP = cString( "contextMap" );
+
+	private static final byte[] CONTEXT_STACK = cString( "contextStack" );
+
+	private final ConcurrentHashMap<String, byte[]> loggers = new ConcurrentHashMap<String, byte[]>();
+
+	private final ConcurrentHashMap<String, byte[]> threads = new ConcurrentHashMap<String, byte[]>();
+
+	private final ConcurrentHashMap<String, byte[]> levels = new ConcurrentHashMap<String, byte[]>();
+
+	private final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>()
+	{
+		@Override
+		protected Buffer initialValue()
+		{
+			return new Buffer();
+		}
+	};
+
+	/**
+	 * Encodes a name.
+	 * 
+	 * @param name
+	 *        The name
+	 * @return The BSON cstring
+	 */
+	private static byte[] cString( String name )
+	{
+		Buffer buffer = new Buffer();
+		buffer.writeCString( name );
+		return Arrays.copyOf( buffer.bytes, buffer.position );
+	}
+
+	/**
+	 * Gets an encoded string value from a cache, encoding and caching it if
+	 * necessary.
+	 * 
+	 * @param cache
+	 *        The cache
+	 * @param value
+	 *        The value
+	 * @return The BSON string value
+	 */
+	private static byte[] cached( ConcurrentHashMap<String, byte[]> cache, String value )
+	{
+		byte[] encoded = cache.get( value );
+		if( encoded == null )
+		{
+			Buffer buffer = new Buffer();
+			buffer.writeStringValue( value );
+			encoded = Arrays.copyOf( buffer.bytes, buffer.position );
+
+			// Don't let the cache grow without bounds (for example, if thread
+			// names are unique)
+			if( cache.size() < MAXIMUM_CACHED_VALUES )
+				cache.putIfAbsent( value, encoded );
+		}
+		return encoded;
+	}
+
+	/**
+	 * A growable little-endian byte buffer with BSON primitives.
+	 */
+	private static class Buffer
+	{
+		public byte[] bytes = new byte[DEFAULT_BUFFER_SIZE];
+
+		public int position;
+
+		/**
+		 * Starts a document or array.
+		 * 
+		 * @return The position of the length prefix, for
+		 *         {@link #endDocument(int)}
+		 */
+		public int startDocument()
+		{
+			int start = position;
+			writeInt32( 0 );
+			return start;
+		}
+
+		public void endDocument( int start )
+		{
+			writeByte( 0 );
+			int length = position - start;
+			bytes[start] = (byte) length;
+			bytes[start + 1] = (byte) ( length >>> 8 );
+			bytes[start + 2] = (byte) ( length >>> 16 );
+			bytes[start + 3] = (byte) ( length >>> 24 );
+		}
+
+		public void writeName( byte type, byte[] name )
+		{
+			writeByte( type );
+			writeBytes( name );
+		}
+
+		public void writeString( byte[] name, String value )
+		{
+			if( value == null )
+				writeName( NULL, name );
+			else
+			{
+				writeName( STRING, name );
+				writeStringValue( value );
+			}
+		}
+
+		public void writeString( String name, String value )
+		{
+			writeByte( value == null ? NULL : STRING );
+			writeCString( name );
+			if( value != null )
+				writeStringValue( value );
+		}
+
+		public void writeStringValue( String value )
+		{
+			int start = position;
+			writeInt32( 0 );
+			writeUtf8( value, false );
+			int length = position - start - 4;
+			bytes[start] = (byte) length;
+			bytes[start + 1] = (byte) ( length >>> 8 );
+			bytes[start + 2] = (byte) ( length >>> 16 );
+			bytes[start + 3] = (byte) ( length >>> 24 );
+		}
+
+		/**
+		 * Writes a name as UTF-8 followed by a null terminator, without
+		 * allocating.
+		 * 
+		 * @param value
+		 *        The name
+		 */
+		public void writeCString( String value )
+		{
+			writeUtf8( value, true );
+		}
+
+		/**
+		 * Writes a string as UTF-8 followed by a null terminator, without
+		 * allocating.
+		 * <p>
+		 * Null characters are not allowed in cstrings, so there we use the
+		 * two-byte "modified UTF-8" form. String values are prefixed by their
+		 * length, so they can contain null characters as is.
+		 * 
+		 * @param value
+		 *        The string
+		 * @param cString
+		 *        True if the string is a cstring
+		 */
+		private void writeUtf8( String value, boolean cString )
+		{
+			int length = value.length();
+			ensure( length * 3 + 1 );
+			byte[] bytes = this.bytes;
+			int position = this.position;
+			for( int i = 0; i < length; i++ )
+			{
+				char c = value.charAt( i );
+				if( ( c == 0 ) && cString )
+				{
+					bytes[position++] = (byte) 0xc0;
+					bytes[position++] = (byte) 0x80;
+				}
+				else if( c < 0x80 )
+					bytes[position++] = (byte) c;
+				else if( c < 0x800 )
+				{
+					bytes[position++] = (byte) ( 0xc0 | ( c >> 6 ) );
+					bytes[position++] = (byte) ( 0x80 | ( c & 0x3f ) );
+				}
+				else if( Character.isHighSurrogate( c ) && ( i + 1 < length ) && Character.isLowSurrogate( value.charAt( i + 1 ) ) )
+				{
+					int codePoint = Character.toCodePoint( c, value.charAt( ++i ) );
+					bytes[position++] = (byte) ( 0xf0 | ( codePoint >> 18 ) );
+					bytes[position++] = (byte) ( 0x80 | ( ( codePoint >> 12 ) & 0x3f ) );
+					bytes[position++] = (byte) ( 0x80 | ( ( codePoint >> 6 ) & 0x3f ) );
+					bytes[position++] = (byte) ( 0x80 | ( codePoint & 0x3f ) );
+				}
+				else if( Character.isSurrogate( c ) )
+					// Unpaired surrogate
+					bytes[position++] = (byte) '?';
+				else
+				{
+					bytes[position++] = (byte) ( 0xe0 | ( c >> 12 ) );
+					bytes[position++] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+					bytes[position++] = (byte) ( 0x80 | ( c & 0x3f ) );
+				}
+			}
+			bytes[position++] = 0;
+			this.position = position;
+		}
+
+		public void writeInt32( int value )
+		{
+			ensure( 4 );
+			bytes[position++] = (byte) value;
+			bytes[position++] = (byte) ( value >>> 8 );
+			bytes[position++] = (byte) ( value >>> 16 );
+			bytes[position++] = (byte) ( value >>> 24 );
+		}
+
+		public void writeInt64( long value )
+		{
+			writeInt32( (int) value );
+			writeInt32( (int) ( value >>> 32 ) );
+		}
+
+		public void writeByte( int value )
+		{
+			ensure( 1 );
+			bytes[position++] = (byte) value;
+		}
+
+		public void writeBytes( byte[] value )
+		{
+			ensure( value.length );
+			System.arraycopy( value, 0, bytes, position, value.length );
+			position += value.length;
+		}
+
+		private void ensure( int length )
+		{
+			if( position + length > bytes.length )
+				bytes = Arrays.copyOf( bytes, Math.max( bytes.length * 2, position + length ) );
+		}
+	}
+}
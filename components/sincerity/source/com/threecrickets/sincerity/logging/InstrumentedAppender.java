@@ -0,0 +1,167 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.ErrorHandler;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+
+/**
+ * Wraps an appender, recording how long it takes to append each event and how
+ * many events it fails to append.
+ * <p>
+ * Appenders that ignore exceptions report failures to their error handler
+ * instead of throwing them, so we count those by wrapping the error handler,
+ * too.
+ * 
+ * @author Tal Liron
+ */
+public class InstrumentedAppender extends AbstractAppender
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param appender
+	 *        The wrapped appender
+	 * @param metrics
+	 *        The metrics
+	 */
+	public InstrumentedAppender( Appender appender, AppenderMetrics metrics )
+	{
+		super( appender.getName(), null, appender.getLayout(), appender.ignoreExceptions() );
+		this.appender = appender;
+		this.metrics = metrics;
+		appender.setHandler( new CountingErrorHandler( appender.getHandler() ) );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The wrapped appender.
+	 * 
+	 * @return The appender
+	 */
+	public Appender getAppender()
+	{
+		return appender;
+	}
+
+	/**
+	 * The metrics.
+	 * 
+	 * @return The metrics
+	 */
+	public AppenderMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	//
+	// Appender
+	//
+
+	public void append( LogEvent event )
+	{
+		long startNanos = System.nanoTime();
+		reported.remove();
+		try
+		{
+			appender.append( event );
+		}
+		catch( RuntimeException x )
+		{
+			// Some appenders report the error before throwing it
+			if( reported.get() == null )
+				metrics.failed();
+			throw x;
+		}
+		if( reported.get() == null )
+			metrics.appended( startNanos );
+	}
+
+	//
+	// LifeCycle
+	//
+
+	@Override
+	public void start()
+	{
+		appender.start();
+		super.start();
+	}
+
+	@Override
+	public void stop()
+	{
+		super.stop();
+		appender.stop();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final Appender appender;
+
+	private final AppenderMetrics metrics;
+
+	/**
+	 * Set when the wrapped appender reports an error in this thread.
+	 */
+	private final ThreadLocal<Boolean> reported = new ThreadLocal<Boolean>();
+
+	/**
+	 * Counts errors before delegating them.
+	 */
+	private class CountingErrorHandler implements ErrorHandler
+	{
+		public CountingErrorHandler( ErrorHandler errorHandler )
+		{
+			this.errorHandler = errorHandler;
+		}
+
+		public void error( String msg )
+		{
+			failed();
+			if( errorHandler != null )
+				errorHandler.error( msg );
+		}
+
+		public void error( String msg, Throwable t )
+		{
+			failed();
+			if( errorHandler != null )
+				errorHandler.error( msg, t );
+		}
+
+		public void error( String msg, LogEvent event, Throwable t )
+		{
+			failed();
+			if( errorHandler != null )
+				errorHandler.error( msg, event, t );
+		}
+
+		private final ErrorHandler errorHandler;
+
+		private void failed()
+		{
+			metrics.failed();
+			reported.set( Boolean.TRUE );
+		}
+	}
+}
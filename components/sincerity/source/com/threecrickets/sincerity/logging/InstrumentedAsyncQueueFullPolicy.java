@@ -0,0 +1,86 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.async.AsyncQueueFullPolicy;
+import org.apache.logging.log4j.core.async.DefaultAsyncQueueFullPolicy;
+import org.apache.logging.log4j.core.async.DiscardingAsyncQueueFullPolicy;
+import org.apache.logging.log4j.core.async.EventRoute;
+
+/**
+ * Counts the events that find the async queue full in
+ * {@link ProgrammableConfiguration#METRICS}, otherwise behaving like Log4j's
+ * "Default" or "Discard" policy.
+ * <p>
+ * Log4j instantiates the policy by class name when async loggers start, so it
+ * has to be installed via {@link #install()} before that.
+ * 
+ * @author Tal Liron
+ */
+public class InstrumentedAsyncQueueFullPolicy implements AsyncQueueFullPolicy
+{
+	//
+	// Constants
+	//
+
+	public static final String POLICY_PROPERTY = "log4j2.AsyncQueueFullPolicy";
+
+	public static final String DISCARD_THRESHOLD_PROPERTY = "log4j2.DiscardThreshold";
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * Makes Log4j use this policy, unless a custom policy has been configured.
+	 */
+	public static synchronized void install()
+	{
+		String policy = System.getProperty( POLICY_PROPERTY );
+		if( ( policy == null ) || "Default".equals( policy ) || DefaultAsyncQueueFullPolicy.class.getName().equals( policy ) )
+			discard = false;
+		else if( "Discard".equals( policy ) || DiscardingAsyncQueueFullPolicy.class.getName().equals( policy ) )
+			discard = true;
+		else if( !InstrumentedAsyncQueueFullPolicy.class.getName().equals( policy ) )
+			return;
+
+		System.setProperty( POLICY_PROPERTY, InstrumentedAsyncQueueFullPolicy.class.getName() );
+	}
+
+	//
+	// Construction
+	//
+
+	public InstrumentedAsyncQueueFullPolicy()
+	{
+		policy = discard ? new DiscardingAsyncQueueFullPolicy( Level.toLevel( System.getProperty( DISCARD_THRESHOLD_PROPERTY ), Level.INFO ) ) : new DefaultAsyncQueueFullPolicy();
+	}
+
+	//
+	// AsyncQueueFullPolicy
+	//
+
+	public EventRoute getRoute( long backgroundThreadId, Level level )
+	{
+		EventRoute route = policy.getRoute( backgroundThreadId, level );
+		ProgrammableConfiguration.METRICS.asyncQueueFull( route );
+		return route;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static volatile boolean discard;
+
+	private final AsyncQueueFullPolicy policy;
+}
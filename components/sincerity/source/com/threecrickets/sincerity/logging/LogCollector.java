@@ -0,0 +1,913 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Collects log events sent by Log4j socket appenders (TCP, with the default
+ * serialized layout) from any number of JVMs, and logs them through the local
+ * Log4j configuration.
+ * <p>
+ * All connections are handled by a single selector thread. Whenever bytes
+ * arrive for a connection, the thread decodes all the complete events that
+ * have accumulated for it, and offers them to a bounded queue. Java
+ * serialization does not tell us how long an event is, so we only find out
+ * that an event is incomplete by failing to decode it. To avoid decoding a
+ * large event over and over as its bytes trickle in, after such a failure we
+ * wait for the pending bytes to double, or for the next
+ * {@link #RATE_INTERVAL}, before trying again. A dispatcher
+ * thread takes events from the queue in batches and sends them to the
+ * configured loggers and appenders. The selector thread never blocks: if the
+ * queue is full (because the appenders can't keep up), events are dropped and
+ * counted per client (see {@link Client#getDropped()}).
+ * <p>
+ * Because the serialized layout uses Java serialization, only classes in the
+ * packages in {@link #ALLOWED_PACKAGES} (and not in
+ * {@link #DENIED_PACKAGES}) are accepted, and proxies are not. An event
+ * containing any other class (for example, a custom message class) causes its
+ * connection to be closed.
+ * 
+ * @author Tal Liron
+ */
+public class LogCollector
+{
+	//
+	// Constants
+	//
+
+	public static final int DEFAULT_PORT = 4560;
+
+	public static final int DEFAULT_QUEUE_SIZE = 64 * 1024;
+
+	public static final int BATCH_SIZE = 1024;
+
+	public static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Connections sending a larger event are closed.
+	 */
+	public static final int MAXIMUM_EVENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * How often event rates are calculated, in milliseconds.
+	 */
+	public static final long RATE_INTERVAL = 1000;
+
+	/**
+	 * Classes allowed in serialized events.
+	 */
+	public static final String[] ALLOWED_PACKAGES = new String[]
+	{
+		"org.apache.logging.log4j.", "java.lang.", "java.util.", "[B", "[C", "[I", "[J", "[Ljava.lang.", "[Ljava.util.", "[Lorg.apache.logging.log4j."
+	};
+
+	/**
+	 * Classes in the allowed packages that are nevertheless not allowed.
+	 */
+	public static final String[] DENIED_PACKAGES = new String[]
+	{
+		"java.lang.reflect.", "java.lang.invoke."
+	};
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param address
+	 *        The address to listen on
+	 * @param queueSize
+	 *        The maximum number of decoded events waiting to be logged (0 for
+	 *        the default)
+	 */
+	public LogCollector( InetSocketAddress address, int queueSize )
+	{
+		this.address = address;
+		queue = new ArrayBlockingQueue<LogEvent>( queueSize > 0 ? queueSize : DEFAULT_QUEUE_SIZE );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The address we are listening on.
+	 * 
+	 * @return The address
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return address;
+	}
+
+	/**
+	 * The currently connected clients.
+	 * 
+	 * @return The clients
+	 */
+	public Collection<Client> getClients()
+	{
+		return Collections.unmodifiableCollection( clients.values() );
+	}
+
+	/**
+	 * True while the collector is listening, or still logging the events in
+	 * the queue after it has stopped listening.
+	 * 
+	 * @return True if running
+	 */
+	public boolean isRunning()
+	{
+		Thread dispatcherThread = this.dispatcherThread;
+		return ( dispatcherThread != null ) && dispatcherThread.isAlive();
+	}
+
+	/**
+	 * The number of events waiting to be logged.
+	 * 
+	 * @return The queue depth
+	 */
+	public int getQueueDepth()
+	{
+		return queue.size();
+	}
+
+	/**
+	 * The total number of events received from all clients, including those
+	 * that were dropped.
+	 * 
+	 * @return The number of events
+	 */
+	public long getReceived()
+	{
+		return received.get();
+	}
+
+	/**
+	 * The total number of events dropped because the queue was full.
+	 * 
+	 * @return The number of dropped events
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * The total number of events logged.
+	 * 
+	 * @return The number of events
+	 */
+	public long getLogged()
+	{
+		return logged.get();
+	}
+
+	/**
+	 * The total number of connections accepted.
+	 * 
+	 * @return The number of connections
+	 */
+	public long getConnections()
+	{
+		return connections.get();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Starts listening.
+	 * 
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public synchronized void start() throws IOException
+	{
+		if( selectorThread != null )
+			return;
+
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		try
+		{
+			serverChannel.configureBlocking( false );
+			serverChannel.socket().setReuseAddress( true );
+			serverChannel.bind( address );
+			serverChannel.register( selector, SelectionKey.OP_ACCEPT );
+		}
+		catch( IOException x )
+		{
+			serverChannel.close();
+			selector.close();
+			throw x;
+		}
+
+		Thread selectorThread = new Thread( new Receiver(), "Sincerity log collector: " + address );
+		Thread dispatcherThread = new Thread( new Dispatcher(), "Sincerity log collector dispatcher: " + address );
+		this.selectorThread = selectorThread;
+		this.dispatcherThread = dispatcherThread;
+		dispatcherThread.start();
+		selectorThread.start();
+	}
+
+	/**
+	 * Stops listening, closes all connections, and waits for the events in
+	 * the queue to be logged.
+	 * 
+	 * @throws InterruptedException
+	 *         If interrupted while waiting
+	 */
+	public synchronized void stop() throws InterruptedException
+	{
+		Thread selectorThread = this.selectorThread;
+		Thread dispatcherThread = this.dispatcherThread;
+		this.selectorThread = null;
+		this.dispatcherThread = null;
+
+		if( selectorThread != null )
+		{
+			selector.wakeup();
+			selectorThread.join();
+		}
+		if( dispatcherThread != null )
+			dispatcherThread.join();
+	}
+
+	/**
+	 * Waits until the collector is stopped.
+	 * 
+	 * @throws InterruptedException
+	 *         If interrupted while waiting
+	 */
+	public void join() throws InterruptedException
+	{
+		join( 0 );
+	}
+
+	/**
+	 * Waits until the collector is stopped, or until the timeout.
+	 * 
+	 * @param timeout
+	 *        The timeout in milliseconds (0 to wait forever)
+	 * @throws InterruptedException
+	 *         If interrupted while waiting
+	 * @see #isRunning()
+	 */
+	public void join( long timeout ) throws InterruptedException
+	{
+		Thread dispatcherThread = this.dispatcherThread;
+		if( dispatcherThread != null )
+			dispatcherThread.join( timeout );
+	}
+
+	//
+	// Classes
+	//
+
+	/**
+	 * A connected client.
+	 */
+	public class Client
+	{
+		//
+		// Attributes
+		//
+
+		/**
+		 * The client's address.
+		 * 
+		 * @return The address
+		 */
+		public SocketAddress getAddress()
+		{
+			return remoteAddress;
+		}
+
+		/**
+		 * When the client connected.
+		 * 
+		 * @return The system time in milliseconds
+		 */
+		public long getConnected()
+		{
+			return connected;
+		}
+
+		/**
+		 * The number of bytes received.
+		 * 
+		 * @return The number of bytes
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		/**
+		 * The number of events received, including those that were dropped.
+		 * 
+		 * @return The number of events
+		 */
+		public long getEvents()
+		{
+			return events;
+		}
+
+		/**
+		 * The number of events dropped because the queue was full.
+		 * 
+		 * @return The number of dropped events
+		 */
+		public long getDropped()
+		{
+			return clientDropped;
+		}
+
+		/**
+		 * The recent rate of received events (updated every
+		 * {@link LogCollector#RATE_INTERVAL} milliseconds).
+		 * 
+		 * @return Events per second
+		 */
+		public double getRate()
+		{
+			return rate;
+		}
+
+		@Override
+		public String toString()
+		{
+			return remoteAddress + ": " + events + " events (" + Math.round( rate ) + "/s), " + clientDropped + " dropped, " + bytes + " bytes";
+		}
+
+		// //////////////////////////////////////////////////////////////////////////
+		// Private
+
+		private Client( SocketChannel channel ) throws IOException
+		{
+			this.channel = channel;
+			remoteAddress = channel.getRemoteAddress();
+			connected = System.currentTimeMillis();
+			lastRateTime = connected;
+		}
+
+		private final SocketChannel channel;
+
+		private final SocketAddress remoteAddress;
+
+		private final long connected;
+
+		// Written only by the selector thread
+
+		private volatile long bytes;
+
+		private volatile long events;
+
+		private volatile long clientDropped;
+
+		private volatile double rate;
+
+		private long lastRateEvents;
+
+		private long lastRateTime;
+
+		/**
+		 * Accumulated bytes that have not yet been decoded.
+		 */
+		private ByteBuffer buffer = ByteBuffer.allocate( READ_BUFFER_SIZE );
+
+		/**
+		 * Whether we have skipped the stream header.
+		 */
+		private boolean started;
+
+		/**
+		 * The number of bytes of the pending event when we last failed to
+		 * decode it (0 if not pending).
+		 */
+		private int attempted;
+
+		/**
+		 * Don't try to decode the pending event before the buffer has this
+		 * many bytes.
+		 */
+		private int retryAt;
+
+		/**
+		 * Reads whatever is available and decodes all complete events.
+		 * 
+		 * @return False if the connection should be closed
+		 */
+		private boolean read() throws IOException
+		{
+			while( true )
+			{
+				if( !buffer.hasRemaining() )
+				{
+					// Make room by decoding what we have
+					if( !decode() )
+						return false;
+					if( buffer.hasRemaining() )
+						continue;
+
+					if( buffer.capacity() >= MAXIMUM_EVENT_SIZE )
+					{
+						status.error( "Log event from " + remoteAddress + " is too large" );
+						return false;
+					}
+					ByteBuffer larger = ByteBuffer.allocate( Math.min( buffer.capacity() * 2, MAXIMUM_EVENT_SIZE ) );
+					buffer.flip();
+					larger.put( buffer );
+					buffer = larger;
+				}
+
+				int read = channel.read( buffer );
+				if( read == -1 )
+				{
+					// Decode whatever was sent before closing
+					decode();
+					return false;
+				}
+				if( read == 0 )
+					break;
+				bytes += read;
+			}
+
+			return decode();
+		}
+
+		/**
+		 * Tries again to decode the pending event if more bytes have arrived
+		 * since we last failed to, even if fewer than we were waiting for.
+		 * 
+		 * @return False if the stream is corrupt
+		 */
+		private boolean retry()
+		{
+			if( ( attempted == 0 ) || ( buffer.position() <= attempted ) )
+				return true;
+			retryAt = 0;
+			return decode();
+		}
+
+		/**
+		 * Decodes all complete events in the buffer.
+		 * 
+		 * @return False if the stream is corrupt
+		 */
+		private boolean decode()
+		{
+			byte[] array = buffer.array();
+			int limit = buffer.position();
+			int position = 0;
+
+			if( limit < retryAt )
+				return true;
+
+			if( !started )
+			{
+				if( limit < STREAM_HEADER.length )
+					return true;
+				for( int i = 0; i < STREAM_HEADER.length; i++ )
+				{
+					if( array[i] != STREAM_HEADER[i] )
+					{
+						status.error( "Not a serialized Log4j stream from " + remoteAddress );
+						return false;
+					}
+				}
+				position = STREAM_HEADER.length;
+				started = true;
+			}
+
+			boolean underflow = false;
+			while( position < limit )
+			{
+				// Each event is serialized on its own (it does not refer to
+				// objects in previous events), so we can decode it with a
+				// fresh stream
+				EventInputStream in = new EventInputStream( array, position, limit );
+				LogEvent event;
+				try
+				{
+					event = (LogEvent) new FilteredObjectInputStream( in ).readObject();
+				}
+				catch( Exception x )
+				{
+					if( in.isUnderflow() )
+					{
+						// Incomplete: wait for more bytes
+						underflow = true;
+						break;
+					}
+					status.error( "Can't decode log event from " + remoteAddress, x );
+					return false;
+				}
+
+				position = in.getPosition();
+				events++;
+				received.incrementAndGet();
+				if( !queue.offer( event ) )
+				{
+					clientDropped++;
+					dropped.incrementAndGet();
+				}
+			}
+
+			// Keep the remaining bytes
+			buffer.limit( limit );
+			buffer.position( position );
+			buffer.compact();
+
+			if( underflow )
+			{
+				// The pending event is now at the start of the buffer
+				attempted = limit - position;
+				retryAt = (int) Math.min( attempted * 2L, MAXIMUM_EVENT_SIZE );
+			}
+			else
+			{
+				attempted = 0;
+				retryAt = 0;
+			}
+			return true;
+		}
+
+		private void updateRate( long now )
+		{
+			long elapsed = now - lastRateTime;
+			if( elapsed >= RATE_INTERVAL )
+			{
+				long events = this.events;
+				rate = ( events - lastRateEvents ) * 1000.0 / elapsed;
+				lastRateEvents = events;
+				lastRateTime = now;
+			}
+		}
+
+		private void close()
+		{
+			try
+			{
+				channel.close();
+			}
+			catch( IOException x )
+			{
+			}
+			clients.remove( remoteAddress );
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final StatusLogger status = StatusLogger.getLogger();
+
+	/**
+	 * The Java serialization stream header (magic and version), sent once by
+	 * the serialized layout when connecting.
+	 */
+	private static final byte[] STREAM_HEADER = new byte[]
+	{
+		(byte) 0xac, (byte) 0xed, 0x00, 0x05
+	};
+
+	private final InetSocketAddress address;
+
+	private final BlockingQueue<LogEvent> queue;
+
+	private final ConcurrentHashMap<SocketAddress, Client> clients = new ConcurrentHashMap<SocketAddress, Client>();
+
+	private final AtomicLong received = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong logged = new AtomicLong();
+
+	private final AtomicLong connections = new AtomicLong();
+
+	private Selector selector;
+
+	private ServerSocketChannel serverChannel;
+
+	private volatile Thread selectorThread;
+
+	private volatile Thread dispatcherThread;
+
+	/**
+	 * Accepts connections and reads from them.
+	 */
+	private class Receiver implements Runnable
+	{
+		public void run()
+		{
+			Thread thread = Thread.currentThread();
+			long nextRate = System.currentTimeMillis() + RATE_INTERVAL;
+			try
+			{
+				while( selectorThread == thread )
+				{
+					selector.select( RATE_INTERVAL );
+
+					for( Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); )
+					{
+						SelectionKey key = i.next();
+						i.remove();
+						if( !key.isValid() )
+							continue;
+
+						if( key.isAcceptable() )
+							accept();
+						else if( key.isReadable() )
+						{
+							Client client = (Client) key.attachment();
+							boolean open;
+							try
+							{
+								open = client.read();
+							}
+							catch( IOException x )
+							{
+								open = false;
+							}
+							if( !open )
+							{
+								key.cancel();
+								client.close();
+							}
+						}
+					}
+
+					long now = System.currentTimeMillis();
+					if( now >= nextRate )
+					{
+						for( Client client : clients.values() )
+						{
+							client.updateRate( now );
+
+							// The rest of a pending event might have arrived
+							if( !client.retry() )
+							{
+								SelectionKey key = client.channel.keyFor( selector );
+								if( key != null )
+									key.cancel();
+								client.close();
+							}
+						}
+						nextRate = now + RATE_INTERVAL;
+					}
+				}
+			}
+			catch( IOException x )
+			{
+				status.error( "Log collector failed: " + address, x );
+			}
+			finally
+			{
+				for( Client client : clients.values() )
+					client.close();
+				try
+				{
+					serverChannel.close();
+				}
+				catch( IOException x )
+				{
+				}
+				try
+				{
+					selector.close();
+				}
+				catch( IOException x )
+				{
+				}
+
+				// Let the dispatcher finish once the queue is empty
+				selectorThread = null;
+			}
+		}
+
+		private void accept() throws IOException
+		{
+			SocketChannel channel;
+			while( ( channel = serverChannel.accept() ) != null )
+			{
+				try
+				{
+					channel.configureBlocking( false );
+					Client client = new Client( channel );
+					channel.register( selector, SelectionKey.OP_READ, client );
+					clients.put( client.remoteAddress, client );
+					connections.incrementAndGet();
+				}
+				catch( IOException x )
+				{
+					channel.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes events from the queue in batches and logs them.
+	 */
+	private class Dispatcher implements Runnable
+	{
+		public void run()
+		{
+			ArrayList<LogEvent> batch = new ArrayList<LogEvent>( BATCH_SIZE );
+			while( true )
+			{
+				try
+				{
+					LogEvent first = queue.poll( RATE_INTERVAL, TimeUnit.MILLISECONDS );
+					if( first == null )
+					{
+						if( ( selectorThread == null ) && queue.isEmpty() )
+							break;
+						continue;
+					}
+					batch.add( first );
+					queue.drainTo( batch, BATCH_SIZE - 1 );
+				}
+				catch( InterruptedException x )
+				{
+					break;
+				}
+
+				LoggerContext context = LoggerContext.getContext( false );
+				for( LogEvent event : batch )
+				{
+					try
+					{
+						Logger logger = context.getLogger( event.getLoggerName() );
+						if( logger.isEnabled( event.getLevel(), event.getMarker() ) )
+							logger.get().log( event );
+						logged.incrementAndGet();
+					}
+					catch( RuntimeException x )
+					{
+						status.error( "Can't log collected event", x );
+					}
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Reads a single serialized object from a byte array, prefixed by the
+	 * stream header, and remembers whether it ran out of bytes.
+	 */
+	private static class EventInputStream extends InputStream
+	{
+		public EventInputStream( byte[] array, int position, int limit )
+		{
+			this.array = array;
+			this.position = position;
+			this.limit = limit;
+		}
+
+		public int getPosition()
+		{
+			return position;
+		}
+
+		public boolean isUnderflow()
+		{
+			return underflow;
+		}
+
+		@Override
+		public int read()
+		{
+			if( header < STREAM_HEADER.length )
+				return STREAM_HEADER[header++] & 0xff;
+			if( position >= limit )
+			{
+				underflow = true;
+				return -1;
+			}
+			return array[position++] & 0xff;
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len )
+		{
+			if( len == 0 )
+				return 0;
+			if( header < STREAM_HEADER.length )
+			{
+				b[off] = STREAM_HEADER[header++];
+				return 1;
+			}
+			if( position >= limit )
+			{
+				underflow = true;
+				return -1;
+			}
+			len = Math.min( len, limit - position );
+			System.arraycopy( array, position, b, off, len );
+			position += len;
+			return len;
+		}
+
+		@Override
+		public int available()
+		{
+			return ( STREAM_HEADER.length - header ) + ( limit - position );
+		}
+
+		private final byte[] array;
+
+		private final int limit;
+
+		private int position;
+
+		private int header;
+
+		private boolean underflow;
+	}
+
+	/**
+	 * Only resolves classes in the allowed packages.
+	 */
+	private static class FilteredObjectInputStream extends ObjectInputStream
+	{
+		public FilteredObjectInputStream( InputStream in ) throws IOException
+		{
+			super( in );
+		}
+
+		@Override
+		protected Class<?> resolveClass( ObjectStreamClass desc ) throws IOException, ClassNotFoundException
+		{
+			// Every event describes its classes anew, so it's worth caching
+			// them (the default resolution walks the stack)
+			String name = desc.getName();
+			Class<?> type = classes.get( name );
+			if( type != null )
+				return type;
+
+			for( String denied : DENIED_PACKAGES )
+				if( name.startsWith( denied ) )
+					throw new InvalidClassException( name, "Class not allowed in log events" );
+			for( String allowed : ALLOWED_PACKAGES )
+			{
+				if( name.startsWith( allowed ) )
+				{
+					type = super.resolveClass( desc );
+					classes.putIfAbsent( name, type );
+					return type;
+				}
+			}
+			throw new InvalidClassException( name, "Class not allowed in log events" );
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass( String[] interfaces ) throws IOException, ClassNotFoundException
+		{
+			throw new InvalidClassException( "Proxies not allowed in log events" );
+		}
+
+		private static final ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+	}
+}
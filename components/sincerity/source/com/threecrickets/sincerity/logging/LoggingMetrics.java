@@ -0,0 +1,224 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.core.async.EventRoute;
+import org.apache.logging.log4j.core.jmx.RingBufferAdmin;
+
+import com.threecrickets.sincerity.management.LoggingMXBean;
+import com.threecrickets.sincerity.management.SincerityManagement;
+
+/**
+ * Process-wide metrics of logging configured by
+ * {@link ProgrammableConfiguration}. Appender metrics are kept by appender
+ * name, so that they accumulate across reconfigurations.
+ * <p>
+ * Each class loader that uses Log4j has its own instance, but the state is
+ * shared by all of them (see {@link SincerityManagement}), so whichever
+ * instance is registered as the MXBean reports the logging of the whole JVM.
+ * The async loggers' queue, whose class belongs to a class loader, is shared
+ * as a {@link Callable}.
+ * 
+ * @author Tal Liron
+ * @see ProgrammableConfiguration#METRICS
+ */
+public class LoggingMetrics implements LoggingMXBean
+{
+	//
+	// Attributes
+	//
+
+	/**
+	 * The metrics of an appender, created if necessary.
+	 * 
+	 * @param name
+	 *        The appender name
+	 * @return The appender metrics
+	 */
+	public AppenderMetrics getAppender( String name )
+	{
+		AppenderMetrics appender = appenders.get( name );
+		if( appender == null )
+		{
+			appender = new AppenderMetrics( name );
+			AppenderMetrics existing = appenders.putIfAbsent( name, appender );
+			if( existing != null )
+				appender = existing;
+			appenderNames.putIfAbsent( name, Boolean.TRUE );
+		}
+		return appender;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Records an event that found the async queue full.
+	 * 
+	 * @param route
+	 *        How the event was routed
+	 */
+	public void asyncQueueFull( EventRoute route )
+	{
+		asyncQueueFull.incrementAndGet();
+		if( route == EventRoute.DISCARD )
+			discardedEvents.incrementAndGet();
+	}
+
+	/**
+	 * Called when a configuration with async loggers has started.
+	 * 
+	 * @param asyncQueue
+	 *        The async loggers' queue
+	 */
+	public void asyncQueueStarted( RingBufferAdmin asyncQueue )
+	{
+		this.asyncQueue.set( new AsyncQueue( asyncQueue ) );
+	}
+
+	/**
+	 * Called when a configuration with async loggers has stopped. Log4j starts
+	 * a new configuration before stopping the old one, so we only forget the
+	 * queue if it has not already been replaced.
+	 * 
+	 * @param asyncQueue
+	 *        The async loggers' queue
+	 */
+	public void asyncQueueStopped( RingBufferAdmin asyncQueue )
+	{
+		Callable<long[]> current = this.asyncQueue.get();
+		if( ( current instanceof AsyncQueue ) && ( ( (AsyncQueue) current ).asyncQueue == asyncQueue ) )
+			this.asyncQueue.compareAndSet( current, null );
+	}
+
+	//
+	// LoggingMXBean
+	//
+
+	public long getAsyncQueueSize()
+	{
+		long[] asyncQueue = getAsyncQueue();
+		return asyncQueue != null ? asyncQueue[0] : -1;
+	}
+
+	public long getAsyncQueueDepth()
+	{
+		long[] asyncQueue = getAsyncQueue();
+		return asyncQueue != null ? asyncQueue[0] - asyncQueue[1] : -1;
+	}
+
+	public long getAsyncQueueFull()
+	{
+		return asyncQueueFull.get();
+	}
+
+	public long getDiscardedEvents()
+	{
+		return discardedEvents.get();
+	}
+
+	public Map<String, Long> getAppendedEvents()
+	{
+		TreeMap<String, Long> map = new TreeMap<String, Long>();
+		for( String name : appenderNames.keySet() )
+			map.put( name, getAppender( name ).getAppended().getCount() );
+		return Collections.unmodifiableMap( map );
+	}
+
+	public Map<String, Long> getAppenderFailures()
+	{
+		TreeMap<String, Long> map = new TreeMap<String, Long>();
+		for( String name : appenderNames.keySet() )
+			map.put( name, getAppender( name ).getFailures() );
+		return Collections.unmodifiableMap( map );
+	}
+
+	public Map<String, Long> getAppenderAverageDurations()
+	{
+		TreeMap<String, Long> map = new TreeMap<String, Long>();
+		for( String name : appenderNames.keySet() )
+			map.put( name, getAppender( name ).getAppended().getAverageMicros() );
+		return Collections.unmodifiableMap( map );
+	}
+
+	public Map<String, Long> getAppenderMaximumDurations()
+	{
+		TreeMap<String, Long> map = new TreeMap<String, Long>();
+		for( String name : appenderNames.keySet() )
+			map.put( name, getAppender( name ).getAppended().getMaximum() );
+		return Collections.unmodifiableMap( map );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final ConcurrentHashMap<String, AppenderMetrics> appenders = new ConcurrentHashMap<String, AppenderMetrics>();
+
+	private final ConcurrentMap<String, Boolean> appenderNames = SincerityManagement.getMap( "Logging.appenders" );
+
+	private final AtomicReference<Callable<long[]>> asyncQueue = SincerityManagement.getReference( "Logging.asyncQueue" );
+
+	private final AtomicLong asyncQueueFull = SincerityManagement.getCounter( "Logging.asyncQueueFull" );
+
+	private final AtomicLong discardedEvents = SincerityManagement.getCounter( "Logging.discardedEvents" );
+
+	/**
+	 * The async loggers' queue size and remaining capacity.
+	 * 
+	 * @return The size and remaining capacity, or null if there is no queue
+	 */
+	private long[] getAsyncQueue()
+	{
+		Callable<long[]> asyncQueue = this.asyncQueue.get();
+		if( asyncQueue == null )
+			return null;
+		try
+		{
+			return asyncQueue.call();
+		}
+		catch( Exception x )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Shares a ring buffer with other class loaders.
+	 */
+	private static class AsyncQueue implements Callable<long[]>
+	{
+		public AsyncQueue( RingBufferAdmin asyncQueue )
+		{
+			this.asyncQueue = asyncQueue;
+		}
+
+		public long[] call()
+		{
+			return new long[]
+			{
+				asyncQueue.getBufferSize(), asyncQueue.getRemainingCapacity()
+			};
+		}
+
+		private final RingBufferAdmin asyncQueue;
+	}
+}
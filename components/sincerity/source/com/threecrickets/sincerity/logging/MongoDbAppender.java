@@ -11,6 +11,8 @@
 
 package com.threecrickets.sincerity.logging;
 
+import java.io.File;
+
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
@@ -52,8 +54,28 @@ public class MongoDbAppender extends AbstractDatabaseAppender<MongoDbManager>
 	 * @param filter
 	 *        The filter, if any, to use.
 	 * @param bufferSize
-	 *        If an integer greater than 0, this causes the appender to buffer
-	 *        log events and flush whenever the buffer reaches this size.
+	 *        The maximum number of events inserted together (defaults to
+	 *        {@link MongoDbManager#DEFAULT_BATCH_SIZE})
+	 * @param maxLatency
+	 *        The maximum time in milliseconds an event waits for its batch to
+	 *        fill up (defaults to {@link MongoDbManager#DEFAULT_MAX_LATENCY})
+	 * @param queueSize
+	 *        The maximum number of events waiting to be inserted (defaults to
+	 *        10 times the buffer size)
+	 * @param overflow
+	 *        "block" (the default) to make logging threads wait when the queue
+	 *        is full, or "drop" to drop events
+	 * @param spillDirectory
+	 *        If set, events are spilled to this directory while MongoDB is
+	 *        unavailable and replayed when it becomes available again (see
+	 *        {@link SpillQueue})
+	 * @param spillSegmentSize
+	 *        The size of spill segment files in bytes (defaults to
+	 *        {@link SpillQueue#DEFAULT_SEGMENT_SIZE})
+	 * @param spillMaxSize
+	 *        The maximum total size of spill segment files in bytes, after
+	 *        which the oldest are evicted (defaults to
+	 *        {@link SpillQueue#DEFAULT_MAXIMUM_SIZE})
 	 * @param uri
 	 *        The MongoDB URI (see {@link MongoClientURI})
 	 * @param db
@@ -67,16 +89,44 @@ public class MongoDbAppender extends AbstractDatabaseAppender<MongoDbManager>
 	 */
 	@PluginFactory
 	public static MongoDbAppender createAppender( @PluginAttribute("name" ) final String name, @PluginAttribute("ignoreExceptions") final String ignore, @PluginElement("Filter") final Filter filter,
-		@PluginAttribute("bufferSize") final String bufferSize, @PluginAttribute("uri") final String uri, @PluginAttribute("db") final String db, @PluginAttribute("collection") final String collection,
+		@PluginAttribute("bufferSize") final String bufferSize, @PluginAttribute("maxLatency") final String maxLatency, @PluginAttribute("queueSize") final String queueSize,
+		@PluginAttribute("overflow") final String overflow, @PluginAttribute("spillDirectory") final String spillDirectory, @PluginAttribute("spillSegmentSize") final String spillSegmentSize,
+		@PluginAttribute("spillMaxSize") final String spillMaxSize, @PluginAttribute("uri") final String uri, @PluginAttribute("db") final String db, @PluginAttribute("collection") final String collection,
 		@PluginAttribute("writeConcern") final String writeConcern)
 	{
 		int bufferSizeInt = AbstractAppender.parseInt( bufferSize, 0 );
+		int maxLatencyInt = AbstractAppender.parseInt( maxLatency, 0 );
+		int queueSizeInt = AbstractAppender.parseInt( queueSize, 0 );
+		int spillSegmentSizeInt = AbstractAppender.parseInt( spillSegmentSize, 0 );
+		long spillMaxSizeLong;
+		try
+		{
+			spillMaxSizeLong = spillMaxSize != null ? Long.parseLong( spillMaxSize ) : 0;
+		}
+		catch( NumberFormatException x )
+		{
+			LOGGER.error( "Unsupported spill maximum size for MongoDB appender: " + spillMaxSize );
+			return null;
+		}
 		boolean ignoreExceptions = Booleans.parseBoolean( ignore, true );
 
-		StringBuilder managerName = new StringBuilder( "mongoDbManager{ description=" ).append( name ).append( ", bufferSize=" ).append( bufferSizeInt ).append( ", uri=" ).append( uri ).append( ", db=" ).append( db )
+		MongoDbManager.OverflowPolicy overflowPolicy;
+		try
+		{
+			overflowPolicy = overflow != null ? MongoDbManager.OverflowPolicy.parse( overflow ) : MongoDbManager.OverflowPolicy.BLOCK;
+		}
+		catch( IllegalArgumentException x )
+		{
+			LOGGER.error( "Unsupported overflow policy for MongoDB appender: " + overflow );
+			return null;
+		}
+
+		StringBuilder managerName = new StringBuilder( "mongoDbManager{ description=" ).append( name ).append( ", bufferSize=" ).append( bufferSizeInt ).append( ", maxLatency=" ).append( maxLatencyInt )
+			.append( ", queueSize=" ).append( queueSizeInt ).append( ", overflow=" ).append( overflowPolicy ).append( ", spillDirectory=" ).append( spillDirectory ).append( ", uri=" ).append( uri ).append( ", db=" ).append( db )
 			.append( ", collection=" ).append( collection ).append( ", writeConcern=" ).append( writeConcern ).append( " }" );
 
-		MongoDbManager manager = MongoDbManager.getMongoDbManager( managerName.toString(), bufferSizeInt, uri, null, db, collection, writeConcern );
+		MongoDbManager manager = MongoDbManager.getMongoDbManager( managerName.toString(), bufferSizeInt, maxLatencyInt, queueSizeInt, overflowPolicy,
+			spillDirectory != null ? new File( spillDirectory ) : null, spillSegmentSizeInt, spillMaxSizeLong, uri, null, db, collection, writeConcern );
 		if( manager == null )
 			return null;
 
@@ -11,26 +11,30 @@
 
 package com.threecrickets.sincerity.logging;
 
-import java.util.Date;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.Level;
-import org.apache.logging.log4j.Marker;
-import org.apache.logging.log4j.ThreadContext.ContextStack;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AppenderLoggingException;
 import org.apache.logging.log4j.core.appender.ManagerFactory;
 import org.apache.logging.log4j.core.appender.db.AbstractDatabaseManager;
-import org.apache.logging.log4j.message.Message;
-import org.bson.Document;
+import org.bson.RawBsonDocument;
 
-import com.mongodb.BasicDBList;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
 import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
 
 /**
  * A Log4j database manager for MongoDB.
@@ -39,11 +43,103 @@ import com.mongodb.client.MongoDatabase;
  * might cause recursion here that would lead to hangs and timeouts. The easiest
  * solution is to simply disable its logging via your Log4j configuration: just
  * set the <code>org.mongodb.driver</code> logger to level {@link Level#OFF}.
+ * <p>
+ * Events are encoded into BSON documents on the logging thread (see
+ * {@link BsonLogEventEncoder}) and then queued.
+ * A dedicated writer thread takes documents from the queue in batches of up
+ * to "bufferSize" documents, waiting at most "maxLatency" milliseconds for a
+ * batch to fill up, and inserts each batch with a single unordered
+ * <code>insertMany</code>. When the queue is full, logging threads either
+ * block until there is room (backpressure) or drop the event, according to
+ * the {@link OverflowPolicy}.
+ * <p>
+ * Because inserts happen on the writer thread, MongoDB errors are never
+ * propagated to the logging threads: they are reported to the Log4j status
+ * logger and counted (see {@link #getFailures()}). The same goes for any
+ * other exception while writing a batch, after which the writer thread keeps
+ * going. Should the writer thread nevertheless stop, logging threads fail
+ * rather than block forever on a full queue.
+ * <p>
+ * If a spill directory is configured, documents that cannot be inserted
+ * because MongoDB is unavailable (including at startup) are instead appended
+ * to a {@link SpillQueue} on disk. While the queue is not empty all new
+ * documents go there too, preserving their order, and the writer thread
+ * periodically tries to replay the queue in batches, backing off from
+ * {@link #MINIMUM_REPLAY_DELAY} to {@link #MAXIMUM_REPLAY_DELAY} milliseconds
+ * between attempts. Note that the MongoDB driver may take a while to decide
+ * that the server is unavailable (see the "serverSelectionTimeoutMS" URI
+ * option), during which the writer thread cannot take new documents. Each
+ * process gets its own spill queue, even if they share the configuration (see
+ * {@link SpillQueue}).
+ * <p>
+ * On shutdown the writer thread is given {@link #SHUTDOWN_TIMEOUT}
+ * milliseconds to write what is left. The spill queue and the client are
+ * closed only after it has stopped.
  * 
  * @author Tal Liron
  */
 public class MongoDbManager extends AbstractDatabaseManager
 {
+	//
+	// Constants
+	//
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	public static final long DEFAULT_MAX_LATENCY = 1000;
+
+	public static final long SHUTDOWN_TIMEOUT = 10 * 1000;
+
+	public static final long MINIMUM_REPLAY_DELAY = 1000;
+
+	public static final long MAXIMUM_REPLAY_DELAY = 60 * 1000;
+
+	/**
+	 * The maximum number of spilled batches replayed at once, so that new
+	 * documents keep moving from memory to disk during a long replay.
+	 */
+	public static final int MAXIMUM_REPLAY_BATCHES = 10;
+
+	//
+	// Types
+	//
+
+	/**
+	 * What to do with events when the queue is full.
+	 */
+	public enum OverflowPolicy
+	{
+		/**
+		 * Block the logging thread until there is room in the queue.
+		 */
+		BLOCK,
+
+		/**
+		 * Drop the event.
+		 */
+		DROP;
+
+		/**
+		 * Parses a policy name, such as "drop".
+		 * 
+		 * @param name
+		 *        The name
+		 * @return The policy
+		 * @throws IllegalArgumentException
+		 *         If the name is not a policy
+		 */
+		public static OverflowPolicy parse( String name )
+		{
+			return valueOf( name.trim().toUpperCase() );
+		}
+
+		@Override
+		public String toString()
+		{
+			return name().toLowerCase();
+		}
+	}
+
 	//
 	// Static operations
 	//
@@ -56,7 +152,22 @@ public class MongoDbManager extends AbstractDatabaseManager
 	 *        The name of the manager, which should include connection details
 	 *        and hashed passwords where possible.
 	 * @param bufferSize
-	 *        The size of the log event buffer.
+	 *        The maximum number of documents per insert (0 for the default)
+	 * @param maxLatency
+	 *        The maximum time in milliseconds to wait for a batch to fill up
+	 *        (0 for the default)
+	 * @param queueSize
+	 *        The maximum number of documents waiting to be inserted (0 for 10
+	 *        times the batch size)
+	 * @param overflowPolicy
+	 *        What to do with events when the queue is full
+	 * @param spillDirectory
+	 *        The spill directory or null to disable spilling
+	 * @param spillSegmentSize
+	 *        The size of spill segment files in bytes (0 for the default)
+	 * @param spillMaximumSize
+	 *        The maximum total size of spill segment files in bytes (0 for the
+	 *        default)
 	 * @param uri
 	 *        The MongoDB URI (see {@link MongoClientURI}) (not used if "client"
 	 *        is specified)
@@ -71,9 +182,140 @@ public class MongoDbManager extends AbstractDatabaseManager
 	 *        {@link WriteConcern#valueOf(String)})
 	 * @return a new or existing MongoDB manager as applicable.
 	 */
-	public static MongoDbManager getMongoDbManager( String name, int bufferSize, String uri, MongoClient client, String dbName, String collectionName, String writeConcernName )
+	public static MongoDbManager getMongoDbManager( String name, int bufferSize, long maxLatency, int queueSize, OverflowPolicy overflowPolicy, File spillDirectory, int spillSegmentSize, long spillMaximumSize,
+		String uri, MongoClient client, String dbName, String collectionName, String writeConcernName )
 	{
-		return AbstractDatabaseManager.getManager( name, new FactoryData( bufferSize, uri, client, dbName, collectionName, writeConcernName ), FACTORY );
+		return AbstractDatabaseManager.getManager( name,
+			new FactoryData( bufferSize, maxLatency, queueSize, overflowPolicy, spillDirectory, spillSegmentSize, spillMaximumSize, uri, client, dbName, collectionName, writeConcernName ), FACTORY );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The number of documents waiting to be inserted.
+	 * 
+	 * @return The queue depth
+	 */
+	public int getQueueDepth()
+	{
+		return queue.size();
+	}
+
+	/**
+	 * The number of batches inserted (whether or not they succeeded).
+	 * 
+	 * @return The number of flushes
+	 */
+	public long getFlushes()
+	{
+		return flushes.get();
+	}
+
+	/**
+	 * The number of documents successfully inserted.
+	 * 
+	 * @return The number of documents
+	 */
+	public long getWritten()
+	{
+		return written.get();
+	}
+
+	/**
+	 * The number of documents that could not be inserted.
+	 * 
+	 * @return The number of failed documents
+	 */
+	public long getFailures()
+	{
+		return failures.get();
+	}
+
+	/**
+	 * The number of events dropped because the queue was full.
+	 * 
+	 * @return The number of dropped events
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * The number of documents appended to the spill queue.
+	 * 
+	 * @return The number of spilled documents
+	 */
+	public long getSpilled()
+	{
+		return spilled.get();
+	}
+
+	/**
+	 * The number of spilled documents successfully replayed.
+	 * 
+	 * @return The number of replayed documents
+	 */
+	public long getReplayed()
+	{
+		return replayed.get();
+	}
+
+	/**
+	 * The number of spilled documents evicted in order to stay within the
+	 * maximum size of the spill queue.
+	 * 
+	 * @return The number of evicted documents
+	 */
+	public long getEvicted()
+	{
+		SpillQueue spill = this.spill;
+		return spill != null ? spill.getEvicted() : 0;
+	}
+
+	/**
+	 * The number of documents in the spill queue.
+	 * 
+	 * @return The number of documents
+	 */
+	public long getSpillDepth()
+	{
+		SpillQueue spill = this.spill;
+		return spill != null ? spill.getCount() : 0;
+	}
+
+	/**
+	 * Whether documents are currently going to the spill queue rather than
+	 * to MongoDB.
+	 * 
+	 * @return True if spilling
+	 */
+	public boolean isSpilling()
+	{
+		return spilling;
+	}
+
+	/**
+	 * The size of the largest batch so far.
+	 * 
+	 * @return The largest batch size
+	 */
+	public long getMaximumBatchSize()
+	{
+		return maximumBatchSize.get();
+	}
+
+	/**
+	 * The average batch size so far.
+	 * 
+	 * @return The average batch size
+	 */
+	public double getAverageBatchSize()
+	{
+		long flushes = this.flushes.get();
+		return flushes > 0 ? (double) batched.get() / flushes : 0;
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -83,9 +325,18 @@ public class MongoDbManager extends AbstractDatabaseManager
 	// Construction
 	//
 
-	protected MongoDbManager( String name, int bufferSize, String uri, MongoClient client, String databaseName, String collectionName, String writeConcernName )
+	protected MongoDbManager( String name, int bufferSize, long maxLatency, int queueSize, OverflowPolicy overflowPolicy, File spillDirectory, int spillSegmentSize, long spillMaximumSize, String uri,
+		MongoClient client, String databaseName, String collectionName, String writeConcernName )
 	{
-		super( name, bufferSize );
+		// We do our own buffering
+		super( name, 0 );
+		batchSize = bufferSize > 0 ? bufferSize : DEFAULT_BATCH_SIZE;
+		this.maxLatency = maxLatency > 0 ? maxLatency : DEFAULT_MAX_LATENCY;
+		queue = new ArrayBlockingQueue<byte[]>( queueSize > 0 ? queueSize : batchSize * 10 );
+		this.overflowPolicy = overflowPolicy != null ? overflowPolicy : OverflowPolicy.BLOCK;
+		this.spillDirectory = spillDirectory;
+		this.spillSegmentSize = spillSegmentSize;
+		this.spillMaximumSize = spillMaximumSize;
 		this.uri = uri;
 		this.client = client;
 		this.databaseName = databaseName;
@@ -93,24 +344,27 @@ public class MongoDbManager extends AbstractDatabaseManager
 		this.writeConcernName = writeConcernName;
 	}
 
-	//
-	// AbstractDatabaseManager
-	//
-
-	@Override
-	protected void startupInternal() throws Exception
+	/**
+	 * Connects to MongoDB. Override this to use another collection
+	 * implementation.
+	 * 
+	 * @return The collection
+	 * @throws AppenderLoggingException
+	 *         If the collection cannot be accessed
+	 */
+	protected MongoCollection<RawBsonDocument> connect()
 	{
-		if( collection != null )
-			return;
-
+		if( client != null )
+			client.close();
 		client = null;
 		database = null;
-		collection = null;
+
+		MongoCollection<RawBsonDocument> collection;
 
 		MongoClientURI uri;
 		try
 		{
-			if( this.uri == null )
+			if( this.uri != null )
 				uri = new MongoClientURI( this.uri );
 			else
 				uri = new MongoClientURI( "mongodb://localhost:27017/" );
@@ -142,7 +396,7 @@ public class MongoDbManager extends AbstractDatabaseManager
 
 		try
 		{
-			collection = database.getCollection( collectionName );
+			collection = database.getCollection( collectionName, RawBsonDocument.class );
 		}
 		catch( MongoException x )
 		{
@@ -159,88 +413,114 @@ public class MongoDbManager extends AbstractDatabaseManager
 				throw new AppenderLoggingException( "Unsupported MongoDB write concern: " + writeConcernName );
 			collection = collection.withWriteConcern( writeConcern );
 		}
-	}
 
-	@Override
-	protected void shutdownInternal() throws Exception
-	{
-		if( client != null )
-			client.close();
-		client = null;
-		database = null;
-		collection = null;
+		return collection;
 	}
 
-	@Override
-	protected void connectAndStart()
-	{
-	}
+	//
+	// AbstractDatabaseManager
+	//
 
 	@Override
-	protected void writeInternal( LogEvent event )
+	protected void startupInternal() throws Exception
 	{
-		if( collection == null )
-			throw new AppenderLoggingException( "Not connected to MongoDB" );
-
-		Document o = new Document();
-
-		o.put( "timestamp", new Date( event.getTimeMillis() ) );
-		o.put( "logger", event.getLoggerName() );
-
-		Level level = event.getLevel();
-		if( level != null )
-			o.put( "level", level.name() );
-
-		Marker marker = event.getMarker();
-		if( marker != null )
-			o.put( "marker", marker.getName() );
+		if( writer != null )
+			return;
 
-		Message message = event.getMessage();
-		if( message != null )
-			o.put( "message", message.getFormattedMessage() );
+		if( spillDirectory != null )
+		{
+			try
+			{
+				spill = new SpillQueue( spillDirectory, spillSegmentSize, spillMaximumSize );
+			}
+			catch( IOException x )
+			{
+				throw new AppenderLoggingException( "Can't open MongoDB spill directory: " + spillDirectory, x );
+			}
+
+			// Replay what was spilled in a previous run before anything else
+			spilling = !spill.isEmpty();
+		}
 
-		StackTraceElement eventSource = event.getSource();
-		if( eventSource != null )
+		try
 		{
-			Document source = new Document();
-			source.put( "class", eventSource.getClassName() );
-			source.put( "method", eventSource.getMethodName() );
-			source.put( "file", eventSource.getFileName() );
-			source.put( "line", eventSource.getLineNumber() );
-			o.put( "source", source );
+			collection = connect();
 		}
+		catch( AppenderLoggingException x )
+		{
+			// Without a spill queue there's nowhere to put the events
+			if( spill == null )
+				throw x;
 
-		Document thread = new Document();
+			LOGGER.warn( "Spilling MongoDB log events to " + spill.getDirectory() + ": " + x.getMessage() );
+			spilling = true;
+			scheduleReplay();
+		}
 
-		thread.put( "name", event.getThreadName() );
+		writer = new Thread( new Writer(), "Sincerity MongoDB writer: " + getName() );
+		writer.setDaemon( true );
+		writer.start();
+	}
 
-		Map<String, String> eventContextMap = event.getContextMap();
-		if( eventContextMap != null )
+	@Override
+	protected void shutdownInternal() throws Exception
+	{
+		Thread writer = this.writer;
+		this.writer = null;
+		if( writer != null )
 		{
-			Document contextMap = new Document();
-			for( Map.Entry<String, String> entry : eventContextMap.entrySet() )
-				contextMap.put( entry.getKey(), entry.getValue() );
-			thread.put( "contextMap", contextMap );
+			// The writer will notice within maxLatency, and will write
+			// whatever is left in the queue before exiting (we don't interrupt
+			// it, because that would break the spill queue's file channels)
+			writer.join( SHUTDOWN_TIMEOUT );
+
+			// The writer disconnects when it's done, because closing the spill
+			// queue or the client under it would lose documents
+			if( writer.isAlive() )
+				LOGGER.warn( "MongoDB writer is still writing after " + SHUTDOWN_TIMEOUT + "ms, will disconnect when done: " + getName() );
 		}
+		else
+			disconnect();
+	}
 
-		ContextStack eventContextStack = event.getContextStack();
-		if( eventContextStack != null )
-		{
-			BasicDBList contextStack = new BasicDBList();
-			for( String entry : eventContextStack )
-				contextStack.add( entry );
-			thread.put( "contextStack", contextStack );
-		}
+	@Override
+	protected void connectAndStart()
+	{
+	}
 
-		o.put( "thread", thread );
+	@Override
+	protected void writeInternal( LogEvent event )
+	{
+		if( ( collection == null ) && ( spill == null ) )
+			throw new AppenderLoggingException( "Not connected to MongoDB" );
 
-		try
+		byte[] document = encoder.encode( event );
+
+		if( overflowPolicy == OverflowPolicy.DROP )
 		{
-			collection.insertOne( o );
+			if( !queue.offer( document ) )
+				dropped.incrementAndGet();
 		}
-		catch( MongoException e )
+		else
 		{
-			throw new AppenderLoggingException( "Can't write to MongoDB", e );
+			try
+			{
+				// Make sure we don't wait forever for a writer that has died
+				while( !queue.offer( document, maxLatency, TimeUnit.MILLISECONDS ) )
+				{
+					Thread writer = this.writer;
+					if( ( writer == null ) || !writer.isAlive() )
+					{
+						dropped.incrementAndGet();
+						throw new AppenderLoggingException( "MongoDB writer is not running: " + getName() );
+					}
+				}
+			}
+			catch( InterruptedException x )
+			{
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+			}
 		}
 	}
 
@@ -254,6 +534,40 @@ public class MongoDbManager extends AbstractDatabaseManager
 
 	private static final MongoDbManagerFactory FACTORY = new MongoDbManagerFactory();
 
+	private static final InsertManyOptions INSERT_OPTIONS = new InsertManyOptions().ordered( false );
+
+	private final int batchSize;
+
+	private final long maxLatency;
+
+	private final BlockingQueue<byte[]> queue;
+
+	private final BsonLogEventEncoder encoder = new BsonLogEventEncoder();
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final AtomicLong flushes = new AtomicLong();
+
+	private final AtomicLong batched = new AtomicLong();
+
+	private final AtomicLong maximumBatchSize = new AtomicLong();
+
+	private final AtomicLong written = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong spilled = new AtomicLong();
+
+	private final AtomicLong replayed = new AtomicLong();
+
+	private final File spillDirectory;
+
+	private final int spillSegmentSize;
+
+	private final long spillMaximumSize;
+
 	private final String uri;
 
 	private final String databaseName;
@@ -266,7 +580,310 @@ public class MongoDbManager extends AbstractDatabaseManager
 
 	private MongoDatabase database;
 
-	private MongoCollection<Document> collection;
+	private volatile MongoCollection<RawBsonDocument> collection;
+
+	private volatile Thread writer;
+
+	private volatile SpillQueue spill;
+
+	private volatile boolean spilling;
+
+	// Used only by the writer thread
+
+	private long replayDelay;
+
+	private long nextReplay;
+
+	/**
+	 * Inserts a batch.
+	 * 
+	 * @param batch
+	 *        The documents
+	 * @return False if MongoDB is unavailable
+	 */
+	private boolean insert( List<byte[]> batch )
+	{
+		int size = batch.size();
+		if( size == 0 )
+			return true;
+
+		MongoCollection<RawBsonDocument> collection = this.collection;
+		if( collection == null )
+			return false;
+
+		ArrayList<RawBsonDocument> documents = new ArrayList<RawBsonDocument>( size );
+		for( byte[] document : batch )
+			documents.add( new RawBsonDocument( document ) );
+
+		flushes.incrementAndGet();
+		batched.addAndGet( size );
+		long maximum;
+		while( size > ( maximum = maximumBatchSize.get() ) )
+			if( maximumBatchSize.compareAndSet( maximum, size ) )
+				break;
+
+		try
+		{
+			collection.insertMany( documents, INSERT_OPTIONS );
+			written.addAndGet( size );
+		}
+		catch( MongoBulkWriteException x )
+		{
+			// With an unordered insert, all documents without errors were
+			// inserted, and trying again would not help the others
+			int failed = x.getWriteErrors().size();
+			written.addAndGet( size - failed );
+			failures.addAndGet( failed );
+			LOGGER.error( "Can't write " + failed + " of " + size + " documents to MongoDB", x );
+		}
+		catch( MongoException x )
+		{
+			if( spill == null )
+			{
+				failures.addAndGet( size );
+				LOGGER.error( "Can't write " + size + " documents to MongoDB", x );
+			}
+			else if( !spilling )
+				LOGGER.warn( "Spilling MongoDB log events to " + spill.getDirectory() + ": " + x.getMessage() );
+			return false;
+		}
+		catch( RuntimeException x )
+		{
+			// Not a MongoDB error, so trying again would not help
+			failures.addAndGet( size );
+			LOGGER.error( "Can't write " + size + " documents to MongoDB", x );
+		}
+
+		return true;
+	}
+
+	/**
+	 * Inserts a batch, or spills it if MongoDB is unavailable or if we are
+	 * already spilling.
+	 * 
+	 * @param batch
+	 *        The documents
+	 */
+	private void write( List<byte[]> batch )
+	{
+		if( !spilling )
+		{
+			if( insert( batch ) || ( spill == null ) )
+				return;
+			spilling = true;
+			scheduleReplay();
+		}
+
+		spill( batch );
+	}
+
+	/**
+	 * Closes the spill queue and the client.
+	 */
+	private void disconnect()
+	{
+		if( spill != null )
+		{
+			try
+			{
+				spill.close();
+			}
+			catch( IOException x )
+			{
+				LOGGER.error( "Can't close MongoDB spill directory: " + spill.getDirectory(), x );
+			}
+		}
+
+		if( client != null )
+			client.close();
+		client = null;
+		database = null;
+		collection = null;
+	}
+
+	/**
+	 * Appends a batch to the spill queue.
+	 * 
+	 * @param batch
+	 *        The documents
+	 */
+	private void spill( List<byte[]> batch )
+	{
+		int done = 0;
+		try
+		{
+			for( byte[] document : batch )
+			{
+				if( spill.add( document ) )
+					spilled.incrementAndGet();
+				else
+					failures.incrementAndGet();
+				done++;
+			}
+		}
+		catch( IOException x )
+		{
+			failures.addAndGet( batch.size() - done );
+			LOGGER.error( "Can't spill " + ( batch.size() - done ) + " documents to " + spill.getDirectory(), x );
+		}
+	}
+
+	/**
+	 * Replays spilled documents, if it's time to try again.
+	 */
+	private void replay()
+	{
+		if( System.currentTimeMillis() < nextReplay )
+			return;
+
+		try
+		{
+			if( collection == null )
+				collection = connect();
+
+			for( int i = 0; i < MAXIMUM_REPLAY_BATCHES; i++ )
+			{
+				List<byte[]> records = spill.peek( batchSize );
+				if( records.isEmpty() )
+				{
+					spilling = false;
+					replayDelay = 0;
+					LOGGER.info( "Done replaying spilled MongoDB log events from " + spill.getDirectory() );
+					return;
+				}
+
+				// Records are stored as BSON, so they need no conversion, but
+				// we make sure not to send corrupt ones to MongoDB
+				ArrayList<byte[]> batch = new ArrayList<byte[]>( records.size() );
+				for( byte[] record : records )
+				{
+					if( BsonLogEventEncoder.isDocument( record ) )
+						batch.add( record );
+					else
+						failures.incrementAndGet();
+				}
+
+				if( !insert( batch ) )
+				{
+					scheduleReplay();
+					return;
+				}
+
+				spill.remove( records.size() );
+				replayed.addAndGet( batch.size() );
+			}
+		}
+		catch( AppenderLoggingException x )
+		{
+			scheduleReplay();
+		}
+		catch( IOException x )
+		{
+			LOGGER.error( "Can't read spilled MongoDB log events from " + spill.getDirectory(), x );
+			scheduleReplay();
+		}
+	}
+
+	/**
+	 * Schedules the next replay attempt with exponential backoff.
+	 */
+	private void scheduleReplay()
+	{
+		replayDelay = replayDelay == 0 ? MINIMUM_REPLAY_DELAY : Math.min( replayDelay * 2, MAXIMUM_REPLAY_DELAY );
+		nextReplay = System.currentTimeMillis() + replayDelay;
+	}
+
+	/**
+	 * Takes documents from the queue and inserts them in batches.
+	 */
+	private class Writer implements Runnable
+	{
+		public void run()
+		{
+			try
+			{
+				loop();
+			}
+			finally
+			{
+				disconnect();
+			}
+		}
+
+		private void loop()
+		{
+			Thread thread = Thread.currentThread();
+			ArrayList<byte[]> batch = new ArrayList<byte[]>( batchSize );
+			try
+			{
+				while( writer == thread )
+				{
+					try
+					{
+						byte[] first = queue.poll( maxLatency, TimeUnit.MILLISECONDS );
+						if( first != null )
+						{
+							batch.add( first );
+
+							// Wait for the batch to fill up, but no longer than
+							// the maximum latency since its first document
+							long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( maxLatency );
+							while( batch.size() < batchSize )
+							{
+								if( queue.drainTo( batch, batchSize - batch.size() ) > 0 )
+									continue;
+								long remaining = deadline - System.nanoTime();
+								if( remaining <= 0 )
+									break;
+								byte[] document = queue.poll( remaining, TimeUnit.NANOSECONDS );
+								if( document == null )
+									break;
+								batch.add( document );
+							}
+
+							write( batch );
+							batch.clear();
+						}
+
+						if( spilling )
+							replay();
+					}
+					catch( RuntimeException x )
+					{
+						// Whatever happened, we must keep writing
+						failed( batch, x );
+					}
+				}
+			}
+			catch( InterruptedException x )
+			{
+			}
+
+			// Shutting down: write everything that's left
+			while( true )
+			{
+				queue.drainTo( batch, batchSize - batch.size() );
+				if( batch.isEmpty() )
+					break;
+				try
+				{
+					write( batch );
+					batch.clear();
+				}
+				catch( RuntimeException x )
+				{
+					failed( batch, x );
+				}
+			}
+		}
+
+		private void failed( List<byte[]> batch, RuntimeException x )
+		{
+			failures.addAndGet( batch.size() );
+			LOGGER.error( "Can't write " + batch.size() + " documents to MongoDB", x );
+			batch.clear();
+		}
+	}
 
 	/**
 	 * Creates managers.
@@ -276,7 +893,7 @@ public class MongoDbManager extends AbstractDatabaseManager
 		@Override
 		public MongoDbManager createManager( final String name, final FactoryData data )
 		{
-			return new MongoDbManager( name, data.getBufferSize(), data.uri, data.client, data.dbName, data.collectionName, data.writeConcernName );
+			return new MongoDbManager( name, data.getBufferSize(), data.maxLatency, data.queueSize, data.overflowPolicy, data.spillDirectory, data.spillSegmentSize, data.spillMaximumSize, data.uri, data.client, data.dbName, data.collectionName, data.writeConcernName );
 		}
 	}
 
@@ -286,9 +903,16 @@ public class MongoDbManager extends AbstractDatabaseManager
 	 */
 	private static final class FactoryData extends AbstractDatabaseManager.AbstractFactoryData
 	{
-		protected FactoryData( final int bufferSize, String uri, MongoClient client, String dbName, String collectionName, String writeConcernName )
+		protected FactoryData( final int bufferSize, long maxLatency, int queueSize, OverflowPolicy overflowPolicy, File spillDirectory, int spillSegmentSize, long spillMaximumSize, String uri,
+			MongoClient client, String dbName, String collectionName, String writeConcernName )
 		{
 			super( bufferSize );
+			this.maxLatency = maxLatency;
+			this.queueSize = queueSize;
+			this.overflowPolicy = overflowPolicy;
+			this.spillDirectory = spillDirectory;
+			this.spillSegmentSize = spillSegmentSize;
+			this.spillMaximumSize = spillMaximumSize;
 			this.uri = uri;
 			this.client = client;
 			this.dbName = dbName;
@@ -296,6 +920,18 @@ public class MongoDbManager extends AbstractDatabaseManager
 			this.writeConcernName = writeConcernName;
 		}
 
+		private final long maxLatency;
+
+		private final int queueSize;
+
+		private final OverflowPolicy overflowPolicy;
+
+		private final File spillDirectory;
+
+		private final int spillSegmentSize;
+
+		private final long spillMaximumSize;
+
 		private final String uri;
 
 		private final MongoClient client;
@@ -15,21 +15,46 @@ import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.async.AsyncLoggerConfig;
 import org.apache.logging.log4j.core.config.AbstractConfiguration;
 import org.apache.logging.log4j.core.config.ConfigurationSource;
 import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.apache.logging.log4j.core.jmx.RingBufferAdmin;
 import org.apache.logging.log4j.core.util.NameUtil;
 
 import com.threecrickets.sincerity.Sincerity;
+import com.threecrickets.sincerity.management.SincerityManagement;
 import com.threecrickets.sincerity.util.CollectionUtil;
 
 /**
  * A configuration that is prepared via API, rather than loading it from file.
+ * <p>
+ * Appenders added to it are wrapped with an {@link InstrumentedAppender}, and
+ * the async loggers' queue is instrumented, too. The metrics are exposed as
+ * the "com.threecrickets.sincerity:type=Logging" MXBean. Because their state
+ * is shared by all class loaders (see {@link LoggingMetrics}), the MXBean
+ * reports them no matter which class loader registered it first.
+ * <p>
+ * Note that loggers must be given the configuration's wrapped appenders (see
+ * {@link #getAppender(String)}) rather than the original ones, or else their
+ * events will bypass the instrumentation. Appenders attached to loggers
+ * directly are reported as warnings when the configuration starts.
  * 
  * @author Tal Liron
  */
 public class ProgrammableConfiguration extends AbstractConfiguration
 {
+	//
+	// Constants
+	//
+
+	/**
+	 * This class loader's view of the logging metrics, which are shared by
+	 * all class loaders.
+	 */
+	public static final LoggingMetrics METRICS = new LoggingMetrics();
+
 	//
 	// Construction
 	//
@@ -59,9 +84,63 @@ public class ProgrammableConfiguration extends AbstractConfiguration
 		if( ( sincerity != null ) && sincerity.getVerbosity() >= 2 )
 			sincerity.getOut().println( "Using Log4j configuration: " + getName() );
 
+		InstrumentedAsyncQueueFullPolicy.install();
+
+		// If another class loader has already registered its instance, that's
+		// fine, because it reports the same state
+		SincerityManagement.register( "Logging", METRICS );
+
 		new ProgrammableConfigurationFactory( this ).use();
 	}
 
+	//
+	// Configuration
+	//
+
+	@Override
+	public void addAppender( Appender appender )
+	{
+		super.addAppender( instrument( appender ) );
+	}
+
+	@Override
+	public synchronized void addLoggerAppender( Logger logger, Appender appender )
+	{
+		super.addLoggerAppender( logger, instrument( appender ) );
+	}
+
+	//
+	// LifeCycle
+	//
+
+	@Override
+	public void start()
+	{
+		super.start();
+
+		for( LoggerConfig logger : getLoggers().values() )
+		{
+			if( logger instanceof AsyncLoggerConfig )
+			{
+				asyncQueue = getAsyncLoggerConfigDelegate().createRingBufferAdmin( getName(), getName() );
+				METRICS.asyncQueueStarted( asyncQueue );
+				break;
+			}
+		}
+	}
+
+	@Override
+	public void stop()
+	{
+		super.stop();
+
+		if( asyncQueue != null )
+		{
+			METRICS.asyncQueueStopped( asyncQueue );
+			asyncQueue = null;
+		}
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Protected
 
@@ -112,6 +191,10 @@ public class ProgrammableConfiguration extends AbstractConfiguration
 				for( Appender appender : logger.getAppenders().values() )
 					sincerity.getOut().println( "    -> \"" + appender.getName() + "\"" );
 			}
+
+			for( Appender appender : logger.getAppenders().values() )
+				if( !( appender instanceof InstrumentedAppender ) )
+					LOGGER.warn( "Appender \"{}\" was attached to logger \"{}\" directly, so it is not instrumented", appender.getName(), logger.getName() );
 		}
 	}
 
@@ -119,4 +202,26 @@ public class ProgrammableConfiguration extends AbstractConfiguration
 	// Private
 
 	private static final long serialVersionUID = 1L;
+
+	private volatile RingBufferAdmin asyncQueue;
+
+	/**
+	 * Wraps an appender with an {@link InstrumentedAppender}, reusing the
+	 * configuration's wrapper if it was already added.
+	 * 
+	 * @param appender
+	 *        The appender
+	 * @return The instrumented appender
+	 */
+	private Appender instrument( Appender appender )
+	{
+		if( appender instanceof InstrumentedAppender )
+			return appender;
+
+		Appender existing = getAppender( appender.getName() );
+		if( ( existing instanceof InstrumentedAppender ) && ( ( (InstrumentedAppender) existing ).getAppender() == appender ) )
+			return existing;
+
+		return new InstrumentedAppender( appender, METRICS.getAppender( appender.getName() ) );
+	}
 }
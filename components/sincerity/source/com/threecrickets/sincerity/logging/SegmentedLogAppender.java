@@ -0,0 +1,154 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import java.io.File;
+
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.util.Booleans;
+
+/**
+ * A Log4j appender that writes events to a directory in a compact binary,
+ * block-compressed, segmented format (see {@link SegmentedLogManager}), which
+ * can be read and filtered efficiently with {@link SegmentedLogReader}.
+ * 
+ * @author Tal Liron
+ */
+@Plugin(name = "SegmentedFile", category = "Sincerity", elementType = "appender", printObject = true)
+public class SegmentedLogAppender extends AbstractAppender
+{
+	//
+	// Static operations
+	//
+
+	/**
+	 * Factory method for creating a segmented log appender within the plugin
+	 * manager.
+	 * 
+	 * @param name
+	 *        The name of the appender.
+	 * @param ignore
+	 *        If {@code "true"} (default) exceptions encountered when appending
+	 *        events are logged; otherwise they are propagated to the caller.
+	 * @param filter
+	 *        The filter, if any, to use.
+	 * @param directory
+	 *        The log directory
+	 * @param blockSize
+	 *        The uncompressed block size in bytes (defaults to
+	 *        {@link SegmentedLogManager#DEFAULT_BLOCK_SIZE})
+	 * @param segmentSize
+	 *        The size of segment data files in bytes (defaults to
+	 *        {@link SegmentedLogManager#DEFAULT_SEGMENT_SIZE})
+	 * @param maxSegments
+	 *        The maximum number of segments to keep (defaults to
+	 *        {@link SegmentedLogManager#DEFAULT_MAXIMUM_SEGMENTS})
+	 * @param flushInterval
+	 *        The maximum time in milliseconds before events are written to
+	 *        the segment (defaults to
+	 *        {@link SegmentedLogManager#DEFAULT_FLUSH_INTERVAL})
+	 * @return a new segmented log appender.
+	 */
+	@PluginFactory
+	public static SegmentedLogAppender createAppender( @PluginAttribute("name" ) final String name, @PluginAttribute("ignoreExceptions") final String ignore, @PluginElement("Filter") final Filter filter,
+		@PluginAttribute("directory") final String directory, @PluginAttribute("blockSize") final String blockSize, @PluginAttribute("segmentSize") final String segmentSize,
+		@PluginAttribute("maxSegments") final String maxSegments, @PluginAttribute("flushInterval") final String flushInterval)
+	{
+		if( directory == null )
+		{
+			LOGGER.error( "No directory provided for segmented log appender: " + name );
+			return null;
+		}
+
+		int blockSizeInt = AbstractAppender.parseInt( blockSize, 0 );
+		int segmentSizeInt = AbstractAppender.parseInt( segmentSize, 0 );
+		int maxSegmentsInt = AbstractAppender.parseInt( maxSegments, 0 );
+		int flushIntervalInt = AbstractAppender.parseInt( flushInterval, 0 );
+		boolean ignoreExceptions = Booleans.parseBoolean( ignore, true );
+
+		SegmentedLogManager manager = SegmentedLogManager.getSegmentedLogManager( new File( directory ), blockSizeInt, segmentSizeInt, maxSegmentsInt, flushIntervalInt );
+		if( manager == null )
+			return null;
+
+		return new SegmentedLogAppender( name, filter, ignoreExceptions, manager );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The manager.
+	 * 
+	 * @return The manager
+	 */
+	public SegmentedLogManager getManager()
+	{
+		return manager;
+	}
+
+	//
+	// Appender
+	//
+
+	public void append( LogEvent event )
+	{
+		manager.write( event );
+	}
+
+	//
+	// LifeCycle
+	//
+
+	@Override
+	public void stop()
+	{
+		super.stop();
+		manager.release();
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public String toString()
+	{
+		return getName() + "{ directory=" + manager.getDirectory() + " }";
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Protected
+
+	//
+	// Construction
+	//
+
+	protected SegmentedLogAppender( String name, Filter filter, boolean ignoreExceptions, SegmentedLogManager manager )
+	{
+		super( name, filter, null, ignoreExceptions );
+		this.manager = manager;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final long serialVersionUID = 1L;
+
+	private final SegmentedLogManager manager;
+}
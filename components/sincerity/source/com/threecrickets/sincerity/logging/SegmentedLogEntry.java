@@ -0,0 +1,187 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * An event read by {@link SegmentedLogReader}.
+ * 
+ * @author Tal Liron
+ */
+public class SegmentedLogEntry
+{
+	//
+	// Construction
+	//
+
+	public SegmentedLogEntry( long timeMillis, int intLevel, String level, String loggerName, String threadName, String marker, String message, String thrown, Map<String, String> contextMap )
+	{
+		this.timeMillis = timeMillis;
+		this.intLevel = intLevel;
+		this.level = level;
+		this.loggerName = loggerName;
+		this.threadName = threadName;
+		this.marker = marker;
+		this.message = message;
+		this.thrown = thrown;
+		this.contextMap = contextMap != null ? contextMap : Collections.<String, String> emptyMap();
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The event time.
+	 * 
+	 * @return The system time in milliseconds
+	 */
+	public long getTimeMillis()
+	{
+		return timeMillis;
+	}
+
+	/**
+	 * The Log4j int level (lower is more severe).
+	 * 
+	 * @return The int level
+	 */
+	public int getIntLevel()
+	{
+		return intLevel;
+	}
+
+	/**
+	 * The level name.
+	 * 
+	 * @return The level name or null
+	 */
+	public String getLevel()
+	{
+		return level;
+	}
+
+	/**
+	 * The logger name.
+	 * 
+	 * @return The logger name or null
+	 */
+	public String getLoggerName()
+	{
+		return loggerName;
+	}
+
+	/**
+	 * The thread name.
+	 * 
+	 * @return The thread name or null
+	 */
+	public String getThreadName()
+	{
+		return threadName;
+	}
+
+	/**
+	 * The marker name.
+	 * 
+	 * @return The marker name or null
+	 */
+	public String getMarker()
+	{
+		return marker;
+	}
+
+	/**
+	 * The formatted message.
+	 * 
+	 * @return The message or null
+	 */
+	public String getMessage()
+	{
+		return message;
+	}
+
+	/**
+	 * The stack trace of the exception.
+	 * 
+	 * @return The stack trace or null
+	 */
+	public String getThrown()
+	{
+		return thrown;
+	}
+
+	/**
+	 * The thread context map.
+	 * 
+	 * @return The context map
+	 */
+	public Map<String, String> getContextMap()
+	{
+		return contextMap;
+	}
+
+	//
+	// Object
+	//
+
+	/**
+	 * Formats the entry like the "%d: %-5p [%c] %m%n" pattern layout (without
+	 * the final newline), followed by the stack trace, if there is one.
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder r = new StringBuilder();
+		r.append( new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss,SSS" ).format( new Date( timeMillis ) ) );
+		r.append( ": " );
+		String level = this.level != null ? this.level : "";
+		r.append( level );
+		for( int i = level.length(); i < 5; i++ )
+			r.append( ' ' );
+		r.append( " [" );
+		r.append( loggerName );
+		r.append( "] " );
+		r.append( message );
+		if( thrown != null )
+		{
+			r.append( '\n' );
+			r.append( thrown.endsWith( "\n" ) ? thrown.substring( 0, thrown.length() - 1 ) : thrown );
+		}
+		return r.toString();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final long timeMillis;
+
+	private final int intLevel;
+
+	private final String level;
+
+	private final String loggerName;
+
+	private final String threadName;
+
+	private final String marker;
+
+	private final String message;
+
+	private final String thrown;
+
+	private final Map<String, String> contextMap;
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The binary format shared by {@link SegmentedLogManager} and
+ * {@link SegmentedLogReader}.
+ * <p>
+ * A log is a directory of segments. Each segment is a pair of files named by a
+ * zero-padded sequence number: a data file (".seg"), which starts with
+ * {@link #MAGIC} and is followed by compressed blocks, and an index file
+ * (".idx"), which has one fixed-size entry per block:
+ * 
+ * <pre>
+ * long offset            (of the block in the data file)
+ * int compressedLength
+ * int uncompressedLength
+ * int count              (of events)
+ * int minimumLevel       (the most severe Log4j int level in the block)
+ * long minimumTime
+ * long maximumTime
+ * long[4] loggers        (a bloom filter of logger names and their prefixes)
+ * </pre>
+ * 
+ * A block is only indexed once it has been fully written, so the index alone
+ * determines what can be read. Blocks are compressed with "deflate" and can
+ * be decompressed independently. Each event in a block is written as:
+ * 
+ * <pre>
+ * varlong time           (zigzag delta from the previous event in the block)
+ * varint level           (Log4j int level)
+ * ref levelName
+ * ref loggerName
+ * ref threadName
+ * ref marker
+ * string message
+ * string thrown
+ * varint contextMapSize
+ *   ref key, string value (for each entry)
+ * </pre>
+ * 
+ * A "string" is a varint of its UTF-8 length plus one (0 for null) followed
+ * by the bytes. A "ref" refers to a per-block table of repeated strings: 0 for
+ * null, the table index plus one for a string already seen in the block, or
+ * the table size plus one followed by a new string, which is then added to the
+ * table.
+ * 
+ * @author Tal Liron
+ */
+public abstract class SegmentedLogFormat
+{
+	//
+	// Constants
+	//
+
+	public static final String SEGMENT_EXTENSION = ".seg";
+
+	public static final String INDEX_EXTENSION = ".idx";
+
+	/**
+	 * "SLOG" followed by the format version.
+	 */
+	public static final byte[] MAGIC = new byte[]
+	{
+		'S', 'L', 'O', 'G', 0, 0, 0, 1
+	};
+
+	public static final int INDEX_ENTRY_SIZE = 72;
+
+	public static final int BLOOM_LONGS = 4;
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * The segment data files in a directory, in order.
+	 * 
+	 * @param directory
+	 *        The directory
+	 * @return The files (empty if there are none)
+	 */
+	public static File[] getSegmentFiles( File directory )
+	{
+		File[] files = directory.listFiles( new FilenameFilter()
+		{
+			public boolean accept( File dir, String name )
+			{
+				return name.endsWith( SEGMENT_EXTENSION ) && ( parseSequence( name ) != -1 );
+			}
+		} );
+		if( files == null )
+			return new File[0];
+
+		// The names are zero-padded sequence numbers
+		Arrays.sort( files );
+		return files;
+	}
+
+	/**
+	 * The index file for a segment data file.
+	 * 
+	 * @param segmentFile
+	 *        The segment data file
+	 * @return The index file
+	 */
+	public static File getIndexFile( File segmentFile )
+	{
+		String name = segmentFile.getName();
+		return new File( segmentFile.getParentFile(), name.substring( 0, name.length() - SEGMENT_EXTENSION.length() ) + INDEX_EXTENSION );
+	}
+
+	/**
+	 * The sequence number of a segment file.
+	 * 
+	 * @param name
+	 *        The file name
+	 * @return The sequence number or -1 if not a segment file name
+	 */
+	public static long parseSequence( String name )
+	{
+		int dot = name.lastIndexOf( '.' );
+		try
+		{
+			return Long.parseLong( dot != -1 ? name.substring( 0, dot ) : name );
+		}
+		catch( NumberFormatException x )
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * The file name of a segment.
+	 * 
+	 * @param sequence
+	 *        The sequence number
+	 * @param extension
+	 *        The extension
+	 * @return The file name
+	 */
+	public static String toName( long sequence, String extension )
+	{
+		return String.format( "%016d", sequence ) + extension;
+	}
+
+	/**
+	 * Adds a logger name and all its dotted prefixes to a bloom filter.
+	 * 
+	 * @param bloom
+	 *        The bloom filter
+	 * @param loggerName
+	 *        The logger name
+	 */
+	public static void addToBloom( long[] bloom, String loggerName )
+	{
+		// The same hashes as String.hashCode(), computed incrementally so that
+		// we don't have to create the prefixes
+		int hash = 0;
+		int length = loggerName.length();
+		for( int i = 0; i < length; i++ )
+		{
+			char c = loggerName.charAt( i );
+			if( c == '.' )
+				setBloom( bloom, hash );
+			hash = 31 * hash + c;
+		}
+		setBloom( bloom, hash );
+	}
+
+	/**
+	 * Whether a bloom filter might contain a logger or any of its descendants.
+	 * 
+	 * @param bloom
+	 *        The bloom filter
+	 * @param loggerName
+	 *        The logger name
+	 * @return False if the bloom filter definitely does not contain it
+	 */
+	public static boolean mightContain( long[] bloom, String loggerName )
+	{
+		int hash = loggerName.hashCode();
+		int bit1 = bloomBit1( hash );
+		int bit2 = bloomBit2( hash );
+		return ( ( bloom[bit1 >>> 6] & ( 1L << bit1 ) ) != 0 ) && ( ( bloom[bit2 >>> 6] & ( 1L << bit2 ) ) != 0 );
+	}
+
+	/**
+	 * Whether a logger is the same as or a descendant of another.
+	 * 
+	 * @param loggerName
+	 *        The logger name
+	 * @param ancestor
+	 *        The ancestor logger name
+	 * @return True if it is
+	 */
+	public static boolean isDescendant( String loggerName, String ancestor )
+	{
+		if( loggerName == null )
+			return false;
+		if( !loggerName.startsWith( ancestor ) )
+			return false;
+		return ( loggerName.length() == ancestor.length() ) || ( loggerName.charAt( ancestor.length() ) == '.' );
+	}
+
+	/**
+	 * Reads a varint.
+	 * 
+	 * @param buffer
+	 *        The buffer
+	 * @return The value
+	 */
+	public static int readVarInt( ByteBuffer buffer )
+	{
+		return (int) readVarLong( buffer );
+	}
+
+	/**
+	 * Reads a varlong.
+	 * 
+	 * @param buffer
+	 *        The buffer
+	 * @return The value
+	 */
+	public static long readVarLong( ByteBuffer buffer )
+	{
+		long value = 0;
+		int shift = 0;
+		while( true )
+		{
+			byte b = buffer.get();
+			value |= (long) ( b & 0x7f ) << shift;
+			if( ( b & 0x80 ) == 0 )
+				return value;
+			shift += 7;
+		}
+	}
+
+	/**
+	 * Decodes a zigzag-encoded value.
+	 * 
+	 * @param value
+	 *        The encoded value
+	 * @return The value
+	 */
+	public static long unzigzag( long value )
+	{
+		return ( value >>> 1 ) ^ -( value & 1 );
+	}
+
+	/**
+	 * Zigzag-encodes a value, so that small negative values become small
+	 * positive values.
+	 * 
+	 * @param value
+	 *        The value
+	 * @return The encoded value
+	 */
+	public static long zigzag( long value )
+	{
+		return ( value << 1 ) ^ ( value >> 63 );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private SegmentedLogFormat()
+	{
+	}
+
+	private static void setBloom( long[] bloom, int hash )
+	{
+		int bit1 = bloomBit1( hash );
+		int bit2 = bloomBit2( hash );
+		bloom[bit1 >>> 6] |= 1L << bit1;
+		bloom[bit2 >>> 6] |= 1L << bit2;
+	}
+
+	private static int bloomBit1( int hash )
+	{
+		return ( hash * 0x9e3779b1 ) >>> 24;
+	}
+
+	private static int bloomBit2( int hash )
+	{
+		return ( ( hash * 0x85ebca6b ) >>> 16 ) & 0xff;
+	}
+}
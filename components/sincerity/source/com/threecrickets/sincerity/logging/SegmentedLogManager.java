@@ -0,0 +1,647 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.Deflater;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
+import org.apache.logging.log4j.message.Message;
+
+/**
+ * A Log4j manager that writes events to a directory in the compact binary
+ * format described in {@link SegmentedLogFormat}.
+ * <p>
+ * Events are encoded into an in-memory block, which is compressed and
+ * appended to the current segment once it reaches the block size, or at
+ * least every "flushInterval" milliseconds. Segment data files are
+ * memory-mapped. When a block does not fit in the current segment, a new
+ * segment is started, and the oldest segments beyond the maximum number are
+ * deleted.
+ * <p>
+ * Only one process can write to a directory at a time (it is locked via a
+ * "lock" file). Managers in other processes will report an error and discard
+ * their events.
+ * 
+ * @author Tal Liron
+ * @see SegmentedLogAppender
+ * @see SegmentedLogReader
+ */
+public class SegmentedLogManager extends AbstractManager
+{
+	//
+	// Constants
+	//
+
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	public static final int DEFAULT_MAXIMUM_SEGMENTS = 16;
+
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * Creates a manager, or returns the existing one for the directory.
+	 * 
+	 * @param directory
+	 *        The directory
+	 * @param blockSize
+	 *        The uncompressed block size in bytes (0 for the default)
+	 * @param segmentSize
+	 *        The size of segment data files in bytes (0 for the default)
+	 * @param maximumSegments
+	 *        The maximum number of segments to keep (0 for the default)
+	 * @param flushInterval
+	 *        The maximum time in milliseconds before a block is written (0 for
+	 *        the default)
+	 * @return The manager
+	 */
+	public static SegmentedLogManager getSegmentedLogManager( File directory, int blockSize, int segmentSize, int maximumSegments, long flushInterval )
+	{
+		return AbstractManager.getManager( directory.getAbsolutePath(), FACTORY, new FactoryData( blockSize, segmentSize, maximumSegments, flushInterval ) );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The directory.
+	 * 
+	 * @return The directory
+	 */
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * The number of events written (including those still in the current
+	 * block).
+	 * 
+	 * @return The number of events
+	 */
+	public synchronized long getWritten()
+	{
+		return written;
+	}
+
+	/**
+	 * The number of blocks written.
+	 * 
+	 * @return The number of blocks
+	 */
+	public synchronized long getBlocks()
+	{
+		return blocks;
+	}
+
+	/**
+	 * The total size of the blocks before compression.
+	 * 
+	 * @return The size in bytes
+	 */
+	public synchronized long getUncompressedBytes()
+	{
+		return uncompressedBytes;
+	}
+
+	/**
+	 * The total size of the blocks after compression.
+	 * 
+	 * @return The size in bytes
+	 */
+	public synchronized long getCompressedBytes()
+	{
+		return compressedBytes;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Writes an event.
+	 * 
+	 * @param event
+	 *        The event
+	 * @throws AppenderLoggingException
+	 *         In case of an I/O error
+	 */
+	public synchronized void write( LogEvent event )
+	{
+		if( lock == null )
+			throw new AppenderLoggingException( "Log directory is not available: " + directory );
+
+		long time = event.getTimeMillis();
+		Level level = event.getLevel();
+		String loggerName = event.getLoggerName();
+		int intLevel = level != null ? level.intLevel() : Integer.MAX_VALUE;
+
+		writeVarLong( SegmentedLogFormat.zigzag( time - previousTime ) );
+		previousTime = time;
+		writeVarLong( intLevel );
+		writeRef( level != null ? level.name() : null );
+		writeRef( loggerName );
+		writeRef( event.getThreadName() );
+		Marker marker = event.getMarker();
+		writeRef( marker != null ? marker.getName() : null );
+		Message message = event.getMessage();
+		writeString( message != null ? message.getFormattedMessage() : null );
+		writeString( toString( event.getThrown() ) );
+		Map<String, String> contextMap = event.getContextMap();
+		if( contextMap != null )
+		{
+			writeVarLong( contextMap.size() );
+			for( Map.Entry<String, String> entry : contextMap.entrySet() )
+			{
+				writeRef( entry.getKey() );
+				writeString( entry.getValue() );
+			}
+		}
+		else
+			writeVarLong( 0 );
+
+		if( count == 0 )
+		{
+			minimumTime = time;
+			maximumTime = time;
+			minimumLevel = intLevel;
+		}
+		else
+		{
+			minimumTime = Math.min( minimumTime, time );
+			maximumTime = Math.max( maximumTime, time );
+			minimumLevel = Math.min( minimumLevel, intLevel );
+		}
+		if( loggerName != null )
+			SegmentedLogFormat.addToBloom( bloom, loggerName );
+		count++;
+		written++;
+
+		if( position >= blockSize )
+			flush();
+	}
+
+	/**
+	 * Writes the current block, if it is not empty.
+	 * 
+	 * @throws AppenderLoggingException
+	 *         In case of an I/O error
+	 */
+	public synchronized void flush()
+	{
+		if( count == 0 )
+			return;
+
+		try
+		{
+			// Compress
+			deflater.setInput( block, 0, position );
+			deflater.finish();
+			int compressedLength = 0;
+			while( !deflater.finished() )
+			{
+				if( compressedLength == compressed.length )
+					compressed = Arrays.copyOf( compressed, compressed.length * 2 );
+				compressedLength += deflater.deflate( compressed, compressedLength, compressed.length - compressedLength );
+			}
+			deflater.reset();
+
+			if( compressedLength > segmentSize - SegmentedLogFormat.MAGIC.length )
+				throw new AppenderLoggingException( "Log block is too large for segment: " + directory );
+
+			if( ( segment == null ) || ( offset + compressedLength > segmentSize ) )
+				roll();
+
+			// Data
+			segment.position( (int) offset );
+			segment.put( compressed, 0, compressedLength );
+
+			// Index (this commits the block)
+			ByteBuffer entry = ByteBuffer.allocate( SegmentedLogFormat.INDEX_ENTRY_SIZE );
+			entry.putLong( offset );
+			entry.putInt( compressedLength );
+			entry.putInt( position );
+			entry.putInt( count );
+			entry.putInt( minimumLevel );
+			entry.putLong( minimumTime );
+			entry.putLong( maximumTime );
+			for( long bits : bloom )
+				entry.putLong( bits );
+			entry.flip();
+			while( entry.hasRemaining() )
+				index.write( entry );
+
+			offset += compressedLength;
+			blocks++;
+			uncompressedBytes += position;
+			compressedBytes += compressedLength;
+		}
+		catch( IOException x )
+		{
+			throw new AppenderLoggingException( "Can't write log block to " + directory, x );
+		}
+		finally
+		{
+			// A new block
+			position = 0;
+			count = 0;
+			previousTime = 0;
+			strings.clear();
+			Arrays.fill( bloom, 0 );
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Protected
+
+	//
+	// Construction
+	//
+
+	protected SegmentedLogManager( String name, File directory, int blockSize, int segmentSize, int maximumSegments, long flushInterval )
+	{
+		super( name );
+		this.directory = directory;
+		this.blockSize = blockSize > 0 ? blockSize : DEFAULT_BLOCK_SIZE;
+		this.segmentSize = segmentSize > 0 ? segmentSize : DEFAULT_SEGMENT_SIZE;
+		this.maximumSegments = maximumSegments > 0 ? maximumSegments : DEFAULT_MAXIMUM_SEGMENTS;
+		block = new byte[this.blockSize + 1024];
+		compressed = new byte[this.blockSize / 2];
+
+		try
+		{
+			if( !directory.isDirectory() && !directory.mkdirs() )
+				throw new IOException( "Could not create log directory: " + directory );
+
+			lockFile = new RandomAccessFile( new File( directory, "lock" ), "rw" );
+			try
+			{
+				lock = lockFile.getChannel().tryLock();
+			}
+			catch( OverlappingFileLockException x )
+			{
+				lock = null;
+			}
+			if( lock == null )
+			{
+				LOGGER.error( "Log directory is in use by another process: " + directory );
+				return;
+			}
+
+			resume();
+		}
+		catch( IOException x )
+		{
+			LOGGER.error( "Can't open log directory: " + directory, x );
+			releaseLock();
+			return;
+		}
+
+		flusher = new Timer( "Sincerity segmented log flusher: " + directory, true );
+		long interval = flushInterval > 0 ? flushInterval : DEFAULT_FLUSH_INTERVAL;
+		flusher.schedule( new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					flush();
+				}
+				catch( AppenderLoggingException x )
+				{
+					LOGGER.error( x.getMessage(), x.getCause() );
+				}
+			}
+		}, interval, interval );
+	}
+
+	//
+	// AbstractManager
+	//
+
+	@Override
+	protected synchronized void releaseSub()
+	{
+		if( flusher != null )
+			flusher.cancel();
+
+		try
+		{
+			flush();
+		}
+		catch( AppenderLoggingException x )
+		{
+			LOGGER.error( x.getMessage(), x.getCause() );
+		}
+
+		closeSegment();
+		releaseLock();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final SegmentedLogManagerFactory FACTORY = new SegmentedLogManagerFactory();
+
+	private final File directory;
+
+	private final int blockSize;
+
+	private final int segmentSize;
+
+	private final int maximumSegments;
+
+	private final Deflater deflater = new Deflater( Deflater.BEST_SPEED, true );
+
+	private RandomAccessFile lockFile;
+
+	private FileLock lock;
+
+	private Timer flusher;
+
+	private long nextSequence;
+
+	private MappedByteBuffer segment;
+
+	private FileChannel index;
+
+	private long offset;
+
+	private long written;
+
+	private long blocks;
+
+	private long uncompressedBytes;
+
+	private long compressedBytes;
+
+	// The current block
+
+	private byte[] block;
+
+	private int position;
+
+	private byte[] compressed;
+
+	private int count;
+
+	private long previousTime;
+
+	private long minimumTime;
+
+	private long maximumTime;
+
+	private int minimumLevel;
+
+	private final long[] bloom = new long[SegmentedLogFormat.BLOOM_LONGS];
+
+	private final HashMap<String, Integer> strings = new HashMap<String, Integer>();
+
+	/**
+	 * Continues the newest segment, if there is one.
+	 */
+	private void resume() throws IOException
+	{
+		File[] files = SegmentedLogFormat.getSegmentFiles( directory );
+		if( files.length == 0 )
+			return;
+
+		File file = files[files.length - 1];
+		nextSequence = SegmentedLogFormat.parseSequence( file.getName() ) + 1;
+		File indexFile = SegmentedLogFormat.getIndexFile( file );
+		if( ( file.length() != segmentSize ) || !indexFile.exists() )
+			// Written with another segment size, or damaged: start a new one
+			return;
+
+		openSegment( file, indexFile, false );
+
+		// Ignore an entry that was only partially written
+		long size = index.size();
+		size -= size % SegmentedLogFormat.INDEX_ENTRY_SIZE;
+		index.truncate( size );
+		index.position( size );
+
+		offset = SegmentedLogFormat.MAGIC.length;
+		if( size > 0 )
+		{
+			ByteBuffer entry = ByteBuffer.allocate( 12 );
+			index.read( entry, size - SegmentedLogFormat.INDEX_ENTRY_SIZE );
+			entry.flip();
+			offset = entry.getLong() + entry.getInt();
+		}
+	}
+
+	/**
+	 * Starts a new segment, and deletes the oldest ones.
+	 */
+	private void roll() throws IOException
+	{
+		closeSegment();
+
+		long sequence = nextSequence++;
+		openSegment( new File( directory, SegmentedLogFormat.toName( sequence, SegmentedLogFormat.SEGMENT_EXTENSION ) ), new File( directory, SegmentedLogFormat.toName( sequence,
+			SegmentedLogFormat.INDEX_EXTENSION ) ), true );
+		segment.put( SegmentedLogFormat.MAGIC );
+		offset = SegmentedLogFormat.MAGIC.length;
+
+		File[] files = SegmentedLogFormat.getSegmentFiles( directory );
+		for( int i = 0; i < files.length - maximumSegments; i++ )
+		{
+			SegmentedLogFormat.getIndexFile( files[i] ).delete();
+			files[i].delete();
+		}
+	}
+
+	private void openSegment( File file, File indexFile, boolean create ) throws IOException
+	{
+		RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+		try
+		{
+			if( create )
+				randomAccessFile.setLength( segmentSize );
+			segment = randomAccessFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, segmentSize );
+		}
+		finally
+		{
+			// The mapping remains valid after the file is closed
+			randomAccessFile.close();
+		}
+
+		RandomAccessFile indexRandomAccessFile = new RandomAccessFile( indexFile, "rw" );
+		if( create )
+			indexRandomAccessFile.setLength( 0 );
+		index = indexRandomAccessFile.getChannel();
+		index.position( index.size() );
+	}
+
+	private void closeSegment()
+	{
+		if( segment != null )
+		{
+			segment.force();
+			segment = null;
+		}
+		if( index != null )
+		{
+			try
+			{
+				index.close();
+			}
+			catch( IOException x )
+			{
+			}
+			index = null;
+		}
+	}
+
+	private void releaseLock()
+	{
+		try
+		{
+			if( lock != null )
+				lock.release();
+			if( lockFile != null )
+				lockFile.close();
+		}
+		catch( IOException x )
+		{
+		}
+		lock = null;
+		lockFile = null;
+	}
+
+	private void writeRef( String value )
+	{
+		if( value == null )
+		{
+			writeVarLong( 0 );
+			return;
+		}
+
+		Integer ref = strings.get( value );
+		if( ref != null )
+			writeVarLong( ref + 1 );
+		else
+		{
+			int size = strings.size();
+			strings.put( value, size );
+			writeVarLong( size + 1 );
+			writeString( value );
+		}
+	}
+
+	private void writeString( String value )
+	{
+		if( value == null )
+		{
+			writeVarLong( 0 );
+			return;
+		}
+
+		byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+		writeVarLong( bytes.length + 1 );
+		ensure( bytes.length );
+		System.arraycopy( bytes, 0, block, position, bytes.length );
+		position += bytes.length;
+	}
+
+	private void writeVarLong( long value )
+	{
+		ensure( 10 );
+		while( ( value & ~0x7fL ) != 0 )
+		{
+			block[position++] = (byte) ( ( value & 0x7f ) | 0x80 );
+			value >>>= 7;
+		}
+		block[position++] = (byte) value;
+	}
+
+	private void ensure( int length )
+	{
+		if( position + length > block.length )
+			block = Arrays.copyOf( block, Math.max( block.length * 2, position + length ) );
+	}
+
+	private static String toString( Throwable thrown )
+	{
+		if( thrown == null )
+			return null;
+		StringWriter writer = new StringWriter();
+		PrintWriter printWriter = new PrintWriter( writer );
+		thrown.printStackTrace( printWriter );
+		printWriter.flush();
+		return writer.toString();
+	}
+
+	/**
+	 * Creates managers.
+	 */
+	private static final class SegmentedLogManagerFactory implements ManagerFactory<SegmentedLogManager, FactoryData>
+	{
+		@Override
+		public SegmentedLogManager createManager( String name, FactoryData data )
+		{
+			return new SegmentedLogManager( name, new File( name ), data.blockSize, data.segmentSize, data.maximumSegments, data.flushInterval );
+		}
+	}
+
+	/**
+	 * Encapsulates data that {@link SegmentedLogManagerFactory} uses to create
+	 * managers.
+	 */
+	private static final class FactoryData
+	{
+		public FactoryData( int blockSize, int segmentSize, int maximumSegments, long flushInterval )
+		{
+			this.blockSize = blockSize;
+			this.segmentSize = segmentSize;
+			this.maximumSegments = maximumSegments;
+			this.flushInterval = flushInterval;
+		}
+
+		private final int blockSize;
+
+		private final int segmentSize;
+
+		private final int maximumSegments;
+
+		private final long flushInterval;
+	}
+}
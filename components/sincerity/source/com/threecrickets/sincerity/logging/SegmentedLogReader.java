@@ -0,0 +1,414 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads events written by {@link SegmentedLogManager}, filtered by time,
+ * level and logger.
+ * <p>
+ * The filters are first applied to the segment indexes (see
+ * {@link SegmentedLogFormat}), so that blocks that cannot contain matching
+ * events are neither read nor decompressed. The remaining blocks are
+ * decompressed one at a time, and their events are filtered individually.
+ * <p>
+ * It is safe to read while a log is being written, though blocks that are
+ * written after a segment has been read will not be seen. Instances are not
+ * thread-safe.
+ * 
+ * @author Tal Liron
+ */
+public class SegmentedLogReader implements Iterable<SegmentedLogEntry>
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param directory
+	 *        The log directory
+	 * @param from
+	 *        The earliest event time (system time in milliseconds), or
+	 *        {@link Long#MIN_VALUE}
+	 * @param to
+	 *        The latest event time (system time in milliseconds), or
+	 *        {@link Long#MAX_VALUE}
+	 * @param level
+	 *        The least severe Log4j int level to include (for example, 300
+	 *        for "WARN" and more severe), or {@link Integer#MAX_VALUE}
+	 * @param loggerName
+	 *        Only include this logger and its descendants, or null for all
+	 *        loggers
+	 */
+	public SegmentedLogReader( File directory, long from, long to, int level, String loggerName )
+	{
+		this.directory = directory;
+		this.from = from;
+		this.to = to;
+		this.level = level;
+		this.loggerName = loggerName;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The log directory.
+	 * 
+	 * @return The directory
+	 */
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * The number of blocks read and decompressed so far.
+	 * 
+	 * @return The number of blocks
+	 */
+	public long getBlocksRead()
+	{
+		return blocksRead;
+	}
+
+	/**
+	 * The number of blocks skipped so far thanks to the indexes.
+	 * 
+	 * @return The number of blocks
+	 */
+	public long getBlocksSkipped()
+	{
+		return blocksSkipped;
+	}
+
+	//
+	// Iterable
+	//
+
+	public Iterator<SegmentedLogEntry> iterator()
+	{
+		return new EntryIterator();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final File directory;
+
+	private final long from;
+
+	private final long to;
+
+	private final int level;
+
+	private final String loggerName;
+
+	private long blocksRead;
+
+	private long blocksSkipped;
+
+	/**
+	 * Whether a block might contain matching events, according to its index
+	 * entry.
+	 */
+	private boolean matches( ByteBuffer entry )
+	{
+		int minimumLevel = entry.getInt( 20 );
+		long minimumTime = entry.getLong( 24 );
+		long maximumTime = entry.getLong( 32 );
+		if( ( minimumLevel > level ) || ( maximumTime < from ) || ( minimumTime > to ) )
+			return false;
+
+		if( loggerName != null )
+		{
+			long[] bloom = new long[SegmentedLogFormat.BLOOM_LONGS];
+			for( int i = 0; i < bloom.length; i++ )
+				bloom[i] = entry.getLong( 40 + i * 8 );
+			if( !SegmentedLogFormat.mightContain( bloom, loggerName ) )
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Whether an event matches.
+	 */
+	private boolean matches( long time, int intLevel, String eventLoggerName )
+	{
+		if( ( intLevel > level ) || ( time < from ) || ( time > to ) )
+			return false;
+		if( ( loggerName != null ) && !SegmentedLogFormat.isDescendant( eventLoggerName, loggerName ) )
+			return false;
+		return true;
+	}
+
+	/**
+	 * Iterates the matching events in all segments, reading one block at a
+	 * time.
+	 */
+	private class EntryIterator implements Iterator<SegmentedLogEntry>
+	{
+		public boolean hasNext()
+		{
+			try
+			{
+				while( ( entries == null ) || ( entryIndex >= entries.size() ) )
+					if( !nextBlock() )
+						return false;
+				return true;
+			}
+			catch( IOException x )
+			{
+				throw new RuntimeException( "Can't read log: " + directory, x );
+			}
+		}
+
+		public SegmentedLogEntry next()
+		{
+			if( !hasNext() )
+				throw new NoSuchElementException();
+			return entries.get( entryIndex++ );
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		private final File[] segmentFiles = SegmentedLogFormat.getSegmentFiles( directory );
+
+		private final Inflater inflater = new Inflater( true );
+
+		private int segmentIndex = -1;
+
+		private FileChannel segment;
+
+		private ByteBuffer index;
+
+		private ArrayList<SegmentedLogEntry> entries;
+
+		private int entryIndex;
+
+		private byte[] compressed = new byte[0];
+
+		private byte[] uncompressed = new byte[0];
+
+		/**
+		 * Decodes the next matching block.
+		 * 
+		 * @return False if there are no more blocks
+		 */
+		private boolean nextBlock() throws IOException
+		{
+			while( true )
+			{
+				if( ( index == null ) || !index.hasRemaining() )
+				{
+					if( !nextSegment() )
+						return false;
+					continue;
+				}
+
+				ByteBuffer entry = index.slice();
+				entry.limit( SegmentedLogFormat.INDEX_ENTRY_SIZE );
+				index.position( index.position() + SegmentedLogFormat.INDEX_ENTRY_SIZE );
+
+				if( !matches( entry ) )
+				{
+					blocksSkipped++;
+					continue;
+				}
+
+				decode( entry );
+				blocksRead++;
+				return true;
+			}
+		}
+
+		/**
+		 * Opens the next segment and reads its index.
+		 * 
+		 * @return False if there are no more segments
+		 */
+		private boolean nextSegment() throws IOException
+		{
+			closeSegment();
+
+			while( ++segmentIndex < segmentFiles.length )
+			{
+				File segmentFile = segmentFiles[segmentIndex];
+				try
+				{
+					RandomAccessFile indexFile = new RandomAccessFile( SegmentedLogFormat.getIndexFile( segmentFile ), "r" );
+					try
+					{
+						// Ignore an entry that is being written
+						long size = indexFile.length();
+						size -= size % SegmentedLogFormat.INDEX_ENTRY_SIZE;
+						byte[] bytes = new byte[(int) size];
+						indexFile.readFully( bytes );
+						index = ByteBuffer.wrap( bytes );
+					}
+					finally
+					{
+						indexFile.close();
+					}
+
+					segment = new RandomAccessFile( segmentFile, "r" ).getChannel();
+					ByteBuffer magic = ByteBuffer.allocate( SegmentedLogFormat.MAGIC.length );
+					segment.read( magic, 0 );
+					if( Arrays.equals( magic.array(), SegmentedLogFormat.MAGIC ) )
+						return true;
+
+					// Not a segment, or another version of the format
+					closeSegment();
+				}
+				catch( FileNotFoundException x )
+				{
+					// Deleted by the writer while we were reading
+					closeSegment();
+				}
+			}
+
+			return false;
+		}
+
+		private void closeSegment() throws IOException
+		{
+			index = null;
+			if( segment != null )
+			{
+				segment.close();
+				segment = null;
+			}
+		}
+
+		/**
+		 * Decompresses a block and decodes its matching events.
+		 */
+		private void decode( ByteBuffer entry ) throws IOException
+		{
+			long offset = entry.getLong( 0 );
+			int compressedLength = entry.getInt( 8 );
+			int uncompressedLength = entry.getInt( 12 );
+			int count = entry.getInt( 16 );
+
+			if( compressed.length < compressedLength )
+				compressed = new byte[compressedLength];
+			if( uncompressed.length < uncompressedLength )
+				uncompressed = new byte[uncompressedLength];
+
+			ByteBuffer buffer = ByteBuffer.wrap( compressed, 0, compressedLength );
+			while( buffer.hasRemaining() )
+				if( segment.read( buffer, offset + buffer.position() ) == -1 )
+					throw new IOException( "Log segment is truncated" );
+
+			inflater.setInput( compressed, 0, compressedLength );
+			try
+			{
+				int length = 0;
+				while( ( length < uncompressedLength ) && !inflater.finished() )
+				{
+					int inflated = inflater.inflate( uncompressed, length, uncompressedLength - length );
+					if( ( inflated == 0 ) && ( inflater.needsInput() || inflater.needsDictionary() ) )
+						break;
+					length += inflated;
+				}
+				if( length != uncompressedLength )
+					throw new IOException( "Log block is corrupt" );
+			}
+			catch( DataFormatException x )
+			{
+				throw new IOException( "Log block is corrupt", x );
+			}
+			finally
+			{
+				inflater.reset();
+			}
+
+			ByteBuffer block = ByteBuffer.wrap( uncompressed, 0, uncompressedLength );
+			ArrayList<String> strings = new ArrayList<String>();
+			entries = new ArrayList<SegmentedLogEntry>();
+			entryIndex = 0;
+			long time = 0;
+			for( int i = 0; i < count; i++ )
+			{
+				time += SegmentedLogFormat.unzigzag( SegmentedLogFormat.readVarLong( block ) );
+				int intLevel = SegmentedLogFormat.readVarInt( block );
+				String levelName = readRef( block, strings );
+				String eventLoggerName = readRef( block, strings );
+				String threadName = readRef( block, strings );
+				String marker = readRef( block, strings );
+
+				// The remaining fields have to be read anyway, but we can
+				// avoid creating their strings
+				boolean matches = matches( time, intLevel, eventLoggerName );
+				String message = readString( block, matches );
+				String thrown = readString( block, matches );
+				int contextMapSize = SegmentedLogFormat.readVarInt( block );
+				LinkedHashMap<String, String> contextMap = ( matches && ( contextMapSize > 0 ) ) ? new LinkedHashMap<String, String>() : null;
+				for( int j = 0; j < contextMapSize; j++ )
+				{
+					String key = readRef( block, strings );
+					String value = readString( block, matches );
+					if( contextMap != null )
+						contextMap.put( key, value );
+				}
+
+				if( matches )
+					entries.add( new SegmentedLogEntry( time, intLevel, levelName, eventLoggerName, threadName, marker, message, thrown, contextMap ) );
+			}
+		}
+
+		private String readRef( ByteBuffer block, ArrayList<String> strings )
+		{
+			int ref = SegmentedLogFormat.readVarInt( block );
+			if( ref == 0 )
+				return null;
+			if( ref <= strings.size() )
+				return strings.get( ref - 1 );
+			String value = readString( block, true );
+			strings.add( value );
+			return value;
+		}
+
+		private String readString( ByteBuffer block, boolean create )
+		{
+			int length = SegmentedLogFormat.readVarInt( block );
+			if( length == 0 )
+				return null;
+			length--;
+			int position = block.position();
+			block.position( position + length );
+			return create ? new String( block.array(), block.arrayOffset() + position, length, StandardCharsets.UTF_8 ) : null;
+		}
+	}
+}
@@ -0,0 +1,542 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.logging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A persistent first-in-first-out queue of records, stored in a directory as a
+ * sequence of fixed-size, memory-mapped segment files.
+ * <p>
+ * Records are only ever appended to the newest segment. Each segment starts
+ * with a header holding its read and write offsets, followed by the records,
+ * each prefixed by its length. The write offset is only updated after a record
+ * has been fully written, so a record interrupted by a crash is ignored.
+ * Segments are deleted once all their records have been removed.
+ * <p>
+ * Disk usage is bounded: when adding a segment would exceed the maximum size,
+ * the oldest segments are evicted, together with their unread records (see
+ * {@link #getEvicted()}).
+ * <p>
+ * Instances are thread-safe. Only one instance can use a directory at a time,
+ * which is enforced with a file lock. If the directory is in use, a numbered
+ * subdirectory is used instead (the first one that is not in use), so that
+ * several processes can share a configuration, and records spilled by a
+ * process that has since ended are picked up by the next one.
+ * <p>
+ * Record lengths are validated when reading, so a corrupt segment is only
+ * read up to the corruption.
+ * 
+ * @author Tal Liron
+ */
+public class SpillQueue implements Closeable
+{
+	//
+	// Constants
+	//
+
+	public static final String SEGMENT_EXTENSION = ".spill";
+
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 256L * 1024 * 1024;
+
+	public static final String LOCK_FILE = "lock";
+
+	public static final int MAXIMUM_SUBDIRECTORIES = 100;
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor. Existing segments in the directory are reopened, so that
+	 * their records are not lost.
+	 * 
+	 * @param directory
+	 *        The directory (created if it does not exist); if it is in use, a
+	 *        subdirectory is used instead (see {@link #getDirectory()})
+	 * @param segmentSize
+	 *        The size of each segment file in bytes (0 for the default)
+	 * @param maximumSize
+	 *        The maximum total size of the segment files in bytes (0 for the
+	 *        default)
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public SpillQueue( File directory, int segmentSize, long maximumSize ) throws IOException
+	{
+		this.segmentSize = segmentSize > 0 ? segmentSize : DEFAULT_SEGMENT_SIZE;
+		this.maximumSize = Math.max( maximumSize > 0 ? maximumSize : DEFAULT_MAXIMUM_SIZE, this.segmentSize );
+
+		File base = directory;
+		for( int i = 1; !lock( directory ); i++ )
+		{
+			if( i > MAXIMUM_SUBDIRECTORIES )
+				throw new IOException( "Spill directory is in use: " + base );
+			directory = new File( base, Integer.toString( i ) );
+		}
+		this.directory = directory;
+
+		File[] files = directory.listFiles( new FilenameFilter()
+		{
+			public boolean accept( File dir, String name )
+			{
+				return name.endsWith( SEGMENT_EXTENSION );
+			}
+		} );
+		if( files != null )
+		{
+			// The names are zero-padded sequence numbers
+			Arrays.sort( files );
+			for( File file : files )
+			{
+				Segment segment = new Segment( file, parseSequence( file ) );
+				if( segment.isValid() )
+				{
+					segments.add( segment );
+					count += segment.count();
+					nextSequence = segment.sequence + 1;
+				}
+				else
+					segment.delete();
+			}
+
+			// Only the newest segment needs to stay mapped
+			for( Segment segment : segments )
+				if( segment != segments.getLast() )
+					segment.release();
+		}
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The directory actually used, which might be a subdirectory of the one
+	 * requested.
+	 * 
+	 * @return The directory
+	 */
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * True if there are no records.
+	 * 
+	 * @return True if empty
+	 */
+	public synchronized boolean isEmpty()
+	{
+		return count == 0;
+	}
+
+	/**
+	 * The number of records.
+	 * 
+	 * @return The number of records
+	 */
+	public synchronized long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * The total size of the segment files.
+	 * 
+	 * @return The size in bytes
+	 */
+	public synchronized long getSize()
+	{
+		return (long) segments.size() * segmentSize;
+	}
+
+	/**
+	 * The number of records evicted (since this instance was created) in
+	 * order to stay within the maximum size.
+	 * 
+	 * @return The number of evicted records
+	 */
+	public synchronized long getEvicted()
+	{
+		return evicted;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Appends a record, evicting the oldest segments if necessary.
+	 * 
+	 * @param record
+	 *        The record
+	 * @return False if the record is too large to fit in a segment
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public synchronized boolean add( byte[] record ) throws IOException
+	{
+		if( record.length > segmentSize - HEADER_SIZE - 4 )
+			return false;
+
+		Segment tail = segments.isEmpty() ? null : segments.getLast();
+		if( ( tail == null ) || !tail.add( record ) )
+		{
+			while( (long) ( segments.size() + 1 ) * segmentSize > maximumSize )
+			{
+				Segment oldest = segments.removeFirst();
+				long lost = oldest.count();
+				count -= lost;
+				evicted += lost;
+				oldest.delete();
+			}
+
+			if( tail != null )
+				tail.release();
+			tail = new Segment( new File( directory, String.format( "%016d", nextSequence ) + SEGMENT_EXTENSION ), nextSequence++ );
+			segments.add( tail );
+			tail.add( record );
+		}
+
+		count++;
+		return true;
+	}
+
+	/**
+	 * Reads the oldest records without removing them. Note that if records
+	 * are added between this call and {@link #remove(int)}, eviction might
+	 * cause other records to be removed, so it's best to add and remove from
+	 * the same thread.
+	 * 
+	 * @param maximum
+	 *        The maximum number of records to read
+	 * @return The records (empty if there are none)
+	 * @throws IOException
+	 *         In case of an I/O error
+	 * @see #remove(int)
+	 */
+	public synchronized List<byte[]> peek( int maximum ) throws IOException
+	{
+		ArrayList<byte[]> records = new ArrayList<byte[]>( (int) Math.min( maximum, count ) );
+		for( Segment segment : segments )
+		{
+			if( records.size() >= maximum )
+				break;
+			segment.peek( records, maximum );
+		}
+		return records;
+	}
+
+	/**
+	 * Removes the oldest records.
+	 * 
+	 * @param number
+	 *        The number of records to remove
+	 * @throws IOException
+	 *         In case of an I/O error
+	 * @see #peek(int)
+	 */
+	public synchronized void remove( int number ) throws IOException
+	{
+		while( ( number > 0 ) && !segments.isEmpty() )
+		{
+			Segment head = segments.getFirst();
+			int removed = head.remove( number );
+			number -= removed;
+			count -= removed;
+
+			// Don't delete the tail, we might still append to it
+			if( head.isExhausted() && ( segments.size() > 1 ) )
+			{
+				segments.removeFirst();
+				head.delete();
+			}
+			else if( removed == 0 )
+				break;
+		}
+	}
+
+	//
+	// Closeable
+	//
+
+	public synchronized void close() throws IOException
+	{
+		for( Segment segment : segments )
+			segment.release();
+
+		if( lockFile != null )
+		{
+			// Closing the file releases the lock
+			lockFile.close();
+			lockFile = null;
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Read offset and write offset.
+	 */
+	private static final int HEADER_SIZE = 8;
+
+	private final File directory;
+
+	private final int segmentSize;
+
+	private final long maximumSize;
+
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	private long nextSequence;
+
+	private long count;
+
+	private long evicted;
+
+	private RandomAccessFile lockFile;
+
+	/**
+	 * Locks a directory for this instance.
+	 * 
+	 * @param directory
+	 *        The directory (created if it does not exist)
+	 * @return False if the directory is in use
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private boolean lock( File directory ) throws IOException
+	{
+		if( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Could not create spill directory: " + directory );
+
+		RandomAccessFile lockFile = new RandomAccessFile( new File( directory, LOCK_FILE ), "rw" );
+		FileLock lock;
+		try
+		{
+			lock = lockFile.getChannel().tryLock();
+		}
+		catch( OverlappingFileLockException x )
+		{
+			// Locked by another instance in this JVM
+			lock = null;
+		}
+		catch( IOException x )
+		{
+			lockFile.close();
+			throw x;
+		}
+
+		if( lock == null )
+		{
+			lockFile.close();
+			return false;
+		}
+
+		this.lockFile = lockFile;
+		return true;
+	}
+
+	private static long parseSequence( File file )
+	{
+		String name = file.getName();
+		try
+		{
+			return Long.parseLong( name.substring( 0, name.length() - SEGMENT_EXTENSION.length() ) );
+		}
+		catch( NumberFormatException x )
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * A segment file. It is only mapped into memory while it is being read or
+	 * written.
+	 */
+	private class Segment
+	{
+		public Segment( File file, long sequence )
+		{
+			this.file = file;
+			this.sequence = sequence;
+		}
+
+		public final long sequence;
+
+		public boolean isValid() throws IOException
+		{
+			if( ( sequence < 0 ) || ( file.length() != segmentSize ) )
+				return false;
+			MappedByteBuffer buffer = map();
+			int read = buffer.getInt( 0 );
+			int write = buffer.getInt( 4 );
+			return ( read >= HEADER_SIZE ) && ( read <= write ) && ( write <= segmentSize );
+		}
+
+		public boolean isExhausted() throws IOException
+		{
+			MappedByteBuffer buffer = map();
+			return buffer.getInt( 0 ) == buffer.getInt( 4 );
+		}
+
+		public long count() throws IOException
+		{
+			MappedByteBuffer buffer = map();
+			int write = buffer.getInt( 4 );
+			long count = 0;
+			for( int position = buffer.getInt( 0 ); ( position = next( buffer, position, write ) ) != -1; )
+				count++;
+			return count;
+		}
+
+		public boolean add( byte[] record ) throws IOException
+		{
+			MappedByteBuffer buffer = map();
+			int write = buffer.getInt( 4 );
+			if( write + 4 + record.length > segmentSize )
+				return false;
+
+			buffer.putInt( write, record.length );
+			buffer.position( write + 4 );
+			buffer.put( record );
+
+			// Commit
+			buffer.putInt( 4, write + 4 + record.length );
+			return true;
+		}
+
+		public void peek( List<byte[]> records, int maximum ) throws IOException
+		{
+			MappedByteBuffer buffer = map();
+			int write = buffer.getInt( 4 );
+			int position = buffer.getInt( 0 );
+			int next;
+			while( ( records.size() < maximum ) && ( ( next = next( buffer, position, write ) ) != -1 ) )
+			{
+				byte[] record = new byte[next - position - 4];
+				buffer.position( position + 4 );
+				buffer.get( record );
+				records.add( record );
+				position = next;
+			}
+		}
+
+		public int remove( int number ) throws IOException
+		{
+			MappedByteBuffer buffer = map();
+			int write = buffer.getInt( 4 );
+			int position = buffer.getInt( 0 );
+			int removed = 0;
+			while( ( position < write ) && ( removed < number ) )
+			{
+				int next = next( buffer, position, write );
+				if( next == -1 )
+				{
+					// Discard the corrupt rest of the segment, which
+					// peek(List, int) did not return
+					position = write;
+					break;
+				}
+				position = next;
+				removed++;
+			}
+			buffer.putInt( 0, position );
+			return removed;
+		}
+
+		public void release()
+		{
+			if( buffer != null )
+			{
+				buffer.force();
+				buffer = null;
+			}
+		}
+
+		public void delete()
+		{
+			// The mapping itself is released by the garbage collector
+			buffer = null;
+			file.delete();
+		}
+
+		private final File file;
+
+		private MappedByteBuffer buffer;
+
+		/**
+		 * Finds the end of a record, validating its length.
+		 * 
+		 * @param buffer
+		 *        The buffer
+		 * @param position
+		 *        The start of the record
+		 * @param write
+		 *        The write offset
+		 * @return The end of the record, or -1 if there are no more records or
+		 *         if the length is corrupt
+		 */
+		private int next( MappedByteBuffer buffer, int position, int write )
+		{
+			if( write - position < 4 )
+				return -1;
+			int length = buffer.getInt( position );
+			if( ( length < 0 ) || ( length > write - position - 4 ) )
+				return -1;
+			return position + 4 + length;
+		}
+
+		private MappedByteBuffer map() throws IOException
+		{
+			if( buffer == null )
+			{
+				boolean create = !file.exists();
+				RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+				try
+				{
+					if( create )
+						randomAccessFile.setLength( segmentSize );
+					buffer = randomAccessFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, segmentSize );
+				}
+				finally
+				{
+					// The mapping remains valid after the file is closed
+					randomAccessFile.close();
+				}
+				if( create )
+				{
+					buffer.putInt( 0, HEADER_SIZE );
+					buffer.putInt( 4, HEADER_SIZE );
+				}
+			}
+			return buffer;
+		}
+	}
+}
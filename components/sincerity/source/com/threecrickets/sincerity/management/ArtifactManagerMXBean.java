@@ -0,0 +1,70 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+/**
+ * Management interface for managed artifacts. All durations are in
+ * milliseconds.
+ * 
+ * @author Tal Liron
+ * @see ArtifactManagerMetrics
+ */
+public interface ArtifactManagerMXBean
+{
+	/**
+	 * @return The number of artifacts unpacked
+	 */
+	public long getUnpacked();
+
+	/**
+	 * @return The number of artifacts not unpacked because they were already
+	 *         unpacked
+	 */
+	public long getSkipped();
+
+	/**
+	 * @return The number of artifacts not unpacked because they were changed
+	 *         by the user
+	 */
+	public long getKept();
+
+	/**
+	 * @return The number of unnecessary artifacts deleted
+	 */
+	public long getPruned();
+
+	/**
+	 * @return The number of times a recorded digest could be used instead of
+	 *         reading a file
+	 */
+	public long getDigestCacheHits();
+
+	/**
+	 * @return The number of times a file had to be read to calculate its digest
+	 */
+	public long getDigestCacheMisses();
+
+	/**
+	 * @return The number of times the database was saved
+	 */
+	public long getSaves();
+
+	/**
+	 * @return The duration of the last unpacking of a set of artifacts
+	 */
+	public long getLastUnpackDuration();
+
+	/**
+	 * @return The total duration of all unpacking
+	 */
+	public long getTotalUnpackDuration();
+}
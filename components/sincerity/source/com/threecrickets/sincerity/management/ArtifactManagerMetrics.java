@@ -0,0 +1,161 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide metrics of managed artifacts.
+ * 
+ * @author Tal Liron
+ * @see SincerityManagement#ARTIFACT_MANAGER
+ */
+public class ArtifactManagerMetrics implements ArtifactManagerMXBean
+{
+	//
+	// Operations
+	//
+
+	/**
+	 * Records an unpacked artifact.
+	 */
+	public void unpacked()
+	{
+		unpacked.incrementAndGet();
+	}
+
+	/**
+	 * Records an artifact that was already unpacked.
+	 */
+	public void skipped()
+	{
+		skipped.incrementAndGet();
+	}
+
+	/**
+	 * Records an artifact that was not unpacked because it was changed by the
+	 * user.
+	 */
+	public void kept()
+	{
+		kept.incrementAndGet();
+	}
+
+	/**
+	 * Records a deleted unnecessary artifact.
+	 */
+	public void pruned()
+	{
+		pruned.incrementAndGet();
+	}
+
+	/**
+	 * Records a lookup of a recorded digest.
+	 * 
+	 * @param hit
+	 *        True if the recorded digest could be used
+	 */
+	public void digestLookup( boolean hit )
+	{
+		if( hit )
+			digestCacheHits.incrementAndGet();
+		else
+			digestCacheMisses.incrementAndGet();
+	}
+
+	/**
+	 * Records a save of the database.
+	 */
+	public void saved()
+	{
+		saves.incrementAndGet();
+	}
+
+	/**
+	 * Records the unpacking of a set of artifacts that ended now.
+	 * 
+	 * @param startNanos
+	 *        The value of {@link System#nanoTime()} when the unpacking started
+	 */
+	public void unpack( long startNanos )
+	{
+		unpacks.record( startNanos );
+	}
+
+	//
+	// ArtifactManagerMXBean
+	//
+
+	public long getUnpacked()
+	{
+		return unpacked.get();
+	}
+
+	public long getSkipped()
+	{
+		return skipped.get();
+	}
+
+	public long getKept()
+	{
+		return kept.get();
+	}
+
+	public long getPruned()
+	{
+		return pruned.get();
+	}
+
+	public long getDigestCacheHits()
+	{
+		return digestCacheHits.get();
+	}
+
+	public long getDigestCacheMisses()
+	{
+		return digestCacheMisses.get();
+	}
+
+	public long getSaves()
+	{
+		return saves.get();
+	}
+
+	public long getLastUnpackDuration()
+	{
+		return unpacks.getLast();
+	}
+
+	public long getTotalUnpackDuration()
+	{
+		return unpacks.getTotal();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final AtomicLong unpacked = SincerityManagement.getCounter( "ArtifactManager.unpacked" );
+
+	private final AtomicLong skipped = SincerityManagement.getCounter( "ArtifactManager.skipped" );
+
+	private final AtomicLong kept = SincerityManagement.getCounter( "ArtifactManager.kept" );
+
+	private final AtomicLong pruned = SincerityManagement.getCounter( "ArtifactManager.pruned" );
+
+	private final AtomicLong digestCacheHits = SincerityManagement.getCounter( "ArtifactManager.digestCacheHits" );
+
+	private final AtomicLong digestCacheMisses = SincerityManagement.getCounter( "ArtifactManager.digestCacheMisses" );
+
+	private final AtomicLong saves = SincerityManagement.getCounter( "ArtifactManager.saves" );
+
+	private final Timing unpacks = new Timing( "ArtifactManager.unpacks" );
+}
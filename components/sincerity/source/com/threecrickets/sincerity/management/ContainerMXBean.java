@@ -0,0 +1,47 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+/**
+ * Management interface for Sincerity containers. All durations are in
+ * milliseconds.
+ * 
+ * @author Tal Liron
+ * @see ContainerMetrics
+ */
+public interface ContainerMXBean
+{
+	/**
+	 * @return The number of container instances created
+	 */
+	public long getContainers();
+
+	/**
+	 * @return The root directory of the last container created
+	 */
+	public String getLastRoot();
+
+	/**
+	 * @return The number of bootstraps (class loaders) created
+	 */
+	public long getBootstraps();
+
+	/**
+	 * @return The duration of the last bootstrap creation
+	 */
+	public long getLastBootstrapDuration();
+
+	/**
+	 * @return The total duration of all bootstrap creations
+	 */
+	public long getTotalBootstrapDuration();
+}
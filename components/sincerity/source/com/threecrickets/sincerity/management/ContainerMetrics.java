@@ -0,0 +1,90 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process-wide metrics of Sincerity containers.
+ * 
+ * @author Tal Liron
+ * @see SincerityManagement#CONTAINER
+ */
+public class ContainerMetrics implements ContainerMXBean
+{
+	//
+	// Operations
+	//
+
+	/**
+	 * Records the creation of a container instance.
+	 * 
+	 * @param root
+	 *        The container root directory
+	 */
+	public void container( File root )
+	{
+		containers.incrementAndGet();
+		lastRoot.set( root.getPath() );
+	}
+
+	/**
+	 * Records the creation of a bootstrap that ended now.
+	 * 
+	 * @param startNanos
+	 *        The value of {@link System#nanoTime()} when the creation started
+	 */
+	public void bootstrap( long startNanos )
+	{
+		bootstraps.record( startNanos );
+	}
+
+	//
+	// ContainerMXBean
+	//
+
+	public long getContainers()
+	{
+		return containers.get();
+	}
+
+	public String getLastRoot()
+	{
+		return lastRoot.get();
+	}
+
+	public long getBootstraps()
+	{
+		return bootstraps.getCount();
+	}
+
+	public long getLastBootstrapDuration()
+	{
+		return bootstraps.getLast();
+	}
+
+	public long getTotalBootstrapDuration()
+	{
+		return bootstraps.getTotal();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final AtomicLong containers = SincerityManagement.getCounter( "Container.containers" );
+
+	private final Timing bootstraps = new Timing( "Container.bootstraps" );
+
+	private final AtomicReference<String> lastRoot = SincerityManagement.getReference( "Container.lastRoot" );
+}
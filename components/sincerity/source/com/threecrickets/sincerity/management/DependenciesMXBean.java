@@ -0,0 +1,83 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+/**
+ * Management interface for dependency installation and resolution. All
+ * durations are in milliseconds.
+ * 
+ * @author Tal Liron
+ * @see DependenciesMetrics
+ */
+public interface DependenciesMXBean
+{
+	/**
+	 * @return The number of installations
+	 */
+	public long getInstalls();
+
+	/**
+	 * @return The duration of the last installation
+	 */
+	public long getLastInstallDuration();
+
+	/**
+	 * @return The longest duration of an installation
+	 */
+	public long getMaximumInstallDuration();
+
+	/**
+	 * @return The total duration of all installations
+	 */
+	public long getTotalInstallDuration();
+
+	/**
+	 * @return The number of resolutions
+	 */
+	public long getResolves();
+
+	/**
+	 * @return The number of resolutions that changed the dependencies
+	 */
+	public long getChangedResolves();
+
+	/**
+	 * @return The duration of the last resolution
+	 */
+	public long getLastResolveDuration();
+
+	/**
+	 * @return The total duration of all resolutions
+	 */
+	public long getTotalResolveDuration();
+
+	/**
+	 * @return The number of resolved artifacts that were downloaded
+	 */
+	public long getDownloadedArtifacts();
+
+	/**
+	 * @return The number of resolved artifacts that were found in the cache
+	 */
+	public long getCachedArtifacts();
+
+	/**
+	 * @return The number of resolved artifacts that could not be downloaded
+	 */
+	public long getFailedArtifacts();
+
+	/**
+	 * @return The ratio of cached artifacts to all resolved artifacts (0 if
+	 *         there were none)
+	 */
+	public double getCacheHitRatio();
+}
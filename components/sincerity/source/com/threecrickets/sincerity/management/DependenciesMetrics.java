@@ -0,0 +1,145 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide metrics of dependency installation and resolution.
+ * 
+ * @author Tal Liron
+ * @see SincerityManagement#DEPENDENCIES
+ */
+public class DependenciesMetrics implements DependenciesMXBean
+{
+	//
+	// Operations
+	//
+
+	/**
+	 * Records an installation that ended now.
+	 * 
+	 * @param startNanos
+	 *        The value of {@link System#nanoTime()} when the installation
+	 *        started
+	 */
+	public void install( long startNanos )
+	{
+		installs.record( startNanos );
+	}
+
+	/**
+	 * Records a resolution that ended now.
+	 * 
+	 * @param startNanos
+	 *        The value of {@link System#nanoTime()} when the resolution
+	 *        started
+	 * @param changed
+	 *        True if the resolution changed the dependencies
+	 * @param downloaded
+	 *        The number of artifacts downloaded
+	 * @param cached
+	 *        The number of artifacts found in the cache
+	 * @param failed
+	 *        The number of artifacts that could not be downloaded
+	 */
+	public void resolve( long startNanos, boolean changed, int downloaded, int cached, int failed )
+	{
+		resolves.record( startNanos );
+		if( changed )
+			changedResolves.incrementAndGet();
+		downloadedArtifacts.addAndGet( downloaded );
+		cachedArtifacts.addAndGet( cached );
+		failedArtifacts.addAndGet( failed );
+	}
+
+	//
+	// DependenciesMXBean
+	//
+
+	public long getInstalls()
+	{
+		return installs.getCount();
+	}
+
+	public long getLastInstallDuration()
+	{
+		return installs.getLast();
+	}
+
+	public long getMaximumInstallDuration()
+	{
+		return installs.getMaximum();
+	}
+
+	public long getTotalInstallDuration()
+	{
+		return installs.getTotal();
+	}
+
+	public long getResolves()
+	{
+		return resolves.getCount();
+	}
+
+	public long getChangedResolves()
+	{
+		return changedResolves.get();
+	}
+
+	public long getLastResolveDuration()
+	{
+		return resolves.getLast();
+	}
+
+	public long getTotalResolveDuration()
+	{
+		return resolves.getTotal();
+	}
+
+	public long getDownloadedArtifacts()
+	{
+		return downloadedArtifacts.get();
+	}
+
+	public long getCachedArtifacts()
+	{
+		return cachedArtifacts.get();
+	}
+
+	public long getFailedArtifacts()
+	{
+		return failedArtifacts.get();
+	}
+
+	public double getCacheHitRatio()
+	{
+		long cached = cachedArtifacts.get();
+		long all = cached + downloadedArtifacts.get() + failedArtifacts.get();
+		return all > 0 ? (double) cached / all : 0;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final Timing installs = new Timing( "Dependencies.installs" );
+
+	private final Timing resolves = new Timing( "Dependencies.resolves" );
+
+	private final AtomicLong changedResolves = SincerityManagement.getCounter( "Dependencies.changedResolves" );
+
+	private final AtomicLong downloadedArtifacts = SincerityManagement.getCounter( "Dependencies.downloadedArtifacts" );
+
+	private final AtomicLong cachedArtifacts = SincerityManagement.getCounter( "Dependencies.cachedArtifacts" );
+
+	private final AtomicLong failedArtifacts = SincerityManagement.getCounter( "Dependencies.failedArtifacts" );
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+import java.util.Map;
+
+/**
+ * Management interface for logging configured by Sincerity. All durations are
+ * in milliseconds, unless noted otherwise.
+ * 
+ * @author Tal Liron
+ * @see com.threecrickets.sincerity.logging.LoggingMetrics
+ */
+public interface LoggingMXBean
+{
+	/**
+	 * @return The capacity of the async loggers' queue, or -1 if there are no
+	 *         async loggers
+	 */
+	public long getAsyncQueueSize();
+
+	/**
+	 * @return The number of events waiting in the async loggers' queue, or -1
+	 *         if there are no async loggers
+	 */
+	public long getAsyncQueueDepth();
+
+	/**
+	 * @return The number of events that found the async queue full
+	 */
+	public long getAsyncQueueFull();
+
+	/**
+	 * @return The number of events that were discarded because the async queue
+	 *         was full
+	 */
+	public long getDiscardedEvents();
+
+	/**
+	 * @return The number of events appended by each appender by name
+	 */
+	public Map<String, Long> getAppendedEvents();
+
+	/**
+	 * @return The number of events each appender failed to append by name
+	 */
+	public Map<String, Long> getAppenderFailures();
+
+	/**
+	 * @return The average duration of appending an event in microseconds for
+	 *         each appender by name
+	 */
+	public Map<String, Long> getAppenderAverageDurations();
+
+	/**
+	 * @return The longest duration of appending an event for each appender by
+	 *         name
+	 */
+	public Map<String, Long> getAppenderMaximumDurations();
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+import java.util.Map;
+
+/**
+ * Management interface for Sincerity plugins. All durations are in
+ * milliseconds.
+ * 
+ * @author Tal Liron
+ * @see PluginsMetrics
+ */
+public interface PluginsMXBean
+{
+	/**
+	 * @return The number of plugins in the last set of plugins loaded
+	 */
+	public int getPlugins();
+
+	/**
+	 * @return The number of plugins that could not be loaded
+	 */
+	public long getFailedPlugins();
+
+	/**
+	 * @return The number of times a set of plugins was loaded
+	 */
+	public long getLoads();
+
+	/**
+	 * @return The duration of the last loading of a set of plugins
+	 */
+	public long getLastLoadDuration();
+
+	/**
+	 * @return The total duration of all plugin loading
+	 */
+	public long getTotalLoadDuration();
+
+	/**
+	 * @return The duration of the last load of each plugin by name
+	 */
+	public Map<String, Long> getPluginLoadDurations();
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide metrics of Sincerity plugins.
+ * 
+ * @author Tal Liron
+ * @see SincerityManagement#PLUGINS
+ */
+public class PluginsMetrics implements PluginsMXBean
+{
+	//
+	// Operations
+	//
+
+	/**
+	 * Records the loading of a plugin that ended now.
+	 * 
+	 * @param name
+	 *        The plugin name
+	 * @param startNanos
+	 *        The value of {@link System#nanoTime()} when the loading started
+	 */
+	public void plugin( String name, long startNanos )
+	{
+		pluginLoadDurations.put( name, ( System.nanoTime() - startNanos ) / 1000000L );
+	}
+
+	/**
+	 * Records a plugin that could not be loaded.
+	 */
+	public void failed()
+	{
+		failedPlugins.incrementAndGet();
+	}
+
+	/**
+	 * Records the loading of a set of plugins that ended now.
+	 * 
+	 * @param plugins
+	 *        The number of plugins loaded
+	 * @param startNanos
+	 *        The value of {@link System#nanoTime()} when the loading started
+	 */
+	public void loaded( int plugins, long startNanos )
+	{
+		loads.record( startNanos );
+		this.plugins.set( plugins );
+	}
+
+	//
+	// PluginsMXBean
+	//
+
+	public int getPlugins()
+	{
+		return (int) plugins.get();
+	}
+
+	public long getFailedPlugins()
+	{
+		return failedPlugins.get();
+	}
+
+	public long getLoads()
+	{
+		return loads.getCount();
+	}
+
+	public long getLastLoadDuration()
+	{
+		return loads.getLast();
+	}
+
+	public long getTotalLoadDuration()
+	{
+		return loads.getTotal();
+	}
+
+	public Map<String, Long> getPluginLoadDurations()
+	{
+		return Collections.unmodifiableMap( new TreeMap<String, Long>( pluginLoadDurations ) );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final Timing loads = new Timing( "Plugins.loads" );
+
+	private final AtomicLong failedPlugins = SincerityManagement.getCounter( "Plugins.failedPlugins" );
+
+	private final ConcurrentMap<String, Long> pluginLoadDurations = SincerityManagement.getMap( "Plugins.pluginLoadDurations" );
+
+	private final AtomicLong plugins = SincerityManagement.getCounter( "Plugins.plugins" );
+}
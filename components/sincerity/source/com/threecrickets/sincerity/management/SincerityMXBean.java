@@ -0,0 +1,57 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+/**
+ * Management interface for Sincerity command execution. All durations are in
+ * milliseconds.
+ * 
+ * @author Tal Liron
+ * @see SincerityMetrics
+ */
+public interface SincerityMXBean
+{
+	/**
+	 * @return The number of commands that completed successfully
+	 */
+	public long getCommands();
+
+	/**
+	 * @return The number of commands that failed
+	 */
+	public long getFailedCommands();
+
+	/**
+	 * @return The number of times Sincerity rebooted into a new bootstrap
+	 */
+	public long getReboots();
+
+	/**
+	 * @return The last command to complete, successfully or not
+	 */
+	public String getLastCommand();
+
+	/**
+	 * @return The duration of the last command
+	 */
+	public long getLastCommandDuration();
+
+	/**
+	 * @return The longest duration of a command
+	 */
+	public long getMaximumCommandDuration();
+
+	/**
+	 * @return The total duration of all commands
+	 */
+	public long getTotalCommandDuration();
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.threecrickets.bootstrap.Bootstrap;
+
+/**
+ * Process-wide metrics of Sincerity's core, exposed as MXBeans in the platform
+ * MBean server under the "com.threecrickets.sincerity" domain.
+ * <p>
+ * Sincerity runs in several class loaders in the same JVM (the master
+ * bootstrap, and then a bootstrap per container), each with its own copy of
+ * this class, but there can only be one MXBean per name. So the metrics keep
+ * their state in the {@link Bootstrap#getAttributes() bootstrap attributes},
+ * using only JVM classes, so that it is shared by all class loaders (see
+ * {@link #getCounter(String)}). The MXBeans registered by the first class
+ * loader thus report the metrics of all of them.
+ * <p>
+ * Creating the platform MBean server can take a while, so registration happens
+ * in a background thread, and can be disabled by setting the
+ * "sincerity.management" JVM property to "false".
+ * 
+ * @author Tal Liron
+ */
+public abstract class SincerityManagement
+{
+	//
+	// Constants
+	//
+
+	public static final String DOMAIN = "com.threecrickets.sincerity";
+
+	public static final String ENABLED_PROPERTY = "sincerity.management";
+
+	public static final SincerityMetrics SINCERITY = new SincerityMetrics();
+
+	public static final ContainerMetrics CONTAINER = new ContainerMetrics();
+
+	public static final DependenciesMetrics DEPENDENCIES = new DependenciesMetrics();
+
+	public static final ArtifactManagerMetrics ARTIFACT_MANAGER = new ArtifactManagerMetrics();
+
+	public static final PluginsMetrics PLUGINS = new PluginsMetrics();
+
+	//
+	// Static attributes
+	//
+
+	/**
+	 * A counter shared by all class loaders, created if necessary.
+	 * 
+	 * @param name
+	 *        The counter name
+	 * @return The counter
+	 */
+	public static AtomicLong getCounter( String name )
+	{
+		return shared( name, new AtomicLong() );
+	}
+
+	/**
+	 * A reference shared by all class loaders, created if necessary. The
+	 * referenced value must be of a class loaded by the JVM (not by a
+	 * bootstrap).
+	 * 
+	 * @param name
+	 *        The reference name
+	 * @return The reference
+	 */
+	public static <T> AtomicReference<T> getReference( String name )
+	{
+		return shared( name, new AtomicReference<T>() );
+	}
+
+	/**
+	 * A map shared by all class loaders, created if necessary. The keys and
+	 * values must be of classes loaded by the JVM (not by a bootstrap).
+	 * 
+	 * @param name
+	 *        The map name
+	 * @return The map
+	 */
+	public static <K, V> ConcurrentMap<K, V> getMap( String name )
+	{
+		return shared( name, new ConcurrentHashMap<K, V>() );
+	}
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * Registers the MXBeans, unless they have already been registered or
+	 * registration has been disabled. Returns immediately.
+	 */
+	public static void register()
+	{
+		if( "false".equals( System.getProperty( ENABLED_PROPERTY ) ) )
+			return;
+
+		if( !registered.compareAndSet( false, true ) )
+			return;
+
+		Thread thread = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				register( server, "Sincerity", SINCERITY );
+				register( server, "Container", CONTAINER );
+				register( server, "Dependencies", DEPENDENCIES );
+				register( server, "ArtifactManager", ARTIFACT_MANAGER );
+				register( server, "Plugins", PLUGINS );
+			}
+		}, "Sincerity management" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * Registers an additional MXBean, unless registration has been disabled.
+	 * Unlike {@link #register()}, this happens in the calling thread.
+	 * 
+	 * @param type
+	 *        The "type" key of the object name
+	 * @param mxBean
+	 *        The MXBean
+	 */
+	public static void register( String type, Object mxBean )
+	{
+		if( "false".equals( System.getProperty( ENABLED_PROPERTY ) ) )
+			return;
+
+		register( ManagementFactory.getPlatformMBeanServer(), type, mxBean );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final AtomicBoolean registered = new AtomicBoolean();
+
+	private SincerityManagement()
+	{
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T shared( String name, T state )
+	{
+		Object existing = Bootstrap.getAttributes().putIfAbsent( DOMAIN + ":" + name, state );
+		return existing != null ? (T) existing : state;
+	}
+
+	private static void register( MBeanServer server, String type, Object mxBean )
+	{
+		try
+		{
+			server.registerMBean( mxBean, new ObjectName( DOMAIN, "type", type ) );
+		}
+		catch( InstanceAlreadyExistsException x )
+		{
+			// Registered by another class loader, which shares our state
+		}
+		catch( Exception x )
+		{
+			System.err.println( "Could not register Sincerity MXBean " + type + ": " + x );
+		}
+	}
+}
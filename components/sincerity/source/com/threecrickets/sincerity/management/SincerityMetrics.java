@@ -0,0 +1,104 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process-wide metrics of Sincerity command execution.
+ * 
+ * @author Tal Liron
+ * @see SincerityManagement#SINCERITY
+ */
+public class SincerityMetrics implements SincerityMXBean
+{
+	//
+	// Operations
+	//
+
+	/**
+	 * Records a command that ended now.
+	 * 
+	 * @param command
+	 *        The command
+	 * @param startNanos
+	 *        The value of {@link System#nanoTime()} when the command started
+	 * @param succeeded
+	 *        False if the command failed
+	 */
+	public void command( Object command, long startNanos, boolean succeeded )
+	{
+		timing.record( startNanos );
+		if( !succeeded )
+			failedCommands.incrementAndGet();
+		lastCommand.set( String.valueOf( command ) );
+	}
+
+	/**
+	 * Records a reboot.
+	 */
+	public void reboot()
+	{
+		reboots.incrementAndGet();
+	}
+
+	//
+	// SincerityMXBean
+	//
+
+	public long getCommands()
+	{
+		return timing.getCount() - failedCommands.get();
+	}
+
+	public long getFailedCommands()
+	{
+		return failedCommands.get();
+	}
+
+	public long getReboots()
+	{
+		return reboots.get();
+	}
+
+	public String getLastCommand()
+	{
+		return lastCommand.get();
+	}
+
+	public long getLastCommandDuration()
+	{
+		return timing.getLast();
+	}
+
+	public long getMaximumCommandDuration()
+	{
+		return timing.getMaximum();
+	}
+
+	public long getTotalCommandDuration()
+	{
+		return timing.getTotal();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final Timing timing = new Timing( "Sincerity.commands" );
+
+	private final AtomicLong failedCommands = SincerityManagement.getCounter( "Sincerity.failedCommands" );
+
+	private final AtomicLong reboots = SincerityManagement.getCounter( "Sincerity.reboots" );
+
+	private final AtomicReference<String> lastCommand = SincerityManagement.getReference( "Sincerity.lastCommand" );
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.management;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accumulates the durations of a repeated operation. Thread-safe, and shared
+ * by all class loaders (see {@link SincerityManagement}).
+ * 
+ * @author Tal Liron
+ */
+public class Timing
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param name
+	 *        The name of the operation (unique in the JVM)
+	 */
+	public Timing( String name )
+	{
+		count = SincerityManagement.getCounter( name + ".count" );
+		last = SincerityManagement.getCounter( name + ".last" );
+		total = SincerityManagement.getCounter( name + ".total" );
+		maximum = SincerityManagement.getCounter( name + ".maximum" );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The number of times the operation completed.
+	 * 
+	 * @return The count
+	 */
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 * The duration of the last operation.
+	 * 
+	 * @return The duration in milliseconds
+	 */
+	public long getLast()
+	{
+		return last.get() / 1000000L;
+	}
+
+	/**
+	 * The total duration of all operations.
+	 * 
+	 * @return The duration in milliseconds
+	 */
+	public long getTotal()
+	{
+		return total.get() / 1000000L;
+	}
+
+	/**
+	 * The longest duration of an operation.
+	 * 
+	 * @return The duration in milliseconds
+	 */
+	public long getMaximum()
+	{
+		return maximum.get() / 1000000L;
+	}
+
+	/**
+	 * The average duration of an operation.
+	 * 
+	 * @return The duration in microseconds
+	 */
+	public long getAverageMicros()
+	{
+		long count = this.count.get();
+		return count == 0 ? 0 : total.get() / count / 1000L;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Records an operation that ends now.
+	 * 
+	 * @param startNanos
+	 *        The value of {@link System#nanoTime()} when the operation started
+	 * @return The duration in nanoseconds
+	 */
+	public long record( long startNanos )
+	{
+		long duration = System.nanoTime() - startNanos;
+		count.incrementAndGet();
+		last.set( duration );
+		total.addAndGet( duration );
+		long current;
+		while( duration > ( current = maximum.get() ) )
+			if( maximum.compareAndSet( current, duration ) )
+				break;
+		return duration;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final AtomicLong count;
+
+	private final AtomicLong last;
+
+	private final AtomicLong total;
+
+	private final AtomicLong maximum;
+}
@@ -17,9 +17,10 @@ import java.net.URL;
 import java.util.Arrays;
 
 import com.threecrickets.creel.util.DigestUtil;
-import com.threecrickets.creel.util.IoUtil;
 import com.threecrickets.sincerity.exception.SincerityException;
 import com.threecrickets.sincerity.exception.UnpackingException;
+import com.threecrickets.sincerity.management.SincerityManagement;
+import com.threecrickets.sincerity.util.IoUtil;
 
 /**
  * @author Tal Liron
@@ -43,10 +44,30 @@ public class Artifact implements Comparable<Artifact>
 	 *        The packagingContext
 	 */
 	public Artifact( File file, URL originUrl, boolean isVolatile, PackagingContext packagingContext )
+	{
+		this( file, originUrl, isVolatile, null, packagingContext );
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param file
+	 *        The intended absolute destination in the filesystem
+	 * @param originUrl
+	 *        The origin URL
+	 * @param isVolatile
+	 *        True if volatile
+	 * @param originDigest
+	 *        The precomputed origin digest or null
+	 * @param packagingContext
+	 *        The packagingContext
+	 */
+	public Artifact( File file, URL originUrl, boolean isVolatile, byte[] originDigest, PackagingContext packagingContext )
 	{
 		this.file = file;
 		this.originUrl = originUrl;
 		this.isVolatile = isVolatile;
+		this.originDigest = originDigest;
 		this.packagingContext = packagingContext;
 		path = packagingContext.getRelativePath( file );
 	}
@@ -111,6 +132,10 @@ public class Artifact implements Comparable<Artifact>
 
 	/**
 	 * The cached digest for the origin.
+	 * <p>
+	 * If not precomputed, the digest is taken from the packaging context's
+	 * origin digests cache, if available (see {@link OriginDigests}). Otherwise
+	 * it is calculated by reading the origin.
 	 * 
 	 * @return The digest
 	 * @throws SincerityException
@@ -121,7 +146,13 @@ public class Artifact implements Comparable<Artifact>
 		try
 		{
 			if( ( originDigest == null ) && ( originUrl != null ) )
-				originDigest = DigestUtil.getDigest( originUrl, "SHA-1" );
+			{
+				OriginDigests originDigests = packagingContext.getOriginDigests();
+				if( originDigests != null )
+					originDigest = originDigests.getDigest( originUrl );
+				if( originDigest == null )
+					originDigest = DigestUtil.getDigest( originUrl, OriginDigests.ALGORITHM );
+			}
 			return originDigest;
 		}
 		catch( IOException x )
@@ -140,6 +171,19 @@ public class Artifact implements Comparable<Artifact>
 		return isVolatile;
 	}
 
+	/**
+	 * True if the digest is known to be that of the file's current content.
+	 * Does not calculate the file digest.
+	 * 
+	 * @param digest
+	 *        The digest
+	 * @return True if known to be the file's digest
+	 */
+	public boolean isFileDigest( byte[] digest )
+	{
+		return ( fileDigest != null ) && Arrays.equals( fileDigest, digest );
+	}
+
 	//
 	// Operations
 	//
@@ -165,9 +209,15 @@ public class Artifact implements Comparable<Artifact>
 		{
 			if( packagingContext.getVerbosity() >= 2 )
 				packagingContext.getOut().println( "Volatile artifact already unpacked once, so not overwriting: " + path );
+			SincerityManagement.ARTIFACT_MANAGER.skipped();
 			return managedArtifacts.getOriginalDigest( this );
 		}
 
+		// Avoid reading the file if its metadata has not changed since its
+		// digest was recorded (verification always reads it)
+		if( !verify && ( fileDigest == null ) )
+			fileDigest = managedArtifacts.getUnchangedDigest( this );
+
 		byte[] currentDigest = getFileDigest();
 		byte[] newDigest = getOriginDigest();
 
@@ -195,6 +245,7 @@ public class Artifact implements Comparable<Artifact>
 					{
 						if( packagingContext.getVerbosity() >= 1 )
 							packagingContext.getOut().println( "Artifact has been changed, so not overwriting: " + path );
+						SincerityManagement.ARTIFACT_MANAGER.kept();
 						return originalDigest;
 					}
 				}
@@ -208,6 +259,7 @@ public class Artifact implements Comparable<Artifact>
 			{
 				if( packagingContext.getVerbosity() >= 2 )
 					packagingContext.getOut().println( "Artifact already unpacked: " + path );
+				SincerityManagement.ARTIFACT_MANAGER.skipped();
 				return currentDigest;
 			}
 		}
@@ -217,25 +269,27 @@ public class Artifact implements Comparable<Artifact>
 				packagingContext.getOut().println( "Unpacking artifact: " + path );
 		}
 
-		// Unpack
+		// Unpack (the digest is calculated while copying, so we don't have to
+		// read the file again)
 		try
 		{
-			IoUtil.copy( originUrl, file, null );
+			fileDigest = IoUtil.copyWithDigest( originUrl, file, OriginDigests.ALGORITHM );
 		}
 		catch( IOException x )
 		{
+			fileDigest = null;
 			throw new UnpackingException( "Could not copy artifact from " + originUrl + " to " + file + ": " + x.getMessage(), x );
 		}
-		fileDigest = null;
 
 		// Verify
 		if( verify )
 		{
-			if( !Arrays.equals( getFileDigest(), getOriginDigest() ) )
+			if( !Arrays.equals( fileDigest, newDigest ) )
 				throw new UnpackingException( "Artifact incorrectly unpacked from " + originUrl + " to " + file );
 		}
 
-		return getFileDigest();
+		SincerityManagement.ARTIFACT_MANAGER.unpacked();
+		return fileDigest;
 	}
 
 	//
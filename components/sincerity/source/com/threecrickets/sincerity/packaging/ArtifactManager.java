@@ -12,24 +12,32 @@
 package com.threecrickets.sincerity.packaging;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Set;
 
 import com.threecrickets.creel.util.HexUtil;
 import com.threecrickets.sincerity.exception.SincerityException;
+import com.threecrickets.sincerity.management.SincerityManagement;
 import com.threecrickets.sincerity.util.IoUtil;
+import com.threecrickets.sincerity.util.PropertiesJournal;
 
 /**
  * This class manages a database of artifacts.
  * <p>
  * The database is normally stored in "/configuration/sincerity/artifacts.conf".
+ * Changes are appended to a journal next to it, which is periodically compacted
+ * back into it (see {@link PropertiesJournal}), so that a crash while saving
+ * cannot corrupt the database.
+ * <p>
+ * Instances are thread-safe, so that artifacts can be unpacked concurrently
+ * (see {@link Unpacker}). Several instances may also save to the same database
+ * concurrently, as each only appends its own changes.
  * 
  * @author Tal Liron
  */
@@ -50,7 +58,7 @@ public class ArtifactManager
 	 */
 	public ArtifactManager( File file, PackagingContext packagingContext )
 	{
-		this.file = file;
+		journal = new PropertiesJournal( file, "Managed by Sincerity" );
 		this.packagingContext = packagingContext;
 	}
 
@@ -67,7 +75,7 @@ public class ArtifactManager
 	 * @throws SincerityException
 	 *         In case of an error
 	 */
-	public boolean wasInstalled( Artifact artifact ) throws SincerityException
+	public synchronized boolean wasInstalled( Artifact artifact ) throws SincerityException
 	{
 		load();
 
@@ -87,7 +95,7 @@ public class ArtifactManager
 	 * @throws SincerityException
 	 *         In case of an error
 	 */
-	public byte[] getOriginalDigest( Artifact artifact ) throws SincerityException
+	public synchronized byte[] getOriginalDigest( Artifact artifact ) throws SincerityException
 	{
 		load();
 
@@ -98,6 +106,60 @@ public class ArtifactManager
 		return null;
 	}
 
+	/**
+	 * The digest recorded for the artifact's file, but only if the file's
+	 * metadata (size, last-modified timestamp and inode) has not changed since
+	 * it was recorded. This allows callers to avoid reading unchanged files in
+	 * order to calculate their digests.
+	 * 
+	 * @param artifact
+	 *        The artifact
+	 * @return The digest or null if unknown or if the file may have changed
+	 * @throws SincerityException
+	 *         In case of an error
+	 * @see FileStat
+	 */
+	public byte[] getUnchangedDigest( Artifact artifact ) throws SincerityException
+	{
+		Entry entry;
+		synchronized( this )
+		{
+			load();
+			entry = entries.get( artifact.getPath() );
+		}
+
+		if( ( entry == null ) || ( entry.stat == null ) || ( entry.originalDigest == null ) )
+		{
+			SincerityManagement.ARTIFACT_MANAGER.digestLookup( false );
+			return null;
+		}
+
+		boolean unchanged = entry.stat.equals( readStat( artifact.getFile() ) );
+		SincerityManagement.ARTIFACT_MANAGER.digestLookup( unchanged );
+		return unchanged ? entry.originalDigest : null;
+	}
+
+	/**
+	 * The paths of all artifacts for which a digest was recorded, which are
+	 * those unpacked from packages. Unlike downloaded libraries, such artifacts
+	 * may be modified by the user or overwritten by new versions of their
+	 * packages.
+	 * 
+	 * @return The paths relative to the packaging context root
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	public synchronized Set<String> getUnpackedPaths() throws SincerityException
+	{
+		load();
+
+		HashSet<String> paths = new HashSet<String>();
+		for( Map.Entry<String, Entry> entry : entries.entrySet() )
+			if( entry.getValue().originalDigest != null )
+				paths.add( entry.getKey() );
+		return paths;
+	}
+
 	//
 	// Operations
 	//
@@ -105,6 +167,9 @@ public class ArtifactManager
 	/**
 	 * Adds the artifact to the database, marking the configuration file as
 	 * requiring a save if the addition caused a change.
+	 * <p>
+	 * If the digest is known to be that of the artifact's current file, the
+	 * file's metadata is recorded, too. See {@link #getUnchangedDigest(Artifact)}.
 	 * 
 	 * @param artifact
 	 *        The artifact
@@ -117,51 +182,90 @@ public class ArtifactManager
 	 */
 	public void add( Artifact artifact, boolean installed, byte[] digest ) throws SincerityException
 	{
-		load();
-
-		Entry entry = new Entry( artifact, installed, digest );
+		FileStat stat = installed && ( digest != null ) && artifact.isFileDigest( digest ) ? readStat( artifact.getFile() ) : null;
+		Entry entry = new Entry( installed, digest, stat );
 		String key = artifact.getPath();
-		Entry existing = entries.get( key );
-		if( ( existing != null ) && ( existing.equals( entry ) ) )
-			return;
 
-		changed = true;
-		entries.put( key, entry );
+		synchronized( this )
+		{
+			load();
+
+			Entry existing = entries.get( key );
+			if( ( existing != null ) && ( existing.equals( entry ) ) )
+				return;
+
+			entries.put( key, entry );
+			changes.put( key, entry.toString() );
+		}
 	}
 
 	/**
-	 * Saves the database if there were changes.
+	 * Records the current metadata of an artifact's file, but only if the
+	 * given digest, which is known to be that of the file's current content,
+	 * is the one recorded for the artifact. This is useful for files that were
+	 * copied verbatim from elsewhere together with the database, such that the
+	 * recorded metadata refers to the original files. See
+	 * {@link #getUnchangedDigest(Artifact)}.
 	 * 
+	 * @param path
+	 *        The artifact's path relative to the packaging context root
+	 * @param digest
+	 *        The digest of the file's current content
+	 * @return True if the metadata was recorded
 	 * @throws SincerityException
 	 *         In case of an error
 	 */
-	public void save() throws SincerityException
+	public boolean restat( String path, byte[] digest ) throws SincerityException
 	{
-		if( !changed )
-			return;
-
-		Properties properties = new Properties();
-		for( Map.Entry<String, Entry> entry : entries.entrySet() )
-			properties.put( entry.getKey(), entry.getValue().toString() );
+		FileStat stat = readStat( new File( packagingContext.getRoot(), path ) );
+		if( stat == null )
+			return false;
 
-		try
+		synchronized( this )
 		{
-			FileOutputStream stream = new FileOutputStream( file );
-			try
-			{
-				properties.store( stream, "Managed by Sincerity" );
-			}
-			finally
+			load();
+
+			Entry existing = entries.get( path );
+			if( ( existing == null ) || !Arrays.equals( existing.originalDigest, digest ) )
+				return false;
+
+			Entry entry = new Entry( existing.wasInstalled(), digest, stat );
+			if( !existing.equals( entry ) )
 			{
-				stream.close();
+				entries.put( path, entry );
+				changes.put( path, entry.toString() );
 			}
+			return true;
+		}
+	}
+
+	/**
+	 * Saves the database if there were changes, together with the origin
+	 * digests cache (see {@link OriginDigests}).
+	 * 
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	public synchronized void save() throws SincerityException
+	{
+		OriginDigests originDigests = packagingContext.getOriginDigests();
+		if( originDigests != null )
+			originDigests.save();
+
+		if( changes.isEmpty() )
+			return;
+
+		try
+		{
+			journal.append( changes );
 		}
 		catch( IOException x )
 		{
 			throw new SincerityException( "Could not write artifacts configuration", x );
 		}
 
-		changed = false;
+		changes.clear();
+		SincerityManagement.ARTIFACT_MANAGER.saved();
 	}
 
 	/**
@@ -187,35 +291,26 @@ public class ArtifactManager
 	 * @throws SincerityException
 	 *         In case of an error
 	 */
-	public void prune( Iterable<Artifact> necessaryArtifacts ) throws SincerityException
+	public synchronized void prune( Iterable<Artifact> necessaryArtifacts ) throws SincerityException
 	{
 		load();
 
+		HashSet<String> necessaryPaths = new HashSet<String>();
+		if( necessaryArtifacts != null )
+			for( Artifact necessaryArtifact : necessaryArtifacts )
+				necessaryPaths.add( necessaryArtifact.getPath() );
+
 		for( Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext(); )
 		{
 			Map.Entry<String, Entry> e = i.next();
 			String path = e.getKey();
 			Entry entry = e.getValue();
 
-			// Is the entry still necessary?
-			boolean necessary = false;
-			if( necessaryArtifacts != null )
-			{
-				for( Artifact necessaryArtifact : necessaryArtifacts )
-				{
-					if( path.equals( necessaryArtifact.getPath() ) )
-					{
-						necessary = true;
-						break;
-					}
-				}
-			}
-
-			// Nope!
-			if( !necessary )
+			// Is the entry still necessary? Nope!
+			if( !necessaryPaths.contains( path ) )
 			{
 				i.remove();
-				changed = true;
+				changes.put( path, null );
 
 				File file = new File( packagingContext.getRoot(), path );
 
@@ -226,8 +321,9 @@ public class ArtifactManager
 					continue;
 				}
 
-				// Keep changed artifacts
-				if( entry.originalDigest != null )
+				// Keep changed artifacts (no need to compare digests if the
+				// file's metadata has not changed)
+				if( ( entry.originalDigest != null ) && ( ( entry.stat == null ) || !entry.stat.equals( readStat( file ) ) ) )
 				{
 					try
 					{
@@ -249,6 +345,7 @@ public class ArtifactManager
 					packagingContext.getOut().println( "Deleting unnecessary artifact: " + file );
 				if( !file.delete() )
 					throw new SincerityException( "Could not delete unnecessary artifact: " + file );
+				SincerityManagement.ARTIFACT_MANAGER.pruned();
 				try
 				{
 					IoUtil.deleteEmptyDirectoryRecursive( file.getParentFile() );
@@ -266,14 +363,35 @@ public class ArtifactManager
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
-	private final File file;
+	private final PropertiesJournal journal;
 
 	private final PackagingContext packagingContext;
 
-	private boolean changed;
+	private final Map<String, String> changes = new LinkedHashMap<String, String>();
 
 	private Map<String, Entry> entries;
 
+	/**
+	 * Reads a file's metadata.
+	 * 
+	 * @param file
+	 *        The file
+	 * @return The metadata or null if the file does not exist
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	private static FileStat readStat( File file ) throws SincerityException
+	{
+		try
+		{
+			return FileStat.read( file );
+		}
+		catch( IOException x )
+		{
+			throw new SincerityException( "Could not read file attributes: " + file, x );
+		}
+	}
+
 	/**
 	 * Loads and caches the database.
 	 * 
@@ -284,33 +402,19 @@ public class ArtifactManager
 	{
 		if( entries == null )
 		{
-			entries = new HashMap<String, Entry>();
-
-			Properties properties = new Properties();
+			Map<String, String> properties;
 			try
 			{
-				FileInputStream stream = new FileInputStream( file );
-				try
-				{
-					try
-					{
-						properties.load( stream );
-						for( Map.Entry<Object, Object> entry : properties.entrySet() )
-							entries.put( entry.getKey().toString(), new Entry( entry.getValue() ) );
-					}
-					finally
-					{
-						stream.close();
-					}
-				}
-				catch( IOException x )
-				{
-					throw new SincerityException( "Could not read artifacts configuration", x );
-				}
+				properties = journal.read();
 			}
-			catch( FileNotFoundException x )
+			catch( IOException x )
 			{
+				throw new SincerityException( "Could not read artifacts configuration", x );
 			}
+
+			entries = new HashMap<String, Entry>( properties.size() );
+			for( Map.Entry<String, String> entry : properties.entrySet() )
+				entries.put( entry.getKey(), new Entry( entry.getValue() ) );
 		}
 	}
 
@@ -319,15 +423,16 @@ public class ArtifactManager
 	 */
 	private static class Entry
 	{
-		public Entry( Artifact artifact, boolean installed, byte[] digest ) throws SincerityException
+		public Entry( boolean installed, byte[] digest, FileStat stat )
 		{
 			flags = installed ? INSTALLED : 0;
 			originalDigest = digest;
+			this.stat = stat;
 		}
 
 		public Entry( Object value ) throws SincerityException
 		{
-			String[] parsed = value.toString().split( ",", 2 );
+			String[] parsed = value.toString().split( ",", 3 );
 			if( parsed.length < 1 )
 				throw new SincerityException( "Could not parse artifacts configuration: " + value );
 
@@ -337,10 +442,21 @@ public class ArtifactManager
 				originalDigest = HexUtil.fromHex( parsed[1] );
 			else
 				originalDigest = null;
+
+			if( parsed.length >= 3 )
+				stat = FileStat.parse( parsed[2] );
+			else
+				stat = null;
 		}
 
 		public final byte[] originalDigest;
 
+		/**
+		 * The file's metadata when its digest was equal to originalDigest, or
+		 * null if unknown.
+		 */
+		public final FileStat stat;
+
 		public boolean wasInstalled()
 		{
 			return ( flags & INSTALLED ) != 0;
@@ -352,7 +468,7 @@ public class ArtifactManager
 			if( !( o instanceof Entry ) )
 				return false;
 			Entry entry = (Entry) o;
-			return ( flags == entry.flags ) && Arrays.equals( originalDigest, entry.originalDigest );
+			return ( flags == entry.flags ) && Arrays.equals( originalDigest, entry.originalDigest ) && ( stat == null ? entry.stat == null : stat.equals( entry.stat ) );
 		}
 
 		@Override
@@ -360,8 +476,10 @@ public class ArtifactManager
 		{
 			if( originalDigest == null )
 				return Byte.toString( flags );
-			else
+			else if( stat == null )
 				return Byte.toString( flags ) + "," + HexUtil.toHex( originalDigest );
+			else
+				return Byte.toString( flags ) + "," + HexUtil.toHex( originalDigest ) + "," + stat;
 		}
 
 		private static final byte INSTALLED = 1;
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.packaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Filesystem metadata for a file: its size, last-modified timestamp and, where
+ * the filesystem supports it, a unique key (on Unix-like systems this is the
+ * device and inode).
+ * <p>
+ * If the metadata of a file has not changed since we last calculated its
+ * digest, we can safely assume that its content has not changed either, and
+ * avoid reading it again. This is the same heuristic used by tools such as
+ * rsync and make.
+ * 
+ * @author Tal Liron
+ * @see ArtifactManager
+ */
+public class FileStat
+{
+	//
+	// Static operations
+	//
+
+	/**
+	 * Reads the current metadata of a file.
+	 * 
+	 * @param file
+	 *        The file
+	 * @return The metadata or null if the file does not exist
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public static FileStat read( File file ) throws IOException
+	{
+		try
+		{
+			BasicFileAttributes attributes = Files.readAttributes( file.toPath(), BasicFileAttributes.class );
+			if( !attributes.isRegularFile() )
+				return null;
+			Object key = attributes.fileKey();
+			return new FileStat( attributes.size(), attributes.lastModifiedTime().toMillis(), key != null ? key.toString() : null );
+		}
+		catch( NoSuchFileException x )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Parses metadata previously serialized via {@link #toString()}.
+	 * 
+	 * @param value
+	 *        The serialized metadata
+	 * @return The metadata or null if it could not be parsed
+	 */
+	public static FileStat parse( String value )
+	{
+		String[] parsed = value.split( SEPARATOR, 3 );
+		if( parsed.length < 2 )
+			return null;
+		try
+		{
+			long size = Long.parseLong( parsed[0] );
+			long lastModified = Long.parseLong( parsed[1] );
+			String key = ( parsed.length > 2 ) && ( parsed[2].length() > 0 ) ? parsed[2] : null;
+			return new FileStat( size, lastModified, key );
+		}
+		catch( NumberFormatException x )
+		{
+			return null;
+		}
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param size
+	 *        The size in bytes
+	 * @param lastModified
+	 *        The last-modified timestamp in milliseconds
+	 * @param key
+	 *        The unique file key or null
+	 */
+	public FileStat( long size, long lastModified, String key )
+	{
+		this.size = size;
+		this.lastModified = lastModified;
+		this.key = key;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The size in bytes.
+	 * 
+	 * @return The size
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * The last-modified timestamp in milliseconds.
+	 * 
+	 * @return The timestamp
+	 */
+	public long getLastModified()
+	{
+		return lastModified;
+	}
+
+	/**
+	 * The unique file key (device and inode on Unix-like systems).
+	 * 
+	 * @return The key or null if not supported by the filesystem
+	 */
+	public String getKey()
+	{
+		return key;
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public int hashCode()
+	{
+		return (int) ( size ^ lastModified );
+	}
+
+	@Override
+	public boolean equals( Object o )
+	{
+		if( this == o )
+			return true;
+		if( !( o instanceof FileStat ) )
+			return false;
+		FileStat stat = (FileStat) o;
+		return ( size == stat.size ) && ( lastModified == stat.lastModified ) && ( key == null ? stat.key == null : key.equals( stat.key ) );
+	}
+
+	@Override
+	public String toString()
+	{
+		return size + SEPARATOR + lastModified + SEPARATOR + ( key != null ? key : "" );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final String SEPARATOR = ",";
+
+	private final long size;
+
+	private final long lastModified;
+
+	private final String key;
+}
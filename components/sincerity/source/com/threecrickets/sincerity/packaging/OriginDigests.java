@@ -0,0 +1,595 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.packaging;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.threecrickets.creel.util.DigestUtil;
+import com.threecrickets.creel.util.HexUtil;
+import com.threecrickets.sincerity.exception.SincerityException;
+import com.threecrickets.sincerity.exception.UnpackingException;
+
+/**
+ * A cache of origin digests for artifacts packaged in Jars (see
+ * {@link Package}).
+ * <p>
+ * Calculating the origin digest of a packaged artifact requires inflating its
+ * Jar entry. Because package Jars do not change once downloaded, we calculate
+ * the digests for all entries of a Jar in a single pass, the first time any of
+ * them is needed, and store them together with the Jar's file metadata (see
+ * {@link FileStat}). As long as the Jar's metadata is unchanged, subsequent
+ * installations will not need to read it at all.
+ * <p>
+ * Changes are only written when {@link #save()} is called, which
+ * {@link ArtifactManager#save()} does once per installation.
+ * <p>
+ * The cache is normally stored in
+ * "/configuration/sincerity/origin-digests.conf", next to the managed
+ * artifacts database (see {@link ArtifactManager}).
+ * <p>
+ * Instances are thread-safe. Only one thread will ever calculate the digests
+ * for a Jar, while other threads needing them will wait.
+ * <p>
+ * The class can also be run as a program at package build time, in order to
+ * generate the resource referred to by the "Package-Digests" manifest tag:
+ * 
+ * <pre>
+ * java com.threecrickets.sincerity.packaging.OriginDigests [jar or directory] [output file] [prefix]
+ * </pre>
+ * 
+ * When a directory is given, the optional prefix is prepended to the relative
+ * paths of its files, so that they match the names of the Jar entries that
+ * will be assembled from them.
+ * 
+ * @author Tal Liron
+ * @see Artifact#getOriginDigest()
+ */
+public class OriginDigests
+{
+	//
+	// Constants
+	//
+
+	public static final String ALGORITHM = "SHA-1";
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * Generates a digests resource for a package.
+	 * 
+	 * @param arguments
+	 *        The source Jar or directory, the output file, and an optional
+	 *        prefix for entry names (only used for directories)
+	 * @throws Exception
+	 *         In case of an error
+	 */
+	public static void main( String[] arguments ) throws Exception
+	{
+		if( arguments.length < 2 )
+		{
+			System.err.println( "Usage: " + OriginDigests.class.getName() + " [jar or directory] [output file] [prefix]" );
+			System.exit( 1 );
+		}
+
+		File source = new File( arguments[0] );
+		Map<String, byte[]> digests;
+		if( source.isDirectory() )
+		{
+			digests = new HashMap<String, byte[]>();
+			digestDirectory( source, arguments.length > 2 ? arguments[2] : "", digests );
+		}
+		else
+			digests = digestJar( source );
+
+		Properties properties = new Properties();
+		for( Map.Entry<String, byte[]> entry : digests.entrySet() )
+			properties.put( entry.getKey(), HexUtil.toHex( entry.getValue() ) );
+
+		OutputStream stream = new FileOutputStream( arguments[1] );
+		try
+		{
+			properties.store( stream, "Package digests (" + ALGORITHM + ")" );
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	/**
+	 * Reads a digests resource, as generated by {@link #main(String[])}.
+	 * 
+	 * @param url
+	 *        The resource URL
+	 * @return The digests mapped by Jar entry name
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public static Map<String, byte[]> read( URL url ) throws IOException
+	{
+		Properties properties = new Properties();
+		InputStream stream = url.openStream();
+		try
+		{
+			properties.load( stream );
+		}
+		finally
+		{
+			stream.close();
+		}
+
+		HashMap<String, byte[]> digests = new HashMap<String, byte[]>( properties.size() );
+		for( Map.Entry<Object, Object> entry : properties.entrySet() )
+			digests.put( entry.getKey().toString(), HexUtil.fromHex( entry.getValue().toString() ) );
+		return digests;
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param file
+	 *        The cache file (usually
+	 *        "/configuration/sincerity/origin-digests.conf")
+	 */
+	public OriginDigests( File file )
+	{
+		this.file = file;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The origin digest for a "jar:" URL pointing to an entry in a local Jar
+	 * file. If the digests for the Jar are not cached, or if the Jar has
+	 * changed since they were cached, they will be calculated for all its
+	 * entries and saved.
+	 * 
+	 * @param url
+	 *        The origin URL
+	 * @return The digest or null if the URL is not supported or the entry does
+	 *         not exist
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	public byte[] getDigest( URL url ) throws SincerityException
+	{
+		if( !"jar".equals( url.getProtocol() ) )
+			return null;
+
+		String spec = url.getFile();
+		int separator = spec.indexOf( "!/" );
+		if( separator == -1 )
+			return null;
+
+		File jarFile;
+		try
+		{
+			URL jarUrl = new URL( spec.substring( 0, separator ) );
+			if( !"file".equals( jarUrl.getProtocol() ) )
+				return null;
+			jarFile = new File( jarUrl.toURI() );
+		}
+		catch( IOException x )
+		{
+			return null;
+		}
+		catch( URISyntaxException x )
+		{
+			return null;
+		}
+
+		return getJar( jarFile ).getDigest( spec.substring( separator + 2 ) );
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Moves the cached digests of Jars under one directory to the
+	 * corresponding Jars under another directory, which must be a verbatim
+	 * copy of the first, recording the metadata of the new files. This is
+	 * useful when the cache itself was copied together with the Jars, such
+	 * that its entries refer to the original files. Entries for original Jars
+	 * that have changed since they were cached are dropped rather than moved.
+	 * <p>
+	 * Changes are only written when {@link #save()} is called.
+	 * 
+	 * @param fromRoot
+	 *        The original directory
+	 * @param toRoot
+	 *        The directory to which it was copied
+	 * @return The number of Jars moved
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	public synchronized int relocate( File fromRoot, File toRoot ) throws SincerityException
+	{
+		load();
+
+		Path from = fromRoot.toPath().toAbsolutePath().normalize();
+		Path to = toRoot.toPath().toAbsolutePath().normalize();
+		if( from.equals( to ) )
+			return 0;
+
+		HashMap<String, Jar> relocated = new HashMap<String, Jar>();
+		for( Iterator<Map.Entry<String, Jar>> i = jars.entrySet().iterator(); i.hasNext(); )
+		{
+			Map.Entry<String, Jar> entry = i.next();
+			Path path = new File( entry.getKey() ).toPath();
+			if( !path.startsWith( from ) )
+				continue;
+
+			i.remove();
+			changed = true;
+
+			Jar jar = entry.getValue();
+			if( jar.stat == null )
+				continue;
+
+			File jarFile = to.resolve( from.relativize( path ) ).toFile();
+			FileStat stat;
+			try
+			{
+				if( jar.jarFile.exists() && !jar.stat.equals( FileStat.read( jar.jarFile ) ) )
+					continue;
+				stat = FileStat.read( jarFile );
+			}
+			catch( IOException x )
+			{
+				throw new SincerityException( "Could not read jar file: " + jarFile, x );
+			}
+			if( stat == null )
+				continue;
+
+			relocated.put( jarFile.getAbsolutePath(), new Jar( jarFile, stat, jar.digests ) );
+		}
+
+		jars.putAll( relocated );
+		return relocated.size();
+	}
+
+	/**
+	 * Saves the cache if it has changed, leaving out Jars that no longer
+	 * exist. The file is replaced atomically, so that an interrupted save
+	 * cannot corrupt it.
+	 * 
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	public synchronized void save() throws SincerityException
+	{
+		if( jars == null )
+			return;
+
+		for( Iterator<Jar> i = jars.values().iterator(); i.hasNext(); )
+		{
+			if( !i.next().jarFile.exists() )
+			{
+				i.remove();
+				changed = true;
+			}
+		}
+
+		if( !changed )
+			return;
+
+		Properties properties = new Properties();
+		for( Map.Entry<String, Jar> entry : jars.entrySet() )
+		{
+			String path = entry.getKey();
+			Jar jar = entry.getValue();
+			if( jar.stat == null )
+				continue;
+
+			properties.put( path, jar.stat.toString() );
+			for( Map.Entry<String, byte[]> digest : jar.digests.entrySet() )
+				properties.put( path + "!/" + digest.getKey(), HexUtil.toHex( digest.getValue() ) );
+		}
+
+		try
+		{
+			File parent = file.getAbsoluteFile().getParentFile();
+			parent.mkdirs();
+			File temporaryFile = Files.createTempFile( parent.toPath(), file.getName(), ".tmp" ).toFile();
+			try
+			{
+				FileOutputStream stream = new FileOutputStream( temporaryFile );
+				try
+				{
+					properties.store( stream, "Managed by Sincerity" );
+					stream.flush();
+					stream.getFD().sync();
+				}
+				finally
+				{
+					stream.close();
+				}
+
+				try
+				{
+					Files.move( temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+				}
+				catch( AtomicMoveNotSupportedException x )
+				{
+					Files.move( temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+				}
+			}
+			finally
+			{
+				Files.deleteIfExists( temporaryFile.toPath() );
+			}
+		}
+		catch( IOException x )
+		{
+			throw new SincerityException( "Could not write origin digests", x );
+		}
+
+		changed = false;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final File file;
+
+	private Map<String, Jar> jars;
+
+	private boolean changed;
+
+	/**
+	 * Calculates the digests for all entries in a Jar.
+	 * 
+	 * @param jarFile
+	 *        The Jar file
+	 * @return The digests mapped by entry name
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private static Map<String, byte[]> digestJar( File jarFile ) throws IOException
+	{
+		JarFile jar = new JarFile( jarFile, false );
+		try
+		{
+			HashMap<String, byte[]> digests = new HashMap<String, byte[]>( jar.size() );
+			for( Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); )
+			{
+				JarEntry entry = e.nextElement();
+				if( entry.isDirectory() )
+					continue;
+
+				InputStream stream = jar.getInputStream( entry );
+				try
+				{
+					digests.put( entry.getName(), DigestUtil.getDigest( stream, ALGORITHM ) );
+				}
+				finally
+				{
+					stream.close();
+				}
+			}
+			return digests;
+		}
+		finally
+		{
+			jar.close();
+		}
+	}
+
+	/**
+	 * Calculates the digests for all files in a directory, recursively.
+	 * 
+	 * @param directory
+	 *        The directory
+	 * @param prefix
+	 *        The prefix for names
+	 * @param digests
+	 *        The digests mapped by name
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private static void digestDirectory( File directory, String prefix, Map<String, byte[]> digests ) throws IOException
+	{
+		File[] children = directory.listFiles();
+		if( children == null )
+			return;
+
+		for( File child : children )
+		{
+			String name = prefix + child.getName();
+			if( child.isDirectory() )
+				digestDirectory( child, name + "/", digests );
+			else
+				digests.put( name, DigestUtil.getDigest( child, ALGORITHM ) );
+		}
+	}
+
+	/**
+	 * Loads the cache, if it wasn't loaded yet.
+	 * 
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	private void load() throws SincerityException
+	{
+		if( jars == null )
+		{
+			jars = new HashMap<String, Jar>();
+
+			Properties properties = new Properties();
+			try
+			{
+				FileInputStream stream = new FileInputStream( file );
+				try
+				{
+					try
+					{
+						properties.load( stream );
+					}
+					finally
+					{
+						stream.close();
+					}
+				}
+				catch( IOException x )
+				{
+					throw new SincerityException( "Could not read origin digests", x );
+				}
+			}
+			catch( FileNotFoundException x )
+			{
+			}
+
+			// Jar stamps first
+			for( Map.Entry<Object, Object> entry : properties.entrySet() )
+			{
+				String key = entry.getKey().toString();
+				if( key.indexOf( "!/" ) == -1 )
+				{
+					FileStat stat = FileStat.parse( entry.getValue().toString() );
+					if( stat != null )
+						jars.put( key, new Jar( new File( key ), stat, new HashMap<String, byte[]>() ) );
+				}
+			}
+
+			// Then their entries
+			for( Map.Entry<Object, Object> entry : properties.entrySet() )
+			{
+				String key = entry.getKey().toString();
+				int separator = key.indexOf( "!/" );
+				if( separator != -1 )
+				{
+					Jar jar = jars.get( key.substring( 0, separator ) );
+					if( jar != null )
+						jar.digests.put( key.substring( separator + 2 ), HexUtil.fromHex( entry.getValue().toString() ) );
+				}
+			}
+		}
+	}
+
+	/**
+	 * The cached digests for a Jar.
+	 * 
+	 * @param jarFile
+	 *        The Jar file
+	 * @return The Jar digests
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	private synchronized Jar getJar( File jarFile ) throws SincerityException
+	{
+		load();
+
+		String path = jarFile.getAbsolutePath();
+		Jar jar = jars.get( path );
+		if( jar == null )
+		{
+			jar = new Jar( jarFile, null, null );
+			jars.put( path, jar );
+		}
+		return jar;
+	}
+
+	/**
+	 * Digests for all entries in a Jar, valid for a specific version of the
+	 * Jar's file metadata.
+	 */
+	private class Jar
+	{
+		public Jar( File jarFile, FileStat stat, Map<String, byte[]> digests )
+		{
+			this.jarFile = jarFile;
+			this.stat = stat;
+			this.digests = digests;
+		}
+
+		public synchronized byte[] getDigest( String name ) throws SincerityException
+		{
+			if( !verified )
+			{
+				FileStat currentStat;
+				try
+				{
+					currentStat = FileStat.read( jarFile );
+				}
+				catch( IOException x )
+				{
+					throw new UnpackingException( "Could not read jar file: " + jarFile, x );
+				}
+
+				if( ( currentStat == null ) || !currentStat.equals( stat ) )
+				{
+					Map<String, byte[]> currentDigests;
+					try
+					{
+						currentDigests = currentStat != null ? digestJar( jarFile ) : new HashMap<String, byte[]>();
+					}
+					catch( IOException x )
+					{
+						throw new UnpackingException( "Could not calculate origin digests for " + jarFile + ": " + x.getMessage(), x );
+					}
+
+					synchronized( OriginDigests.this )
+					{
+						stat = currentStat;
+						digests = currentDigests;
+						changed = true;
+					}
+				}
+
+				verified = true;
+			}
+
+			synchronized( OriginDigests.this )
+			{
+				return digests.get( name );
+			}
+		}
+
+		private final File jarFile;
+
+		// Guarded by OriginDigests.this
+		private FileStat stat;
+
+		// Guarded by OriginDigests.this
+		private Map<String, byte[]> digests;
+
+		private boolean verified;
+	}
+}
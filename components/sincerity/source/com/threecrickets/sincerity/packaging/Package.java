@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -79,6 +80,12 @@ import com.threecrickets.sincerity.util.ClassUtil;
  * entry point. Simple string arguments can be optionally appended, separated by
  * spaces. The uninstaller will be called when the package is to be uninstalled.
  * </li>
+ * <li><b>Package-Digests</b>: path of a properties resource within this Jar,
+ * mapping entry names to their precomputed SHA-1 digests in hex. These are used
+ * as the origin digests of the artifacts, so that the Jar entries do not have
+ * to be read in order to check whether they were changed. See
+ * {@link OriginDigests} for generating this resource at package build time.
+ * </li>
  * </ul>
  * 
  * @author Tal Liron
@@ -105,6 +112,8 @@ public class Package extends AbstractList<Artifact>
 
 	public static final String PACKAGE_UNINSTALLER = "Package-Uninstaller";
 
+	public static final String PACKAGE_DIGESTS = "Package-Digests";
+
 	//
 	// Construction
 	//
@@ -147,6 +156,7 @@ public class Package extends AbstractList<Artifact>
 					uninstaller = packageUninstallerAttribute.toString();
 
 				Volatiles volatiles = null;
+				Map<String, byte[]> digests = null;
 
 				// Package folders
 				Object packageFoldersAttribute = manifest.getValue( PACKAGE_FOLDERS );
@@ -156,6 +166,8 @@ public class Package extends AbstractList<Artifact>
 						jar = new Jar( manifestUrl, packagingContext, "Package folders " + packageFoldersAttribute );
 					if( volatiles == null )
 						volatiles = new Volatiles( manifest );
+					if( digests == null )
+						digests = readDigests( manifest, jar );
 
 					for( String packageFolder : packageFoldersAttribute.toString().split( "," ) )
 					{
@@ -171,7 +183,7 @@ public class Package extends AbstractList<Artifact>
 							if( name.startsWith( prefix ) && name.length() > prefixLength )
 							{
 								URL url = new URL( urlContext, name );
-								artifacts.add( new Artifact( new File( root, name.substring( prefixLength ) ), url, volatiles.contains( name ), packagingContext ) );
+								artifacts.add( new Artifact( new File( root, name.substring( prefixLength ) ), url, volatiles.contains( name ), digests.get( name ), packagingContext ) );
 							}
 						}
 					}
@@ -185,6 +197,8 @@ public class Package extends AbstractList<Artifact>
 						jar = new Jar( manifestUrl, packagingContext, "Package files " + packageFilesAttribute );
 					if( volatiles == null )
 						volatiles = new Volatiles( manifest );
+					if( digests == null )
+						digests = readDigests( manifest, jar );
 
 					for( String packageFile : packageFilesAttribute.toString().split( "," ) )
 					{
@@ -194,7 +208,7 @@ public class Package extends AbstractList<Artifact>
 							if( packageFile.equals( entry.getName() ) )
 							{
 								URL url = new URL( "jar:" + jar.url + "!/" + packageFile );
-								artifacts.add( new Artifact( new File( root, packageFile ), url, volatiles.contains( packageFile ), packagingContext ) );
+								artifacts.add( new Artifact( new File( root, packageFile ), url, volatiles.contains( packageFile ), digests.get( packageFile ), packagingContext ) );
 								found = true;
 								break;
 							}
@@ -333,14 +347,12 @@ public class Package extends AbstractList<Artifact>
 	 * @throws SincerityException
 	 *         In case of an error
 	 * @see Artifact#unpack(ArtifactManager, boolean, boolean)
+	 * @see Unpacker
 	 */
 	public void unpack( String filter, ArtifactManager managedArtifacts, boolean overwrite, boolean verify ) throws SincerityException
 	{
-		for( Artifact artifact : this )
-		{
-			// TODO: check filter!
-			artifact.unpack( managedArtifacts, overwrite, verify );
-		}
+		// TODO: check filter!
+		new Unpacker( managedArtifacts, overwrite, verify ).unpack( this );
 	}
 
 	//
@@ -398,6 +410,39 @@ public class Package extends AbstractList<Artifact>
 		this.artifacts = artifacts;
 	}
 
+	/**
+	 * Reads the precomputed digests, if the package has them.
+	 * 
+	 * @param manifest
+	 *        The manifest
+	 * @param jar
+	 *        The Jar
+	 * @return The digests mapped by entry name (empty if the package does not
+	 *         have them)
+	 * @throws UnpackingException
+	 *         In case of an error
+	 */
+	private static Map<String, byte[]> readDigests( Attributes manifest, Jar jar ) throws UnpackingException
+	{
+		Object packageDigestsAttribute = manifest.getValue( PACKAGE_DIGESTS );
+		if( packageDigestsAttribute == null )
+			return Collections.emptyMap();
+
+		String name = packageDigestsAttribute.toString().trim();
+		try
+		{
+			return OriginDigests.read( new URL( "jar:" + jar.url + "!/" + name ) );
+		}
+		catch( IOException x )
+		{
+			throw new UnpackingException( "Could not read package digests " + name + " from " + jar.file, x );
+		}
+		catch( IllegalArgumentException x )
+		{
+			throw new UnpackingException( "Malformed package digests " + name + " in " + jar.file, x );
+		}
+	}
+
 	/**
 	 * Manages volatile entries within a package.
 	 */
@@ -123,14 +123,30 @@ public class Packages extends ArrayList<Package>
 	 * @throws SincerityException
 	 *         In case of an error
 	 * @see Package#unpack(String, ArtifactManager, boolean, boolean)
+	 * @see Unpacker
 	 */
 	public void install( ArtifactManager managedArtifacts, String filter, boolean overwrite, boolean verify ) throws SincerityException
 	{
+		// Unpack the artifacts of all packages together, so that the workers
+		// are kept busy even when most packages are small
+		ArrayList<Artifact> artifacts = new ArrayList<Artifact>();
 		for( Package pack : this )
 		{
-			pack.unpack( filter, managedArtifacts, overwrite, verify );
-			pack.install();
+			// TODO: check filter!
+			artifacts.addAll( pack );
 		}
+		try
+		{
+			new Unpacker( managedArtifacts, overwrite, verify ).unpack( artifacts );
+		}
+		finally
+		{
+			// Saves the origin digests calculated while unpacking
+			managedArtifacts.save();
+		}
+
+		for( Package pack : this )
+			pack.install();
 	}
 
 	/**
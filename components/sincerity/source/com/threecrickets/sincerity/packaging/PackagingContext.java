@@ -36,11 +36,31 @@ public class PackagingContext extends RootDirectory
 	 *        The verbosity level
 	 */
 	public PackagingContext( File root, ClassLoader classLoader, PrintWriter out, int verbosity )
+	{
+		this( root, classLoader, out, verbosity, null );
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param root
+	 *        The root directory
+	 * @param classLoader
+	 *        The class loader
+	 * @param out
+	 *        The print writer
+	 * @param verbosity
+	 *        The verbosity level
+	 * @param originDigests
+	 *        The origin digests cache or null
+	 */
+	public PackagingContext( File root, ClassLoader classLoader, PrintWriter out, int verbosity, OriginDigests originDigests )
 	{
 		super( root );
 		this.classLoader = classLoader;
 		this.out = out;
 		this.verbosity = verbosity;
+		this.originDigests = originDigests;
 	}
 
 	/**
@@ -73,9 +93,21 @@ public class PackagingContext extends RootDirectory
 		return verbosity;
 	}
 
+	/**
+	 * The origin digests cache.
+	 * 
+	 * @return The origin digests cache or null
+	 */
+	public OriginDigests getOriginDigests()
+	{
+		return originDigests;
+	}
+
 	private final ClassLoader classLoader;
 
 	private final PrintWriter out;
 
 	private final int verbosity;
+
+	private final OriginDigests originDigests;
 }
@@ -0,0 +1,259 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.packaging;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.threecrickets.sincerity.exception.SincerityException;
+import com.threecrickets.sincerity.exception.UnpackingException;
+import com.threecrickets.sincerity.management.SincerityManagement;
+
+/**
+ * Unpacks artifacts (see {@link Artifact}) using a bounded pool of worker
+ * threads.
+ * <p>
+ * Artifacts are independent of each other, except for the rare case of
+ * several artifacts sharing the same destination file. Those are unpacked in
+ * sequence, in the order in which they were given, so the end result is
+ * identical to that of unpacking everything in a single thread.
+ * <p>
+ * The number of threads defaults to the number of available processors, and
+ * can be changed via the "sincerity.unpack.threads" JVM property. A value of 1
+ * will unpack everything in the calling thread.
+ * 
+ * @author Tal Liron
+ * @see Artifact#unpack(ArtifactManager, boolean, boolean)
+ */
+public class Unpacker
+{
+	//
+	// Constants
+	//
+
+	public static final String THREADS_PROPERTY = "sincerity.unpack.threads";
+
+	//
+	// Static attributes
+	//
+
+	/**
+	 * The default number of worker threads.
+	 * 
+	 * @return The number of threads
+	 * @see #THREADS_PROPERTY
+	 */
+	public static int getDefaultThreads()
+	{
+		String threads = System.getProperty( THREADS_PROPERTY );
+		if( threads != null )
+		{
+			try
+			{
+				return Math.max( 1, Integer.parseInt( threads ) );
+			}
+			catch( NumberFormatException x )
+			{
+			}
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor using the default number of threads.
+	 * 
+	 * @param managedArtifacts
+	 *        The managed artifacts database
+	 * @param overwrite
+	 *        True to force overwriting of modified artifacts
+	 * @param verify
+	 *        Whether to verify the unpacking
+	 * @see #getDefaultThreads()
+	 */
+	public Unpacker( ArtifactManager managedArtifacts, boolean overwrite, boolean verify )
+	{
+		this( managedArtifacts, overwrite, verify, getDefaultThreads() );
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param managedArtifacts
+	 *        The managed artifacts database
+	 * @param overwrite
+	 *        True to force overwriting of modified artifacts
+	 * @param verify
+	 *        Whether to verify the unpacking
+	 * @param threads
+	 *        The maximum number of worker threads
+	 */
+	public Unpacker( ArtifactManager managedArtifacts, boolean overwrite, boolean verify, int threads )
+	{
+		this.managedArtifacts = managedArtifacts;
+		this.overwrite = overwrite;
+		this.verify = verify;
+		this.threads = Math.max( 1, threads );
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Unpacks the artifacts.
+	 * <p>
+	 * The returned digests are in the same order as the artifacts, regardless
+	 * of the order in which the workers finished.
+	 * 
+	 * @param artifacts
+	 *        The artifacts
+	 * @return The digests, one per artifact
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	public List<byte[]> unpack( List<Artifact> artifacts ) throws SincerityException
+	{
+		int size = artifacts.size();
+		if( size == 0 )
+			return Collections.emptyList();
+
+		long start = System.nanoTime();
+
+		// Artifacts with the same destination must be unpacked in sequence
+		Map<File, List<Artifact>> groups = new LinkedHashMap<File, List<Artifact>>();
+		for( Artifact artifact : artifacts )
+		{
+			List<Artifact> group = groups.get( artifact.getFile() );
+			if( group == null )
+			{
+				group = new ArrayList<Artifact>( 1 );
+				groups.put( artifact.getFile(), group );
+			}
+			group.add( artifact );
+		}
+
+		Map<Artifact, byte[]> digests = Collections.synchronizedMap( new IdentityHashMap<Artifact, byte[]>( size ) );
+		int poolSize = Math.min( threads, groups.size() );
+
+		if( poolSize <= 1 )
+		{
+			for( List<Artifact> group : groups.values() )
+				new Task( group, digests ).call();
+		}
+		else
+		{
+			ExecutorService executor = Executors.newFixedThreadPool( poolSize, new WorkerThreadFactory() );
+			try
+			{
+				List<Future<Void>> futures = new ArrayList<Future<Void>>( groups.size() );
+				for( List<Artifact> group : groups.values() )
+					futures.add( executor.submit( new Task( group, digests ) ) );
+
+				for( Future<Void> future : futures )
+				{
+					try
+					{
+						future.get();
+					}
+					catch( ExecutionException x )
+					{
+						Throwable cause = x.getCause();
+						if( cause instanceof SincerityException )
+							throw (SincerityException) cause;
+						throw new UnpackingException( "Could not unpack artifacts: " + cause.getMessage(), cause );
+					}
+					catch( InterruptedException x )
+					{
+						Thread.currentThread().interrupt();
+						throw new UnpackingException( "Unpacking of artifacts was interrupted", x );
+					}
+				}
+			}
+			finally
+			{
+				executor.shutdownNow();
+			}
+		}
+
+		ArrayList<byte[]> ordered = new ArrayList<byte[]>( size );
+		for( Artifact artifact : artifacts )
+			ordered.add( digests.get( artifact ) );
+
+		SincerityManagement.ARTIFACT_MANAGER.unpack( start );
+		return ordered;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final ArtifactManager managedArtifacts;
+
+	private final boolean overwrite;
+
+	private final boolean verify;
+
+	private final int threads;
+
+	/**
+	 * Unpacks a group of artifacts sharing the same destination.
+	 */
+	private class Task implements Callable<Void>
+	{
+		public Task( List<Artifact> group, Map<Artifact, byte[]> digests )
+		{
+			this.group = group;
+			this.digests = digests;
+		}
+
+		public Void call() throws SincerityException
+		{
+			for( Artifact artifact : group )
+				digests.put( artifact, artifact.unpack( managedArtifacts, overwrite, verify ) );
+			return null;
+		}
+
+		private final List<Artifact> group;
+
+		private final Map<Artifact, byte[]> digests;
+	}
+
+	/**
+	 * Creates daemon worker threads.
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory
+	{
+		public Thread newThread( Runnable runnable )
+		{
+			Thread thread = new Thread( runnable, "sincerity-unpacker-" + counter.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		}
+
+		private final AtomicInteger counter = new AtomicInteger();
+	}
+}
@@ -16,6 +16,7 @@ import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.threecrickets.sincerity.Command;
 import com.threecrickets.sincerity.Container;
@@ -105,7 +106,18 @@ public class ArtifactsPlugin implements Plugin1
 			Container<?, ?> container = sincerity.getContainer();
 			Dependencies<?> dependencies = container.getDependencies();
 
-			dependencies.install( overwrite, verify );
+			ReentrantLock lock = container.getLock();
+			lock.lock();
+			try
+			{
+				// Another session might have changed the dependencies
+				dependencies.reload();
+				dependencies.install( overwrite, verify );
+			}
+			finally
+			{
+				lock.unlock();
+			}
 
 			if( container.hasFinishedInstalling() )
 			{
@@ -119,7 +131,16 @@ public class ArtifactsPlugin implements Plugin1
 			Container<?, ?> container = sincerity.getContainer();
 			Dependencies<?> dependencies = container.getDependencies();
 
-			dependencies.uninstallPackages();
+			ReentrantLock lock = container.getLock();
+			lock.lock();
+			try
+			{
+				dependencies.uninstallPackages();
+			}
+			finally
+			{
+				lock.unlock();
+			}
 
 			command.remove();
 			command.getSincerity().reboot();
@@ -129,7 +150,16 @@ public class ArtifactsPlugin implements Plugin1
 			Container<?, ?> container = sincerity.getContainer();
 			Dependencies<?> dependencies = container.getDependencies();
 
-			dependencies.prune();
+			ReentrantLock lock = container.getLock();
+			lock.lock();
+			try
+			{
+				dependencies.prune();
+			}
+			finally
+			{
+				lock.unlock();
+			}
 
 			command.remove();
 			command.getSincerity().reboot();
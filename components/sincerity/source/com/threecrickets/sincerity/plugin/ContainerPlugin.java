@@ -35,15 +35,18 @@ import com.threecrickets.sincerity.util.IoUtil;
  * to use. It defaults to "default". If the directory already exists, the
  * command will fail, unless the --force switch is used, in which case the
  * template will be force-copied into the directory (which may result in files
- * being overriden). Note that this command will cause Sincerity to reboot if
- * successful.</li>
+ * being overriden). The --link switch hardlinks files that are never modified
+ * in place (downloaded libraries and reference documentation) instead of
+ * copying them; everything else, including the Ivy cache, is still copied.
+ * Note that this command will cause Sincerity to reboot if successful.</li>
  * <li><b>use</b>: switches to an existing container. The required argument is
  * the container root path. Note that this command will cause Sincerity to
  * reboot if successful.</li>
  * <li><b>clone</b>: similar to "create", except that the current container will
- * be used as the template for the new container. The --force switch is also
- * supported. Note that this command will cause Sincerity to reboot if
- * successful.</li>
+ * be used as the template for the new container. The --force and --link
+ * switches are also supported. With --link, files that were unpacked from
+ * packages are always copied, because they may be modified by the user. Note
+ * that this command will cause Sincerity to reboot if successful.</li>
  * <li><b>clean</b>: uninstalls all dependencies and deletes this container's
  * "/cache/" directory. Also see "dependencies:uninstall".</li>
  * </ul>
@@ -97,6 +100,7 @@ public class ContainerPlugin implements Plugin1
 			else
 				template = arguments[1];
 			boolean force = switches.contains( "force" );
+			boolean link = switches.contains( "link" );
 			File templateDir = new File( new File( sincerity.getHome(), "templates" ), template );
 
 			// TODO: look for templates according to ~/.sincerity/sincerity.conf
@@ -104,7 +108,7 @@ public class ContainerPlugin implements Plugin1
 			// same for 'templatize'
 
 			command.remove();
-			sincerity.createContainer( containerRoot, templateDir, force );
+			sincerity.createContainer( containerRoot, templateDir, force, link );
 		}
 		else if( "use".equals( commandName ) )
 		{
@@ -130,13 +134,14 @@ public class ContainerPlugin implements Plugin1
 			if( arguments.length < 1 )
 				throw new BadArgumentsCommandException( command, "target container root path" );
 			boolean force = switches.contains( "force" );
+			boolean link = switches.contains( "link" );
 
 			File containerRoot = new File( arguments[0] );
 
 			Container<?, ?> container = sincerity.getContainer();
 
 			command.remove();
-			sincerity.createContainer( containerRoot, container.getRoot(), force );
+			sincerity.createContainer( containerRoot, container.getRoot(), force, link );
 		}
 		else if( "clean".equals( commandName ) )
 		{
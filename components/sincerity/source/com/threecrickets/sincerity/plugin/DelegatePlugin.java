@@ -14,6 +14,12 @@ package com.threecrickets.sincerity.plugin;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.threecrickets.scripturian.LanguageAdapter;
@@ -28,7 +34,9 @@ import com.threecrickets.sincerity.exception.SincerityException;
 import com.threecrickets.sincerity.exception.UnknownCommandException;
 import com.threecrickets.sincerity.plugin.swing.ProgramsPane;
 import com.threecrickets.sincerity.util.ClassUtil;
-import com.threecrickets.sincerity.util.ProcessDestroyer;
+import com.threecrickets.sincerity.util.ProcessSupervisor;
+import com.threecrickets.sincerity.util.ProcessSupervisor.RestartPolicy;
+import com.threecrickets.sincerity.util.ProcessUtil;
 import com.threecrickets.sincerity.util.StringUtil;
 
 /**
@@ -41,12 +49,28 @@ import com.threecrickets.sincerity.util.StringUtil;
  * document URI: unless it starts with a "/", it is considered to be a URI
  * relative to "/programs/". All arguments (including the first one, which is
  * the URI) will be sent as is to the executable.</li>
+ * <li><b>fork</b>: like "start", but executes the document in a new JVM
+ * process using the container's classpath. A leading "--profile=[profile]"
+ * argument applies the JVM switches (heap, garbage collection, JIT, etc.) in
+ * "/configuration/jvm/[profile].conf", one per line; otherwise the optional
+ * "/configuration/jvm/default.conf" is used. The process is supervised, and
+ * supports the same leading arguments as "execute".</li>
  * <li><b>execute</b>: executes a system executable as a separate process.
  * Executables should be installed under "/executables/". This command will
  * block, waiting for the process to terminate, unless the the <i>first</i>
- * argument is "--background". The arguments otherwise will be sent directly to
- * the underlying operating system as a complete command. Note that the process'
- * stdout and stdin will be piped to Sincerity's stdout/stdin.</li>
+ * argument is "--background". Another leading "--tag=[tag]" argument will
+ * prefix every line of the process' output with the tag. The arguments
+ * otherwise will be sent directly to the underlying operating system as a
+ * complete command. Note that the process' stdout and stdin will be piped to
+ * Sincerity's stdout/stdin (the output of all processes is piped by a single
+ * shared thread). Processes are supervised: they are destroyed when Sincerity
+ * exits, and can be restarted when they end according to a leading
+ * "--restart=never|on-failure|always" argument (with an optional
+ * "--max-restarts=[number]"), with an exponential backoff between
+ * restarts.</li>
+ * <li><b>ps</b>: prints out a list of all processes supervised for this
+ * container, including those started by other Sincerity instances, with their
+ * current CPU usage and resident memory.</li>
  * <li><b>programs</b>: prints out a list of all programs available in this
  * container.</li>
  * <li><b>languages</b>: prints out a list of all languages supported by
@@ -76,7 +100,7 @@ public class DelegatePlugin implements Plugin1
 	{
 		return new String[]
 		{
-			"main", "start", "execute", "programs", "languages"
+			"main", "start", "fork", "execute", "ps", "programs", "languages"
 		};
 	}
 
@@ -117,58 +141,98 @@ public class DelegatePlugin implements Plugin1
 		}
 		else if( "execute".equals( commandName ) )
 		{
-			String[] arguments = command.getArguments();
-			if( arguments.length < 1 )
-				throw new BadArgumentsCommandException( command );
+			ProcessOptions options = new ProcessOptions( command, false );
+			String[] arguments = options.arguments;
 
-			try
-			{
-				boolean background = false;
-				if( "--background".equals( arguments[0] ) )
-				{
-					background = true;
-					String[] newArguments = new String[arguments.length - 1];
-					System.arraycopy( arguments, 1, newArguments, 0, newArguments.length );
-					arguments = newArguments;
-				}
+			Container<?, ?> container = sincerity.getContainer();
 
-				Container<?, ?> container = sincerity.getContainer();
+			String name = new File( arguments[0] ).getName();
+			File executable = container.getExecutablesFile( arguments[0] );
+			if( executable.exists() )
+				arguments[0] = executable.getPath();
 
-				File executable = container.getExecutablesFile( arguments[0] );
-				if( executable.exists() )
-					arguments[0] = executable.getPath();
+			ProcessBuilder processBuilder = new ProcessBuilder( arguments );
+			Map<String, String> environment = processBuilder.environment();
+			String path = environment.get( "PATH" );
+			String sincerityPath = container.getExecutablesFile().getPath();
+			if( path != null )
+				environment.put( "PATH", sincerityPath + File.pathSeparator + path );
+			else
+				environment.put( "PATH", sincerityPath );
 
-				ProcessBuilder processBuilder = new ProcessBuilder( arguments );
-				Map<String, String> environment = processBuilder.environment();
-				String path = environment.get( "PATH" );
-				String sincerityPath = container.getExecutablesFile().getPath();
-				if( path != null )
-					environment.put( "PATH", sincerityPath + File.pathSeparator + path );
-				else
-					environment.put( "PATH", sincerityPath );
-				Process process = processBuilder.start();
+			supervise( sincerity, container, name, processBuilder, options );
+		}
+		else if( "fork".equals( commandName ) )
+		{
+			ProcessOptions options = new ProcessOptions( command, true );
+			String[] arguments = options.arguments;
 
-				if( !background )
-					ProcessDestroyer.addShutdownHook( process );
+			if( !arguments[0].startsWith( "/" ) )
+				arguments[0] = "/programs/" + arguments[0];
+
+			Container<?, ?> container = sincerity.getContainer();
 
-				sincerity.captureOutput( process );
+			ArrayList<String> commandLine = new ArrayList<String>();
+			commandLine.add( new File( new File( System.getProperty( "java.home" ), "bin" ), "java" ).getPath() );
+			commandLine.add( "-Dfile.encoding=" + Charset.defaultCharset() );
+			commandLine.add( "-Dsincerity.home=" + sincerity.getHome() );
+			commandLine.add( "-Dsincerity.container=" + container.getRoot() );
+			commandLine.addAll( getJvmProfile( container, options.profile ) );
+			commandLine.add( "-classpath" );
+			commandLine.add( container.getDependencies().getClasspath( true ) );
+			commandLine.add( Sincerity.class.getName() );
+			commandLine.add( "delegate:start" );
+			commandLine.addAll( Arrays.asList( arguments ) );
 
-				if( !background )
+			ProcessBuilder processBuilder = new ProcessBuilder( commandLine );
+			processBuilder.directory( container.getRoot() );
+			if( sincerity.getVerbosity() >= 2 )
+				out.println( "Forking JVM: " + StringUtil.join( commandLine, " " ) );
+
+			supervise( sincerity, container, new File( arguments[0] ).getName(), processBuilder, options );
+		}
+		else if( "ps".equals( commandName ) )
+		{
+			ProcessSupervisor supervisor = sincerity.getContainer().getProcessSupervisor();
+			Map<String, ProcessSupervisor.Entry> entries;
+			try
+			{
+				entries = supervisor.list();
+			}
+			catch( IOException x )
+			{
+				throw new SincerityException( "Could not read process registry", x );
+			}
+
+			// Sample twice in order to calculate current CPU usage
+			HashMap<String, ProcessUtil.Stat> samples = new HashMap<String, ProcessUtil.Stat>();
+			for( ProcessSupervisor.Entry entry : entries.values() )
+			{
+				ProcessUtil.Stat stat = entry.getStat();
+				if( stat != null )
+					samples.put( entry.id, stat );
+			}
+			if( !samples.isEmpty() )
+			{
+				try
 				{
-					try
-					{
-						process.waitFor();
-					}
-					catch( InterruptedException x )
-					{
-						throw new SincerityException( "System process execution was interrupted: " + StringUtil.join( arguments, " " ), x );
-					}
+					Thread.sleep( PS_SAMPLE_INTERVAL );
+				}
+				catch( InterruptedException x )
+				{
+					throw new SincerityException( "Process sampling was interrupted", x );
 				}
 			}
-			catch( IOException x )
+
+			out.println( String.format( "%-20s %8s %-10s %8s %6s %10s %s", "ID", "PID", "STATE", "RESTARTS", "CPU%", "RSS", "COMMAND" ) );
+			for( ProcessSupervisor.Entry entry : entries.values() )
 			{
-				sincerity.dumpStackTrace( x );
-				throw new SincerityException( "Error executing system process: " + StringUtil.join( arguments, " " ), x );
+				ProcessUtil.Stat previous = samples.get( entry.id );
+				ProcessUtil.Stat stat = previous != null ? entry.getStat() : null;
+				String state = stat != null ? "running" : ( entry.pid == -1 ? "restarting" : "exited" );
+				String cpu = stat != null ? String.format( "%.1f", stat.getCpuPercent( previous ) ) : "-";
+				String rss = ( stat != null ) && ( stat.rss != -1 ) ? ( stat.rss / 1024 ) + "K" : "-";
+				out.println( String.format( "%-20s %8s %-10s %8d %6s %10s %s", entry.id, entry.pid != -1 ? Long.toString( entry.pid ) : "-", state, entry.restarts, cpu, rss, entry.command ) );
 			}
 		}
 		else if( "programs".equals( commandName ) )
@@ -195,4 +259,162 @@ public class DelegatePlugin implements Plugin1
 		Sincerity sincerity = command.getSincerity();
 		sincerity.getFrame().getTabs().add( "Programs", new ProgramsPane( sincerity ) );
 	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final long PS_SAMPLE_INTERVAL = 500;
+
+	private static final String DEFAULT_JVM_PROFILE = "default";
+
+	/**
+	 * Starts a supervised process, waiting for it unless it is in the
+	 * background.
+	 * 
+	 * @param sincerity
+	 *        The Sincerity instance
+	 * @param container
+	 *        The container
+	 * @param name
+	 *        The base name for the process ID
+	 * @param processBuilder
+	 *        The process builder
+	 * @param options
+	 *        The options
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	private static void supervise( Sincerity sincerity, Container<?, ?> container, String name, ProcessBuilder processBuilder, ProcessOptions options ) throws SincerityException
+	{
+		String commandLine = StringUtil.join( processBuilder.command(), " " );
+		try
+		{
+			// The supervisor destroys the process when we shut down, and
+			// restarts it according to the policy
+			ProcessSupervisor.Supervised supervised = container.getProcessSupervisor().start( name, processBuilder, options.policy, options.maximumRestarts, sincerity.getOut(), sincerity.getErr(), options.tag );
+			if( sincerity.getVerbosity() >= 2 )
+				sincerity.getOut().println( "Started process: " + supervised.getId() );
+
+			if( !options.background )
+			{
+				try
+				{
+					supervised.waitFor();
+				}
+				catch( InterruptedException x )
+				{
+					throw new SincerityException( "System process execution was interrupted: " + commandLine, x );
+				}
+			}
+		}
+		catch( IOException x )
+		{
+			sincerity.dumpStackTrace( x );
+			throw new SincerityException( "Error executing system process: " + commandLine, x );
+		}
+	}
+
+	/**
+	 * Reads a JVM profile from "/configuration/jvm/[profile].conf": one JVM
+	 * switch per line, ignoring empty lines and lines starting with "#".
+	 * 
+	 * @param container
+	 *        The container
+	 * @param profile
+	 *        The profile name or null for the default profile
+	 * @return The JVM switches
+	 * @throws SincerityException
+	 *         In case of an error
+	 */
+	private static List<String> getJvmProfile( Container<?, ?> container, String profile ) throws SincerityException
+	{
+		File file = container.getConfigurationFile( "jvm", ( profile != null ? profile : DEFAULT_JVM_PROFILE ) + ".conf" );
+		ArrayList<String> switches = new ArrayList<String>();
+		if( !file.exists() )
+		{
+			// The default profile is optional
+			if( profile != null )
+				throw new SincerityException( "JVM profile does not exist: " + file );
+			return switches;
+		}
+
+		try
+		{
+			for( String line : Files.readAllLines( file.toPath(), Charset.defaultCharset() ) )
+			{
+				line = line.trim();
+				if( ( line.length() > 0 ) && !line.startsWith( "#" ) )
+					switches.add( line );
+			}
+		}
+		catch( IOException x )
+		{
+			throw new SincerityException( "Could not read JVM profile: " + file, x );
+		}
+		return switches;
+	}
+
+	/**
+	 * Leading options for process commands.
+	 */
+	private static class ProcessOptions
+	{
+		public ProcessOptions( Command command, boolean allowProfile ) throws SincerityException
+		{
+			String[] arguments = command.getArguments();
+			int index = 0;
+			for( ; index < arguments.length; index++ )
+			{
+				String option = arguments[index];
+				if( "--background".equals( option ) )
+					background = true;
+				else if( option.startsWith( "--tag=" ) )
+					tag = option.substring( "--tag=".length() ) + " ";
+				else if( allowProfile && option.startsWith( "--profile=" ) )
+					profile = option.substring( "--profile=".length() );
+				else if( option.startsWith( "--restart=" ) )
+				{
+					try
+					{
+						policy = RestartPolicy.parse( option.substring( "--restart=".length() ) );
+					}
+					catch( IllegalArgumentException x )
+					{
+						throw new BadArgumentsCommandException( command, "--restart=never|on-failure|always" );
+					}
+				}
+				else if( option.startsWith( "--max-restarts=" ) )
+				{
+					try
+					{
+						maximumRestarts = Integer.parseInt( option.substring( "--max-restarts=".length() ) );
+					}
+					catch( NumberFormatException x )
+					{
+						throw new BadArgumentsCommandException( command, "--max-restarts=[number]" );
+					}
+				}
+				else
+					break;
+			}
+
+			if( index == arguments.length )
+				throw new BadArgumentsCommandException( command );
+
+			this.arguments = new String[arguments.length - index];
+			System.arraycopy( arguments, index, this.arguments, 0, this.arguments.length );
+		}
+
+		public final String[] arguments;
+
+		public boolean background;
+
+		public String tag;
+
+		public String profile;
+
+		public RestartPolicy policy = RestartPolicy.NEVER;
+
+		public int maximumRestarts = -1;
+	}
 }
@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.threecrickets.sincerity.Command;
 import com.threecrickets.sincerity.Container;
@@ -132,7 +133,16 @@ public class DependenciesPlugin implements Plugin1
 			Container<?, ?> container = sincerity.getContainer();
 			Dependencies<?> dependencies = container.getDependencies();
 
-			dependencies.reset();
+			ReentrantLock lock = container.getLock();
+			lock.lock();
+			try
+			{
+				dependencies.reset();
+			}
+			finally
+			{
+				lock.unlock();
+			}
 
 			command.remove();
 			sincerity.reboot();
@@ -170,9 +180,19 @@ public class DependenciesPlugin implements Plugin1
 			Container<?, ?> container = sincerity.getContainer();
 			Dependencies<?> dependencies = container.getDependencies();
 
-			if( !dependencies.addExplicitDependency( group, name, version, force, !only ) )
-				if( sincerity.getVerbosity() >= 2 )
-					err.println( "Dependency already in container: " + group + ":" + name + ( version != null ? " v" + version : "" ) );
+			ReentrantLock lock = container.getLock();
+			lock.lock();
+			try
+			{
+				dependencies.reload();
+				if( !dependencies.addExplicitDependency( group, name, version, force, !only ) )
+					if( sincerity.getVerbosity() >= 2 )
+						err.println( "Dependency already in container: " + group + ":" + name + ( version != null ? " v" + version : "" ) );
+			}
+			finally
+			{
+				lock.unlock();
+			}
 		}
 		else if( "revise".equals( commandName ) )
 		{
@@ -191,9 +211,19 @@ public class DependenciesPlugin implements Plugin1
 			Container<?, ?> container = sincerity.getContainer();
 			Dependencies<?> dependencies = container.getDependencies();
 
-			if( !dependencies.reviseExplicitDependency( group, name, version ) )
-				if( sincerity.getVerbosity() >= 1 )
-					err.println( "Dependency not revised: " + group + ":" + name + ( version != null ? " v" + version : "" ) );
+			ReentrantLock lock = container.getLock();
+			lock.lock();
+			try
+			{
+				dependencies.reload();
+				if( !dependencies.reviseExplicitDependency( group, name, version ) )
+					if( sincerity.getVerbosity() >= 1 )
+						err.println( "Dependency not revised: " + group + ":" + name + ( version != null ? " v" + version : "" ) );
+			}
+			finally
+			{
+				lock.unlock();
+			}
 		}
 		else if( "remove".equals( commandName ) )
 		{
@@ -208,9 +238,19 @@ public class DependenciesPlugin implements Plugin1
 			Container<?, ?> container = sincerity.getContainer();
 			Dependencies<?> dependencies = container.getDependencies();
 
-			if( !dependencies.removeExplicitDependency( group, name ) )
-				if( sincerity.getVerbosity() >= 2 )
-					err.println( "Dependency was not in container: " + group + ":" + name );
+			ReentrantLock lock = container.getLock();
+			lock.lock();
+			try
+			{
+				dependencies.reload();
+				if( !dependencies.removeExplicitDependency( group, name ) )
+					if( sincerity.getVerbosity() >= 2 )
+						err.println( "Dependency was not in container: " + group + ":" + name );
+			}
+			finally
+			{
+				lock.unlock();
+			}
 		}
 		else if( "exclude".equals( commandName ) )
 		{
@@ -225,9 +265,19 @@ public class DependenciesPlugin implements Plugin1
 			Container<?, ?> container = sincerity.getContainer();
 			Dependencies<?> dependencies = container.getDependencies();
 
-			if( !dependencies.excludeDependency( group, name ) )
-				if( sincerity.getVerbosity() >= 2 )
-					err.println( "Exclusion already in container: " + group + ":" + name );
+			ReentrantLock lock = container.getLock();
+			lock.lock();
+			try
+			{
+				dependencies.reload();
+				if( !dependencies.excludeDependency( group, name ) )
+					if( sincerity.getVerbosity() >= 2 )
+						err.println( "Exclusion already in container: " + group + ":" + name );
+			}
+			finally
+			{
+				lock.unlock();
+			}
 		}
 		else if( "override".equals( commandName ) )
 		{
@@ -246,15 +296,35 @@ public class DependenciesPlugin implements Plugin1
 			Container<?, ?> container = sincerity.getContainer();
 			Dependencies<?> dependencies = container.getDependencies();
 
-			if( !dependencies.overrideDependency( group, name, version ) )
-				if( sincerity.getVerbosity() >= 1 )
-					err.println( "Dependency not overridden: " + group + ":" + name + ( version != null ? " v" + version : "" ) );
+			ReentrantLock lock = container.getLock();
+			lock.lock();
+			try
+			{
+				dependencies.reload();
+				if( !dependencies.overrideDependency( group, name, version ) )
+					if( sincerity.getVerbosity() >= 1 )
+						err.println( "Dependency not overridden: " + group + ":" + name + ( version != null ? " v" + version : "" ) );
+			}
+			finally
+			{
+				lock.unlock();
+			}
 		}
 		else if( "freeze".equals( commandName ) )
 		{
 			Container<?, ?> container = sincerity.getContainer();
 			Dependencies<?> dependencies = container.getDependencies();
-			dependencies.freezeVersions();
+			ReentrantLock lock = container.getLock();
+			lock.lock();
+			try
+			{
+				dependencies.reload();
+				dependencies.freezeVersions();
+			}
+			finally
+			{
+				lock.unlock();
+			}
 		}
 		else
 			throw new UnknownCommandException( command );
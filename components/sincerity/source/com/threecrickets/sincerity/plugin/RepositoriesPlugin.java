@@ -14,6 +14,7 @@ package com.threecrickets.sincerity.plugin;
 import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.threecrickets.sincerity.Command;
 import com.threecrickets.sincerity.Container;
@@ -117,9 +118,18 @@ public class RepositoriesPlugin implements Plugin1
 
 				String url = arguments[3];
 
-				if( !repositories.addMaven( section, name, url ) )
-					if( sincerity.getVerbosity() >= 2 )
-						err.println( "Repository already in use: " + section + ":" + name );
+				ReentrantLock lock = container.getLock();
+				lock.lock();
+				try
+				{
+					if( !repositories.addMaven( section, name, url ) )
+						if( sincerity.getVerbosity() >= 2 )
+							err.println( "Repository already in use: " + section + ":" + name );
+				}
+				finally
+				{
+					lock.unlock();
+				}
 			}
 			else if( "pypi".equals( type ) || "python".equals( type ) )
 			{
@@ -128,9 +138,18 @@ public class RepositoriesPlugin implements Plugin1
 
 				String url = arguments[3];
 
-				if( !repositories.addPyPi( section, name, url ) )
-					if( sincerity.getVerbosity() >= 2 )
-						err.println( "Repository already in use: " + section + ":" + name );
+				ReentrantLock lock = container.getLock();
+				lock.lock();
+				try
+				{
+					if( !repositories.addPyPi( section, name, url ) )
+						if( sincerity.getVerbosity() >= 2 )
+							err.println( "Repository already in use: " + section + ":" + name );
+				}
+				finally
+				{
+					lock.unlock();
+				}
 			}
 			else
 				err.println( "Unknown repository type: " + type );
@@ -148,9 +167,18 @@ public class RepositoriesPlugin implements Plugin1
 			Container<?, ?> container = sincerity.getContainer();
 			Repositories repositories = container.getRepositories();
 
-			if( !repositories.remove( section, name ) )
-				if( sincerity.getVerbosity() >= 2 )
-					err.println( "Repository was not in use: " + section + ":" + name );
+			ReentrantLock lock = container.getLock();
+			lock.lock();
+			try
+			{
+				if( !repositories.remove( section, name ) )
+					if( sincerity.getVerbosity() >= 2 )
+						err.println( "Repository was not in use: " + section + ":" + name );
+			}
+			finally
+			{
+				lock.unlock();
+			}
 		}
 		else
 			throw new UnknownCommandException( command );
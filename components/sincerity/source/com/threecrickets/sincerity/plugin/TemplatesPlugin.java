@@ -23,7 +23,7 @@ import com.threecrickets.sincerity.exception.BadArgumentsCommandException;
 import com.threecrickets.sincerity.exception.SincerityException;
 import com.threecrickets.sincerity.exception.UnknownCommandException;
 import com.threecrickets.sincerity.plugin.swing.TemplatesPane;
-import com.threecrickets.sincerity.util.IoUtil;
+import com.threecrickets.sincerity.util.TreeCopier;
 
 /**
  * The templates plugin supports the following commands:
@@ -33,6 +33,13 @@ import com.threecrickets.sincerity.util.IoUtil;
  * <li><b>templatize</b>: turns this container into a template. The first
  * argument is the name of the template to use. The entire container is copied
  * as is, so you may want to clean it out first.</li>
+ * <li><b>templates:pack</b>: packs a template into a single compressed
+ * archive, from which new containers are created much faster than by copying
+ * the template's directory tree. The optional argument is the name of the
+ * template, otherwise all templates are packed. The archive is used only
+ * while it is newer than every file in the template's directory; once the
+ * template is changed, containers are copied from the directory again until
+ * the template is packed again.</li>
  * </ul>
  * Additionally, this plugin adds a "Templates" tab to the GUI.
  * 
@@ -60,7 +67,7 @@ public class TemplatesPlugin implements Plugin1
 	{
 		return new String[]
 		{
-			"templates", "templatize"
+			"templates", "templatize", "pack"
 		};
 	}
 
@@ -75,6 +82,31 @@ public class TemplatesPlugin implements Plugin1
 			for( Template template : sincerity.getTemplates() )
 				out.println( template );
 		}
+		else if( "pack".equals( commandName ) )
+		{
+			String[] arguments = command.getArguments();
+			for( Template template : sincerity.getTemplates() )
+			{
+				if( ( arguments.length > 0 ) && !arguments[0].equals( template.getName() ) )
+					continue;
+
+				if( !template.root.isDirectory() )
+				{
+					if( arguments.length > 0 )
+						throw new SincerityException( "The template is already packed and has no directory: " + template );
+					continue;
+				}
+
+				int count = template.pack();
+				if( sincerity.getVerbosity() >= 1 )
+					out.println( "Packed " + count + " files into template archive: " + template.getArchive() );
+				if( arguments.length > 0 )
+					return;
+			}
+
+			if( arguments.length > 0 )
+				throw new SincerityException( "Unknown template: " + arguments[0] );
+		}
 		else if( "templatize".equals( commandName ) )
 		{
 			String[] arguments = command.getArguments();
@@ -86,20 +118,19 @@ public class TemplatesPlugin implements Plugin1
 			File containerRoot = sincerity.getContainer().getRoot();
 
 			File templateDir = new File( new File( sincerityHome, "templates" ), template );
-			if( templateDir.exists() )
+			if( templateDir.exists() || new Template( templateDir ).isPacked() )
 				throw new SincerityException( "The template already exists: " + templateDir );
 
-			templateDir.mkdirs();
-			for( File file : containerRoot.listFiles() )
+			TreeCopier copier = new TreeCopier();
+			if( sincerity.getVerbosity() >= 2 )
+				copier.setListener( new TreeCopier.Printer( out, "Creating template: " ) );
+			try
 			{
-				try
-				{
-					IoUtil.copyRecursive( file, templateDir );
-				}
-				catch( IOException x )
-				{
-					throw new SincerityException( "Could not create template: " + templateDir, x );
-				}
+				copier.copy( containerRoot, templateDir );
+			}
+			catch( IOException x )
+			{
+				throw new SincerityException( "Could not create template: " + templateDir, x );
 			}
 		}
 		else
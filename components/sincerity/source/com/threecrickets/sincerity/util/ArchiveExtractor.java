@@ -0,0 +1,620 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+
+/**
+ * Extracts archives in a single streaming pass using Apache Commons Compress.
+ * Compressed tar archives are decompressed on the fly, without first writing
+ * the decompressed tar to a temporary file.
+ * <p>
+ * Supported formats: zip (and zip-based formats such as jar, egg and whl),
+ * tar, tar.gz/tgz, tar.bz2/tbz2, tar.xz/txz, and single gz, bz2 and xz files.
+ * <p>
+ * Executable bits and modification times are preserved, as are symbolic links
+ * in tar archives (if supported by the filesystem). Entries that would be
+ * extracted outside of the destination directory are rejected, as are entries
+ * and symbolic links that go through a symbolic link in the same archive.
+ * <p>
+ * Reading the archive is inherently sequential, but writing the entries can
+ * optionally be done by a pool of worker threads. Small entries are then read
+ * into memory and handed off to the workers, while the next entries are being
+ * decompressed. Larger entries are always written directly.
+ * 
+ * @author Tal Liron
+ * @see IoUtil#unpack(File, File, int)
+ */
+public class ArchiveExtractor
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * The maximum size of an entry that would be handed off to a worker
+	 * thread.
+	 */
+	public static final int MAXIMUM_BUFFERED_SIZE = 1024 * 1024;
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * True if the archive format (determined by the filename extension) is
+	 * supported.
+	 * 
+	 * @param archiveFile
+	 *        The archive file
+	 * @return True if supported
+	 */
+	public static boolean isSupported( File archiveFile )
+	{
+		return getFormat( archiveFile.getName() ) != null;
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor for extracting in the calling thread.
+	 */
+	public ArchiveExtractor()
+	{
+		this( 1 );
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param threads
+	 *        The maximum number of worker threads for writing entries (1 to
+	 *        write everything in the calling thread)
+	 */
+	public ArchiveExtractor( int threads )
+	{
+		this.threads = Math.max( 1, threads );
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Extracts all entries in an archive.
+	 * 
+	 * @param archiveFile
+	 *        The archive file
+	 * @param destinationDir
+	 *        The destination directory
+	 * @throws IOException
+	 *         In case of an I/O error or if the format is not supported
+	 */
+	public void extract( File archiveFile, File destinationDir ) throws IOException
+	{
+		String name = archiveFile.getName();
+		Format format = getFormat( name );
+		if( format == null )
+			throw new IOException( "Unsupported archive format: " + archiveFile );
+
+		Writer writer = new Writer( destinationDir );
+		try
+		{
+			if( format == Format.ZIP )
+				extractZip( archiveFile, writer );
+			else
+			{
+				InputStream stream = new BufferedInputStream( new FileInputStream( archiveFile ), BUFFER_SIZE );
+				try
+				{
+					InputStream decompressed = decompress( stream, format );
+					if( format.tar )
+						extractTar( decompressed, writer );
+					else
+					{
+						// A single compressed file
+						String fileName = name.substring( 0, name.lastIndexOf( '.' ) );
+						writer.write( fileName, decompressed, -1, 0, archiveFile.lastModified() );
+					}
+				}
+				finally
+				{
+					stream.close();
+				}
+			}
+
+			writer.finish();
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private static final int EXECUTABLE = 0111;
+
+	private static final int GROUP_OR_OTHERS_EXECUTABLE = 0011;
+
+	private final int threads;
+
+	/**
+	 * Supported formats.
+	 */
+	private static enum Format
+	{
+		ZIP( false ), TAR( true ), TAR_GZ( true ), TAR_BZ2( true ), TAR_XZ( true ), GZ( false ), BZ2( false ), XZ( false );
+
+		private Format( boolean tar )
+		{
+			this.tar = tar;
+		}
+
+		private final boolean tar;
+	}
+
+	/**
+	 * Determines the format by the filename extension.
+	 * 
+	 * @param name
+	 *        The filename
+	 * @return The format or null if not supported
+	 */
+	private static Format getFormat( String name )
+	{
+		name = name.toLowerCase();
+		if( name.endsWith( ".zip" ) || name.endsWith( ".jar" ) || name.endsWith( ".egg" ) || name.endsWith( ".whl" ) )
+			return Format.ZIP;
+		else if( name.endsWith( ".tar" ) )
+			return Format.TAR;
+		else if( name.endsWith( ".tar.gz" ) || name.endsWith( ".tgz" ) )
+			return Format.TAR_GZ;
+		else if( name.endsWith( ".tar.bz2" ) || name.endsWith( ".tbz2" ) || name.endsWith( ".tbz" ) )
+			return Format.TAR_BZ2;
+		else if( name.endsWith( ".tar.xz" ) || name.endsWith( ".txz" ) )
+			return Format.TAR_XZ;
+		else if( name.endsWith( ".gz" ) )
+			return Format.GZ;
+		else if( name.endsWith( ".bz2" ) )
+			return Format.BZ2;
+		else if( name.endsWith( ".xz" ) )
+			return Format.XZ;
+		return null;
+	}
+
+	/**
+	 * Wraps a stream with the decompressor for the format.
+	 * 
+	 * @param stream
+	 *        The compressed stream
+	 * @param format
+	 *        The format
+	 * @return The decompressed stream
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private static InputStream decompress( InputStream stream, Format format ) throws IOException
+	{
+		switch( format )
+		{
+			case TAR_GZ:
+			case GZ:
+				return new GzipCompressorInputStream( stream, true );
+			case TAR_BZ2:
+			case BZ2:
+				return new BZip2CompressorInputStream( stream, true );
+			case TAR_XZ:
+			case XZ:
+				return new XZCompressorInputStream( stream, true );
+			default:
+				return stream;
+		}
+	}
+
+	/**
+	 * Extracts a zip archive.
+	 * 
+	 * @param archiveFile
+	 *        The archive file
+	 * @param writer
+	 *        The writer
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private static void extractZip( File archiveFile, Writer writer ) throws IOException
+	{
+		ZipFile zip = new ZipFile( archiveFile );
+		try
+		{
+			for( Enumeration<ZipArchiveEntry> e = zip.getEntriesInPhysicalOrder(); e.hasMoreElements(); )
+			{
+				ZipArchiveEntry entry = e.nextElement();
+				if( entry.isDirectory() )
+					writer.directory( entry.getName() );
+				else
+				{
+					InputStream stream = zip.getInputStream( entry );
+					try
+					{
+						if( entry.isUnixSymlink() )
+							writer.symbolicLink( entry.getName(), new String( readFully( stream, (int) entry.getSize(), entry.getName() ), StandardCharsets.UTF_8 ) );
+						else
+							writer.write( entry.getName(), stream, entry.getSize(), entry.getUnixMode(), entry.getTime() );
+					}
+					finally
+					{
+						stream.close();
+					}
+				}
+			}
+		}
+		finally
+		{
+			zip.close();
+		}
+	}
+
+	/**
+	 * Extracts a tar archive.
+	 * 
+	 * @param stream
+	 *        The decompressed tar stream
+	 * @param writer
+	 *        The writer
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private static void extractTar( InputStream stream, Writer writer ) throws IOException
+	{
+		TarArchiveInputStream tar = new TarArchiveInputStream( stream );
+		TarArchiveEntry entry;
+		while( ( entry = tar.getNextTarEntry() ) != null )
+		{
+			if( entry.isDirectory() )
+				writer.directory( entry.getName() );
+			else if( entry.isSymbolicLink() )
+				writer.symbolicLink( entry.getName(), entry.getLinkName() );
+			else if( entry.isLink() )
+				writer.link( entry.getName(), entry.getLinkName() );
+			else if( entry.isFile() )
+				writer.write( entry.getName(), tar, entry.getSize(), entry.getMode(), entry.getModTime().getTime() );
+		}
+	}
+
+	/**
+	 * Writes entries into the destination directory, optionally using worker
+	 * threads.
+	 */
+	private class Writer
+	{
+		public Writer( File destinationDir ) throws IOException
+		{
+			root = destinationDir.toPath().toAbsolutePath().normalize();
+			Files.createDirectories( root );
+			if( threads > 1 )
+			{
+				executor = Executors.newFixedThreadPool( threads, new WorkerThreadFactory() );
+				inFlight = new Semaphore( threads * 2 );
+			}
+			else
+			{
+				executor = null;
+				inFlight = null;
+			}
+		}
+
+		public void directory( String name ) throws IOException
+		{
+			Files.createDirectories( resolve( name ) );
+		}
+
+		public void write( String name, InputStream stream, long size, int mode, long lastModified ) throws IOException
+		{
+			Path path = resolve( name );
+
+			// A later entry with the same name overwrites the earlier one, so
+			// we must make sure the earlier one has already been written
+			if( !written.add( path ) )
+				drain();
+
+			if( ( executor != null ) && ( size >= 0 ) && ( size <= MAXIMUM_BUFFERED_SIZE ) )
+			{
+				byte[] content = readFully( stream, (int) size, name );
+
+				try
+				{
+					inFlight.acquire();
+				}
+				catch( InterruptedException x )
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException( "Extraction was interrupted", x );
+				}
+				futures.add( executor.submit( new Task( path, content, mode, lastModified ) ) );
+			}
+			else
+				writeFile( path, stream, null, mode, lastModified );
+		}
+
+		public void symbolicLink( String name, String target ) throws IOException
+		{
+			Path path = resolve( name );
+			Path targetPath = path.getParent().resolve( target ).normalize();
+			if( !targetPath.startsWith( root ) || isThroughSymbolicLink( targetPath ) )
+				throw new IOException( "Archive symbolic link points outside of the destination directory: " + name );
+
+			// Make sure a queued entry is not written through the link
+			if( !written.add( path ) )
+				drain();
+
+			Files.createDirectories( path.getParent() );
+			Files.deleteIfExists( path );
+			try
+			{
+				Files.createSymbolicLink( path, Paths.get( target ) );
+				symbolicLinks.add( path );
+			}
+			catch( UnsupportedOperationException x )
+			{
+				// Not supported by the filesystem
+			}
+		}
+
+		public void link( String name, String target ) throws IOException
+		{
+			// The target must be completely written before we can copy it
+			drain();
+
+			Path path = resolve( name );
+			written.add( path );
+			Files.createDirectories( path.getParent() );
+			Files.copy( resolve( target ), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES );
+		}
+
+		public void finish() throws IOException
+		{
+			drain();
+		}
+
+		public void close()
+		{
+			if( executor != null )
+				executor.shutdownNow();
+		}
+
+		private final Path root;
+
+		private final ExecutorService executor;
+
+		private final Semaphore inFlight;
+
+		private final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+		private final Set<Path> written = new HashSet<Path>();
+
+		private final Set<Path> symbolicLinks = new HashSet<Path>();
+
+		private Path resolve( String name ) throws IOException
+		{
+			Path path = root.resolve( name ).normalize();
+			if( !path.startsWith( root ) || isThroughSymbolicLink( path ) )
+				throw new IOException( "Archive entry is outside of the destination directory: " + name );
+			return path;
+		}
+
+		/**
+		 * Checking the path text is not enough once we have created symbolic
+		 * links: a chain of them, each pointing inside the destination
+		 * directory, could still lead outside of it. We thus refuse any path
+		 * that goes through a symbolic link created by this archive.
+		 */
+		private boolean isThroughSymbolicLink( Path path )
+		{
+			for( Path parent = path.getParent(); ( parent != null ) && !parent.equals( root ); parent = parent.getParent() )
+				if( symbolicLinks.contains( parent ) )
+					return true;
+			return false;
+		}
+
+		private void drain() throws IOException
+		{
+			try
+			{
+				for( Future<Void> future : futures )
+				{
+					try
+					{
+						future.get();
+					}
+					catch( ExecutionException x )
+					{
+						Throwable cause = x.getCause();
+						if( cause instanceof IOException )
+							throw (IOException) cause;
+						throw new IOException( "Could not write archive entry: " + cause.getMessage(), cause );
+					}
+					catch( InterruptedException x )
+					{
+						Thread.currentThread().interrupt();
+						throw new IOException( "Extraction was interrupted", x );
+					}
+				}
+			}
+			finally
+			{
+				futures.clear();
+			}
+		}
+
+		/**
+		 * Writes a buffered entry.
+		 */
+		private class Task implements Callable<Void>
+		{
+			public Task( Path path, byte[] content, int mode, long lastModified )
+			{
+				this.path = path;
+				this.content = content;
+				this.mode = mode;
+				this.lastModified = lastModified;
+			}
+
+			public Void call() throws IOException
+			{
+				try
+				{
+					writeFile( path, null, content, mode, lastModified );
+				}
+				finally
+				{
+					inFlight.release();
+				}
+				return null;
+			}
+
+			private final Path path;
+
+			private final byte[] content;
+
+			private final int mode;
+
+			private final long lastModified;
+		}
+	}
+
+	/**
+	 * Reads an entry of a known size into memory.
+	 * 
+	 * @param stream
+	 *        The stream
+	 * @param size
+	 *        The size of the entry
+	 * @param name
+	 *        The name of the entry
+	 * @return The content
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private static byte[] readFully( InputStream stream, int size, String name ) throws IOException
+	{
+		byte[] content = new byte[size];
+		int offset = 0;
+		while( offset < size )
+		{
+			int read = stream.read( content, offset, size - offset );
+			if( read == -1 )
+				throw new IOException( "Unexpected end of archive entry: " + name );
+			offset += read;
+		}
+		return content;
+	}
+
+	/**
+	 * Writes a file, either from a stream or from a buffer, and applies its
+	 * metadata.
+	 * 
+	 * @param path
+	 *        The path
+	 * @param stream
+	 *        The stream or null
+	 * @param content
+	 *        The content or null
+	 * @param mode
+	 *        The Unix mode
+	 * @param lastModified
+	 *        The modification timestamp or -1
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private static void writeFile( Path path, InputStream stream, byte[] content, int mode, long lastModified ) throws IOException
+	{
+		Files.createDirectories( path.getParent() );
+		Files.deleteIfExists( path );
+
+		OutputStream out = new FileOutputStream( path.toFile() );
+		try
+		{
+			if( content != null )
+				out.write( content );
+			else
+			{
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int length;
+				while( ( length = stream.read( buffer ) ) != -1 )
+					out.write( buffer, 0, length );
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		File file = path.toFile();
+		if( ( mode & EXECUTABLE ) != 0 )
+			file.setExecutable( true, ( mode & GROUP_OR_OTHERS_EXECUTABLE ) == 0 );
+		if( lastModified > 0 )
+			file.setLastModified( lastModified );
+	}
+
+	/**
+	 * Creates daemon worker threads.
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory
+	{
+		public Thread newThread( Runnable runnable )
+		{
+			Thread thread = new Thread( runnable, "sincerity-extractor-" + counter.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		}
+
+		private final AtomicInteger counter = new AtomicInteger();
+	}
+}
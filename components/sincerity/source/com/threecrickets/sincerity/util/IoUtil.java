@@ -22,25 +22,23 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemManager;
 import org.apache.commons.vfs.FileType;
-import org.apache.commons.vfs.cache.DefaultFilesCache;
-import org.apache.commons.vfs.impl.DefaultFileReplicator;
-import org.apache.commons.vfs.impl.DefaultFileSystemManager;
-import org.apache.commons.vfs.provider.bzip2.Bzip2FileProvider;
-import org.apache.commons.vfs.provider.gzip.GzipFileProvider;
-import org.apache.commons.vfs.provider.local.DefaultLocalFileProvider;
-import org.apache.commons.vfs.provider.tar.TarFileProvider;
-import org.apache.commons.vfs.provider.tar.Tbz2FileProvider;
-import org.apache.commons.vfs.provider.tar.TgzFileProvider;
-import org.apache.commons.vfs.provider.zip.ZipFileProvider;
 
 import com.threecrickets.creel.util.DigestUtil;
 import com.threecrickets.jvm.json.Json;
@@ -58,80 +56,40 @@ public abstract class IoUtil
 	//
 
 	/**
-	 * Unpacks all files in an archive using Apache Commons VFS.
-	 * <p>
-	 * Supported formats: zip, tar.gz/tgz, tar.bz2.
+	 * Unpacks all files in an archive in the calling thread.
 	 * 
 	 * @param archiveFile
 	 *        The archive file
 	 * @param destinationDir
 	 *        The destination directory
-	 * @param workDir
-	 *        The work directory
 	 * @throws IOException
 	 *         In case of an I/O error
+	 * @see ArchiveExtractor
 	 */
-	public static void unpack( File archiveFile, File destinationDir, File workDir ) throws IOException
+	public static void unpack( File archiveFile, File destinationDir ) throws IOException
 	{
-		String scheme = null;
-		String name = archiveFile.getName();
-		DefaultFileSystemManager manager = new DefaultFileSystemManager();
-		try
-		{
-			boolean untar = false;
-			if( name.endsWith( ".zip" ) )
-			{
-				scheme = "zip:";
-				manager.addProvider( "zip", new ZipFileProvider() );
-			}
-			else if( name.endsWith( ".tar.gz" ) || name.endsWith( ".tgz" ) )
-			{
-				scheme = "gz:";
-				untar = true;
-				manager.addProvider( "tar", new TarFileProvider() );
-				manager.addProvider( "gz", new GzipFileProvider() );
-				manager.addProvider( "tgz", new TgzFileProvider() );
-			}
-			else if( name.endsWith( ".tar.bz2" ) )
-			{
-				scheme = "bz2:";
-				untar = true;
-				manager.addProvider( "tar", new TarFileProvider() );
-				manager.addProvider( "bz2", new Bzip2FileProvider() );
-				manager.addProvider( "tbz2", new Tbz2FileProvider() );
-			}
-
-			if( scheme != null )
-			{
-				DefaultFileReplicator replicator = new DefaultFileReplicator( workDir );
-				replicator.init();
-				manager.setReplicator( replicator );
-				manager.setTemporaryFileStore( replicator );
-				DefaultLocalFileProvider fileProvider = new DefaultLocalFileProvider();
-				manager.addProvider( "file", fileProvider );
-				manager.setDefaultProvider( fileProvider );
-				manager.setFilesCache( new DefaultFilesCache() );
-				manager.init();
-
-				String path = scheme + archiveFile.toURI();
-				FileObject fileObject = manager.resolveFile( path );
-				FileObject[] children = fileObject.getChildren();
-				if( untar && children.length > 0 )
-				{
-					FileObject tar = manager.resolveFile( new File( workDir, children[0].getName().getBaseName() ).toURI().toString() );
-					org.apache.commons.vfs.FileUtil.copyContent( children[0], tar );
-					tar = manager.resolveFile( "tar:" + tar.getName() );
-					children = tar.getChildren();
-				}
+		unpack( archiveFile, destinationDir, 1 );
+	}
 
-				for( FileObject child : children )
-					copyRecursive( manager, child, manager.resolveFile( destinationDir.toURI().toString() ) );
-			}
-		}
-		finally
-		{
-			manager.close();
-		}
+	/**
+	 * Unpacks all files in an archive in a single streaming pass, optionally
+	 * writing the files using several threads.
+	 * <p>
+	 * Supported formats: zip, tar, tar.gz/tgz, tar.bz2, tar.xz.
+	 * 
+	 * @param archiveFile
+	 *        The archive file
+	 * @param destinationDir
+	 *        The destination directory
+	 * @param threads
+	 *        The maximum number of threads for writing files
+	 * @throws IOException
+	 *         In case of an I/O error
+	 * @see ArchiveExtractor
+	 */
+	public static void unpack( File archiveFile, File destinationDir, int threads ) throws IOException
+	{
+		new ArchiveExtractor( threads ).extract( archiveFile, destinationDir );
 	}
 
 	/**
@@ -161,30 +119,150 @@ public abstract class IoUtil
 	}
 
 	/**
-	 * Copies a complete subdirectory tree using Apache Commons VFS.
+	 * Copies a file or a complete subdirectory tree into a directory.
 	 * 
 	 * @param fromDir
-	 *        The source directory
+	 *        The source file or directory
 	 * @param toDir
 	 *        The target directory
 	 * @throws IOException
 	 *         In case of an I/O error
+	 * @see TreeCopier
 	 */
 	public static void copyRecursive( File fromDir, File toDir ) throws IOException
 	{
-		DefaultFileSystemManager manager = new DefaultFileSystemManager();
+		new TreeCopier().copy( fromDir, new File( toDir, fromDir.getName() ) );
+	}
+
+	/**
+	 * Copies the content of a URL to a file while calculating its digest, so
+	 * that the content is read only once. Parent directories are created as
+	 * necessary.
+	 * <p>
+	 * The content is first written to a temporary file, which then replaces
+	 * the file. The file is thus never left partially written, and if it was a
+	 * hardlink, the other links to it are left untouched. The permissions of
+	 * the replaced file (for example, the executable bit of a script) are
+	 * kept.
+	 * 
+	 * @param url
+	 *        The source URL
+	 * @param file
+	 *        The target file
+	 * @param algorithm
+	 *        The digest algorithm
+	 * @return The digest of the copied content
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public static byte[] copyWithDigest( URL url, File file, String algorithm ) throws IOException
+	{
+		MessageDigest messageDigest;
+		try
+		{
+			messageDigest = MessageDigest.getInstance( algorithm );
+		}
+		catch( NoSuchAlgorithmException x )
+		{
+			throw new IOException( "Unsupported digest algorithm: " + algorithm, x );
+		}
+
+		File temporaryFile = createTemporaryFile( file );
 		try
 		{
-			DefaultLocalFileProvider fileProvider = new DefaultLocalFileProvider();
-			manager.addProvider( "file", fileProvider );
-			manager.setDefaultProvider( fileProvider );
-			manager.setFilesCache( new DefaultFilesCache() );
-			manager.init();
-			copyRecursive( manager, manager.resolveFile( fromDir.toURI().toString() ), manager.resolveFile( toDir.toURI().toString() ) );
+			InputStream in = url.openStream();
+			try
+			{
+				DigestOutputStream out = new DigestOutputStream( new FileOutputStream( temporaryFile ), messageDigest );
+				try
+				{
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int length;
+					while( ( length = in.read( buffer ) ) != -1 )
+						out.write( buffer, 0, length );
+				}
+				finally
+				{
+					out.close();
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+
+			copyPermissions( file, temporaryFile );
+			Files.move( temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
 		}
 		finally
 		{
-			manager.close();
+			Files.deleteIfExists( temporaryFile.toPath() );
+		}
+
+		return messageDigest.digest();
+	}
+
+	/**
+	 * Copies the permissions of a file to another file, so that the other file
+	 * can replace it. Does nothing if the file does not exist.
+	 * <p>
+	 * On file systems without POSIX permissions, only the executable bit is
+	 * copied.
+	 * 
+	 * @param fromFile
+	 *        The file
+	 * @param toFile
+	 *        The other file
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public static void copyPermissions( File fromFile, File toFile ) throws IOException
+	{
+		if( !fromFile.exists() )
+			return;
+
+		try
+		{
+			Files.setPosixFilePermissions( toFile.toPath(), Files.getPosixFilePermissions( fromFile.toPath() ) );
+		}
+		catch( UnsupportedOperationException x )
+		{
+			if( fromFile.canExecute() )
+				toFile.setExecutable( true );
+		}
+	}
+
+	/**
+	 * Creates a new, empty temporary file next to a file, including necessary
+	 * parent directories. The name is unique, so concurrent writers of the
+	 * same file never share a temporary file.
+	 * <p>
+	 * Unlike {@link Files#createTempFile(java.nio.file.Path, String, String, java.nio.file.attribute.FileAttribute...)},
+	 * the file gets the default permissions, which matters if it is to replace
+	 * the file.
+	 * 
+	 * @param file
+	 *        The file
+	 * @return The temporary file
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public static File createTemporaryFile( File file ) throws IOException
+	{
+		File parent = file.getAbsoluteFile().getParentFile();
+		Files.createDirectories( parent.toPath() );
+		while( true )
+		{
+			File temporaryFile = new File( parent, file.getName() + "." + Long.toHexString( ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE ) + ".tmp" );
+			try
+			{
+				Files.createFile( temporaryFile.toPath() );
+				return temporaryFile;
+			}
+			catch( FileAlreadyExistsException x )
+			{
+				// Try another name
+			}
 		}
 	}
 
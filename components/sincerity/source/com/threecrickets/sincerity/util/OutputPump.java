@@ -0,0 +1,471 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/**
+ * Pipes the output of any number of processes to {@link Writer} instances
+ * using a single reading thread.
+ * <p>
+ * Process streams are not selectable, so instead the thread polls them in
+ * turn, only reading from streams that have bytes available, which it
+ * transfers in bulk (up to {@link #BUFFER_SIZE} per stream per pass). Writers
+ * are flushed once per bulk write, rather than once per line. When no stream
+ * has anything to read, the thread backs off, sleeping up to
+ * {@link #MAXIMUM_IDLE_SLEEP} milliseconds between passes.
+ * <p>
+ * The thread never blocks on reading. Once a process has exited, its streams
+ * are closed after nothing has been available to read from them for
+ * {@link #EXITED_GRACE} milliseconds. This is why only process streams are
+ * supported: for other streams, the end cannot be detected without blocking,
+ * so use a {@link Pipe} in a thread of its own.
+ * <p>
+ * The thread never blocks on writing, either. Each writer has its own thread,
+ * to which decoded output is handed over, so that a slow writer does not hold
+ * up the streams piped to other writers. Up to {@link #SINK_SIZE} characters
+ * are queued per writer: once that is reached, the streams piped to that
+ * writer are not read from until it catches up, so that their processes will
+ * in turn block once their pipes fill up. Nothing is dropped.
+ * <p>
+ * Threads are started when needed and stop once idle. They are daemon threads,
+ * so they will not keep the JVM alive, which means that output still queued
+ * when the JVM exits may be lost.
+ * 
+ * @author Tal Liron
+ * @see Pipe
+ */
+public class OutputPump implements Runnable
+{
+	//
+	// Constants
+	//
+
+	public static final int BUFFER_SIZE = 8 * 1024;
+
+	public static final long MAXIMUM_IDLE_SLEEP = 50;
+
+	public static final long EXITED_GRACE = 200;
+
+	public static final int SINK_SIZE = 64 * 1024;
+
+	public static final long SINK_IDLE = 1000;
+
+	//
+	// Static attributes
+	//
+
+	/**
+	 * The shared output pump.
+	 * 
+	 * @return The output pump
+	 */
+	public static OutputPump getShared()
+	{
+		return shared;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Pipes the standard output and standard error of a process.
+	 * 
+	 * @param process
+	 *        The process
+	 * @param out
+	 *        The writer for standard output
+	 * @param err
+	 *        The writer for standard error
+	 * @param tag
+	 *        Prefix for every line or null
+	 */
+	public void add( Process process, Writer out, Writer err, String tag )
+	{
+		add( process.getInputStream(), out, tag, process );
+		add( process.getErrorStream(), err, tag, process );
+	}
+
+	//
+	// Runnable
+	//
+
+	public void run()
+	{
+		ArrayList<Source> pass = new ArrayList<Source>();
+		HashSet<Sink> written = new HashSet<Sink>();
+		long sleep = 1;
+
+		while( true )
+		{
+			synchronized( sources )
+			{
+				if( sources.isEmpty() )
+				{
+					thread = null;
+					return;
+				}
+				pass.clear();
+				pass.addAll( sources );
+			}
+
+			boolean transferred = false;
+			for( Source source : pass )
+			{
+				// Pause the source until its writer catches up
+				if( source.sink.isFull() )
+					continue;
+
+				int result = source.transfer();
+				if( result > 0 )
+				{
+					transferred = true;
+					written.add( source.sink );
+				}
+				else if( result < 0 )
+				{
+					written.add( source.sink );
+					remove( source );
+				}
+			}
+
+			for( Iterator<Sink> i = written.iterator(); i.hasNext(); )
+			{
+				i.next().flush();
+				i.remove();
+			}
+
+			if( transferred )
+				sleep = 1;
+			else
+			{
+				try
+				{
+					Thread.sleep( sleep );
+				}
+				catch( InterruptedException x )
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+				sleep = Math.min( sleep * 2, MAXIMUM_IDLE_SLEEP );
+			}
+		}
+
+		synchronized( sources )
+		{
+			thread = null;
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final OutputPump shared = new OutputPump();
+
+	private final ArrayList<Source> sources = new ArrayList<Source>();
+
+	// Guarded by sources
+	private final IdentityHashMap<Writer, Sink> sinks = new IdentityHashMap<Writer, Sink>();
+
+	// Guarded by sources
+	private Thread thread;
+
+	/**
+	 * Pipes a process stream.
+	 * 
+	 * @param stream
+	 *        The stream
+	 * @param writer
+	 *        The writer
+	 * @param tag
+	 *        Prefix for every line or null
+	 * @param process
+	 *        The process writing to the stream (used to detect the end of the
+	 *        stream without blocking)
+	 */
+	private void add( InputStream stream, Writer writer, String tag, Process process )
+	{
+		synchronized( sources )
+		{
+			Sink sink = sinks.get( writer );
+			if( sink == null )
+			{
+				sink = new Sink( writer );
+				sinks.put( writer, sink );
+			}
+
+			sources.add( new Source( stream, sink, tag, process ) );
+			if( thread == null )
+			{
+				thread = new Thread( this, "Sincerity output pump" );
+				thread.setDaemon( true );
+				thread.start();
+			}
+		}
+	}
+
+	/**
+	 * Removes an ended source, and its sink if no other source uses it (the
+	 * sink will still write what was handed over to it).
+	 * 
+	 * @param source
+	 *        The source
+	 */
+	private void remove( Source source )
+	{
+		synchronized( sources )
+		{
+			sources.remove( source );
+			for( Source other : sources )
+				if( other.sink == source.sink )
+					return;
+			sinks.remove( source.sink.writer );
+		}
+	}
+
+	/**
+	 * A stream being piped.
+	 */
+	private static class Source
+	{
+		public Source( InputStream stream, Sink sink, String tag, Process process )
+		{
+			this.stream = stream;
+			this.sink = sink;
+			this.tag = tag;
+			this.process = process;
+			decoder = Charset.defaultCharset().newDecoder().onMalformedInput( CodingErrorAction.REPLACE ).onUnmappableCharacter( CodingErrorAction.REPLACE );
+		}
+
+		public final Sink sink;
+
+		/**
+		 * Transfers available bytes without blocking.
+		 * 
+		 * @return The number of bytes transferred, or -1 if the stream has
+		 *         ended
+		 */
+		public int transfer()
+		{
+			try
+			{
+				int available = stream.available();
+				if( available == 0 )
+				{
+					if( ProcessUtil.isAlive( process ) )
+						return 0;
+
+					// Reading could block even after the process has exited
+					// (a child process might have inherited the stream), so
+					// we never read here: we give the remaining output a
+					// little time to arrive, and then give up on the stream
+					long now = System.nanoTime();
+					if( exitedNanos == 0 )
+						exitedNanos = now;
+					if( now - exitedNanos < EXITED_GRACE * 1000000L )
+						return 0;
+
+					close();
+					return -1;
+				}
+
+				int length = stream.read( bytes.array(), bytes.position(), Math.min( available, bytes.remaining() ) );
+				if( length == -1 )
+				{
+					close();
+					return -1;
+				}
+
+				exitedNanos = 0;
+				bytes.position( bytes.position() + length );
+				bytes.flip();
+				decoder.decode( bytes, chars, false );
+				bytes.compact();
+				write();
+				return length;
+			}
+			catch( IOException x )
+			{
+				close();
+				return -1;
+			}
+		}
+
+		private final InputStream stream;
+
+		private final String tag;
+
+		private final Process process;
+
+		private final CharsetDecoder decoder;
+
+		private final ByteBuffer bytes = ByteBuffer.allocate( BUFFER_SIZE );
+
+		private final CharBuffer chars = CharBuffer.allocate( BUFFER_SIZE );
+
+		private boolean atLineStart = true;
+
+		private long exitedNanos;
+
+		private void write()
+		{
+			chars.flip();
+			char[] array = chars.array();
+			int start = chars.position();
+			int end = chars.limit();
+			if( tag == null )
+				sink.write( array, start, end - start );
+			else
+			{
+				for( int i = start; i < end; i++ )
+				{
+					if( atLineStart )
+					{
+						if( i > start )
+							sink.write( array, start, i - start );
+						sink.write( tag );
+						start = i;
+						atLineStart = false;
+					}
+					if( array[i] == '\n' )
+						atLineStart = true;
+				}
+				sink.write( array, start, end - start );
+			}
+			chars.clear();
+		}
+
+		private void close()
+		{
+			bytes.flip();
+			decoder.decode( bytes, chars, true );
+			decoder.flush( chars );
+			write();
+
+			try
+			{
+				stream.close();
+			}
+			catch( IOException x )
+			{
+			}
+		}
+	}
+
+	/**
+	 * Output queued for a writer, which is written in a thread of its own.
+	 */
+	private static class Sink implements Runnable
+	{
+		public Sink( Writer writer )
+		{
+			this.writer = writer;
+		}
+
+		public final Writer writer;
+
+		public synchronized boolean isFull()
+		{
+			return buffer.length() >= SINK_SIZE;
+		}
+
+		public synchronized void write( char[] array, int start, int length )
+		{
+			buffer.append( array, start, length );
+		}
+
+		public synchronized void write( String string )
+		{
+			buffer.append( string );
+		}
+
+		/**
+		 * Hands the queued output over to the writer thread, starting it if
+		 * necessary.
+		 */
+		public synchronized void flush()
+		{
+			if( buffer.length() == 0 )
+				return;
+
+			if( thread == null )
+			{
+				thread = new Thread( this, "Sincerity output pump writer" );
+				thread.setDaemon( true );
+				thread.start();
+			}
+			else
+				notify();
+		}
+
+		public void run()
+		{
+			while( true )
+			{
+				String chunk;
+				synchronized( this )
+				{
+					long idleSince = System.currentTimeMillis();
+					while( buffer.length() == 0 )
+					{
+						long idle = System.currentTimeMillis() - idleSince;
+						if( idle >= SINK_IDLE )
+						{
+							thread = null;
+							return;
+						}
+
+						try
+						{
+							wait( SINK_IDLE - idle );
+						}
+						catch( InterruptedException x )
+						{
+							thread = null;
+							return;
+						}
+					}
+
+					chunk = buffer.toString();
+					buffer.setLength( 0 );
+				}
+
+				try
+				{
+					writer.write( chunk );
+					writer.flush();
+				}
+				catch( IOException x )
+				{
+				}
+			}
+		}
+
+		private final StringBuilder buffer = new StringBuilder();
+
+		// Guarded by this
+		private Thread thread;
+	}
+}
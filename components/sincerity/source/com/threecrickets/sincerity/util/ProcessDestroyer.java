@@ -17,7 +17,12 @@ package com.threecrickets.sincerity.util;
  * Useful in conjunction with {@link Runtime#addShutdownHook(Thread)}.
  * 
  * @author Tal Liron
+ * @deprecated Sincerity no longer uses this class. Use a
+ *             {@link ProcessSupervisor}, which destroys all its processes in a
+ *             single shutdown hook, waiting for them together and killing those
+ *             that do not exit in time.
  */
+@Deprecated
 public class ProcessDestroyer extends Thread
 {
 	//
@@ -0,0 +1,688 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Supervises system processes: restarts them according to a
+ * {@link RestartPolicy}, and tears them all down when the JVM shuts down.
+ * <p>
+ * Supervised processes are recorded in a registry file (usually in the
+ * container's "/cache/sincerity/" directory), so that they can be listed from
+ * other JVMs (see {@link #list()}). Entries are removed when their processes
+ * end for good; entries left behind by a JVM that was killed are removed the
+ * next time they are listed. IDs are claimed via files in a directory next to
+ * the registry file (with an ".ids" suffix), so that concurrent JVMs never
+ * choose the same ID.
+ * <p>
+ * A single thread monitors the processes of all supervisors in the JVM, and
+ * stops once there is nothing left to monitor. A single JVM shutdown hook
+ * destroys all processes concurrently, waiting up to
+ * {@link #SHUTDOWN_GRACE_PERIOD} milliseconds before killing those that have
+ * not terminated.
+ * 
+ * @author Tal Liron
+ * @see ProcessUtil
+ */
+public class ProcessSupervisor
+{
+	//
+	// Constants
+	//
+
+	public static final long MONITOR_INTERVAL = 250;
+
+	public static final long MINIMUM_BACKOFF = 1000;
+
+	public static final long MAXIMUM_BACKOFF = 60 * 1000;
+
+	/**
+	 * Processes that ran at least this long before ending are restarted with
+	 * the minimum backoff.
+	 */
+	public static final long STABLE_RUN = 60 * 1000;
+
+	public static final long SHUTDOWN_GRACE_PERIOD = 5000;
+
+	//
+	// Types
+	//
+
+	/**
+	 * When to restart a process that has ended.
+	 */
+	public enum RestartPolicy
+	{
+		/**
+		 * Never restart.
+		 */
+		NEVER,
+
+		/**
+		 * Restart only if the process ended with a non-zero exit code.
+		 */
+		ON_FAILURE,
+
+		/**
+		 * Always restart.
+		 */
+		ALWAYS;
+
+		/**
+		 * Parses a policy name, such as "on-failure".
+		 * 
+		 * @param name
+		 *        The name
+		 * @return The policy
+		 * @throws IllegalArgumentException
+		 *         If the name is not a policy
+		 */
+		public static RestartPolicy parse( String name )
+		{
+			return valueOf( name.trim().toUpperCase().replace( '-', '_' ) );
+		}
+
+		@Override
+		public String toString()
+		{
+			return name().toLowerCase().replace( '_', '-' );
+		}
+	}
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * The supervisor for a registry file. There is a single instance per file
+	 * in the JVM.
+	 * 
+	 * @param registryFile
+	 *        The registry file
+	 * @return The supervisor
+	 */
+	public static ProcessSupervisor getInstance( File registryFile )
+	{
+		registryFile = registryFile.getAbsoluteFile();
+		ProcessSupervisor supervisor = supervisors.get( registryFile );
+		if( supervisor == null )
+		{
+			supervisor = new ProcessSupervisor( registryFile );
+			ProcessSupervisor existing = supervisors.putIfAbsent( registryFile, supervisor );
+			if( existing != null )
+				supervisor = existing;
+		}
+		return supervisor;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * Lists the processes in the registry, including those supervised by other
+	 * JVMs. Entries of processes whose supervising JVM is no longer alive are
+	 * removed.
+	 * 
+	 * @return The entries mapped by ID
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public Map<String, Entry> list() throws IOException
+	{
+		Map<String, String> registry = journal.read();
+		LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		LinkedHashMap<String, String> stale = new LinkedHashMap<String, String>();
+		long thisPid = ProcessUtil.getPid();
+		for( String id : new TreeSet<String>( registry.keySet() ) )
+		{
+			Entry entry = Entry.parse( id, registry.get( id ) );
+			if( entry == null )
+				stale.put( id, null );
+			else if( ( entry.supervisorPid != thisPid ) && !ProcessUtil.isAlive( entry.supervisorPid ) )
+				stale.put( id, null );
+			else
+				entries.put( id, entry );
+		}
+		journal.append( stale );
+		for( String id : stale.keySet() )
+			releaseId( id );
+		return entries;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Starts a supervised process.
+	 * 
+	 * @param name
+	 *        The base name for the process ID
+	 * @param processBuilder
+	 *        The process builder (used again for restarts)
+	 * @param policy
+	 *        The restart policy
+	 * @param maximumRestarts
+	 *        The maximum number of restarts or -1 for no limit
+	 * @param out
+	 *        The writer for standard output
+	 * @param err
+	 *        The writer for standard error
+	 * @param tag
+	 *        Prefix for every line of output or null
+	 * @return The supervised process
+	 * @throws IOException
+	 *         In case of an I/O error
+	 * @see OutputPump
+	 */
+	public Supervised start( String name, ProcessBuilder processBuilder, RestartPolicy policy, int maximumRestarts, Writer out, Writer err, String tag ) throws IOException
+	{
+		Supervised supervised = new Supervised( name, processBuilder, policy, maximumRestarts, out, err, tag );
+		synchronized( monitor )
+		{
+			supervised.id = createId( name );
+			supervised.launch();
+			monitored.add( supervised );
+			if( monitorThread == null )
+			{
+				monitorThread = new Thread( new Monitor(), "Sincerity process supervisor" );
+				monitorThread.start();
+			}
+			if( !hookAdded )
+			{
+				Runtime.getRuntime().addShutdownHook( new Thread( new Shutdown(), "Sincerity process supervisor shutdown" ) );
+				hookAdded = true;
+			}
+		}
+		return supervised;
+	}
+
+	//
+	// Classes
+	//
+
+	/**
+	 * A registry entry.
+	 */
+	public static class Entry
+	{
+		//
+		// Static operations
+		//
+
+		/**
+		 * Parses a registry entry.
+		 * 
+		 * @param id
+		 *        The ID
+		 * @param value
+		 *        The value
+		 * @return The entry or null if malformed
+		 */
+		public static Entry parse( String id, String value )
+		{
+			String[] fields = value.split( ",", 6 );
+			if( fields.length < 6 )
+				return null;
+			try
+			{
+				return new Entry( id, Long.parseLong( fields[0] ), Long.parseLong( fields[1] ), Long.parseLong( fields[2] ), Integer.parseInt( fields[3] ), RestartPolicy.parse( fields[4] ), fields[5] );
+			}
+			catch( IllegalArgumentException x )
+			{
+				return null;
+			}
+		}
+
+		//
+		// Construction
+		//
+
+		public Entry( String id, long pid, long startTime, long supervisorPid, int restarts, RestartPolicy policy, String command )
+		{
+			this.id = id;
+			this.pid = pid;
+			this.startTime = startTime;
+			this.supervisorPid = supervisorPid;
+			this.restarts = restarts;
+			this.policy = policy;
+			this.command = command;
+		}
+
+		//
+		// Attributes
+		//
+
+		public final String id;
+
+		/**
+		 * The pid of the current run or -1 if not running.
+		 */
+		public final long pid;
+
+		/**
+		 * The start time of the current run in milliseconds since system boot
+		 * (see {@link ProcessUtil.Stat#startTime}) or -1 if unknown.
+		 */
+		public final long startTime;
+
+		public final long supervisorPid;
+
+		public final int restarts;
+
+		public final RestartPolicy policy;
+
+		public final String command;
+
+		/**
+		 * The current state of the process, if it is still the one that was
+		 * recorded.
+		 * 
+		 * @return The state or null if not running
+		 */
+		public ProcessUtil.Stat getStat()
+		{
+			if( pid == -1 )
+				return null;
+			ProcessUtil.Stat stat = ProcessUtil.Stat.read( pid );
+			if( ( stat == null ) || ( ( startTime != -1 ) && ( stat.startTime != startTime ) ) )
+				return null;
+			return stat;
+		}
+
+		//
+		// Object
+		//
+
+		@Override
+		public String toString()
+		{
+			return pid + "," + startTime + "," + supervisorPid + "," + restarts + "," + policy + "," + command;
+		}
+	}
+
+	/**
+	 * A supervised process.
+	 */
+	public class Supervised
+	{
+		//
+		// Attributes
+		//
+
+		/**
+		 * The ID in the registry.
+		 * 
+		 * @return The ID
+		 */
+		public String getId()
+		{
+			return id;
+		}
+
+		/**
+		 * The current process.
+		 * 
+		 * @return The process
+		 */
+		public synchronized Process getProcess()
+		{
+			return process;
+		}
+
+		//
+		// Operations
+		//
+
+		/**
+		 * Waits until the process has ended and will not be restarted.
+		 * 
+		 * @return The last exit code
+		 * @throws InterruptedException
+		 *         If interrupted while waiting
+		 */
+		public synchronized int waitFor() throws InterruptedException
+		{
+			while( !done )
+				wait();
+			return exitCode;
+		}
+
+		// //////////////////////////////////////////////////////////////////////////
+		// Private
+
+		private final String name;
+
+		private final ProcessBuilder processBuilder;
+
+		private final RestartPolicy policy;
+
+		private final int maximumRestarts;
+
+		private final Writer out;
+
+		private final Writer err;
+
+		private final String tag;
+
+		private final String command;
+
+		private String id;
+
+		private Process process;
+
+		private long launched;
+
+		private int restarts;
+
+		private int failures;
+
+		private long restartAt;
+
+		private int exitCode;
+
+		private boolean done;
+
+		private Supervised( String name, ProcessBuilder processBuilder, RestartPolicy policy, int maximumRestarts, Writer out, Writer err, String tag )
+		{
+			this.name = name;
+			this.processBuilder = processBuilder;
+			this.policy = policy;
+			this.maximumRestarts = maximumRestarts;
+			this.out = out;
+			this.err = err;
+			this.tag = tag;
+			command = StringUtil.join( processBuilder.command(), " " );
+		}
+
+		private synchronized void launch() throws IOException
+		{
+			process = processBuilder.start();
+			launched = System.currentTimeMillis();
+			OutputPump.getShared().add( process, out, err, tag );
+
+			long pid = ProcessUtil.getPid( process );
+			ProcessUtil.Stat stat = pid != -1 ? ProcessUtil.Stat.read( pid ) : null;
+			record( new Entry( id, pid, stat != null ? stat.startTime : -1, ProcessUtil.getPid(), restarts, policy, command ).toString() );
+		}
+
+		/**
+		 * Called periodically by the monitor thread.
+		 * 
+		 * @return True if the process should no longer be monitored
+		 */
+		private synchronized boolean check()
+		{
+			if( done )
+				return true;
+
+			long now = System.currentTimeMillis();
+
+			if( restartAt != 0 )
+			{
+				if( now < restartAt )
+					return false;
+				restartAt = 0;
+				restarts++;
+				try
+				{
+					launch();
+					return false;
+				}
+				catch( IOException x )
+				{
+					process = null;
+					exitCode = -1;
+					return end();
+				}
+			}
+
+			if( ( process == null ) || ProcessUtil.isAlive( process ) )
+				return false;
+
+			exitCode = process.exitValue();
+			boolean restart = ( policy == RestartPolicy.ALWAYS ) || ( ( policy == RestartPolicy.ON_FAILURE ) && ( exitCode != 0 ) );
+			if( restart && ( ( maximumRestarts == -1 ) || ( restarts < maximumRestarts ) ) )
+			{
+				if( now - launched >= STABLE_RUN )
+					failures = 0;
+				long backoff = Math.min( MINIMUM_BACKOFF << Math.min( failures, 16 ), MAXIMUM_BACKOFF );
+				failures++;
+				restartAt = now + backoff;
+				record( new Entry( id, -1, -1, ProcessUtil.getPid(), restarts, policy, command ).toString() );
+				return false;
+			}
+
+			return end();
+		}
+
+		private synchronized boolean end()
+		{
+			done = true;
+			record( null );
+			releaseId( id );
+			notifyAll();
+			return true;
+		}
+
+		private synchronized void shutdown()
+		{
+			done = true;
+			if( process != null )
+				process.destroy();
+			notifyAll();
+		}
+
+		private void record( String value )
+		{
+			try
+			{
+				journal.append( Collections.singletonMap( id, value ) );
+			}
+			catch( IOException x )
+			{
+				// The registry is informational only
+			}
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final String IDS_SUFFIX = ".ids";
+
+	private static final ConcurrentMap<File, ProcessSupervisor> supervisors = new ConcurrentHashMap<File, ProcessSupervisor>();
+
+	private static final Object monitor = new Object();
+
+	// Guarded by monitor
+	private static final List<Supervised> monitored = new ArrayList<Supervised>();
+
+	// Guarded by monitor
+	private static Thread monitorThread;
+
+	// Guarded by monitor
+	private static boolean hookAdded;
+
+	private final PropertiesJournal journal;
+
+	private final File idsDir;
+
+	private ProcessSupervisor( File registryFile )
+	{
+		journal = new PropertiesJournal( registryFile, "Managed by Sincerity" );
+		idsDir = new File( registryFile.getPath() + IDS_SUFFIX );
+	}
+
+	/**
+	 * Creates a unique ID.
+	 * <p>
+	 * Another JVM might be choosing an ID at the same time, so we claim it by
+	 * atomically creating a file named after it, and try the next ID if that
+	 * file already exists.
+	 * 
+	 * @param name
+	 *        The base name
+	 * @return The ID
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private String createId( String name ) throws IOException
+	{
+		Map<String, Entry> entries = list();
+		Files.createDirectories( idsDir.toPath() );
+		for( int i = 1;; i++ )
+		{
+			String id = name + "." + i;
+			if( entries.containsKey( id ) )
+				continue;
+			try
+			{
+				Files.createFile( new File( idsDir, id ).toPath() );
+				return id;
+			}
+			catch( FileAlreadyExistsException x )
+			{
+				// Claimed by someone else
+			}
+		}
+	}
+
+	/**
+	 * Releases an ID claimed by {@link #createId(String)}.
+	 * 
+	 * @param id
+	 *        The ID
+	 */
+	private void releaseId( String id )
+	{
+		try
+		{
+			Files.deleteIfExists( new File( idsDir, id ).toPath() );
+		}
+		catch( IOException x )
+		{
+		}
+	}
+
+	/**
+	 * Checks all supervised processes periodically.
+	 */
+	private static class Monitor implements Runnable
+	{
+		public void run()
+		{
+			ArrayList<Supervised> pass = new ArrayList<Supervised>();
+			while( true )
+			{
+				synchronized( monitor )
+				{
+					if( monitored.isEmpty() )
+					{
+						monitorThread = null;
+						return;
+					}
+					pass.clear();
+					pass.addAll( monitored );
+				}
+
+				for( Supervised supervised : pass )
+				{
+					if( supervised.check() )
+					{
+						synchronized( monitor )
+						{
+							monitored.remove( supervised );
+						}
+					}
+				}
+
+				try
+				{
+					Thread.sleep( MONITOR_INTERVAL );
+				}
+				catch( InterruptedException x )
+				{
+					synchronized( monitor )
+					{
+						monitorThread = null;
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Destroys all supervised processes at JVM shutdown.
+	 */
+	private static class Shutdown implements Runnable
+	{
+		public void run()
+		{
+			ArrayList<Supervised> all;
+			synchronized( monitor )
+			{
+				all = new ArrayList<Supervised>( monitored );
+				monitored.clear();
+			}
+
+			// Signal all processes at once
+			for( Supervised supervised : all )
+				supervised.shutdown();
+
+			// And then wait for all of them together
+			long deadline = System.currentTimeMillis() + SHUTDOWN_GRACE_PERIOD;
+			for( Supervised supervised : all )
+			{
+				Process process = supervised.getProcess();
+				if( process == null )
+					continue;
+
+				while( ProcessUtil.isAlive( process ) && ( System.currentTimeMillis() < deadline ) )
+				{
+					try
+					{
+						Thread.sleep( 50 );
+					}
+					catch( InterruptedException x )
+					{
+						break;
+					}
+				}
+
+				if( ProcessUtil.isAlive( process ) )
+				{
+					long pid = ProcessUtil.getPid( process );
+					if( pid != -1 )
+						ProcessUtil.kill( pid, true );
+				}
+
+				supervised.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,406 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Operating system process utilities.
+ * <p>
+ * Process information is read from the Linux "/proc" filesystem. On other
+ * operating systems it is unavailable, though liveness checks and signals
+ * are supported via the "kill" command.
+ * 
+ * @author Tal Liron
+ */
+public abstract class ProcessUtil
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * Clock ticks per second used by "/proc" (USER_HZ, which is 100 on all
+	 * common Linux platforms).
+	 */
+	public static final int CLOCK_TICKS = 100;
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * The pid of this JVM.
+	 * 
+	 * @return The pid or -1 if unknown
+	 */
+	public static long getPid()
+	{
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int at = name.indexOf( '@' );
+		try
+		{
+			return Long.parseLong( at != -1 ? name.substring( 0, at ) : name );
+		}
+		catch( NumberFormatException x )
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * The pid of a process.
+	 * 
+	 * @param process
+	 *        The process
+	 * @return The pid or -1 if unknown
+	 */
+	public static long getPid( Process process )
+	{
+		// Java 9 and later
+		try
+		{
+			return ( (Number) Process.class.getMethod( "pid" ).invoke( process ) ).longValue();
+		}
+		catch( Exception x )
+		{
+		}
+
+		// Older JVMs on Unix-like operating systems
+		try
+		{
+			Field field = process.getClass().getDeclaredField( "pid" );
+			field.setAccessible( true );
+			return ( (Number) field.get( process ) ).longValue();
+		}
+		catch( Exception x )
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * True if the process has not yet terminated.
+	 * 
+	 * @param process
+	 *        The process
+	 * @return True if alive
+	 */
+	public static boolean isAlive( Process process )
+	{
+		try
+		{
+			process.exitValue();
+			return false;
+		}
+		catch( IllegalThreadStateException x )
+		{
+			return true;
+		}
+	}
+
+	/**
+	 * True if a process with the pid exists and has not terminated (zombies
+	 * are considered to have terminated).
+	 * 
+	 * @param pid
+	 *        The pid
+	 * @return True if alive, false if not or if unknown
+	 */
+	public static boolean isAlive( long pid )
+	{
+		if( !PROC.isDirectory() )
+			return signal( pid, "-0" );
+		Stat stat = Stat.read( pid );
+		return ( stat != null ) && ( stat.state != 'Z' ) && ( stat.state != 'X' );
+	}
+
+	/**
+	 * True only if it is known that no process with the pid is alive. Unlike
+	 * {@link #isAlive(long)}, this is false if liveness could not be
+	 * determined, for example because "/proc" is unavailable and the process
+	 * belongs to another user, or because there is no "kill" command.
+	 * 
+	 * @param pid
+	 *        The pid
+	 * @return True if not alive, false if alive or if unknown
+	 */
+	public static boolean isDead( long pid )
+	{
+		if( PROC.isDirectory() )
+			return !isAlive( pid );
+		StringBuilder output = new StringBuilder();
+		return ( signal( pid, "-0", output ) > 0 ) && ( output.indexOf( "No such process" ) != -1 );
+	}
+
+	/**
+	 * Sends a signal to a process.
+	 * 
+	 * @param pid
+	 *        The pid
+	 * @param force
+	 *        True to send SIGKILL, otherwise SIGTERM
+	 * @return True if the signal was sent
+	 */
+	public static boolean kill( long pid, boolean force )
+	{
+		return signal( pid, force ? "-KILL" : "-TERM" );
+	}
+
+	/**
+	 * The system uptime.
+	 * 
+	 * @return The uptime in milliseconds or -1 if unknown
+	 */
+	public static long getUptime()
+	{
+		String uptime = readProc( "uptime" );
+		if( uptime == null )
+			return -1;
+		int space = uptime.indexOf( ' ' );
+		try
+		{
+			return (long) ( Double.parseDouble( space != -1 ? uptime.substring( 0, space ) : uptime.trim() ) * 1000 );
+		}
+		catch( NumberFormatException x )
+		{
+			return -1;
+		}
+	}
+
+	//
+	// Classes
+	//
+
+	/**
+	 * A snapshot of a process's state and resource usage.
+	 */
+	public static class Stat
+	{
+		//
+		// Static operations
+		//
+
+		/**
+		 * Reads the state of a process.
+		 * 
+		 * @param pid
+		 *        The pid
+		 * @return The state or null if the process does not exist or if
+		 *         "/proc" is unavailable
+		 */
+		public static Stat read( long pid )
+		{
+			String stat = readProc( pid + "/stat" );
+			if( stat == null )
+				return null;
+
+			// The command name is in parentheses and may contain spaces
+			int close = stat.lastIndexOf( ')' );
+			if( close == -1 )
+				return null;
+			String[] fields = stat.substring( close + 2 ).split( " " );
+			if( fields.length < 22 )
+				return null;
+
+			try
+			{
+				long cpuTime = ( Long.parseLong( fields[11] ) + Long.parseLong( fields[12] ) ) * 1000 / CLOCK_TICKS;
+				long startTime = Long.parseLong( fields[19] ) * 1000 / CLOCK_TICKS;
+				long rss = -1;
+				String status = readProc( pid + "/status" );
+				if( status != null )
+				{
+					int index = status.indexOf( "VmRSS:" );
+					if( index != -1 )
+					{
+						int end = status.indexOf( '\n', index );
+						String value = status.substring( index + 6, end != -1 ? end : status.length() ).trim();
+						int space = value.indexOf( ' ' );
+						rss = Long.parseLong( space != -1 ? value.substring( 0, space ) : value ) * 1024;
+					}
+				}
+				return new Stat( pid, fields[0].charAt( 0 ), cpuTime, startTime, rss, System.currentTimeMillis() );
+			}
+			catch( NumberFormatException x )
+			{
+				return null;
+			}
+		}
+
+		//
+		// Construction
+		//
+
+		public Stat( long pid, char state, long cpuTime, long startTime, long rss, long timestamp )
+		{
+			this.pid = pid;
+			this.state = state;
+			this.cpuTime = cpuTime;
+			this.startTime = startTime;
+			this.rss = rss;
+			this.timestamp = timestamp;
+		}
+
+		//
+		// Attributes
+		//
+
+		/**
+		 * The pid.
+		 */
+		public final long pid;
+
+		/**
+		 * The state character ("R" for running, "S" for sleeping, "Z" for
+		 * zombie, etc.).
+		 */
+		public final char state;
+
+		/**
+		 * Total CPU time (user and system) in milliseconds.
+		 */
+		public final long cpuTime;
+
+		/**
+		 * Start time in milliseconds since system boot. Together with the pid,
+		 * this uniquely identifies the process.
+		 */
+		public final long startTime;
+
+		/**
+		 * Resident set size in bytes or -1 if unknown.
+		 */
+		public final long rss;
+
+		/**
+		 * When this snapshot was taken (system time in milliseconds).
+		 */
+		public final long timestamp;
+
+		/**
+		 * CPU usage between an earlier snapshot and this one.
+		 * 
+		 * @param previous
+		 *        The earlier snapshot of the same process
+		 * @return The percentage of a single CPU (can be more than 100 for
+		 *         multi-threaded processes)
+		 */
+		public double getCpuPercent( Stat previous )
+		{
+			long elapsed = timestamp - previous.timestamp;
+			if( elapsed <= 0 )
+				return 0;
+			return ( cpuTime - previous.cpuTime ) * 100.0 / elapsed;
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final File PROC = new File( "/proc" );
+
+	private ProcessUtil()
+	{
+	}
+
+	/**
+	 * Sends a signal to a process using the "kill" command.
+	 * 
+	 * @param pid
+	 *        The pid
+	 * @param signal
+	 *        The signal switch for the "kill" command
+	 * @return True if the command succeeded
+	 */
+	private static boolean signal( long pid, String signal )
+	{
+		return signal( pid, signal, null ) == 0;
+	}
+
+	/**
+	 * Sends a signal to a process using the "kill" command, capturing its
+	 * output.
+	 * 
+	 * @param pid
+	 *        The pid
+	 * @param signal
+	 *        The signal switch for the "kill" command
+	 * @param output
+	 *        The builder to which to append the command's output or null
+	 * @return The exit code of the command or -1 if it could not be run
+	 */
+	private static int signal( long pid, String signal, StringBuilder output )
+	{
+		ProcessBuilder processBuilder = new ProcessBuilder( "kill", signal, Long.toString( pid ) );
+		processBuilder.redirectErrorStream( true );
+
+		// We want to recognize the error messages
+		processBuilder.environment().put( "LC_ALL", "C" );
+
+		try
+		{
+			Process process = processBuilder.start();
+			process.getOutputStream().close();
+			InputStream stream = process.getInputStream();
+			try
+			{
+				if( output != null )
+				{
+					byte[] buffer = new byte[1024];
+					int length;
+					while( ( length = stream.read( buffer ) ) != -1 )
+						output.append( new String( buffer, 0, length, StandardCharsets.UTF_8 ) );
+				}
+			}
+			finally
+			{
+				stream.close();
+			}
+			return process.waitFor();
+		}
+		catch( IOException x )
+		{
+			return -1;
+		}
+		catch( InterruptedException x )
+		{
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads a file in "/proc".
+	 * 
+	 * @param path
+	 *        The path relative to "/proc"
+	 * @return The content or null if it could not be read
+	 */
+	private static String readProc( String path )
+	{
+		try
+		{
+			return new String( Files.readAllBytes( new File( PROC, path ).toPath() ), StandardCharsets.UTF_8 );
+		}
+		catch( IOException x )
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,538 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A crash-safe, append-only store for string properties.
+ * <p>
+ * The state is kept in two files: a snapshot in the standard
+ * {@link Properties} format, and a journal of changes made since the snapshot
+ * was written (the snapshot file name with a ".journal" suffix). Changes are
+ * appended to the journal and forced to disk, so their cost is proportional to
+ * the size of the change rather than the size of the whole store. Once the
+ * journal grows larger than the snapshot, it is compacted: a new snapshot is
+ * written to a temporary file and atomically renamed over the old one, after
+ * which the journal is discarded.
+ * <p>
+ * A crash can at worst leave a partially written record at the end of the
+ * journal, which is ignored when reading and removed before the next append.
+ * Because records are idempotent, replaying the journal over a snapshot that
+ * already includes it is harmless.
+ * <p>
+ * Several instances, in several threads, may work with the same files
+ * concurrently: writes within a JVM are serialized via a lock shared per
+ * snapshot file, and are additionally protected by a filesystem lock against
+ * other processes.
+ * 
+ * @author Tal Liron
+ */
+public class PropertiesJournal
+{
+	//
+	// Constants
+	//
+
+	public static final String JOURNAL_SUFFIX = ".journal";
+
+	public static final long MINIMUM_COMPACTION_SIZE = 64 * 1024;
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param file
+	 *        The snapshot file
+	 * @param comment
+	 *        The comment to write at the top of the snapshot
+	 */
+	public PropertiesJournal( File file, String comment )
+	{
+		this.file = file.getAbsoluteFile();
+		this.comment = comment;
+		journalFile = new File( this.file.getPath() + JOURNAL_SUFFIX );
+		lock = getLock( this.file );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The snapshot file.
+	 * 
+	 * @return The snapshot file
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * The journal file.
+	 * 
+	 * @return The journal file
+	 */
+	public File getJournalFile()
+	{
+		return journalFile;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Reads the current state: the snapshot with the journal replayed over
+	 * it.
+	 * 
+	 * @return The properties
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public Map<String, String> read() throws IOException
+	{
+		synchronized( lock )
+		{
+			if( !journalFile.exists() )
+				return readSnapshot();
+
+			RandomAccessFile randomAccessFile;
+			try
+			{
+				randomAccessFile = new RandomAccessFile( journalFile, "r" );
+			}
+			catch( FileNotFoundException x )
+			{
+				return readSnapshot();
+			}
+			try
+			{
+				// Readers can share the lock, because compaction replaces the
+				// snapshot while holding the exclusive lock
+				FileChannel channel = randomAccessFile.getChannel();
+				FileLock fileLock = channel.lock( 0, Long.MAX_VALUE, true );
+				try
+				{
+					Map<String, String> state = readSnapshot();
+					replay( channel, state );
+					return state;
+				}
+				finally
+				{
+					fileLock.release();
+				}
+			}
+			finally
+			{
+				randomAccessFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Appends changes to the journal, compacting it if it has grown too large.
+	 * 
+	 * @param changes
+	 *        The changed properties (a null value means that the property was
+	 *        removed)
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public void append( Map<String, String> changes ) throws IOException
+	{
+		if( changes.isEmpty() )
+			return;
+
+		StringBuilder records = new StringBuilder();
+		for( Map.Entry<String, String> change : changes.entrySet() )
+		{
+			String value = change.getValue();
+			if( value != null )
+			{
+				records.append( SET );
+				escape( change.getKey(), records );
+				records.append( '=' );
+				escape( value, records );
+			}
+			else
+			{
+				records.append( REMOVE );
+				escape( change.getKey(), records );
+			}
+			records.append( '\n' );
+		}
+		ByteBuffer buffer = ByteBuffer.wrap( records.toString().getBytes( StandardCharsets.UTF_8 ) );
+
+		synchronized( lock )
+		{
+			File parent = journalFile.getParentFile();
+			if( parent != null )
+				Files.createDirectories( parent.toPath() );
+
+			long size;
+			RandomAccessFile randomAccessFile = new RandomAccessFile( journalFile, "rw" );
+			try
+			{
+				FileChannel channel = randomAccessFile.getChannel();
+				FileLock fileLock = channel.lock();
+				try
+				{
+					truncateTornRecord( channel );
+					channel.position( channel.size() );
+					while( buffer.hasRemaining() )
+						channel.write( buffer );
+					channel.force( false );
+					size = channel.size();
+				}
+				finally
+				{
+					fileLock.release();
+				}
+			}
+			finally
+			{
+				randomAccessFile.close();
+			}
+
+			if( size > Math.max( MINIMUM_COMPACTION_SIZE, file.length() ) )
+				compact();
+		}
+	}
+
+	/**
+	 * Writes a new snapshot including all changes in the journal, and then
+	 * discards the journal.
+	 * 
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public void compact() throws IOException
+	{
+		synchronized( lock )
+		{
+			if( !journalFile.exists() )
+				return;
+
+			RandomAccessFile randomAccessFile = new RandomAccessFile( journalFile, "rw" );
+			try
+			{
+				FileChannel channel = randomAccessFile.getChannel();
+				FileLock fileLock = channel.lock();
+				try
+				{
+					Map<String, String> state = readSnapshot();
+					replay( channel, state );
+
+					Properties properties = new Properties();
+					properties.putAll( state );
+
+					File temporaryFile = new File( file.getPath() + TEMPORARY_SUFFIX );
+					FileOutputStream stream = new FileOutputStream( temporaryFile );
+					try
+					{
+						properties.store( stream, comment );
+						stream.flush();
+						stream.getFD().sync();
+					}
+					finally
+					{
+						stream.close();
+					}
+
+					try
+					{
+						Files.move( temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+					}
+					catch( AtomicMoveNotSupportedException x )
+					{
+						Files.move( temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+					}
+
+					// The journal is now included in the snapshot
+					channel.truncate( 0 );
+					channel.force( false );
+				}
+				finally
+				{
+					fileLock.release();
+				}
+			}
+			finally
+			{
+				randomAccessFile.close();
+			}
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	private static final int BUFFER_SIZE = 4 * 1024;
+
+	private static final char SET = '+';
+
+	private static final char REMOVE = '-';
+
+	private static final ConcurrentMap<File, Object> locks = new ConcurrentHashMap<File, Object>();
+
+	private final File file;
+
+	private final File journalFile;
+
+	private final String comment;
+
+	private final Object lock;
+
+	/**
+	 * The lock shared by all instances using the same snapshot file.
+	 * 
+	 * @param file
+	 *        The absolute snapshot file
+	 * @return The lock
+	 */
+	private static Object getLock( File file )
+	{
+		Object lock = new Object();
+		Object existing = locks.putIfAbsent( file, lock );
+		return existing != null ? existing : lock;
+	}
+
+	/**
+	 * Escapes backslashes, line breaks and equal signs.
+	 * 
+	 * @param string
+	 *        The string
+	 * @param builder
+	 *        The builder to which to append the escaped string
+	 */
+	private static void escape( String string, StringBuilder builder )
+	{
+		for( int i = 0, length = string.length(); i < length; i++ )
+		{
+			char c = string.charAt( i );
+			switch( c )
+			{
+				case '\\':
+					builder.append( "\\\\" );
+					break;
+				case '\n':
+					builder.append( "\\n" );
+					break;
+				case '\r':
+					builder.append( "\\r" );
+					break;
+				case '=':
+					builder.append( "\\=" );
+					break;
+				default:
+					builder.append( c );
+			}
+		}
+	}
+
+	/**
+	 * Reverses {@link #escape(String, StringBuilder)}.
+	 * 
+	 * @param string
+	 *        The escaped string
+	 * @return The string
+	 */
+	private static String unescape( String string )
+	{
+		if( string.indexOf( '\\' ) == -1 )
+			return string;
+
+		StringBuilder builder = new StringBuilder( string.length() );
+		for( int i = 0, length = string.length(); i < length; i++ )
+		{
+			char c = string.charAt( i );
+			if( ( c == '\\' ) && ( i + 1 < length ) )
+			{
+				c = string.charAt( ++i );
+				if( c == 'n' )
+					c = '\n';
+				else if( c == 'r' )
+					c = '\r';
+			}
+			builder.append( c );
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Finds the first equal sign that is not escaped.
+	 * 
+	 * @param record
+	 *        The record
+	 * @return The index or -1 if not found
+	 */
+	private static int findSeparator( String record )
+	{
+		for( int i = 1, length = record.length(); i < length; i++ )
+		{
+			char c = record.charAt( i );
+			if( c == '\\' )
+				i++;
+			else if( c == '=' )
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads the snapshot.
+	 * 
+	 * @return The properties
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private Map<String, String> readSnapshot() throws IOException
+	{
+		HashMap<String, String> state = new HashMap<String, String>();
+		Properties properties = new Properties();
+		try
+		{
+			FileInputStream stream = new FileInputStream( file );
+			try
+			{
+				properties.load( stream );
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+		catch( FileNotFoundException x )
+		{
+		}
+		for( Map.Entry<Object, Object> entry : properties.entrySet() )
+			state.put( entry.getKey().toString(), entry.getValue().toString() );
+		return state;
+	}
+
+	/**
+	 * Removes a partially written record left at the end of the journal by a
+	 * crash, so that the next record is not appended to it.
+	 * 
+	 * @param channel
+	 *        The journal channel
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private static void truncateTornRecord( FileChannel channel ) throws IOException
+	{
+		long size = channel.size();
+		ByteBuffer buffer = ByteBuffer.allocate( (int) Math.min( size, BUFFER_SIZE ) );
+		long end = size;
+		while( end > 0 )
+		{
+			long start = Math.max( 0, end - buffer.capacity() );
+			buffer.clear();
+			buffer.limit( (int) ( end - start ) );
+			channel.position( start );
+			while( buffer.hasRemaining() )
+				if( channel.read( buffer ) == -1 )
+					break;
+
+			for( int i = buffer.position() - 1; i >= 0; i-- )
+			{
+				if( buffer.get( i ) == '\n' )
+				{
+					end = start + i + 1;
+					if( end < size )
+					{
+						channel.truncate( end );
+						channel.force( false );
+					}
+					return;
+				}
+			}
+			end = start;
+		}
+
+		// No complete record at all
+		if( size > 0 )
+		{
+			channel.truncate( 0 );
+			channel.force( false );
+		}
+	}
+
+	/**
+	 * Replays the journal.
+	 * 
+	 * @param channel
+	 *        The journal channel
+	 * @param state
+	 *        The state to change
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private static void replay( FileChannel channel, Map<String, String> state ) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate( (int) channel.size() );
+		channel.position( 0 );
+		while( buffer.hasRemaining() )
+			if( channel.read( buffer ) == -1 )
+				break;
+		buffer.flip();
+
+		String journal = StandardCharsets.UTF_8.decode( buffer ).toString();
+		int start = 0;
+		int end;
+
+		// A trailing record without a line break was not completely written,
+		// so we ignore it
+		while( ( end = journal.indexOf( '\n', start ) ) != -1 )
+		{
+			String record = journal.substring( start, end );
+			start = end + 1;
+
+			if( record.length() < 2 )
+				continue;
+
+			char operation = record.charAt( 0 );
+			if( operation == SET )
+			{
+				int separator = findSeparator( record );
+				if( separator != -1 )
+					state.put( unescape( record.substring( 1, separator ) ), unescape( record.substring( separator + 1 ) ) );
+			}
+			else if( operation == REMOVE )
+				state.remove( unescape( record.substring( 1 ) ) );
+		}
+	}
+}
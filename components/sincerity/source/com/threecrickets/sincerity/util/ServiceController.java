@@ -0,0 +1,318 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controls a service process via its pid and status files, as written by a
+ * service wrapper.
+ * <p>
+ * Stopping a service does not poll at fixed intervals: it watches the
+ * directory of the pid and status files (see {@link WatchService}), waking up
+ * as soon as the wrapper updates or removes them, and additionally checks the
+ * process's liveness every {@link #LIVENESS_INTERVAL} milliseconds, in case
+ * the process died without touching the files.
+ * 
+ * @author Tal Liron
+ * @see ProcessUtil
+ */
+public class ServiceController
+{
+	//
+	// Constants
+	//
+
+	public static final long LIVENESS_INTERVAL = 100;
+
+	public static final long DEFAULT_TIMEOUT = 30 * 1000;
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * Stops several services concurrently, waiting for all of them to exit.
+	 * 
+	 * @param controllers
+	 *        The service controllers
+	 * @param timeout
+	 *        The maximum time to wait in milliseconds (for all services
+	 *        together)
+	 * @param force
+	 *        True to kill processes that have not exited by the timeout
+	 * @return True if all services have stopped (or were not running)
+	 * @throws IOException
+	 *         In case of an I/O error
+	 * @throws InterruptedException
+	 *         If interrupted while waiting
+	 */
+	public static boolean stop( Iterable<ServiceController> controllers, long timeout, boolean force ) throws IOException, InterruptedException
+	{
+		// Signal them all first
+		LinkedHashMap<ServiceController, Long> pids = new LinkedHashMap<ServiceController, Long>();
+		for( ServiceController controller : controllers )
+		{
+			long pid = controller.getPid();
+			if( pid != -1 )
+			{
+				ProcessUtil.kill( pid, false );
+				pids.put( controller, pid );
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+		boolean stopped = true;
+		for( Map.Entry<ServiceController, Long> entry : pids.entrySet() )
+			if( !entry.getKey().awaitStop( entry.getValue(), Math.max( deadline - System.currentTimeMillis(), 0 ), force ) )
+				stopped = false;
+		return stopped;
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pidFile
+	 *        The pid file
+	 * @param statusFile
+	 *        The status file
+	 */
+	public ServiceController( File pidFile, File statusFile )
+	{
+		this.pidFile = pidFile.getAbsoluteFile();
+		this.statusFile = statusFile.getAbsoluteFile();
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The pid file.
+	 * 
+	 * @return The pid file
+	 */
+	public File getPidFile()
+	{
+		return pidFile;
+	}
+
+	/**
+	 * The status file.
+	 * 
+	 * @return The status file
+	 */
+	public File getStatusFile()
+	{
+		return statusFile;
+	}
+
+	/**
+	 * The pid of the running service. If the pid file refers to a process
+	 * that is known to be no longer alive, the pid and status files are
+	 * deleted. If liveness cannot be determined, the pid file is trusted.
+	 * 
+	 * @return The pid or -1 if not running
+	 */
+	public long getPid()
+	{
+		String content = read( pidFile );
+		if( content == null )
+			return -1;
+
+		long pid;
+		try
+		{
+			pid = Long.parseLong( content );
+		}
+		catch( NumberFormatException x )
+		{
+			return -1;
+		}
+
+		if( ProcessUtil.isDead( pid ) )
+		{
+			pidFile.delete();
+			statusFile.delete();
+			return -1;
+		}
+
+		return pid;
+	}
+
+	/**
+	 * The status reported by the service wrapper.
+	 * 
+	 * @return The status or null if unknown
+	 */
+	public String getStatus()
+	{
+		return read( statusFile );
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Stops the service, waiting for it to exit.
+	 * 
+	 * @param timeout
+	 *        The maximum time to wait in milliseconds
+	 * @param force
+	 *        True to kill the process if it has not exited by the timeout
+	 * @return True if the service has stopped (or was not running)
+	 * @throws IOException
+	 *         In case of an I/O error
+	 * @throws InterruptedException
+	 *         If interrupted while waiting
+	 */
+	public boolean stop( long timeout, boolean force ) throws IOException, InterruptedException
+	{
+		long pid = getPid();
+		if( pid == -1 )
+			return true;
+
+		ProcessUtil.kill( pid, false );
+		return awaitStop( pid, timeout, force );
+	}
+
+	/**
+	 * Waits for a process to exit. A process whose liveness cannot be
+	 * determined (see {@link ProcessUtil#isDead(long)}) is considered to be
+	 * running until the timeout.
+	 * 
+	 * @param pid
+	 *        The pid
+	 * @param timeout
+	 *        The maximum time to wait in milliseconds
+	 * @return True if the process is known to have exited
+	 * @throws IOException
+	 *         In case of an I/O error
+	 * @throws InterruptedException
+	 *         If interrupted while waiting
+	 */
+	public boolean waitForExit( long pid, long timeout ) throws IOException, InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		WatchService watchService = pidFile.toPath().getFileSystem().newWatchService();
+		try
+		{
+			File dir = pidFile.getParentFile();
+			dir.toPath().register( watchService, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE );
+			if( !statusFile.getParentFile().equals( dir ) )
+				statusFile.getParentFile().toPath().register( watchService, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE );
+
+			while( true )
+			{
+				if( ProcessUtil.isDead( pid ) )
+					return true;
+
+				long remaining = deadline - System.currentTimeMillis();
+				if( remaining <= 0 )
+					return false;
+
+				// Wakes up on any change to the files, or for the next liveness
+				// check
+				WatchKey key = watchService.poll( Math.min( remaining, LIVENESS_INTERVAL ), TimeUnit.MILLISECONDS );
+				if( key != null )
+				{
+					key.pollEvents();
+					key.reset();
+				}
+			}
+		}
+		catch( ClosedWatchServiceException x )
+		{
+			return ProcessUtil.isDead( pid );
+		}
+		finally
+		{
+			watchService.close();
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final File pidFile;
+
+	private final File statusFile;
+
+	/**
+	 * Waits for a signaled process to exit, killing it if it does not.
+	 * 
+	 * @param pid
+	 *        The pid
+	 * @param timeout
+	 *        The maximum time to wait in milliseconds
+	 * @param force
+	 *        True to kill the process if it has not exited by the timeout
+	 * @return True if the process has exited
+	 * @throws IOException
+	 *         In case of an I/O error
+	 * @throws InterruptedException
+	 *         If interrupted while waiting
+	 */
+	private boolean awaitStop( long pid, long timeout, boolean force ) throws IOException, InterruptedException
+	{
+		if( waitForExit( pid, timeout ) )
+			return true;
+
+		if( !force )
+			return false;
+
+		ProcessUtil.kill( pid, true );
+		if( !waitForExit( pid, LIVENESS_INTERVAL * 20 ) )
+			return false;
+
+		// The wrapper did not get a chance to clean up
+		pidFile.delete();
+		statusFile.delete();
+		return true;
+	}
+
+	/**
+	 * Reads a small text file.
+	 * 
+	 * @param file
+	 *        The file
+	 * @return The trimmed content or null if the file does not exist or is
+	 *         empty
+	 */
+	private static String read( File file )
+	{
+		try
+		{
+			String content = new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 ).trim();
+			return content.length() > 0 ? content : null;
+		}
+		catch( IOException x )
+		{
+			return null;
+		}
+	}
+}
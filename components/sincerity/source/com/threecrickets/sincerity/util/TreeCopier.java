@@ -0,0 +1,647 @@
+/**
+ * Copyright 2011-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.sincerity.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies directory trees using NIO.
+ * <p>
+ * The tree is walked in the calling thread, which also creates the
+ * directories, while the files are copied by a bounded pool of worker threads.
+ * Large files are copied via {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)}, which allows the operating system to
+ * avoid copying the data through user space. Modification times and, where
+ * supported, POSIX permissions are preserved, and symbolic links are recreated
+ * as symbolic links. Existing target files are always replaced rather than
+ * written into, so that a target hardlinked to the source is never truncated.
+ * <p>
+ * Optionally, files accepted by a {@link LinkFilter} are not copied at all, but
+ * instead hardlinked to the source. This is only safe for files that are never
+ * modified in place. If hardlinks are not supported (for example, if the source
+ * and target are on different filesystems) the files are copied instead.
+ * <p>
+ * The number of threads defaults to the number of available processors, and
+ * can be changed via the "sincerity.copy.threads" JVM property.
+ * 
+ * @author Tal Liron
+ */
+public class TreeCopier
+{
+	//
+	// Constants
+	//
+
+	public static final String THREADS_PROPERTY = "sincerity.copy.threads";
+
+	/**
+	 * Files larger than this will be copied via channel transfer.
+	 */
+	public static final long TRANSFER_THRESHOLD = 256 * 1024;
+
+	/**
+	 * Minimum interval between progress reports, in milliseconds.
+	 */
+	public static final long PROGRESS_INTERVAL = 1000;
+
+	//
+	// Types
+	//
+
+	/**
+	 * Receives progress reports.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called at most once every {@link TreeCopier#PROGRESS_INTERVAL}, and
+		 * once more when the copy is done.
+		 * 
+		 * @param files
+		 *        The number of files copied so far
+		 * @param bytes
+		 *        The number of bytes copied so far
+		 * @param done
+		 *        True if the copy is done
+		 */
+		public void onProgress( long files, long bytes, boolean done );
+	}
+
+	/**
+	 * Decides which files may be hardlinked rather than copied.
+	 */
+	public interface LinkFilter
+	{
+		/**
+		 * True if the file may be hardlinked.
+		 * 
+		 * @param path
+		 *        The path of the file relative to the source root, using "/"
+		 *        as the separator
+		 * @return True if the file may be hardlinked
+		 */
+		public boolean isLinkable( String path );
+	}
+
+	/**
+	 * A listener that prints progress to a writer.
+	 */
+	public static class Printer implements Listener
+	{
+		/**
+		 * Constructor.
+		 * 
+		 * @param out
+		 *        The print writer
+		 * @param prefix
+		 *        The prefix for printed lines
+		 */
+		public Printer( PrintWriter out, String prefix )
+		{
+			this.out = out;
+			this.prefix = prefix;
+		}
+
+		public void onProgress( long files, long bytes, boolean done )
+		{
+			out.println( prefix + ( done ? "copied " : "copying... " ) + files + ( files == 1 ? " file (" : " files (" ) + ( bytes / 1024 ) + " KB)" );
+			out.flush();
+		}
+
+		private final PrintWriter out;
+
+		private final String prefix;
+	}
+
+	//
+	// Static attributes
+	//
+
+	/**
+	 * The default number of worker threads.
+	 * 
+	 * @return The number of threads
+	 * @see #THREADS_PROPERTY
+	 */
+	public static int getDefaultThreads()
+	{
+		String threads = System.getProperty( THREADS_PROPERTY );
+		if( threads != null )
+		{
+			try
+			{
+				return Math.max( 1, Integer.parseInt( threads ) );
+			}
+			catch( NumberFormatException x )
+			{
+			}
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor using the default number of threads.
+	 * 
+	 * @see #getDefaultThreads()
+	 */
+	public TreeCopier()
+	{
+		this( getDefaultThreads() );
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param threads
+	 *        The maximum number of worker threads (1 to copy everything in the
+	 *        calling thread)
+	 */
+	public TreeCopier( int threads )
+	{
+		this.threads = Math.max( 1, threads );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The progress listener.
+	 * 
+	 * @return The listener or null
+	 */
+	public Listener getListener()
+	{
+		return listener;
+	}
+
+	/**
+	 * The filter for files that may be hardlinked rather than copied.
+	 * 
+	 * @return The filter or null if all files are copied
+	 */
+	public LinkFilter getLinkFilter()
+	{
+		return linkFilter;
+	}
+
+	/**
+	 * The filter for files that may be hardlinked rather than copied.
+	 * 
+	 * @param linkFilter
+	 *        The filter or null if all files are copied
+	 * @see #getLinkFilter()
+	 */
+	public void setLinkFilter( LinkFilter linkFilter )
+	{
+		this.linkFilter = linkFilter;
+	}
+
+	/**
+	 * The progress listener.
+	 * 
+	 * @param listener
+	 *        The listener or null
+	 * @see #getListener()
+	 */
+	public void setListener( Listener listener )
+	{
+		this.listener = listener;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Copies the contents of a directory into another directory, which will be
+	 * created if it does not exist. Existing files are overwritten. If the
+	 * target is inside the source, it will not be copied into itself.
+	 * <p>
+	 * If the source is a file rather than a directory, it is copied to the
+	 * target path.
+	 * 
+	 * @param source
+	 *        The source directory or file
+	 * @param target
+	 *        The target directory or file
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	public void copy( File source, File target ) throws IOException
+	{
+		Path sourceRoot = source.toPath().toAbsolutePath().normalize();
+		Path targetRoot = target.toPath().toAbsolutePath().normalize();
+
+		Walker walker = new Walker( sourceRoot, targetRoot );
+		try
+		{
+			Files.walkFileTree( sourceRoot, walker );
+			walker.finish();
+		}
+		finally
+		{
+			walker.close();
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private final int threads;
+
+	private volatile Listener listener;
+
+	private volatile LinkFilter linkFilter;
+
+	/**
+	 * Copies a regular file and its attributes.
+	 * 
+	 * @param source
+	 *        The source file
+	 * @param target
+	 *        The target file
+	 * @param attributes
+	 *        The source attributes
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private static void copyFile( Path source, Path target, BasicFileAttributes attributes ) throws IOException
+	{
+		if( attributes.size() <= TRANSFER_THRESHOLD )
+		{
+			Files.copy( source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS );
+			return;
+		}
+
+		// Like Files.copy, we must not write into the target itself: it might
+		// be a hardlink to the source (or to another file)
+		Path temporary = IoUtil.createTemporaryFile( target.toFile() ).toPath();
+		try
+		{
+			FileChannel in = FileChannel.open( source, StandardOpenOption.READ );
+			try
+			{
+				FileChannel out = FileChannel.open( temporary, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+				try
+				{
+					long size = in.size();
+					long position = 0;
+					while( position < size )
+						position += in.transferTo( position, size - position, out );
+				}
+				finally
+				{
+					out.close();
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+
+			copyAttributes( source, temporary, attributes );
+
+			try
+			{
+				Files.move( temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+			}
+			catch( AtomicMoveNotSupportedException x )
+			{
+				Files.move( temporary, target, StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists( temporary );
+		}
+	}
+
+	/**
+	 * Copies the modification time and, where supported, the POSIX
+	 * permissions.
+	 * 
+	 * @param source
+	 *        The source file or directory
+	 * @param target
+	 *        The target file or directory
+	 * @param attributes
+	 *        The source attributes
+	 * @throws IOException
+	 *         In case of an I/O error
+	 */
+	private static void copyAttributes( Path source, Path target, BasicFileAttributes attributes ) throws IOException
+	{
+		PosixFileAttributeView targetView = Files.getFileAttributeView( target, PosixFileAttributeView.class );
+		if( targetView != null )
+		{
+			PosixFileAttributes sourceAttributes = Files.readAttributes( source, PosixFileAttributes.class );
+			targetView.setPermissions( sourceAttributes.permissions() );
+		}
+		Files.setLastModifiedTime( target, attributes.lastModifiedTime() );
+	}
+
+	/**
+	 * Walks the source tree, creating directories and dispatching files to
+	 * the workers.
+	 */
+	private class Walker extends SimpleFileVisitor<Path>
+	{
+		public Walker( Path sourceRoot, Path targetRoot )
+		{
+			this.sourceRoot = sourceRoot;
+			this.targetRoot = targetRoot;
+			if( threads > 1 )
+			{
+				executor = Executors.newFixedThreadPool( threads, new WorkerThreadFactory() );
+				inFlight = new Semaphore( threads * 4 );
+			}
+			else
+			{
+				executor = null;
+				inFlight = null;
+			}
+		}
+
+		@Override
+		public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attributes ) throws IOException
+		{
+			// Don't copy the target into itself
+			if( dir.equals( targetRoot ) && !dir.equals( sourceRoot ) )
+				return FileVisitResult.SKIP_SUBTREE;
+
+			Path target = getTarget( dir );
+			Files.createDirectories( target );
+			directories.put( dir, target );
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) throws IOException
+		{
+			Path target = getTarget( file );
+			if( file.equals( sourceRoot ) )
+				Files.createDirectories( target.getParent() );
+
+			if( attributes.isSymbolicLink() )
+			{
+				Files.deleteIfExists( target );
+				Files.createSymbolicLink( target, Files.readSymbolicLink( file ) );
+			}
+			else if( attributes.isRegularFile() )
+			{
+				if( link( file, target ) )
+					progress( attributes.size() );
+				else if( executor != null )
+				{
+					try
+					{
+						inFlight.acquire();
+					}
+					catch( InterruptedException x )
+					{
+						Thread.currentThread().interrupt();
+						throw new IOException( "Copying was interrupted", x );
+					}
+					futures.add( executor.submit( new Task( file, target, attributes ) ) );
+
+					// Check for failures early
+					if( futures.size() >= threads * 64 )
+						collect( false );
+				}
+				else
+				{
+					copyFile( file, target, attributes );
+					progress( attributes.size() );
+				}
+			}
+
+			return FileVisitResult.CONTINUE;
+		}
+
+		public void finish() throws IOException
+		{
+			collect( true );
+
+			// Directory attributes are copied last, because copying their
+			// contents changes their modification times
+			for( Map.Entry<Path, Path> directory : directories.entrySet() )
+				copyAttributes( directory.getKey(), directory.getValue(), Files.readAttributes( directory.getKey(), BasicFileAttributes.class ) );
+
+			Listener listener = TreeCopier.this.listener;
+			if( listener != null )
+				listener.onProgress( files.get(), bytes.get(), true );
+		}
+
+		public void close()
+		{
+			if( executor != null )
+				executor.shutdownNow();
+		}
+
+		private final Path sourceRoot;
+
+		private final Path targetRoot;
+
+		private final ExecutorService executor;
+
+		private final Semaphore inFlight;
+
+		private final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+		private final Map<Path, Path> directories = new LinkedHashMap<Path, Path>();
+
+		private final AtomicLong files = new AtomicLong();
+
+		private final AtomicLong bytes = new AtomicLong();
+
+		private final AtomicLong lastProgress = new AtomicLong( System.currentTimeMillis() );
+
+		private final LinkFilter linkFilter = TreeCopier.this.linkFilter;
+
+		private boolean linkUnsupported;
+
+		private Path getTarget( Path source )
+		{
+			return source.equals( sourceRoot ) ? targetRoot : targetRoot.resolve( sourceRoot.relativize( source ).toString() );
+		}
+
+		/**
+		 * Hardlinks the file, if allowed and supported.
+		 * 
+		 * @param source
+		 *        The source file
+		 * @param target
+		 *        The target file
+		 * @return True if linked
+		 * @throws IOException
+		 *         In case of an I/O error
+		 */
+		private boolean link( Path source, Path target ) throws IOException
+		{
+			if( ( linkFilter == null ) || linkUnsupported )
+				return false;
+
+			String path = sourceRoot.relativize( source ).toString().replace( File.separatorChar, '/' );
+			if( !linkFilter.isLinkable( path ) )
+				return false;
+
+			Files.deleteIfExists( target );
+			try
+			{
+				Files.createLink( target, source );
+				return true;
+			}
+			catch( UnsupportedOperationException x )
+			{
+				linkUnsupported = true;
+			}
+			catch( IOException x )
+			{
+				// Most likely the source and target are on different
+				// filesystems
+				linkUnsupported = true;
+			}
+			return false;
+		}
+
+		private void progress( long size )
+		{
+			long currentFiles = files.incrementAndGet();
+			long currentBytes = bytes.addAndGet( size );
+
+			Listener listener = TreeCopier.this.listener;
+			if( listener != null )
+			{
+				long now = System.currentTimeMillis();
+				long last = lastProgress.get();
+				if( ( now - last >= PROGRESS_INTERVAL ) && lastProgress.compareAndSet( last, now ) )
+					listener.onProgress( currentFiles, currentBytes, false );
+			}
+		}
+
+		/**
+		 * Collects the results of completed tasks, or of all tasks.
+		 * 
+		 * @param all
+		 *        True to wait for all tasks
+		 * @throws IOException
+		 *         If a task failed
+		 */
+		private void collect( boolean all ) throws IOException
+		{
+			for( Iterator<Future<Void>> i = futures.iterator(); i.hasNext(); )
+			{
+				Future<Void> future = i.next();
+				if( !all && !future.isDone() )
+					continue;
+				try
+				{
+					future.get();
+				}
+				catch( ExecutionException x )
+				{
+					Throwable cause = x.getCause();
+					if( cause instanceof IOException )
+						throw (IOException) cause;
+					throw new IOException( "Could not copy file: " + cause.getMessage(), cause );
+				}
+				catch( InterruptedException x )
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException( "Copying was interrupted", x );
+				}
+				i.remove();
+			}
+		}
+
+		/**
+		 * Copies a single file.
+		 */
+		private class Task implements Callable<Void>
+		{
+			public Task( Path source, Path target, BasicFileAttributes attributes )
+			{
+				this.source = source;
+				this.target = target;
+				this.attributes = attributes;
+			}
+
+			public Void call() throws IOException
+			{
+				try
+				{
+					copyFile( source, target, attributes );
+					progress( attributes.size() );
+				}
+				finally
+				{
+					inFlight.release();
+				}
+				return null;
+			}
+
+			private final Path source;
+
+			private final Path target;
+
+			private final BasicFileAttributes attributes;
+		}
+	}
+
+	/**
+	 * Creates daemon worker threads.
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory
+	{
+		public Thread newThread( Runnable runnable )
+		{
+			Thread thread = new Thread( runnable, "sincerity-copier-" + counter.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		}
+
+		private final AtomicInteger counter = new AtomicInteger();
+	}
+}